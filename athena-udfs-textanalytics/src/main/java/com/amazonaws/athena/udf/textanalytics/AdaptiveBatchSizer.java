@@ -0,0 +1,172 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses the number of documents per batch request, and the segment size long texts are split into, for one Comprehend API,
+ * from the latency and throttling of recent requests.
+ * <p>
+ * Starts at the configured maximums, which give the most bytes per request. Comprehend quotas are in requests per second,
+ * so a throttled request grows the batch back towards the maximums, to send the same bytes in fewer requests.
+ * A request slower than the target latency halves the documents per batch (or, at one document, the segment size)
+ * so that requests stay well inside the attempt timeout; requests under half the target grow them again one step at a time.
+ */
+class AdaptiveBatchSizer
+{
+    // throttled attempts seen by the calling thread, by any client call (the sync clients run interceptors on the calling thread).
+    // never reset - a request's throttled attempts are the difference across it, so throttles of unmeasured calls are not counted
+    private static final ThreadLocal<long[]> THROTTLED_ATTEMPTS = ThreadLocal.withInitial(() -> new long[1]);
+    private static final double EWMA_WEIGHT = 0.2;
+
+    private final String operation;
+    private final int maxDocuments;
+    private final int maxSegmentBytes;
+    private final int minSegmentBytes;
+    private final long targetLatencyNanos;
+    private int documentsPerBatch;
+    private int segmentBytes;
+    private long requests;
+    private long throttledRequests;
+    private long increases;
+    private long decreases;
+    private double ewmaLatencyMillis;
+    private double ewmaBytesPerSecond;
+
+    AdaptiveBatchSizer(String operation, int maxDocuments, int maxSegmentBytes, long targetLatencyMillis)
+    {
+        this.operation = operation;
+        this.maxDocuments = maxDocuments;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.minSegmentBytes = Math.max(1, maxSegmentBytes / 8);
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.documentsPerBatch = maxDocuments;
+        this.segmentBytes = maxSegmentBytes;
+    }
+
+    /**
+     * Called by ThrottleFeedbackInterceptor for each request attempt rejected by throttling.
+     */
+    static void recordThrottledAttempt()
+    {
+        THROTTLED_ATTEMPTS.get()[0]++;
+    }
+
+    /**
+     * @return throttled attempts seen by the calling thread so far - read before and after a request to count its own
+     */
+    static long getThrottledAttempts()
+    {
+        return THROTTLED_ATTEMPTS.get()[0];
+    }
+
+    synchronized int getDocumentsPerBatch()
+    {
+        return documentsPerBatch;
+    }
+
+    synchronized int getSegmentBytes()
+    {
+        return segmentBytes;
+    }
+
+    /**
+     * Records a completed request, and adapts the batch size.
+     * @param documents     number of documents in the request
+     * @param bytes         total utf-8 bytes of the documents
+     * @param latencyNanos  time taken by the request, including any retries
+     * @param throttledAttempts  attempts of the request rejected by throttling, from getThrottledAttempts() before and after it
+     */
+    void recordRequest(int documents, long bytes, long latencyNanos, long throttledAttempts)
+    {
+        boolean throttled = throttledAttempts > 0;
+        synchronized (this) {
+            requests++;
+            double latencyMillis = latencyNanos / 1e6;
+            double bytesPerSecond = (latencyNanos > 0) ? bytes * 1e9 / latencyNanos : 0;
+            ewmaLatencyMillis = (requests == 1) ? latencyMillis : (1 - EWMA_WEIGHT) * ewmaLatencyMillis + EWMA_WEIGHT * latencyMillis;
+            ewmaBytesPerSecond = (requests == 1) ? bytesPerSecond : (1 - EWMA_WEIGHT) * ewmaBytesPerSecond + EWMA_WEIGHT * bytesPerSecond;
+            if (targetLatencyNanos == 0) {
+                return;
+            }
+            if (throttled) {
+                // the latency of a throttled request includes retry backoff, so says nothing about the batch size
+                throttledRequests++;
+                grow(true, "throttled");
+            }
+            else if (latencyNanos > targetLatencyNanos) {
+                shrink(latencyMillis);
+            }
+            else if (latencyNanos < targetLatencyNanos / 2 && documents >= documentsPerBatch) {
+                grow(false, "latency " + Math.round(latencyMillis) + " ms");
+            }
+        }
+    }
+
+    // doubles (fast) or steps up the segment size back to its maximum first, then the documents per batch
+    private void grow(boolean fast, String reason)
+    {
+        int oldSegmentBytes = segmentBytes;
+        int oldDocumentsPerBatch = documentsPerBatch;
+        if (segmentBytes < maxSegmentBytes) {
+            segmentBytes = Math.min(maxSegmentBytes, fast ? segmentBytes * 2 : segmentBytes + minSegmentBytes);
+        }
+        else if (documentsPerBatch < maxDocuments) {
+            documentsPerBatch = Math.min(maxDocuments, fast ? documentsPerBatch * 2 : documentsPerBatch + 1);
+        }
+        if (segmentBytes != oldSegmentBytes || documentsPerBatch != oldDocumentsPerBatch) {
+            increases++;
+            logDecision(oldDocumentsPerBatch, oldSegmentBytes, reason);
+        }
+    }
+
+    // halves the documents per batch, or at one document per batch, the segment size
+    private void shrink(double latencyMillis)
+    {
+        int oldSegmentBytes = segmentBytes;
+        int oldDocumentsPerBatch = documentsPerBatch;
+        if (documentsPerBatch > 1) {
+            documentsPerBatch = documentsPerBatch / 2;
+        }
+        else {
+            segmentBytes = Math.max(minSegmentBytes, segmentBytes / 2);
+        }
+        if (segmentBytes != oldSegmentBytes || documentsPerBatch != oldDocumentsPerBatch) {
+            decreases++;
+            logDecision(oldDocumentsPerBatch, oldSegmentBytes, "latency " + Math.round(latencyMillis) + " ms > target " + TimeUnit.NANOSECONDS.toMillis(targetLatencyNanos) + " ms");
+        }
+    }
+
+    private void logDecision(int oldDocumentsPerBatch, int oldSegmentBytes, String reason)
+    {
+        System.out.println("DEBUG: Adaptive batch size " + operation + " (" + reason + ") => documents per batch: " + oldDocumentsPerBatch + " -> " + documentsPerBatch
+            + " segment bytes: " + oldSegmentBytes + " -> " + segmentBytes);
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return operation + " batch size: documents per batch " + documentsPerBatch + ", segment bytes " + segmentBytes
+            + ", requests " + requests + ", throttled " + throttledRequests + ", increases " + increases + ", decreases " + decreases
+            + ", avg latency " + Math.round(ewmaLatencyMillis) + " ms, avg bytes/sec " + Math.round(ewmaBytesPerSecond);
+    }
+}
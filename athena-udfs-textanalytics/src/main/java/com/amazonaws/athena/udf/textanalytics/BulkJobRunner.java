@@ -0,0 +1,354 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import software.amazon.awssdk.services.comprehend.ComprehendClient;
+import software.amazon.awssdk.services.comprehend.model.BatchDetectEntitiesItemResult;
+import software.amazon.awssdk.services.comprehend.model.BatchDetectKeyPhrasesItemResult;
+import software.amazon.awssdk.services.comprehend.model.BatchDetectSentimentItemResult;
+import software.amazon.awssdk.services.comprehend.model.Entity;
+import software.amazon.awssdk.services.comprehend.model.InputDataConfig;
+import software.amazon.awssdk.services.comprehend.model.InputFormat;
+import software.amazon.awssdk.services.comprehend.model.JobStatus;
+import software.amazon.awssdk.services.comprehend.model.KeyPhrase;
+import software.amazon.awssdk.services.comprehend.model.OutputDataConfig;
+import software.amazon.awssdk.services.comprehend.model.PiiEntitiesDetectionMode;
+import software.amazon.awssdk.services.comprehend.model.PiiEntity;
+import software.amazon.awssdk.services.comprehend.model.SentimentScore;
+import software.amazon.awssdk.services.comprehend.model.StartEntitiesDetectionJobRequest;
+import software.amazon.awssdk.services.comprehend.model.StartKeyPhrasesDetectionJobRequest;
+import software.amazon.awssdk.services.comprehend.model.StartPiiEntitiesDetectionJobRequest;
+import software.amazon.awssdk.services.comprehend.model.StartSentimentDetectionJobRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Runs Amazon Comprehend asynchronous (bulk) detection jobs for the text of a block, as an alternative to the
+ * synchronous batch APIs for very large tables.
+ * <p>
+ * The distinct texts are staged as one document per line in the bulk bucket, under a key derived from a hash of the
+ * job type, language and texts. The job is started with the same key as its client request token, so a retry of the
+ * query (or another container with the same block) attaches to the job already started rather than starting another.
+ * The job is polled until it completes, and its output is read back and mapped to the texts by line number. If the
+ * job is not complete before the invocation deadline, the query fails with an error, and can be run again later.
+ */
+class BulkJobRunner
+{
+    static final String INPUT_FILE = "documents.txt";
+
+    /**
+     * The asynchronous jobs that stand in for a synchronous API.
+     */
+    enum JobType
+    {
+        ENTITIES("BatchDetectEntities", "entities"),
+        KEY_PHRASES("BatchDetectKeyPhrases", "key-phrases"),
+        SENTIMENT("BatchDetectSentiment", "sentiment"),
+        PII_ENTITIES("DetectPiiEntities", "pii-entities");
+
+        private final String api;
+        private final String code;
+
+        JobType(String api, String code)
+        {
+            this.api = api;
+            this.code = code;
+        }
+
+        String getApi()
+        {
+            return api;
+        }
+
+        /**
+         * @param api  name of a synchronous API, e.g. BatchDetectEntities
+         * @return the job type for the API, or null if it has none
+         */
+        static JobType forApi(String api)
+        {
+            for (JobType jobType : values()) {
+                if (jobType.api.equals(api)) {
+                    return jobType;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final ComprehendClient comprehend;
+    private final ResultStore store;
+    private final String bucket;
+    private final String prefix;
+    private final String dataAccessRoleArn;
+    private final long pollIntervalMillis;
+
+    /**
+     * @param comprehend          client the jobs are started and described with
+     * @param store               object store the job input is staged to, and output read from
+     * @param bucket              bucket for job input and output
+     * @param prefix              key prefix for job input and output
+     * @param dataAccessRoleArn   IAM role Comprehend assumes to read the input and write the output
+     * @param pollIntervalMillis  time between checks of a job's status
+     */
+    BulkJobRunner(ComprehendClient comprehend, ResultStore store, String bucket, String prefix, String dataAccessRoleArn, long pollIntervalMillis)
+    {
+        this.comprehend = comprehend;
+        this.store = store;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.dataAccessRoleArn = dataAccessRoleArn;
+        this.pollIntervalMillis = pollIntervalMillis;
+    }
+
+    /**
+     * Runs a job (or attaches to one already started) for the texts, and waits for its results.
+     * @param jobType       the type of job
+     * @param languageCode  language of the texts
+     * @param texts         distinct texts, each shorter than the synchronous API's limit
+     * @param deadline      the invocation deadline - polling stops, with an error, before it is reached
+     * @return the result for each text, converted to the synchronous API's item result (or PII entity list), or null
+     *     for a text the job failed to process
+     */
+    List<Object> run(JobType jobType, String languageCode, List<String> texts, InvocationDeadline deadline) throws Exception
+    {
+        StringBuilder documents = new StringBuilder();
+        for (String text : texts) {
+            // one document per line - a line break in the text becomes a space, which leaves the offsets unchanged
+            documents.append(text.replace('\n', ' ').replace('\r', ' ')).append('\n');
+        }
+        String jobKey = jobType.code + "-" + languageCode + "-" + hash(jobType.code, languageCode, documents.toString());
+        String jobPrefix = prefix + "/" + jobKey;
+        store.put(bucket, jobPrefix + "/input/" + INPUT_FILE, documents.toString().getBytes(StandardCharsets.UTF_8));
+        String jobId = startJob(jobType, languageCode, jobKey, "s3://" + bucket + "/" + jobPrefix + "/input/", "s3://" + bucket + "/" + jobPrefix + "/output/");
+        System.out.println("DEBUG: Comprehend " + jobType.code + " job " + jobId + " for " + texts.size() + " documents, key " + jobKey);
+        String[] status = describeJob(jobType, jobId);
+        while (! status[0].equals(JobStatus.COMPLETED.toString())) {
+            if (status[0].equals(JobStatus.FAILED.toString()) || status[0].equals(JobStatus.STOPPED.toString()) || status[0].equals(JobStatus.STOP_REQUESTED.toString())) {
+                throw new RuntimeException("Error: Comprehend " + jobType.code + " job " + jobId + " " + status[0] + ": " + status[1]);
+            }
+            if (deadline.remainingMillis() < pollIntervalMillis) {
+                throw new RuntimeException("Error: Comprehend " + jobType.code + " job " + jobId + " is " + status[0] + " and its results are not ready before the Lambda timeout."
+                    + " Run the query again once the job has completed - it uses the same job, rather than starting another.");
+            }
+            Thread.sleep(pollIntervalMillis);
+            status = describeJob(jobType, jobId);
+        }
+        return readResults(jobType, status[2], texts.size());
+    }
+
+    // key derived from the job's content - at most 64 characters, of letters, digits and '-', as a client request token must be
+    private static String hash(String... parts) throws Exception
+    {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (String part : parts) {
+            digest.update((part.length() + ":" + part).getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.substring(0, 40);
+    }
+
+    private String startJob(JobType jobType, String languageCode, String jobKey, String inputUri, String outputUri)
+    {
+        InputDataConfig inputDataConfig = InputDataConfig.builder().s3Uri(inputUri).inputFormat(InputFormat.ONE_DOC_PER_LINE).build();
+        OutputDataConfig outputDataConfig = OutputDataConfig.builder().s3Uri(outputUri).build();
+        switch (jobType) {
+            case ENTITIES:
+                return comprehend.startEntitiesDetectionJob(StartEntitiesDetectionJobRequest.builder()
+                    .jobName(jobKey).clientRequestToken(jobKey).languageCode(languageCode).dataAccessRoleArn(dataAccessRoleArn)
+                    .inputDataConfig(inputDataConfig).outputDataConfig(outputDataConfig).build()).jobId();
+            case KEY_PHRASES:
+                return comprehend.startKeyPhrasesDetectionJob(StartKeyPhrasesDetectionJobRequest.builder()
+                    .jobName(jobKey).clientRequestToken(jobKey).languageCode(languageCode).dataAccessRoleArn(dataAccessRoleArn)
+                    .inputDataConfig(inputDataConfig).outputDataConfig(outputDataConfig).build()).jobId();
+            case SENTIMENT:
+                return comprehend.startSentimentDetectionJob(StartSentimentDetectionJobRequest.builder()
+                    .jobName(jobKey).clientRequestToken(jobKey).languageCode(languageCode).dataAccessRoleArn(dataAccessRoleArn)
+                    .inputDataConfig(inputDataConfig).outputDataConfig(outputDataConfig).build()).jobId();
+            default:
+                return comprehend.startPiiEntitiesDetectionJob(StartPiiEntitiesDetectionJobRequest.builder()
+                    .jobName(jobKey).clientRequestToken(jobKey).languageCode(languageCode).dataAccessRoleArn(dataAccessRoleArn)
+                    .mode(PiiEntitiesDetectionMode.ONLY_OFFSETS).inputDataConfig(inputDataConfig).outputDataConfig(outputDataConfig).build()).jobId();
+        }
+    }
+
+    // returns {status, message, output S3 URI}
+    private String[] describeJob(JobType jobType, String jobId)
+    {
+        switch (jobType) {
+            case ENTITIES: {
+                software.amazon.awssdk.services.comprehend.model.EntitiesDetectionJobProperties properties = comprehend.describeEntitiesDetectionJob(builder -> builder.jobId(jobId)).entitiesDetectionJobProperties();
+                return new String[] {properties.jobStatusAsString(), properties.message(), properties.outputDataConfig().s3Uri()};
+            }
+            case KEY_PHRASES: {
+                software.amazon.awssdk.services.comprehend.model.KeyPhrasesDetectionJobProperties properties = comprehend.describeKeyPhrasesDetectionJob(builder -> builder.jobId(jobId)).keyPhrasesDetectionJobProperties();
+                return new String[] {properties.jobStatusAsString(), properties.message(), properties.outputDataConfig().s3Uri()};
+            }
+            case SENTIMENT: {
+                software.amazon.awssdk.services.comprehend.model.SentimentDetectionJobProperties properties = comprehend.describeSentimentDetectionJob(builder -> builder.jobId(jobId)).sentimentDetectionJobProperties();
+                return new String[] {properties.jobStatusAsString(), properties.message(), properties.outputDataConfig().s3Uri()};
+            }
+            default: {
+                software.amazon.awssdk.services.comprehend.model.PiiEntitiesDetectionJobProperties properties = comprehend.describePiiEntitiesDetectionJob(builder -> builder.jobId(jobId)).piiEntitiesDetectionJobProperties();
+                return new String[] {properties.jobStatusAsString(), properties.message(), properties.outputDataConfig().s3Uri()};
+            }
+        }
+    }
+
+    // the output is a tar.gz archive of JSON lines files, or for PII jobs, a directory with a JSON lines file per input file
+    private List<Object> readResults(JobType jobType, String outputUri, int documentCount) throws IOException
+    {
+        String path = outputUri.replaceFirst("^s3://", "");
+        String outputBucket = path.substring(0, path.indexOf('/'));
+        String outputKey = path.substring(path.indexOf('/') + 1);
+        List<String> lines;
+        if (outputKey.endsWith(".tar.gz")) {
+            lines = readTarGzLines(store.get(outputBucket, outputKey));
+        }
+        else {
+            String outputFileKey = (outputKey.endsWith("/") ? outputKey : outputKey + "/") + INPUT_FILE + ".out";
+            lines = Arrays.asList(new String(store.get(outputBucket, outputFileKey), StandardCharsets.UTF_8).split("\n"));
+        }
+        List<Object> results = new ArrayList<Object>();
+        for (int i = 0; i < documentCount; i++) {
+            results.add(null);
+        }
+        for (String line : lines) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            JsonObject result = JsonParser.parseString(line).getAsJsonObject();
+            int lineNumber = result.get("Line").getAsInt();
+            // documents the job could not process have an ErrorCode instead, and are left to the synchronous API
+            if (lineNumber < documentCount && ! result.has("ErrorCode")) {
+                results.set(lineNumber, toResult(jobType, result));
+            }
+        }
+        return results;
+    }
+
+    static Object toResult(JobType jobType, JsonObject result)
+    {
+        switch (jobType) {
+            case ENTITIES: {
+                List<Entity> entities = new ArrayList<Entity>();
+                for (JsonElement element : result.getAsJsonArray("Entities")) {
+                    JsonObject entity = element.getAsJsonObject();
+                    entities.add(Entity.builder().type(entity.get("Type").getAsString()).text(entity.get("Text").getAsString()).score(entity.get("Score").getAsFloat())
+                        .beginOffset(entity.get("BeginOffset").getAsInt()).endOffset(entity.get("EndOffset").getAsInt()).build());
+                }
+                return BatchDetectEntitiesItemResult.builder().entities(entities).build();
+            }
+            case KEY_PHRASES: {
+                List<KeyPhrase> keyPhrases = new ArrayList<KeyPhrase>();
+                for (JsonElement element : result.getAsJsonArray("KeyPhrases")) {
+                    JsonObject keyPhrase = element.getAsJsonObject();
+                    keyPhrases.add(KeyPhrase.builder().text(keyPhrase.get("Text").getAsString()).score(keyPhrase.get("Score").getAsFloat())
+                        .beginOffset(keyPhrase.get("BeginOffset").getAsInt()).endOffset(keyPhrase.get("EndOffset").getAsInt()).build());
+                }
+                return BatchDetectKeyPhrasesItemResult.builder().keyPhrases(keyPhrases).build();
+            }
+            case SENTIMENT: {
+                JsonObject score = result.getAsJsonObject("SentimentScore");
+                return BatchDetectSentimentItemResult.builder().sentiment(result.get("Sentiment").getAsString())
+                    .sentimentScore(SentimentScore.builder().positive(score.get("Positive").getAsFloat()).negative(score.get("Negative").getAsFloat())
+                        .neutral(score.get("Neutral").getAsFloat()).mixed(score.get("Mixed").getAsFloat()).build())
+                    .build();
+            }
+            default: {
+                List<PiiEntity> piiEntities = new ArrayList<PiiEntity>();
+                for (JsonElement element : result.getAsJsonArray("Entities")) {
+                    JsonObject piiEntity = element.getAsJsonObject();
+                    piiEntities.add(PiiEntity.builder().type(piiEntity.get("Type").getAsString()).score(piiEntity.get("Score").getAsFloat())
+                        .beginOffset(piiEntity.get("BeginOffset").getAsInt()).endOffset(piiEntity.get("EndOffset").getAsInt()).build());
+                }
+                return piiEntities;
+            }
+        }
+    }
+
+    // the lines of every regular file in a tar.gz archive
+    static List<String> readTarGzLines(byte[] archive) throws IOException
+    {
+        List<String> lines = new ArrayList<String>();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(archive))) {
+            byte[] header = new byte[512];
+            // the archive ends with an empty header block
+            while (readBlock(in, header) && header[0] != 0) {
+                long size = parseOctal(header, 124, 12);
+                byte[] content = new byte[(int) size];
+                if (! readBlock(in, content)) {
+                    throw new IOException("truncated tar archive");
+                }
+                // entries are padded to a multiple of 512 bytes
+                long padding = (512 - size % 512) % 512;
+                if (padding > 0 && ! readBlock(in, new byte[(int) padding])) {
+                    throw new IOException("truncated tar archive");
+                }
+                byte type = header[156];
+                if (type == '0' || type == 0) {
+                    lines.addAll(Arrays.asList(new String(content, StandardCharsets.UTF_8).split("\n")));
+                }
+            }
+        }
+        return lines;
+    }
+
+    private static boolean readBlock(InputStream in, byte[] block) throws IOException
+    {
+        int offset = 0;
+        while (offset < block.length) {
+            int read = in.read(block, offset, block.length - offset);
+            if (read < 0) {
+                return false;
+            }
+            offset += read;
+        }
+        return true;
+    }
+
+    private static long parseOctal(byte[] header, int offset, int length)
+    {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (header[i] >= '0' && header[i] <= '7') {
+                value = value * 8 + (header[i] - '0');
+            }
+            else if (value > 0 || header[i] == 0) {
+                break;
+            }
+        }
+        return value;
+    }
+}
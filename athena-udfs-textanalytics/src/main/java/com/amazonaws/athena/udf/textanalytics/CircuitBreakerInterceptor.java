@@ -0,0 +1,276 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import software.amazon.awssdk.core.exception.AbortedException;
+import software.amazon.awssdk.core.exception.ApiCallAttemptTimeoutException;
+import software.amazon.awssdk.core.exception.ApiCallTimeoutException;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttribute;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.interceptor.SdkExecutionAttribute;
+
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Circuit breaker, added to a service client's override configuration, with a circuit per API.
+ * <p>
+ * Each request attempt that fails with a server error (5xx) or no response (e.g. an attempt timeout) counts as a
+ * failure; throttled attempts do not, as the service is up. Once at least failurePercent of the last minRequests
+ * attempts to an API have failed, its circuit opens: attempts fail immediately, including the retries of calls in
+ * progress, rather than waiting on retries and timeouts for up to the API call timeout. After openMillis the circuit
+ * is half-open, and one probe attempt at a time is let through - it closes the circuit if it succeeds, and opens it
+ * again if it fails.
+ */
+class CircuitBreakerInterceptor implements ExecutionInterceptor
+{
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final ExecutionAttribute<Boolean> ATTEMPT_PENDING = new ExecutionAttribute<Boolean>("CircuitBreakerAttemptPending");
+    private static final ExecutionAttribute<Boolean> ATTEMPT_PROBE = new ExecutionAttribute<Boolean>("CircuitBreakerAttemptProbe");
+    /**
+     * The invocation deadline a request's timeouts were shortened to, so that an attempt cut short by the deadline is not counted as a failure.
+     */
+    static final ExecutionAttribute<InvocationDeadline> INVOCATION_DEADLINE = new ExecutionAttribute<InvocationDeadline>("CircuitBreakerInvocationDeadline");
+
+    private final String service;
+    private final double failurePercent;
+    private final int minRequests;
+    private final long openMillis;
+    private final Map<String, Circuit> circuits = new LinkedHashMap<String, Circuit>();
+
+    /**
+     * @param service         service name for errors and metrics, e.g. Comprehend
+     * @param failurePercent  percentage of failed attempts that opens the circuit (0 = never open)
+     * @param minRequests     number of recent attempts the failure percentage is taken over
+     * @param openMillis      time the circuit stays open before a probe attempt is let through
+     */
+    CircuitBreakerInterceptor(String service, double failurePercent, int minRequests, long openMillis)
+    {
+        this.service = service;
+        this.failurePercent = failurePercent;
+        this.minRequests = minRequests;
+        this.openMillis = openMillis;
+    }
+
+    @Override
+    public void beforeTransmission(Context.BeforeTransmission context, ExecutionAttributes executionAttributes)
+    {
+        Circuit circuit = getCircuit(executionAttributes);
+        // a previous attempt of this call that got no response (attempt timeout, connection error) is a failure
+        recordPendingAttempt(circuit, executionAttributes, false, ! isDeadlineReached(executionAttributes));
+        executionAttributes.putAttribute(ATTEMPT_PROBE, circuit.allowAttempt());
+        executionAttributes.putAttribute(ATTEMPT_PENDING, true);
+    }
+
+    @Override
+    public void afterTransmission(Context.AfterTransmission context, ExecutionAttributes executionAttributes)
+    {
+        recordPendingAttempt(getCircuit(executionAttributes), executionAttributes, context.httpResponse().statusCode() < 500, true);
+    }
+
+    @Override
+    public void onExecutionFailure(Context.FailedExecution context, ExecutionAttributes executionAttributes)
+    {
+        // a call cancelled by its caller (e.g. the losing request of a hedged pair), or cut short by the invocation deadline,
+        // says nothing about the health of the service
+        boolean counted = ! isCancelled(context.exception()) && ! isDeadlineReached(executionAttributes);
+        recordPendingAttempt(getCircuit(executionAttributes), executionAttributes, false, counted);
+    }
+
+    // records the outcome of the attempt in progress, if any - or, if it is not counted, only releases its probe
+    private void recordPendingAttempt(Circuit circuit, ExecutionAttributes executionAttributes, boolean succeeded, boolean counted)
+    {
+        if (Boolean.TRUE.equals(executionAttributes.getAttribute(ATTEMPT_PENDING))) {
+            executionAttributes.putAttribute(ATTEMPT_PENDING, false);
+            boolean probe = Boolean.TRUE.equals(executionAttributes.getAttribute(ATTEMPT_PROBE));
+            if (counted) {
+                circuit.record(succeeded, probe);
+            }
+            else {
+                circuit.release(probe);
+            }
+        }
+    }
+
+    private static boolean isDeadlineReached(ExecutionAttributes executionAttributes)
+    {
+        InvocationDeadline deadline = executionAttributes.getAttribute(INVOCATION_DEADLINE);
+        return deadline != null && deadline.isExpired();
+    }
+
+    // the SDK enforces its timeouts by interrupting the request, so a timeout is checked for first, and counted
+    private static boolean isCancelled(Throwable exception)
+    {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ApiCallTimeoutException || cause instanceof ApiCallAttemptTimeoutException) {
+                return false;
+            }
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            return true;
+        }
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof AbortedException || cause instanceof InterruptedException || cause instanceof CancellationException
+                || (cause instanceof InterruptedIOException && ! (cause instanceof SocketTimeoutException))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Circuit getCircuit(ExecutionAttributes executionAttributes)
+    {
+        return getCircuit(executionAttributes.getAttribute(SdkExecutionAttribute.OPERATION_NAME));
+    }
+
+    private synchronized Circuit getCircuit(String operation)
+    {
+        Circuit circuit = circuits.get(operation);
+        if (circuit == null) {
+            circuit = new Circuit(operation);
+            circuits.put(operation, circuit);
+        }
+        return circuit;
+    }
+
+    /**
+     * @param operation  API name, e.g. DetectEntities
+     * @return the state of the API's circuit
+     */
+    State getState(String operation)
+    {
+        return getCircuit(operation).getState();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder sb = new StringBuilder(service + " circuit breaker (opens at " + failurePercent + "% of " + minRequests + " attempts failed, for " + openMillis + " ms)");
+        for (Circuit circuit : circuits.values()) {
+            sb.append(" | ").append(circuit);
+        }
+        return sb.toString();
+    }
+
+    private class Circuit
+    {
+        private final String operation;
+        // outcomes of the most recent attempts, true if failed
+        private final boolean[] failures = new boolean[minRequests];
+        private int attempts;
+        private int failureCount;
+        private State state = State.CLOSED;
+        private long openedAtMillis;
+        private boolean probeInFlight;
+        private long opened;
+        private long rejected;
+
+        Circuit(String operation)
+        {
+            this.operation = operation;
+        }
+
+        synchronized State getState()
+        {
+            if (state == State.OPEN && System.currentTimeMillis() - openedAtMillis >= openMillis) {
+                state = State.HALF_OPEN;
+                System.out.println("DEBUG: " + service + " " + operation + " circuit half-open - letting a probe request through");
+            }
+            return state;
+        }
+
+        // throws if the circuit is open, returns true if the attempt is a half-open probe
+        synchronized boolean allowAttempt()
+        {
+            State current = getState();
+            if (current == State.CLOSED) {
+                return false;
+            }
+            if (current == State.HALF_OPEN && ! probeInFlight) {
+                probeInFlight = true;
+                return true;
+            }
+            rejected++;
+            long retryMillis = Math.max(0, openMillis - (System.currentTimeMillis() - openedAtMillis));
+            throw new CircuitOpenException("Error: " + service + " " + operation + " circuit open - at least " + failurePercent + "% of the last " + minRequests
+                + " requests failed with a server error or timeout, so requests fail immediately instead of being retried. Requests are tried again "
+                + ((current == State.HALF_OPEN) ? "when the probe request in progress succeeds" : "in " + (retryMillis / 1000 + 1) + " seconds") + "; retry the query later.");
+        }
+
+        synchronized void record(boolean succeeded, boolean probe)
+        {
+            if (probe) {
+                probeInFlight = false;
+                if (succeeded) {
+                    state = State.CLOSED;
+                    attempts = 0;
+                    failureCount = 0;
+                    System.out.println("DEBUG: " + service + " " + operation + " circuit closed - probe request succeeded");
+                }
+                else {
+                    open();
+                }
+                return;
+            }
+            int slot = attempts % failures.length;
+            if (attempts >= failures.length && failures[slot]) {
+                failureCount--;
+            }
+            failures[slot] = ! succeeded;
+            if (! succeeded) {
+                failureCount++;
+            }
+            attempts++;
+            if (state == State.CLOSED && failurePercent > 0 && attempts >= failures.length && failureCount * 100.0 >= failurePercent * failures.length) {
+                open();
+            }
+        }
+
+        // an attempt that is not counted (see recordPendingAttempt) lets the next probe through, if it was the probe
+        synchronized void release(boolean probe)
+        {
+            if (probe) {
+                probeInFlight = false;
+            }
+        }
+
+        private void open()
+        {
+            state = State.OPEN;
+            openedAtMillis = System.currentTimeMillis();
+            opened++;
+            System.out.println("DEBUG: " + service + " " + operation + " circuit opened - " + failureCount + " of the last " + failures.length + " attempts failed");
+        }
+
+        @Override
+        public synchronized String toString()
+        {
+            int count = Math.min(attempts, failures.length);
+            return operation + ": " + getState() + ", failed " + failureCount + " of last " + count + " attempts, opened " + opened + " times, rejected " + rejected + " attempts";
+        }
+    }
+}
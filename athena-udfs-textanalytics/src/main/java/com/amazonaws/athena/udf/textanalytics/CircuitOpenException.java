@@ -0,0 +1,49 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+/**
+ * Thrown by {@link CircuitBreakerInterceptor} for a request to an API whose circuit is open. A distinct type, so that
+ * callers that otherwise carry on after a failed request (e.g. by returning text untranslated) fail the query instead.
+ */
+class CircuitOpenException extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    CircuitOpenException(String message)
+    {
+        super(message);
+    }
+
+    /**
+     * @param e  an exception thrown by a client call, possibly wrapped (e.g. by a hedged or coalesced call)
+     * @return the circuit open exception that caused it, or null if it was not caused by an open circuit
+     */
+    static CircuitOpenException find(Throwable e)
+    {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CircuitOpenException) {
+                return (CircuitOpenException) cause;
+            }
+        }
+        return null;
+    }
+}
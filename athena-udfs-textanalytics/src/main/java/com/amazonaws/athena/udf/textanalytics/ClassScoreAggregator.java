@@ -0,0 +1,71 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Combines the class (or label) scores returned by a custom classifier for each segment of a long text into one
+ * set of scores for the whole text.
+ * <p>
+ * Each score is averaged over the segments, weighted by the UTF-8 byte length of each segment, as for sentiment
+ * (see {@link SentimentAggregator}). A class not returned for a segment counts as a score of 0 for that segment.
+ */
+class ClassScoreAggregator
+{
+    private final Map<String, Double> weightedScores = new LinkedHashMap<String, Double>();
+    private long totalBytes;
+
+    /**
+     * Adds the scores returned for one segment.
+     * @param scores  score of each class returned for the segment, by class name
+     * @param bytes   UTF-8 byte length of the segment
+     */
+    void add(Map<String, Float> scores, int bytes)
+    {
+        for (Map.Entry<String, Float> score : scores.entrySet()) {
+            weightedScores.merge(score.getKey(), (double) score.getValue() * bytes, Double::sum);
+        }
+        totalBytes += bytes;
+    }
+
+    /**
+     * @return a {name, score} map for each class, highest score first
+     */
+    List<Map<String, Object>> getItems()
+    {
+        if (totalBytes == 0) {
+            throw new RuntimeException("Error: no segment scores to aggregate");
+        }
+        List<Map<String, Object>> items = new ArrayList<Map<String, Object>>();
+        for (Map.Entry<String, Double> weightedScore : weightedScores.entrySet()) {
+            Map<String, Object> item = new LinkedHashMap<String, Object>();
+            item.put("name", weightedScore.getKey());
+            item.put("score", (float) (weightedScore.getValue() / totalBytes));
+            items.add(item);
+        }
+        items.sort((a, b) -> Float.compare((Float) b.get("score"), (Float) a.get("score")));
+        return items;
+    }
+}
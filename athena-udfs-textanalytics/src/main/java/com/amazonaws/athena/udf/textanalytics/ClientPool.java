@@ -0,0 +1,360 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import software.amazon.awssdk.core.exception.SdkServiceException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pool of clients for one service, each for a different region or endpoint, so that requests are spread across
+ * several regional quotas rather than limited by one.
+ * <ul>
+ * <li>least_outstanding routing sends each request to the endpoint with the fewest requests in progress for its weight</li>
+ * <li>token_budget routing sends each request to the endpoint with the largest share of its request budget left, where
+ * an endpoint's budget refills at its weight in requests per second - set the weights to the endpoints' quotas</li>
+ * <li>a request that is throttled, or that finds the endpoint's circuit open, is sent to another endpoint, and the
+ * endpoint is avoided for a back off period that doubles with each throttle in a row; when every endpoint is
+ * backing off, the request waits for the first to be available again</li>
+ * </ul>
+ * A pool with one endpoint passes each request straight to its client, which retries throttling itself.
+ */
+class ClientPool<C>
+{
+    static final String LEAST_OUTSTANDING = "least_outstanding";
+    static final String TOKEN_BUDGET = "token_budget";
+
+    interface ClientCall<C, T>
+    {
+        T apply(C client) throws Exception;
+    }
+
+    /**
+     * A region, with an optional endpoint URL in place of the region's default, and a weight, parsed from
+     * "region[=endpointUrl][*weight]", e.g. "us-east-1", "eu-west-1*2" or "us-east-1=http://localhost:8080".
+     */
+    static class Endpoint
+    {
+        private final String region;
+        private final String endpointUrl;
+        private final double weight;
+
+        Endpoint(String region, String endpointUrl, double weight)
+        {
+            this.region = region;
+            this.endpointUrl = endpointUrl;
+            this.weight = weight;
+        }
+
+        String getRegion()
+        {
+            return region;
+        }
+
+        String getEndpointUrl()
+        {
+            return endpointUrl;
+        }
+
+        double getWeight()
+        {
+            return weight;
+        }
+
+        @Override
+        public String toString()
+        {
+            return (endpointUrl == null) ? region : region + "=" + endpointUrl;
+        }
+    }
+
+    /**
+     * @param endpoints  comma separated list of "region[=endpointUrl][*weight]", or "" for none
+     * @return the endpoints, in order
+     * @throws IllegalArgumentException if an entry is not valid
+     */
+    static List<Endpoint> parseEndpoints(String endpoints)
+    {
+        List<Endpoint> result = new ArrayList<Endpoint>();
+        for (String entry : endpoints.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            double weight = 1;
+            int weightStart = entry.lastIndexOf('*');
+            if (weightStart >= 0) {
+                try {
+                    weight = Double.parseDouble(entry.substring(weightStart + 1).trim());
+                }
+                catch (NumberFormatException e) {
+                    weight = -1;
+                }
+                if (! (weight > 0)) {
+                    throw new IllegalArgumentException("endpoint '" + entry + "' - the weight after '*' must be a number greater than 0");
+                }
+                entry = entry.substring(0, weightStart).trim();
+            }
+            int urlStart = entry.indexOf('=');
+            String region = (urlStart >= 0) ? entry.substring(0, urlStart).trim() : entry;
+            String endpointUrl = (urlStart >= 0) ? entry.substring(urlStart + 1).trim() : null;
+            if (! region.matches("[a-z]{2}(-[a-z]+)+-\\d+")) {
+                throw new IllegalArgumentException("endpoint '" + entry + "' - '" + region + "' is not a region name, e.g. us-east-1");
+            }
+            result.add(new Endpoint(region, endpointUrl, weight));
+        }
+        return result;
+    }
+
+    /**
+     * Checks that every endpoint is in a region on the allow-list, so that text is never sent to another region.
+     * @param endpoints       the endpoints
+     * @param allowedRegions  comma separated region names, or "" to allow all
+     * @throws IllegalArgumentException if an endpoint is in a region that is not allowed
+     */
+    static void checkAllowedRegions(Collection<Endpoint> endpoints, String allowedRegions)
+    {
+        if (allowedRegions.trim().isEmpty()) {
+            return;
+        }
+        List<String> allowed = new ArrayList<String>();
+        for (String region : allowedRegions.split(",")) {
+            allowed.add(region.trim());
+        }
+        for (Endpoint endpoint : endpoints) {
+            if (! allowed.contains(endpoint.getRegion())) {
+                throw new IllegalArgumentException("region " + endpoint.getRegion() + " is not in the allowed regions (" + allowedRegions
+                    + ") - text is only sent to allowed regions, to meet data residency requirements");
+            }
+        }
+    }
+
+    private final String service;
+    private final String routing;
+    private final long backoffBaseMillis;
+    private final long backoffMaxMillis;
+    private final int maxFailovers;
+    private final List<Member<C>> members = new ArrayList<Member<C>>();
+    private int nextMember;
+
+    /**
+     * @param service            service name for metrics, e.g. Comprehend
+     * @param routing            LEAST_OUTSTANDING or TOKEN_BUDGET
+     * @param backoffBaseMillis  time a throttled endpoint is first avoided for
+     * @param backoffMaxMillis   longest time a throttled endpoint is avoided for
+     * @param maxFailovers       most times one request is sent to another endpoint
+     */
+    ClientPool(String service, String routing, long backoffBaseMillis, long backoffMaxMillis, int maxFailovers)
+    {
+        this.service = service;
+        this.routing = routing;
+        this.backoffBaseMillis = backoffBaseMillis;
+        this.backoffMaxMillis = backoffMaxMillis;
+        this.maxFailovers = maxFailovers;
+    }
+
+    /**
+     * Adds a client to the pool.
+     * @param endpoint        the region or endpoint the client sends requests to
+     * @param client          the client
+     * @param circuitBreaker  the client's circuit breaker, or null if it has none
+     */
+    synchronized void add(Endpoint endpoint, C client, CircuitBreakerInterceptor circuitBreaker)
+    {
+        members.add(new Member<C>(endpoint, client, circuitBreaker));
+    }
+
+    synchronized int size()
+    {
+        return members.size();
+    }
+
+    /**
+     * @param member  index of the client, in the order added
+     * @return requests sent with the client, including those that were then sent to another client
+     */
+    synchronized long getCalls(int member)
+    {
+        return members.get(member).calls;
+    }
+
+    /**
+     * @param region  region name
+     * @return true if the pool has a client for the region
+     */
+    synchronized boolean hasRegion(String region)
+    {
+        for (Member<C> member : members) {
+            if (member.endpoint.getRegion().equals(region)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param region  region name
+     * @return the client for the region, for resources that belong to one region (e.g. a custom model endpoint),
+     *     or the first client if there is none for the region
+     */
+    synchronized C getClient(String region)
+    {
+        for (Member<C> member : members) {
+            if (member.endpoint.getRegion().equals(region)) {
+                return member.client;
+            }
+        }
+        return members.get(0).client;
+    }
+
+    /**
+     * Makes a request with a client chosen by the pool's routing, failing over to other clients if it is throttled.
+     * @param api   name of the API called, e.g. BatchDetectEntities
+     * @param call  the request
+     * @return the result of the request
+     */
+    <T> T call(String api, ClientCall<C, T> call) throws Exception
+    {
+        for (int failovers = 0; ; failovers++) {
+            Member<C> member = acquire();
+            try {
+                T result = call.apply(member.client);
+                release(member, false);
+                return result;
+            }
+            catch (RuntimeException e) {
+                boolean throttled = (e instanceof SdkServiceException) && ((SdkServiceException) e).isThrottlingException();
+                boolean circuitOpen = ! throttled && member.circuitBreaker != null && member.circuitBreaker.getState(api) != CircuitBreakerInterceptor.State.CLOSED;
+                release(member, throttled || circuitOpen);
+                if (members.size() == 1 || failovers >= maxFailovers || ! (throttled || circuitOpen)) {
+                    throw e;
+                }
+                countFailover(member);
+            }
+        }
+    }
+
+    // chooses a client, waiting while every client is backing off
+    private synchronized Member<C> acquire() throws InterruptedException
+    {
+        while (true) {
+            long now = System.nanoTime();
+            Member<C> chosen = null;
+            double chosenScore = 0;
+            long nextAvailable = Long.MAX_VALUE;
+            // start from a different client each time, so that ties are shared out
+            for (int i = 0; i < members.size(); i++) {
+                Member<C> member = members.get((nextMember + i) % members.size());
+                if (member.backoffUntilNanos - now > 0) {
+                    nextAvailable = Math.min(nextAvailable, member.backoffUntilNanos - now);
+                    continue;
+                }
+                // the share of its budget an endpoint has left - once every budget is spent, requests still go in proportion to the weights
+                double score = routing.equals(TOKEN_BUDGET) ? -member.refillTokens(now) / member.endpoint.getWeight() : (member.outstanding + 1) / member.endpoint.getWeight();
+                if (chosen == null || score < chosenScore) {
+                    chosen = member;
+                    chosenScore = score;
+                }
+            }
+            if (chosen != null) {
+                nextMember = (nextMember + 1) % members.size();
+                chosen.outstanding++;
+                chosen.calls++;
+                if (routing.equals(TOKEN_BUDGET)) {
+                    chosen.tokens--;
+                }
+                return chosen;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, nextAvailable);
+        }
+    }
+
+    private synchronized void release(Member<C> member, boolean backOff)
+    {
+        member.outstanding--;
+        if (backOff) {
+            member.throttles++;
+            long backoffMillis = Math.min(backoffMaxMillis, backoffBaseMillis << Math.min(20, member.throttlesInRow));
+            member.throttlesInRow++;
+            member.backoffUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis);
+        }
+        else {
+            member.throttlesInRow = 0;
+        }
+        notifyAll();
+    }
+
+    private synchronized void countFailover(Member<C> member)
+    {
+        member.failovers++;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder sb = new StringBuilder(service + " client pool (" + routing + ")");
+        for (Member<C> member : members) {
+            sb.append(" | ").append(member);
+        }
+        return sb.toString();
+    }
+
+    private static class Member<C>
+    {
+        private final Endpoint endpoint;
+        private final C client;
+        private final CircuitBreakerInterceptor circuitBreaker;
+        private final long createdNanos = System.nanoTime();
+        private int outstanding;
+        private long calls;
+        private long throttles;
+        private long failovers;
+        private int throttlesInRow;
+        private long backoffUntilNanos = createdNanos;
+        // token_budget routing - a second's worth of requests, refilled at weight requests per second
+        private double tokens;
+        private long refilledNanos = createdNanos;
+
+        Member(Endpoint endpoint, C client, CircuitBreakerInterceptor circuitBreaker)
+        {
+            this.endpoint = endpoint;
+            this.client = client;
+            this.circuitBreaker = circuitBreaker;
+            this.tokens = endpoint.getWeight();
+        }
+
+        double refillTokens(long now)
+        {
+            tokens = Math.min(endpoint.getWeight(), tokens + (now - refilledNanos) / 1e9 * endpoint.getWeight());
+            refilledNanos = now;
+            return tokens;
+        }
+
+        @Override
+        public String toString()
+        {
+            return endpoint + " (weight " + endpoint.getWeight() + "): calls " + calls + ", throttled " + throttles + ", failed over " + failovers + ", outstanding " + outstanding;
+        }
+    }
+}
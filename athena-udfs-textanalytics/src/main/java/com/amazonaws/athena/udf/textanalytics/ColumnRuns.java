@@ -0,0 +1,141 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Run-length view of an argument column: the values of consecutive rows that are equal are held once, as a run.
+ * <p>
+ * Arguments such as the language code, the types to redact, or the terminology name are almost always literals in
+ * the query, so the whole column is a single run, and work that depends only on the argument value (batching by
+ * language, parsing the redact types, building the request) can be done once per run instead of once per row.
+ */
+class ColumnRuns<T>
+{
+    private final List<T> values;
+    private final int[] ends;
+
+    private ColumnRuns(List<T> values, int[] ends)
+    {
+        this.values = values;
+        this.ends = ends;
+    }
+
+    /**
+     * @param column  one value per row
+     * @return the runs of equal consecutive values in the column
+     */
+    static ColumnRuns<String> of(String[] column)
+    {
+        List<String> values = new ArrayList<String>();
+        int[] ends = new int[Math.min(column.length, 16)];
+        for (int row = 0; row < column.length; row++) {
+            int run = values.size() - 1;
+            // rows read from the same literal usually share the same String instance, so == short circuits the comparison
+            if (run < 0 || (column[row] != values.get(run) && ! Objects.equals(column[row], values.get(run)))) {
+                values.add(column[row]);
+                run++;
+                if (run == ends.length) {
+                    ends = Arrays.copyOf(ends, ends.length * 2);
+                }
+            }
+            ends[run] = row + 1;
+        }
+        return new ColumnRuns<String>(values, Arrays.copyOf(ends, values.size()));
+    }
+
+    /**
+     * @param mapper  applied once to the value of each run, e.g. to parse it
+     * @return runs of the same lengths, with the mapped values
+     */
+    <R> ColumnRuns<R> map(Function<T, R> mapper)
+    {
+        List<R> mapped = new ArrayList<R>(values.size());
+        for (T value : values) {
+            mapped.add(mapper.apply(value));
+        }
+        return new ColumnRuns<R>(mapped, ends);
+    }
+
+    int getRowCount()
+    {
+        return (ends.length == 0) ? 0 : ends[ends.length - 1];
+    }
+
+    int getRunCount()
+    {
+        return values.size();
+    }
+
+    boolean isConstant()
+    {
+        return values.size() <= 1;
+    }
+
+    T getValue(int run)
+    {
+        return values.get(run);
+    }
+
+    int getStart(int run)
+    {
+        return (run == 0) ? 0 : ends[run - 1];
+    }
+
+    // exclusive
+    int getEnd(int run)
+    {
+        return ends[run];
+    }
+
+    /**
+     * @param row  row number
+     * @return the run containing the row
+     */
+    int getRun(int row)
+    {
+        if (row < 0 || row >= getRowCount()) {
+            throw new IndexOutOfBoundsException("Error: row " + row + " outside " + getRowCount() + " rows");
+        }
+        int run = Arrays.binarySearch(ends, row + 1);
+        return (run >= 0) ? run : -run - 1;
+    }
+
+    /**
+     * @param row  row number
+     * @return the value of the row
+     */
+    T get(int row)
+    {
+        return values.get(isConstant() ? 0 : getRun(row));
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ColumnRuns{rows=" + getRowCount() + ", runs=" + getRunCount() + "}";
+    }
+}
@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Comprehend custom classifier or custom entity recognizer real-time endpoint, as last described: the model it
+ * serves, which identifies the model version in cached results, and its provisioned inference units, which size the
+ * number of requests run against it at a time.
+ */
+class ComprehendEndpoint
+{
+    private final String endpointArn;
+    private final String modelArn;
+    private final int inferenceUnits;
+    private final long describedNanos;
+
+    ComprehendEndpoint(String endpointArn, String modelArn, int inferenceUnits)
+    {
+        this.endpointArn = endpointArn;
+        this.modelArn = modelArn;
+        this.inferenceUnits = inferenceUnits;
+        this.describedNanos = System.nanoTime();
+    }
+
+    String getEndpointArn()
+    {
+        return endpointArn;
+    }
+
+    String getModelArn()
+    {
+        return modelArn;
+    }
+
+    int getInferenceUnits()
+    {
+        return inferenceUnits;
+    }
+
+    /**
+     * @param maxAgeMillis  how long a description is used for before the endpoint is described again, e.g. to see a new model version
+     * @return true if the endpoint was described longer ago than maxAgeMillis
+     */
+    boolean isOlderThan(long maxAgeMillis)
+    {
+        return System.nanoTime() - describedNanos > TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ComprehendEndpoint{" + endpointArn + ", model=" + modelArn + ", inferenceUnits=" + inferenceUnits + "}";
+    }
+}
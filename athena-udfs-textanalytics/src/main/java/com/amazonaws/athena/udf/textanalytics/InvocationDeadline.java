@@ -0,0 +1,91 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import java.time.Duration;
+
+/**
+ * Tracks the time left in the current Lambda invocation, so that API calls can be given shorter
+ * timeouts as the deadline nears, and so that work stops (with a clear error) while there is still
+ * time to return a response, rather than the invocation being killed by the Lambda timeout.
+ */
+class InvocationDeadline
+{
+    static final InvocationDeadline NONE = new InvocationDeadline(Long.MAX_VALUE, 0);
+
+    private final long deadlineMillis;
+    private final long reserveMillis;
+
+    /**
+     * @param deadlineMillis the time (epoch millis) the Lambda invocation will time out
+     * @param reserveMillis the time to keep in reserve before the deadline, to return the response or error
+     */
+    InvocationDeadline(long deadlineMillis, long reserveMillis)
+    {
+        this.deadlineMillis = deadlineMillis;
+        this.reserveMillis = reserveMillis;
+    }
+
+    static InvocationDeadline fromRemainingTime(long remainingTimeMillis, long reserveMillis)
+    {
+        return new InvocationDeadline(System.currentTimeMillis() + remainingTimeMillis, reserveMillis);
+    }
+
+    /**
+     * time left (in millis) for new work, i.e. before the reserve is reached
+     */
+    long remainingMillis()
+    {
+        if (this.deadlineMillis == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return this.deadlineMillis - this.reserveMillis - System.currentTimeMillis();
+    }
+
+    boolean isExpired()
+    {
+        return remainingMillis() <= 0;
+    }
+
+    /**
+     * Throws an exception if there is no time left to start the named operation.
+     */
+    void check(String operation)
+    {
+        if (isExpired()) {
+            throw new RuntimeException("Error: Lambda invocation deadline reached - not starting " + operation + ". Less than " 
+                + this.reserveMillis + " ms remain before the Lambda timeout."
+                + " Completed PII, translation and custom endpoint results (detect_pii_entities, redact_pii_entities, translate_text, classify_document, detect_custom_entities) are cached,"
+                + " so a retry of this query does not repeat them. Other functions' results are not cached, and are requested again."
+                + " Consider increasing the Lambda timeout, or the Comprehend and Translate service quotas.");
+        }
+    }
+
+    /**
+     * Returns the timeout to use for an API call (including all its retries): the configured timeout,
+     * shortened so that the call ends before the reserve is reached.
+     */
+    Duration apiCallTimeout(long configuredTimeoutMillis)
+    {
+        long remainingMillis = remainingMillis();
+        return Duration.ofMillis(Math.max(1, Math.min(configuredTimeoutMillis, remainingMillis)));
+    }
+}
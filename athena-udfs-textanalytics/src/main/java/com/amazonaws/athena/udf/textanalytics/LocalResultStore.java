@@ -0,0 +1,81 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Result store that keeps each object as a file under a local directory, at directory/bucket/key. Stands in for S3
+ * in tests, and is used when the spill endpoint is a file: URL.
+ */
+class LocalResultStore implements ResultStore
+{
+    private final Path root;
+
+    LocalResultStore(Path root)
+    {
+        this.root = root;
+    }
+
+    static LocalResultStore fromUrl(String url)
+    {
+        return new LocalResultStore(Paths.get(URI.create(url)));
+    }
+
+    @Override
+    public void put(String bucket, String key, byte[] value)
+    {
+        Path path = resolve(bucket, key);
+        try {
+            Files.createDirectories(path.getParent());
+            Files.write(path, value);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Error:  - writing spilled result " + path, e);
+        }
+    }
+
+    @Override
+    public byte[] get(String bucket, String key)
+    {
+        Path path = resolve(bucket, key);
+        try {
+            return Files.readAllBytes(path);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Error:  - reading spilled result " + path, e);
+        }
+    }
+
+    private Path resolve(String bucket, String key)
+    {
+        Path bucketRoot = root.resolve(bucket).normalize();
+        Path path = bucketRoot.resolve(key).normalize();
+        if (! path.startsWith(bucketRoot)) {
+            throw new RuntimeException("Error:  - invalid spilled result key: " + key);
+        }
+        return path;
+    }
+}
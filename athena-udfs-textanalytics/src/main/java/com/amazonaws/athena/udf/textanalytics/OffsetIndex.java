@@ -0,0 +1,97 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+/**
+ * Converts the offsets returned by Comprehend, which count Unicode code points, to Java String (UTF-16 char) indexes.
+ * The two differ only when the text has characters outside the Basic Multilingual Plane, such as emoji, which
+ * take two chars in a Java String. Text without them is mapped one to one without any work; otherwise conversion
+ * walks forward from the previous offset, so converting offsets in ascending order costs one pass over the text.
+ */
+class OffsetIndex
+{
+    private final String text;
+    private final boolean oneCharPerCodePoint;
+    private int cursorCodePoint;
+    private int cursorChar;
+
+    OffsetIndex(String text)
+    {
+        this.text = text;
+        this.oneCharPerCodePoint = text.codePointCount(0, text.length()) == text.length();
+    }
+
+    /**
+     * @param codePointOffset  an offset in code points, e.g. an entity's beginOffset
+     * @return the char index in the text of the same position
+     */
+    int toCharIndex(int codePointOffset)
+    {
+        if (oneCharPerCodePoint) {
+            return codePointOffset;
+        }
+        if (codePointOffset < cursorCodePoint) {
+            cursorCodePoint = 0;
+            cursorChar = 0;
+        }
+        cursorChar = text.offsetByCodePoints(cursorChar, codePointOffset - cursorCodePoint);
+        cursorCodePoint = codePointOffset;
+        return cursorChar;
+    }
+
+    /**
+     * @return the number of bytes in the UTF-8 encoding of text[begin, end), counted without encoding it. As with
+     * String.getBytes, an unpaired surrogate counts as the one byte of its replacement character
+     */
+    static int utf8Length(String text, int begin, int end)
+    {
+        int bytes = 0;
+        for (int i = begin; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            }
+            else if (c < 0x800) {
+                bytes += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            }
+            else if (Character.isSurrogate(c)) {
+                bytes += 1;
+            }
+            else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the text between two code point offsets
+     */
+    String substring(int beginCodePointOffset, int endCodePointOffset)
+    {
+        int begin = toCharIndex(beginCodePointOffset);
+        return text.substring(begin, toCharIndex(endCodePointOffset));
+    }
+}
@@ -0,0 +1,68 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side rate limiter, added to a service client's override configuration.
+ * Spaces out the start of each API call made through the client so that no more than
+ * maxRequestsPerSecond calls are started per second, blocking the calling thread until its turn.
+ */
+class RateLimitingInterceptor implements ExecutionInterceptor
+{
+    private final long intervalNanos;
+    private long nextPermitNanos;
+
+    RateLimitingInterceptor(double maxRequestsPerSecond)
+    {
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / maxRequestsPerSecond);
+        this.nextPermitNanos = System.nanoTime();
+    }
+
+    @Override
+    public void beforeExecution(Context.BeforeExecution context, ExecutionAttributes executionAttributes)
+    {
+        long waitNanos = reservePermit();
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Error: interrupted while waiting for rate limit", e);
+            }
+        }
+    }
+
+    // reserves the next free slot, and returns how long the caller must wait for it
+    private synchronized long reservePermit()
+    {
+        long now = System.nanoTime();
+        long permitNanos = Math.max(now, this.nextPermitNanos);
+        this.nextPermitNanos = permitNanos + this.intervalNanos;
+        return permitNanos - now;
+    }
+}
@@ -0,0 +1,78 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The entity types to redact, parsed from the comma or space separated list passed to the redact functions,
+ * e.g. "NAME, ADDRESS", or "ALL" for every type.
+ */
+class RedactTypes
+{
+    /**
+     * An empty list - no entities are redacted.
+     */
+    static final RedactTypes NONE = new RedactTypes(Collections.<String>emptySet());
+
+    private final Set<String> types;
+    private final boolean all;
+
+    private RedactTypes(Set<String> types)
+    {
+        this.types = types;
+        this.all = types.contains("ALL");
+    }
+
+    /**
+     * @param redactTypes  comma or space separated list of entity types, or 'ALL'
+     * @return the parsed types, or NONE for an empty list
+     */
+    static RedactTypes parse(String redactTypes)
+    {
+        Set<String> types = new HashSet<String>(Arrays.asList(redactTypes.trim().split("[\\s,]+")));
+        types.remove("");
+        return types.isEmpty() ? NONE : new RedactTypes(types);
+    }
+
+    boolean isEmpty()
+    {
+        return types.isEmpty();
+    }
+
+    /**
+     * @param type  entity type returned by Comprehend, e.g. NAME
+     * @return true if entities of the type are to be redacted
+     */
+    boolean matches(String type)
+    {
+        return all || types.contains(type);
+    }
+
+    @Override
+    public String toString()
+    {
+        return all ? "ALL" : String.join(",", types);
+    }
+}
@@ -0,0 +1,261 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hedges single document API calls (DetectPiiEntities, TranslateText) to cut their latency tail.
+ * <p>
+ * When a call has not returned within the hedgePercentile latency of recent calls to the same API, a duplicate
+ * request is started; whichever returns first is used, and the other is cancelled. Hedges are limited to
+ * hedgeBudgetPercent of calls, so that a slow service is not sent twice the requests. Until an API has
+ * MIN_SAMPLES latencies recorded, its calls are not hedged.
+ */
+class RequestHedger
+{
+    // latencies of the most recent calls, per API, from which the hedge threshold is taken
+    static final int WINDOW_SIZE = 1000;
+    static final int MIN_SAMPLES = 20;
+    // the threshold is recomputed after this many new samples, rather than sorting the window on every call
+    private static final int THRESHOLD_REFRESH_SAMPLES = 50;
+
+    private final double hedgePercentile;
+    private final double hedgeBudgetPercent;
+    private final ExecutorService workers;
+    private final Map<String, ApiStats> apiStats = new LinkedHashMap<String, ApiStats>();
+
+    /**
+     * @param hedgePercentile     percentile of recent latencies after which a call is hedged, e.g. 95 (0 = never hedge)
+     * @param hedgeBudgetPercent  most hedges, as a percentage of calls
+     */
+    RequestHedger(double hedgePercentile, double hedgeBudgetPercent)
+    {
+        this.hedgePercentile = hedgePercentile;
+        this.hedgeBudgetPercent = hedgeBudgetPercent;
+        this.workers = (hedgePercentile > 0) ? Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "textanalytics-udf-hedge");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    boolean isEnabled()
+    {
+        return workers != null;
+    }
+
+    /**
+     * Makes the call, hedging it if it is slow.
+     * @param api      name of the API called, e.g. DetectPiiEntities
+     * @param request  the call, which may be made twice at once
+     * @return the result of the first call to return
+     */
+    <T> T call(String api, Callable<T> request) throws Exception
+    {
+        ApiStats stats = getApiStats(api);
+        long startNanos = System.nanoTime();
+        long thresholdNanos = isEnabled() ? stats.getThresholdNanos() : -1;
+        if (thresholdNanos < 0) {
+            T result = request.call();
+            stats.record(System.nanoTime() - startNanos, false);
+            return result;
+        }
+        CompletionService<T> completionService = new ExecutorCompletionService<T>(workers);
+        Future<T> primary = completionService.submit(request);
+        Future<T> hedge = null;
+        try {
+            Future<T> first = completionService.poll(thresholdNanos, TimeUnit.NANOSECONDS);
+            if (first == null && stats.tryHedge(hedgeBudgetPercent)) {
+                hedge = completionService.submit(request);
+            }
+            if (first == null) {
+                first = completionService.take();
+            }
+            T result;
+            try {
+                result = first.get();
+            }
+            catch (ExecutionException e) {
+                if (hedge == null) {
+                    throw unwrap(e);
+                }
+                // the first to return failed - use the other, if it succeeds
+                first = completionService.take();
+                result = getResult(first);
+            }
+            stats.record(System.nanoTime() - startNanos, first == hedge);
+            return result;
+        }
+        finally {
+            primary.cancel(true);
+            if (hedge != null) {
+                hedge.cancel(true);
+            }
+        }
+    }
+
+    private static <T> T getResult(Future<T> future) throws Exception
+    {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static Exception unwrap(ExecutionException e)
+    {
+        if (e.getCause() instanceof Exception) {
+            return (Exception) e.getCause();
+        }
+        if (e.getCause() instanceof Error) {
+            throw (Error) e.getCause();
+        }
+        return e;
+    }
+
+    private synchronized ApiStats getApiStats(String api)
+    {
+        ApiStats stats = apiStats.get(api);
+        if (stats == null) {
+            stats = new ApiStats(api, hedgePercentile);
+            apiStats.put(api, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * @param api  name of the API
+     * @return hedged calls as a percentage of all calls to the API
+     */
+    double getHedgeRatePercent(String api)
+    {
+        return getApiStats(api).getHedgeRatePercent();
+    }
+
+    /**
+     * @param api         name of the API
+     * @param percentile  e.g. 99
+     * @return the percentile latency of recent calls to the API, as seen by the caller, in milliseconds
+     */
+    double getLatencyPercentileMillis(String api, double percentile)
+    {
+        return getApiStats(api).getPercentileNanos(percentile) / 1e6;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder sb = new StringBuilder("Request hedger (percentile " + hedgePercentile + ", budget " + hedgeBudgetPercent + "%)");
+        for (ApiStats stats : apiStats.values()) {
+            sb.append(" | ").append(stats);
+        }
+        return sb.toString();
+    }
+
+    private static class ApiStats
+    {
+        private final String api;
+        private final double hedgePercentile;
+        private final long[] latencies = new long[WINDOW_SIZE];
+        private int samples;
+        private long thresholdNanos = -1;
+        private int samplesAtThreshold;
+        private long calls;
+        private long hedges;
+        private long hedgeWins;
+
+        ApiStats(String api, double hedgePercentile)
+        {
+            this.api = api;
+            this.hedgePercentile = hedgePercentile;
+        }
+
+        synchronized long getThresholdNanos()
+        {
+            if (samples < MIN_SAMPLES) {
+                return -1;
+            }
+            if (thresholdNanos < 0 || samples - samplesAtThreshold >= THRESHOLD_REFRESH_SAMPLES) {
+                thresholdNanos = getPercentileNanos(hedgePercentile);
+                samplesAtThreshold = samples;
+            }
+            return thresholdNanos;
+        }
+
+        // takes a hedge from the budget, if there is one left
+        synchronized boolean tryHedge(double hedgeBudgetPercent)
+        {
+            if ((hedges + 1) * 100.0 > (calls + 1) * hedgeBudgetPercent) {
+                return false;
+            }
+            hedges++;
+            return true;
+        }
+
+        synchronized void record(long latencyNanos, boolean hedgeWon)
+        {
+            latencies[samples % WINDOW_SIZE] = latencyNanos;
+            samples++;
+            calls++;
+            if (hedgeWon) {
+                hedgeWins++;
+            }
+        }
+
+        synchronized long getPercentileNanos(double percentile)
+        {
+            int count = Math.min(samples, WINDOW_SIZE);
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, index))];
+        }
+
+        synchronized double getHedgeRatePercent()
+        {
+            return (calls == 0) ? 0 : hedges * 100.0 / calls;
+        }
+
+        @Override
+        public synchronized String toString()
+        {
+            return api + ": calls " + calls + ", hedged " + hedges + String.format(" (%.1f%%)", getHedgeRatePercent()) + ", hedge won " + hedgeWins
+                + ", threshold " + TimeUnit.NANOSECONDS.toMillis(Math.max(0, thresholdNanos)) + " ms"
+                + ", p50 " + TimeUnit.NANOSECONDS.toMillis(getPercentileNanos(50)) + " ms, p99 " + TimeUnit.NANOSECONDS.toMillis(getPercentileNanos(99)) + " ms";
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs API requests for all the UDFs in the handler, so that together they never exceed the handler's concurrency
+ * (and so the HTTP connection pools), however many UDF code paths make requests at once.
+ * <ul>
+ * <li>at most maxConcurrency requests run at a time, and at most apiMaxConcurrency for any one API, so one API
+ * cannot use up every worker, or its own quota, while requests for another API are waiting</li>
+ * <li>an API can be given its own limit instead, e.g. a custom model endpoint, sized to its inference units</li>
+ * <li>waiting requests are started in turn from each API with requests waiting, so no API is starved</li>
+ * <li>at most maxQueuedRequests requests wait to start; beyond that, submit blocks the caller until one starts</li>
+ * </ul>
+ * Requests run on virtual threads when the Java runtime supports them, or otherwise on a fixed pool of maxConcurrency threads.
+ */
+class RequestScheduler
+{
+    private final int maxConcurrency;
+    private final int apiMaxConcurrency;
+    private final int maxQueuedRequests;
+    private final ExecutorService workers;
+    private final String workerType;
+    private final Map<String, ApiQueue> apiQueues = new LinkedHashMap<String, ApiQueue>();
+    private final List<ApiQueue> rotation = new ArrayList<ApiQueue>();
+    private int nextApi;
+    private int running;
+    private int queued;
+    private int maxQueueDepth;
+    private long blockedSubmits;
+
+    RequestScheduler(int maxConcurrency, int apiMaxConcurrency, int maxQueuedRequests)
+    {
+        this.maxConcurrency = maxConcurrency;
+        this.apiMaxConcurrency = apiMaxConcurrency;
+        this.maxQueuedRequests = maxQueuedRequests;
+        ExecutorService virtualThreadWorkers = newVirtualThreadPerTaskExecutor();
+        if (virtualThreadWorkers != null) {
+            this.workers = virtualThreadWorkers;
+            this.workerType = "virtual threads";
+        }
+        else {
+            this.workers = Executors.newFixedThreadPool(maxConcurrency, runnable -> {
+                Thread thread = new Thread(runnable, "textanalytics-udf-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.workerType = maxConcurrency + " platform threads";
+        }
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() on Java 21 and later, or null on earlier runtimes
+    private static ExecutorService newVirtualThreadPerTaskExecutor()
+    {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Queues a request for the given API, blocking while the queue is full.
+     * @param api   name of the API called by the task, e.g. TranslateText
+     * @param task  the request
+     * @return a Future for the task's result
+     */
+    <T> Future<T> submit(String api, Callable<T> task) throws InterruptedException
+    {
+        FutureTask<T> future = new FutureTask<T>(task);
+        synchronized (this) {
+            if (queued >= maxQueuedRequests) {
+                blockedSubmits++;
+                while (queued >= maxQueuedRequests) {
+                    wait();
+                }
+            }
+            ApiQueue apiQueue = getApiQueue(api);
+            apiQueue.waiting.add(new QueuedRequest(future, System.nanoTime()));
+            apiQueue.submitted++;
+            queued++;
+            maxQueueDepth = Math.max(maxQueueDepth, queued);
+            dispatch();
+        }
+        return future;
+    }
+
+    /**
+     * Sets the number of requests that can run at a time for the given API, in place of apiMaxConcurrency.
+     * @param api             name of the API, or other key requests are submitted under, e.g. a custom model endpoint ARN
+     * @param maxConcurrency  the limit, which still cannot exceed the scheduler's maxConcurrency
+     */
+    synchronized void setApiMaxConcurrency(String api, int maxConcurrency)
+    {
+        getApiQueue(api).maxConcurrency = maxConcurrency;
+        dispatch();
+    }
+
+    private ApiQueue getApiQueue(String api)
+    {
+        ApiQueue apiQueue = apiQueues.get(api);
+        if (apiQueue == null) {
+            apiQueue = new ApiQueue(api, apiMaxConcurrency);
+            apiQueues.put(api, apiQueue);
+            rotation.add(apiQueue);
+        }
+        return apiQueue;
+    }
+
+    // starts waiting requests, taking the next one from each API in turn, while there is concurrency to spare
+    private void dispatch()
+    {
+        while (running < maxConcurrency) {
+            ApiQueue apiQueue = nextApiQueue();
+            if (apiQueue == null) {
+                return;
+            }
+            QueuedRequest request = apiQueue.waiting.poll();
+            long waitNanos = System.nanoTime() - request.queuedNanos;
+            apiQueue.totalWaitNanos += waitNanos;
+            apiQueue.maxWaitNanos = Math.max(apiQueue.maxWaitNanos, waitNanos);
+            apiQueue.running++;
+            running++;
+            queued--;
+            notifyAll();
+            workers.execute(() -> {
+                try {
+                    request.future.run();
+                }
+                finally {
+                    complete(apiQueue);
+                }
+            });
+        }
+    }
+
+    private ApiQueue nextApiQueue()
+    {
+        for (int i = 0; i < rotation.size(); i++) {
+            ApiQueue apiQueue = rotation.get((nextApi + i) % rotation.size());
+            if (! apiQueue.waiting.isEmpty() && apiQueue.running < apiQueue.maxConcurrency) {
+                nextApi = (nextApi + i + 1) % rotation.size();
+                return apiQueue;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void complete(ApiQueue apiQueue)
+    {
+        apiQueue.running--;
+        apiQueue.completed++;
+        running--;
+        dispatch();
+    }
+
+    synchronized int getQueueDepth()
+    {
+        return queued;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder sb = new StringBuilder("Request scheduler (" + workerType + ", max concurrency " + maxConcurrency + ", per API " + apiMaxConcurrency
+            + "): running " + running + ", queued " + queued + ", max queue depth " + maxQueueDepth + ", blocked submits " + blockedSubmits);
+        for (ApiQueue apiQueue : rotation) {
+            long started = apiQueue.submitted - apiQueue.waiting.size();
+            sb.append(" | ").append(apiQueue.api);
+            if (apiQueue.maxConcurrency != apiMaxConcurrency) {
+                sb.append(" (max concurrency ").append(apiQueue.maxConcurrency).append(")");
+            }
+            sb.append(": submitted ").append(apiQueue.submitted).append(", completed ").append(apiQueue.completed)
+                .append(", avg wait ").append((started > 0) ? TimeUnit.NANOSECONDS.toMillis(apiQueue.totalWaitNanos / started) : 0).append(" ms")
+                .append(", max wait ").append(TimeUnit.NANOSECONDS.toMillis(apiQueue.maxWaitNanos)).append(" ms");
+        }
+        return sb.toString();
+    }
+
+    private static class ApiQueue
+    {
+        private final String api;
+        private final ArrayDeque<QueuedRequest> waiting = new ArrayDeque<QueuedRequest>();
+        private int maxConcurrency;
+        private int running;
+        private long submitted;
+        private long completed;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+
+        ApiQueue(String api, int maxConcurrency)
+        {
+            this.api = api;
+            this.maxConcurrency = maxConcurrency;
+        }
+    }
+
+    private static class QueuedRequest
+    {
+        private final FutureTask<?> future;
+        private final long queuedNanos;
+
+        QueuedRequest(FutureTask<?> future, long queuedNanos)
+        {
+            this.future = future;
+            this.queuedNanos = queuedNanos;
+        }
+    }
+}
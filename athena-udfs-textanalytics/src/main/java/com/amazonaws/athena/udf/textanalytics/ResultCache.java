@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded, least-recently-used cache of API results, shared by all invocations handled by the same Lambda container.
+ * Results completed before a failed invocation are reused when Athena retries it.
+ */
+class ResultCache<V>
+{
+    private final String name;
+    private final int maxEntries;
+    private final Map<List<String>, V> entries;
+    private long hits;
+    private long misses;
+
+    ResultCache(String name, int maxEntries)
+    {
+        this.name = name;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<List<String>, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<String>, V> eldest)
+            {
+                return size() > ResultCache.this.maxEntries;
+            }
+        };
+    }
+
+    synchronized V get(List<String> key)
+    {
+        if (this.maxEntries == 0) {
+            return null;
+        }
+        V value = this.entries.get(key);
+        if (value == null) {
+            this.misses++;
+        }
+        else {
+            this.hits++;
+        }
+        return value;
+    }
+
+    synchronized void put(List<String> key, V value)
+    {
+        if (this.maxEntries > 0) {
+            this.entries.put(key, value);
+        }
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return this.name + " cache => Entries: " + this.entries.size() + " Hits: " + this.hits + " Misses: " + this.misses;
+    }
+}
@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses large results before they are written to the output block, to keep the Lambda response under its size
+ * limit. A compressed value is the marker "zlib:" followed by the base64 encoded zlib (deflate) stream of the UTF-8
+ * text, so it is still a valid VARCHAR; the decompress_result function restores the original text.
+ * <p>
+ * Values below the size threshold, and values that would not get smaller (base64 adds a third to the deflated size),
+ * are written unchanged. One Deflater is reused for all values, so compression allocates only its output.
+ */
+class ResultCompressor
+{
+    static final String MARKER = "zlib:";
+
+    private final int minBytes;
+    private final Deflater deflater;
+    private final byte[] buffer = new byte[8192];
+    private long valuesCompressed;
+    private long bytesIn;
+    private long bytesOut;
+    private long compressNanos;
+
+    /**
+     * @param minBytes  smallest UTF-8 value, in bytes, that is compressed
+     * @param level     deflate level, 1 (fastest) to 9 (smallest)
+     */
+    ResultCompressor(int minBytes, int level)
+    {
+        this.minBytes = minBytes;
+        this.deflater = new Deflater(level);
+    }
+
+    /**
+     * @param utf8  the UTF-8 bytes of a value
+     * @return the UTF-8 bytes of the compressed value, or the same bytes if compression does not apply or would not save space
+     */
+    byte[] compress(byte[] utf8)
+    {
+        if (utf8.length < minBytes) {
+            return utf8;
+        }
+        long startNanos = System.nanoTime();
+        deflater.reset();
+        deflater.setInput(utf8);
+        deflater.finish();
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream(utf8.length / 4);
+        while (! deflater.finished()) {
+            deflated.write(buffer, 0, deflater.deflate(buffer));
+        }
+        byte[] compressed = toMarkedBase64(deflated.toByteArray());
+        compressNanos += System.nanoTime() - startNanos;
+        if (compressed.length >= utf8.length) {
+            return utf8;
+        }
+        valuesCompressed++;
+        bytesIn += utf8.length;
+        bytesOut += compressed.length;
+        return compressed;
+    }
+
+    private static byte[] toMarkedBase64(byte[] deflated)
+    {
+        byte[] marker = MARKER.getBytes(StandardCharsets.US_ASCII);
+        byte[] base64 = Base64.getEncoder().encode(deflated);
+        byte[] result = new byte[marker.length + base64.length];
+        System.arraycopy(marker, 0, result, 0, marker.length);
+        System.arraycopy(base64, 0, result, marker.length, base64.length);
+        return result;
+    }
+
+    /**
+     * @return the original text of a compressed value, or the value unchanged if it is not compressed
+     */
+    static String decompress(String value)
+    {
+        if (value == null || ! value.startsWith(MARKER)) {
+            return value;
+        }
+        byte[] deflated = Base64.getDecoder().decode(value.substring(MARKER.length()));
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            ByteArrayOutputStream inflated = new ByteArrayOutputStream(deflated.length * 4);
+            byte[] buffer = new byte[8192];
+            while (! inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new RuntimeException("Error:  - truncated compressed value");
+                }
+                inflated.write(buffer, 0, length);
+            }
+            return new String(inflated.toByteArray(), StandardCharsets.UTF_8);
+        }
+        catch (DataFormatException e) {
+            throw new RuntimeException("Error:  - invalid compressed value", e);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Releases the native memory held by the deflater.
+     */
+    void close()
+    {
+        deflater.end();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ResultCompressor{valuesCompressed=" + valuesCompressed + ", bytesIn=" + bytesIn + ", bytesOut=" + bytesOut
+            + ", compressMillis=" + (compressNanos / 1000000) + "}";
+    }
+}
@@ -0,0 +1,112 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Bounds the size of the VARCHAR results in an output block by writing results that would take it over a size budget
+ * to a {@link ResultStore}, and writing a reference of about 100 bytes in their place: "spilled:s3://bucket/key".
+ * The read_spilled_result function reads the result back.
+ * <p>
+ * Results are written to the block as they are computed, so the budget is applied as the block fills: results that
+ * fit are kept in the block, and once the budget is reached every further result larger than its reference is spilled.
+ * One spiller is used per output block; each block's results are written under a key prefix of their own.
+ */
+class ResultSpiller
+{
+    static final String MARKER = "spilled:";
+    // the key of a spilled result under the spill prefix: a block's UUID and the row number
+    private static final String KEY_PATTERN = "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}/[0-9]+";
+
+    private final ResultStore store;
+    private final String bucket;
+    private final String keyPrefix;
+    private final long thresholdBytes;
+    private long valuesSpilled;
+    private long bytesSpilled;
+
+    ResultSpiller(ResultStore store, String bucket, String prefix, long thresholdBytes)
+    {
+        this.store = store;
+        this.bucket = bucket;
+        this.keyPrefix = (prefix.isEmpty() ? "" : prefix + "/") + UUID.randomUUID() + "/";
+        this.thresholdBytes = thresholdBytes;
+    }
+
+    /**
+     * @param value         UTF-8 bytes of the result for a row
+     * @param row           row number in the block
+     * @param blockBytes    bytes of results already written to the block
+     * @return the value, if it fits in the block, or otherwise the UTF-8 bytes of a reference to the spilled value
+     */
+    byte[] spillIfOverBudget(byte[] value, int row, long blockBytes)
+    {
+        if (blockBytes + value.length <= thresholdBytes) {
+            return value;
+        }
+        String key = keyPrefix + row;
+        byte[] reference = (MARKER + "s3://" + bucket + "/" + key).getBytes(StandardCharsets.UTF_8);
+        if (reference.length >= value.length) {
+            return value;
+        }
+        store.put(bucket, key, value);
+        valuesSpilled++;
+        bytesSpilled += value.length;
+        return reference;
+    }
+
+    /**
+     * Only references to results spilled by this function, in its spill bucket and under its prefix, are read - the
+     * value comes from the query, and must not give access to anything else the function's role can read.
+     * @param store   the store results are spilled to
+     * @param bucket  the configured spill bucket
+     * @param prefix  the configured spill key prefix
+     * @param value   a result, spilled reference or not
+     * @return the spilled result a value refers to, decompressed if it was compressed, or the value unchanged if it is not a reference
+     */
+    static String read(ResultStore store, String bucket, String prefix, String value)
+    {
+        if (value == null || ! value.startsWith(MARKER + "s3://")) {
+            return ResultCompressor.decompress(value);
+        }
+        String location = value.substring((MARKER + "s3://").length());
+        int slash = location.indexOf('/');
+        if (slash <= 0) {
+            throw new RuntimeException("Error:  - invalid spilled result reference: " + value);
+        }
+        String key = location.substring(slash + 1);
+        if (bucket.isEmpty() || ! location.substring(0, slash).equals(bucket)
+            || ! Pattern.matches((prefix.isEmpty() ? "" : Pattern.quote(prefix + "/")) + KEY_PATTERN, key)) {
+            throw new RuntimeException("Error:  - spilled result reference is not a result spilled by this function (SPILL_BUCKET / SPILL_PREFIX): " + value);
+        }
+        byte[] bytes = store.get(bucket, key);
+        return ResultCompressor.decompress(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ResultSpiller{valuesSpilled=" + valuesSpilled + ", bytesSpilled=" + bytesSpilled + ", thresholdBytes=" + thresholdBytes + "}";
+    }
+}
@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Result store backed by Amazon S3, or by an S3 compatible store when an endpoint is given. Uses the same S3 client
+ * as the federation SDK's block spiller, so it adds no dependency.
+ */
+class S3ResultStore implements ResultStore
+{
+    private final AmazonS3 s3;
+
+    /**
+     * @param endpoint  endpoint URL of an S3 compatible store, or "" for Amazon S3 in the Lambda's region
+     */
+    S3ResultStore(String endpoint)
+    {
+        AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard();
+        if (! endpoint.isEmpty()) {
+            // S3 compatible stores generally need path style requests, and ignore the signing region
+            String region = System.getenv().getOrDefault("AWS_REGION", "us-east-1");
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, region)).withPathStyleAccessEnabled(true);
+        }
+        this.s3 = builder.build();
+    }
+
+    @Override
+    public void put(String bucket, String key, byte[] value)
+    {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(value.length);
+        metadata.setContentType("text/plain; charset=utf-8");
+        s3.putObject(bucket, key, new ByteArrayInputStream(value), metadata);
+    }
+
+    @Override
+    public byte[] get(String bucket, String key)
+    {
+        try (InputStream content = s3.getObject(bucket, key).getObjectContent()) {
+            return IOUtils.toByteArray(content);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Error:  - reading spilled result s3://" + bucket + "/" + key, e);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import software.amazon.awssdk.services.comprehend.model.SentimentScore;
+import software.amazon.awssdk.services.comprehend.model.SentimentType;
+
+/**
+ * Combines the sentiment detected in the segments of a long text into one sentiment for the whole text.
+ * <p>
+ * Each segment's scores are weighted by its size in UTF-8 bytes, so a short closing sentence does not count as much
+ * as the paragraphs before it. Scores are accumulated as segments are added, in a single pass with no per-segment
+ * state; the overall sentiment is the one with the highest combined score, as Comprehend does for a single document.
+ */
+class SentimentAggregator
+{
+    private double positive;
+    private double negative;
+    private double neutral;
+    private double mixed;
+    private long totalBytes;
+
+    /**
+     * @param sentimentScore  the scores detected for a segment
+     * @param bytes           size of the segment in UTF-8 bytes
+     */
+    void add(SentimentScore sentimentScore, int bytes)
+    {
+        positive += (double) sentimentScore.positive() * bytes;
+        negative += (double) sentimentScore.negative() * bytes;
+        neutral += (double) sentimentScore.neutral() * bytes;
+        mixed += (double) sentimentScore.mixed() * bytes;
+        totalBytes += bytes;
+    }
+
+    /**
+     * @return the byte-weighted average of the segment scores
+     */
+    SentimentScore getSentimentScore()
+    {
+        if (totalBytes == 0) {
+            throw new RuntimeException("Error:  - no segment sentiment to aggregate");
+        }
+        return SentimentScore.builder()
+            .positive((float) (positive / totalBytes))
+            .negative((float) (negative / totalBytes))
+            .neutral((float) (neutral / totalBytes))
+            .mixed((float) (mixed / totalBytes))
+            .build();
+    }
+
+    /**
+     * @return the sentiment with the highest combined score
+     */
+    SentimentType getSentiment()
+    {
+        SentimentType sentiment = SentimentType.POSITIVE;
+        double max = positive;
+        if (negative > max) {
+            sentiment = SentimentType.NEGATIVE;
+            max = negative;
+        }
+        if (neutral > max) {
+            sentiment = SentimentType.NEUTRAL;
+            max = neutral;
+        }
+        if (mixed > max) {
+            sentiment = SentimentType.MIXED;
+        }
+        return sentiment;
+    }
+}
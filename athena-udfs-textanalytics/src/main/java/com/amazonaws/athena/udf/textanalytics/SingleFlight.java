@@ -0,0 +1,140 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces identical API requests that are in progress at the same time, e.g. for the same text repeated in a block,
+ * or for two UDFs run on the same column in parallel, before there is a cached result for either. The first request
+ * for a key is made; the others wait for it, and share its result (or exception). A key is (API, language, options,
+ * text hash), where the options are anything else in the request that changes the result.
+ */
+class SingleFlight
+{
+    private final Map<List<String>, FutureTask<?>> inFlight = new HashMap<List<String>, FutureTask<?>>();
+    // per API: requests, and requests coalesced into one already in progress
+    private final Map<String, long[]> apiCounts = new LinkedHashMap<String, long[]>();
+
+    /**
+     * Makes the request, or waits for an identical request already in progress.
+     * @param api           name of the API, e.g. BatchDetectEntities
+     * @param languageCode  language of the text, or "" if the API detects it
+     * @param options       other request settings that change the result, e.g. a custom model endpoint, or ""
+     * @param texts         the text (or batch of texts) the request is made for
+     * @param request       the request
+     * @return the result of the request
+     */
+    @SuppressWarnings("unchecked")
+    <T> T call(String api, String languageCode, String options, String[] texts, Callable<T> request) throws Exception
+    {
+        List<String> key = Arrays.asList(api, languageCode, options, hash(texts));
+        FutureTask<T> task;
+        boolean leader;
+        synchronized (this) {
+            long[] counts = apiCounts.get(api);
+            if (counts == null) {
+                counts = new long[2];
+                apiCounts.put(api, counts);
+            }
+            counts[0]++;
+            task = (FutureTask<T>) inFlight.get(key);
+            leader = (task == null);
+            if (leader) {
+                task = new FutureTask<T>(request);
+                inFlight.put(key, task);
+            }
+            else {
+                counts[1]++;
+            }
+        }
+        if (leader) {
+            // the first caller makes the request on its own thread, and removes the key once it has the result
+            try {
+                task.run();
+            }
+            finally {
+                synchronized (this) {
+                    inFlight.remove(key);
+                }
+            }
+        }
+        try {
+            return task.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // SHA-256 of the texts, each prefixed by its length so that different batches cannot run together to the same bytes
+    static String hash(String[] texts)
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String text : texts) {
+                digest.update((text.length() + ":").getBytes(StandardCharsets.UTF_8));
+                digest.update(text.getBytes(StandardCharsets.UTF_8));
+            }
+            return Base64.getEncoder().encodeToString(digest.digest());
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Error: SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * @param api  name of the API
+     * @return requests for the API coalesced into one already in progress, as a percentage of all its requests
+     */
+    synchronized double getCoalescedPercent(String api)
+    {
+        long[] counts = apiCounts.get(api);
+        return (counts == null || counts[0] == 0) ? 0 : counts[1] * 100.0 / counts[0];
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder sb = new StringBuilder("Single flight");
+        for (Map.Entry<String, long[]> entry : apiCounts.entrySet()) {
+            long requests = entry.getValue()[0];
+            long coalesced = entry.getValue()[1];
+            sb.append(" | ").append(entry.getKey()).append(": requests ").append(requests).append(", coalesced ").append(coalesced)
+                .append(String.format(" (dedup ratio %.2f)", (double) requests / Math.max(1, requests - coalesced)));
+        }
+        return sb.toString();
+    }
+}
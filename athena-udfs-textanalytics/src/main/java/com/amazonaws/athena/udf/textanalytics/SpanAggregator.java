@@ -0,0 +1,85 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Reduces the entities (or key phrases) detected in a text, or in all the segments of a long text, to one item per
+ * distinct (type, normalised text), with the number of times it was found and its highest score.
+ * <p>
+ * Items are counted as segment results arrive, so memory and output size grow with the number of distinct items
+ * rather than with the length of the text. Text is normalised for comparison only (Unicode NFKC, case folded,
+ * whitespace collapsed); each item keeps the text as first found, and items are returned in order of first occurrence.
+ */
+class SpanAggregator
+{
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final Map<String, Map<String, Object>> items = new LinkedHashMap<String, Map<String, Object>>();
+
+    /**
+     * @param type   entity type, or null for key phrases
+     * @param text   text of the entity or key phrase
+     * @param score  confidence score
+     */
+    void add(String type, String text, Float score)
+    {
+        String key = (type == null ? "" : type) + "\u0000" + normalise(text);
+        Map<String, Object> item = items.get(key);
+        if (item == null) {
+            item = new LinkedHashMap<String, Object>();
+            if (type != null) {
+                item.put("type", type);
+            }
+            item.put("text", text);
+            item.put("count", 1);
+            item.put("score", score);
+            items.put(key, item);
+            return;
+        }
+        item.put("count", (Integer) item.get("count") + 1);
+        Float maxScore = (Float) item.get("score");
+        if (score != null && (maxScore == null || score > maxScore)) {
+            item.put("score", score);
+        }
+    }
+
+    /**
+     * @return the distinct items, each a {type, text, count, score} map, in order of first occurrence
+     */
+    List<Map<String, Object>> getItems()
+    {
+        return new ArrayList<Map<String, Object>>(items.values());
+    }
+
+    static String normalise(String text)
+    {
+        String normalised = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        return WHITESPACE.matcher(normalised).replaceAll(" ").trim();
+    }
+}
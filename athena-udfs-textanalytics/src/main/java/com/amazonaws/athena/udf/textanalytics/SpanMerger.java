@@ -0,0 +1,128 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Merges the entities (or PII entities, or key phrases) detected in the segments of a long text into one list,
+ * with offsets relative to the whole text.
+ * <p>
+ * Offsets are moved to the whole text as each span is added. When segments overlap, a span found in the overlap is
+ * detected once per segment; spans of the same type whose ranges overlap are reconciled to the longest one (or, if the
+ * same length, the one with the highest score), so an entity cut short at the end of one segment is replaced by the
+ * complete entity found in the next.
+ */
+class SpanMerger
+{
+    private static final Comparator<Span> BY_POSITION = new Comparator<Span>()
+    {
+        @Override
+        public int compare(Span a, Span b)
+        {
+            if (a.beginOffset != b.beginOffset) {
+                return Integer.compare(a.beginOffset, b.beginOffset);
+            }
+            return Integer.compare(b.endOffset, a.endOffset);
+        }
+    };
+
+    private final List<Span> spans = new ArrayList<Span>();
+
+    /**
+     * Adds a span detected in a segment.
+     * @param type           entity type, or null for key phrases
+     * @param text           text of the span as returned by the API, or null if the API does not return it
+     * @param score          confidence score
+     * @param beginOffset    begin offset in the segment, in code points as returned by the API
+     * @param endOffset      end offset in the segment, in code points
+     * @param segmentOffset  code point offset of the segment in the whole text (see {@link TextSegment#getCodePointOffset()})
+     */
+    void add(String type, String text, Float score, int beginOffset, int endOffset, int segmentOffset)
+    {
+        spans.add(new Span(type, text, score, beginOffset + segmentOffset, endOffset + segmentOffset));
+    }
+
+    /**
+     * @return the reconciled spans, in order of position in the whole text
+     */
+    List<Span> merge()
+    {
+        Collections.sort(spans, BY_POSITION);
+        List<Span> merged = new ArrayList<Span>(spans.size());
+        // index in merged of the last span kept for each type - spans of the same type only overlap when found in two segments
+        Map<String, Integer> lastByType = new HashMap<String, Integer>();
+        for (Span span : spans) {
+            Integer last = lastByType.get(span.type);
+            if (last != null && merged.get(last).endOffset > span.beginOffset) {
+                if (span.isBetterThan(merged.get(last))) {
+                    merged.set(last, span);
+                }
+                continue;
+            }
+            lastByType.put(span.type, merged.size());
+            merged.add(span);
+        }
+        // a longer replacement may start after spans of other types kept since
+        Collections.sort(merged, BY_POSITION);
+        return merged;
+    }
+
+    static class Span
+    {
+        final String type;
+        final String text;
+        final Float score;
+        final int beginOffset;
+        final int endOffset;
+
+        Span(String type, String text, Float score, int beginOffset, int endOffset)
+        {
+            this.type = type;
+            this.text = text;
+            this.score = score;
+            this.beginOffset = beginOffset;
+            this.endOffset = endOffset;
+        }
+
+        private boolean isBetterThan(Span other)
+        {
+            int length = endOffset - beginOffset;
+            int otherLength = other.endOffset - other.beginOffset;
+            if (length != otherLength) {
+                return length > otherLength;
+            }
+            return score != null && (other.score == null || score > other.score);
+        }
+
+        @Override
+        public String toString()
+        {
+            return Objects.toString(type, "") + "[" + beginOffset + "," + endOffset + ")" + Objects.toString(text, "");
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import com.amazonaws.athena.connector.lambda.data.FieldResolver;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.Field;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Resolves the values of ROW and ARRAY output fields from the Maps and Lists returned by the structured UDF variants.
+ * Struct fields are looked up by lower case field name, so they match however the ROW type was declared in Athena,
+ * and numeric values are converted to the Arrow type declared for the field (e.g. a score declared as REAL or DOUBLE).
+ */
+class StructFieldResolver implements FieldResolver
+{
+    static final StructFieldResolver INSTANCE = new StructFieldResolver();
+
+    @Override
+    public Object getFieldValue(Field field, Object value)
+    {
+        if (value instanceof Map) {
+            Object fieldValue = ((Map<?, ?>) value).get(field.getName().toLowerCase(Locale.ROOT));
+            return (fieldValue instanceof Number) ? toFieldType(field, (Number) fieldValue) : fieldValue;
+        }
+        if (value instanceof Iterable) {
+            return ((Iterable<?>) value).iterator();
+        }
+        throw new RuntimeException("Error: expected a Map or List value for field " + field.getName() + " but found " + value.getClass().getSimpleName());
+    }
+
+    private static Object toFieldType(Field field, Number value)
+    {
+        ArrowType type = field.getType();
+        if (type instanceof ArrowType.FloatingPoint) {
+            if (((ArrowType.FloatingPoint) type).getPrecision() == FloatingPointPrecision.SINGLE) {
+                return value.floatValue();
+            }
+            // Comprehend scores are Floats - widen via their decimal form, so 0.99f is written as 0.99 rather than 0.9900000095367432
+            return (value instanceof Float) ? Double.valueOf(value.toString()) : value.doubleValue();
+        }
+        if (type instanceof ArrowType.Int) {
+            if (((ArrowType.Int) type).getBitWidth() == 64) {
+                return value.longValue();
+            }
+            return value.intValue();
+        }
+        if (type instanceof ArrowType.Utf8) {
+            return value.toString();
+        }
+        return value;
+    }
+}
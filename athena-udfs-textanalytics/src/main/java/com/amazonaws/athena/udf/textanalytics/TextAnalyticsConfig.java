@@ -0,0 +1,1180 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import java.util.Map;
+
+/**
+ * Runtime limits and tuning settings for the TextAnalyticsUDFHandler.
+ * <p>
+ * Settings are read once from Lambda environment variables (set from the CloudFormation parameters
+ * in athena-udfs-textanalytics.yaml) and validated when the handler is created. Instances are immutable;
+ * use {@link #builder()} or {@link #toBuilder()} to create modified copies, e.g. for testing.
+ */
+public class TextAnalyticsConfig
+{
+    public static final String MAX_TEXT_BYTES = "MAX_TEXT_BYTES";
+    public static final String MAX_BATCH_SIZE = "MAX_BATCH_SIZE";
+    public static final String MAX_CONCURRENCY = "MAX_CONCURRENCY";
+    public static final String MAX_CONNECTIONS = "MAX_CONNECTIONS";
+    public static final String COMPREHEND_MAX_REQUESTS_PER_SECOND = "COMPREHEND_MAX_REQUESTS_PER_SECOND";
+    public static final String TRANSLATE_MAX_REQUESTS_PER_SECOND = "TRANSLATE_MAX_REQUESTS_PER_SECOND";
+    public static final String TRANSLATE_PACK_ROWS = "TRANSLATE_PACK_ROWS";
+    public static final String MAX_RETRIES = "MAX_RETRIES";
+    public static final String RETRY_BASE_DELAY_MS = "RETRY_BASE_DELAY_MS";
+    public static final String RETRY_MAX_BACKOFF_MS = "RETRY_MAX_BACKOFF_MS";
+    public static final String API_CALL_TIMEOUT_MS = "API_CALL_TIMEOUT_MS";
+    public static final String API_CALL_ATTEMPT_TIMEOUT_MS = "API_CALL_ATTEMPT_TIMEOUT_MS";
+    public static final String DEADLINE_RESERVE_MS = "DEADLINE_RESERVE_MS";
+    public static final String RESULT_CACHE_SIZE = "RESULT_CACHE_SIZE";
+    public static final String BLOCK_WINDOW_ROWS = "BLOCK_WINDOW_ROWS";
+    public static final String ADAPTIVE_TARGET_LATENCY_MS = "ADAPTIVE_TARGET_LATENCY_MS";
+    public static final String API_MAX_CONCURRENCY = "API_MAX_CONCURRENCY";
+    public static final String MAX_QUEUED_REQUESTS = "MAX_QUEUED_REQUESTS";
+    public static final String SPLIT_OVERLAP_BYTES = "SPLIT_OVERLAP_BYTES";
+    public static final String SENTIMENT_SPLIT_LONG_TEXT = "SENTIMENT_SPLIT_LONG_TEXT";
+    public static final String RESULT_COMPRESSION_MIN_BYTES = "RESULT_COMPRESSION_MIN_BYTES";
+    public static final String RESULT_COMPRESSION_LEVEL = "RESULT_COMPRESSION_LEVEL";
+    public static final String SPILL_BUCKET = "SPILL_BUCKET";
+    public static final String SPILL_PREFIX = "SPILL_PREFIX";
+    public static final String SPILL_ENDPOINT = "SPILL_ENDPOINT";
+    public static final String SPILL_THRESHOLD_BYTES = "SPILL_THRESHOLD_BYTES";
+    public static final String ENDPOINT_CONCURRENCY_PER_INFERENCE_UNIT = "ENDPOINT_CONCURRENCY_PER_INFERENCE_UNIT";
+    public static final String HEDGE_PERCENTILE = "HEDGE_PERCENTILE";
+    public static final String HEDGE_BUDGET_PERCENT = "HEDGE_BUDGET_PERCENT";
+    public static final String CIRCUIT_FAILURE_PERCENT = "CIRCUIT_FAILURE_PERCENT";
+    public static final String CIRCUIT_MIN_REQUESTS = "CIRCUIT_MIN_REQUESTS";
+    public static final String CIRCUIT_OPEN_MILLIS = "CIRCUIT_OPEN_MILLIS";
+    public static final String COMPREHEND_ENDPOINTS = "COMPREHEND_ENDPOINTS";
+    public static final String TRANSLATE_ENDPOINTS = "TRANSLATE_ENDPOINTS";
+    public static final String CLIENT_POOL_ROUTING = "CLIENT_POOL_ROUTING";
+    public static final String ALLOWED_REGIONS = "ALLOWED_REGIONS";
+    public static final String BULK_MIN_ROWS = "BULK_MIN_ROWS";
+    public static final String BULK_BUCKET = "BULK_BUCKET";
+    public static final String BULK_PREFIX = "BULK_PREFIX";
+    public static final String BULK_ROLE_ARN = "BULK_ROLE_ARN";
+    public static final String BULK_POLL_INTERVAL_MS = "BULK_POLL_INTERVAL_MS";
+    public static final String QUERY_COMPREHEND_UNIT_BUDGET = "QUERY_COMPREHEND_UNIT_BUDGET";
+    public static final String QUERY_TRANSLATE_CHARACTER_BUDGET = "QUERY_TRANSLATE_CHARACTER_BUDGET";
+
+    private final int maxTextBytes;
+    private final int maxBatchSize;
+    private final int maxConcurrency;
+    private final int maxConnections;
+    private final double comprehendMaxRequestsPerSecond;
+    private final double translateMaxRequestsPerSecond;
+    private final boolean translatePackRows;
+    private final int maxRetries;
+    private final long retryBaseDelayMillis;
+    private final long retryMaxBackoffMillis;
+    private final long apiCallTimeoutMillis;
+    private final long apiCallAttemptTimeoutMillis;
+    private final long deadlineReserveMillis;
+    private final int resultCacheSize;
+    private final int blockWindowRows;
+    private final long adaptiveTargetLatencyMillis;
+    private final int apiMaxConcurrency;
+    private final int maxQueuedRequests;
+    private final int splitOverlapBytes;
+    private final boolean sentimentSplitLongText;
+    private final int resultCompressionMinBytes;
+    private final int resultCompressionLevel;
+    private final String spillBucket;
+    private final String spillPrefix;
+    private final String spillEndpoint;
+    private final long spillThresholdBytes;
+    private final int endpointConcurrencyPerInferenceUnit;
+    private final double hedgePercentile;
+    private final double hedgeBudgetPercent;
+    private final double circuitFailurePercent;
+    private final int circuitMinRequests;
+    private final long circuitOpenMillis;
+    private final String comprehendEndpoints;
+    private final String translateEndpoints;
+    private final String clientPoolRouting;
+    private final String allowedRegions;
+    private final int bulkMinRows;
+    private final String bulkBucket;
+    private final String bulkPrefix;
+    private final String bulkRoleArn;
+    private final long bulkPollIntervalMillis;
+    private final long queryComprehendUnitBudget;
+    private final long queryTranslateCharacterBudget;
+
+    private TextAnalyticsConfig(Builder builder)
+    {
+        this.maxTextBytes = builder.maxTextBytes;
+        this.maxBatchSize = builder.maxBatchSize;
+        this.maxConcurrency = builder.maxConcurrency;
+        this.maxConnections = builder.maxConnections;
+        this.comprehendMaxRequestsPerSecond = builder.comprehendMaxRequestsPerSecond;
+        this.translateMaxRequestsPerSecond = builder.translateMaxRequestsPerSecond;
+        this.translatePackRows = builder.translatePackRows;
+        this.maxRetries = builder.maxRetries;
+        this.retryBaseDelayMillis = builder.retryBaseDelayMillis;
+        this.retryMaxBackoffMillis = builder.retryMaxBackoffMillis;
+        this.apiCallTimeoutMillis = builder.apiCallTimeoutMillis;
+        this.apiCallAttemptTimeoutMillis = builder.apiCallAttemptTimeoutMillis;
+        this.deadlineReserveMillis = builder.deadlineReserveMillis;
+        this.resultCacheSize = builder.resultCacheSize;
+        this.blockWindowRows = builder.blockWindowRows;
+        this.adaptiveTargetLatencyMillis = builder.adaptiveTargetLatencyMillis;
+        this.apiMaxConcurrency = builder.apiMaxConcurrency;
+        this.maxQueuedRequests = builder.maxQueuedRequests;
+        this.splitOverlapBytes = builder.splitOverlapBytes;
+        this.sentimentSplitLongText = builder.sentimentSplitLongText;
+        this.resultCompressionMinBytes = builder.resultCompressionMinBytes;
+        this.resultCompressionLevel = builder.resultCompressionLevel;
+        this.spillBucket = builder.spillBucket;
+        this.spillPrefix = builder.spillPrefix;
+        this.spillEndpoint = builder.spillEndpoint;
+        this.spillThresholdBytes = builder.spillThresholdBytes;
+        this.endpointConcurrencyPerInferenceUnit = builder.endpointConcurrencyPerInferenceUnit;
+        this.hedgePercentile = builder.hedgePercentile;
+        this.hedgeBudgetPercent = builder.hedgeBudgetPercent;
+        this.circuitFailurePercent = builder.circuitFailurePercent;
+        this.circuitMinRequests = builder.circuitMinRequests;
+        this.circuitOpenMillis = builder.circuitOpenMillis;
+        this.comprehendEndpoints = builder.comprehendEndpoints;
+        this.translateEndpoints = builder.translateEndpoints;
+        this.clientPoolRouting = builder.clientPoolRouting;
+        this.allowedRegions = builder.allowedRegions;
+        this.bulkMinRows = builder.bulkMinRows;
+        this.bulkBucket = builder.bulkBucket;
+        this.bulkPrefix = builder.bulkPrefix;
+        this.bulkRoleArn = builder.bulkRoleArn;
+        this.bulkPollIntervalMillis = builder.bulkPollIntervalMillis;
+        this.queryComprehendUnitBudget = builder.queryComprehendUnitBudget;
+        this.queryTranslateCharacterBudget = builder.queryTranslateCharacterBudget;
+    }
+
+    /**
+     * max size of each text sent to Comprehend or Translate, in utf-8 bytes (1000 to 5000, the Comprehend document limit)
+     */
+    public int getMaxTextBytes()
+    {
+        return maxTextBytes;
+    }
+
+    /**
+     * max number of documents sent in each Comprehend multi-document batch request
+     */
+    public int getMaxBatchSize()
+    {
+        return maxBatchSize;
+    }
+
+    /**
+     * max number of requests the handler runs concurrently, across all APIs
+     */
+    public int getMaxConcurrency()
+    {
+        return maxConcurrency;
+    }
+
+    /**
+     * max number of HTTP connections in each service client's connection pool
+     */
+    public int getMaxConnections()
+    {
+        return maxConnections;
+    }
+
+    /**
+     * client side rate limit for Comprehend requests, or 0 for no limit
+     */
+    public double getComprehendMaxRequestsPerSecond()
+    {
+        return comprehendMaxRequestsPerSecond;
+    }
+
+    /**
+     * client side rate limit for Translate requests, or 0 for no limit
+     */
+    public double getTranslateMaxRequestsPerSecond()
+    {
+        return translateMaxRequestsPerSecond;
+    }
+
+    /**
+     * pack many short rows into each TranslateText request
+     */
+    public boolean isTranslatePackRows()
+    {
+        return translatePackRows;
+    }
+
+    public int getMaxRetries()
+    {
+        return maxRetries;
+    }
+
+    public long getRetryBaseDelayMillis()
+    {
+        return retryBaseDelayMillis;
+    }
+
+    public long getRetryMaxBackoffMillis()
+    {
+        return retryMaxBackoffMillis;
+    }
+
+    public long getApiCallTimeoutMillis()
+    {
+        return apiCallTimeoutMillis;
+    }
+
+    public long getApiCallAttemptTimeoutMillis()
+    {
+        return apiCallAttemptTimeoutMillis;
+    }
+
+    /**
+     * time kept in reserve before the Lambda timeout, to stop work and return a clear error
+     */
+    public long getDeadlineReserveMillis()
+    {
+        return deadlineReserveMillis;
+    }
+
+    /**
+     * max number of entries in each API result cache, or 0 to disable caching
+     */
+    public int getResultCacheSize()
+    {
+        return resultCacheSize;
+    }
+
+    /**
+     * number of rows of each Athena block read, processed and written at a time, or 0 to process the whole block at once.
+     * Ignored when BULK_MIN_ROWS is greater than 0, as a block is sent to an asynchronous job whole
+     */
+    public int getBlockWindowRows()
+    {
+        return blockWindowRows;
+    }
+
+    /**
+     * target latency of each Comprehend request, used to adapt documents per batch and long text segment size, or 0 to always use MAX_BATCH_SIZE and MAX_TEXT_BYTES
+     */
+    public long getAdaptiveTargetLatencyMillis()
+    {
+        return adaptiveTargetLatencyMillis;
+    }
+
+    /**
+     * max number of requests the handler runs concurrently for any one API (e.g. TranslateText or DetectPiiEntities)
+     */
+    public int getApiMaxConcurrency()
+    {
+        return apiMaxConcurrency;
+    }
+
+    /**
+     * max number of requests waiting to run; beyond this, the UDF waits for queued requests to start before queuing more
+     */
+    public int getMaxQueuedRequests()
+    {
+        return maxQueuedRequests;
+    }
+
+    /**
+     * max size of the overlap between consecutive segments of long text split for entity and PII detection, in utf-8 bytes, or 0 for no overlap
+     */
+    public int getSplitOverlapBytes()
+    {
+        return splitOverlapBytes;
+    }
+
+    /**
+     * @return true to split text longer than maxTextBytes into sentence-packed segments for sentiment detection, and combine the segment sentiment scores weighted by segment size, rather than truncate it
+     */
+    public boolean isSentimentSplitLongText()
+    {
+        return sentimentSplitLongText;
+    }
+
+    /**
+     * @return results of at least this many UTF-8 bytes are written compressed, see decompress_result (0 = never compress)
+     */
+    public int getResultCompressionMinBytes()
+    {
+        return resultCompressionMinBytes;
+    }
+
+    /**
+     * @return deflate level for compressed results, 1 (fastest) to 9 (smallest)
+     */
+    public int getResultCompressionLevel()
+    {
+        return resultCompressionLevel;
+    }
+
+    /**
+     * @return bucket to which results are spilled when an output block would exceed spillThresholdBytes ("" = never spill)
+     */
+    public String getSpillBucket()
+    {
+        return spillBucket;
+    }
+
+    /**
+     * @return key prefix of spilled results
+     */
+    public String getSpillPrefix()
+    {
+        return spillPrefix;
+    }
+
+    /**
+     * @return endpoint URL of an S3 compatible store to spill to, e.g. "http://localhost:9000" ("" = Amazon S3)
+     */
+    public String getSpillEndpoint()
+    {
+        return spillEndpoint;
+    }
+
+    /**
+     * @return size of the VARCHAR results in an output block, in bytes, beyond which further large results are spilled. Results are base64 encoded in the Lambda response, so this leaves room under the 6 MB limit
+     */
+    public long getSpillThresholdBytes()
+    {
+        return spillThresholdBytes;
+    }
+
+    /**
+     * @return requests run at a time against a custom model endpoint (classify_document, detect_custom_entities), for each of the endpoint's inference units
+     */
+    public int getEndpointConcurrencyPerInferenceUnit()
+    {
+        return endpointConcurrencyPerInferenceUnit;
+    }
+
+    /**
+     * @return percentile of recent latencies after which a DetectPiiEntities or TranslateText call is hedged with a duplicate request (0 = never hedge)
+     */
+    public double getHedgePercentile()
+    {
+        return hedgePercentile;
+    }
+
+    /**
+     * @return most hedged calls, as a percentage of all calls to the API
+     */
+    public double getHedgeBudgetPercent()
+    {
+        return hedgeBudgetPercent;
+    }
+
+    /**
+     * @return percentage of failed (server error or timeout) attempts to an API, over the last CIRCUIT_MIN_REQUESTS, that opens its circuit (0 = never open)
+     */
+    public double getCircuitFailurePercent()
+    {
+        return circuitFailurePercent;
+    }
+
+    /**
+     * @return number of recent attempts to an API that the circuit breaker failure percentage is taken over
+     */
+    public int getCircuitMinRequests()
+    {
+        return circuitMinRequests;
+    }
+
+    /**
+     * @return time a circuit stays open, failing requests immediately, before a probe request is let through
+     */
+    public long getCircuitOpenMillis()
+    {
+        return circuitOpenMillis;
+    }
+
+    /**
+     * @return regions (or region=endpointUrl) of the Comprehend clients requests are spread across, comma separated, each optionally with a *weight - "" for one client, in the Lambda function's region
+     */
+    public String getComprehendEndpoints()
+    {
+        return comprehendEndpoints;
+    }
+
+    /**
+     * @return regions (or region=endpointUrl) of the Translate clients requests are spread across, as for COMPREHEND_ENDPOINTS
+     */
+    public String getTranslateEndpoints()
+    {
+        return translateEndpoints;
+    }
+
+    /**
+     * @return how requests are routed across the COMPREHEND_ENDPOINTS or TRANSLATE_ENDPOINTS clients - least_outstanding, or token_budget
+     */
+    public String getClientPoolRouting()
+    {
+        return clientPoolRouting;
+    }
+
+    /**
+     * @return the regions text may be sent to, comma separated, or "" for any region
+     */
+    public String getAllowedRegions()
+    {
+        return allowedRegions;
+    }
+
+    /**
+     * @return minimum number of distinct texts in a block, for a language, that are sent to an asynchronous detection job rather than the synchronous APIs (0 = never)
+     */
+    public int getBulkMinRows()
+    {
+        return bulkMinRows;
+    }
+
+    /**
+     * @return S3 bucket for asynchronous detection job input and output
+     */
+    public String getBulkBucket()
+    {
+        return bulkBucket;
+    }
+
+    /**
+     * @return key prefix for asynchronous detection job input and output
+     */
+    public String getBulkPrefix()
+    {
+        return bulkPrefix;
+    }
+
+    /**
+     * @return ARN of the IAM role Comprehend assumes to read asynchronous detection job input and write its output
+     */
+    public String getBulkRoleArn()
+    {
+        return bulkRoleArn;
+    }
+
+    /**
+     * @return time between checks of an asynchronous detection job's status, in milliseconds
+     */
+    public long getBulkPollIntervalMillis()
+    {
+        return bulkPollIntervalMillis;
+    }
+
+    /**
+     * @return Comprehend units (100 characters, minimum 3 per document) a query may use in a Lambda container before its requests are stopped (0 = no limit)
+     */
+    public long getQueryComprehendUnitBudget()
+    {
+        return queryComprehendUnitBudget;
+    }
+
+    /**
+     * @return Translate characters a query may use in a Lambda container before its requests are stopped (0 = no limit)
+     */
+    public long getQueryTranslateCharacterBudget()
+    {
+        return queryTranslateCharacterBudget;
+    }
+
+    public Builder toBuilder()
+    {
+        return new Builder(this);
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * Creates a config from the Lambda function's environment variables, using defaults for variables that are not set.
+     */
+    public static TextAnalyticsConfig fromEnvironment()
+    {
+        return fromEnvironment(System.getenv());
+    }
+
+    public static TextAnalyticsConfig fromEnvironment(Map<String, String> env)
+    {
+        Builder builder = builder();
+        if (isSet(env, MAX_TEXT_BYTES)) {
+            builder.maxTextBytes(parseInt(env, MAX_TEXT_BYTES));
+        }
+        if (isSet(env, MAX_BATCH_SIZE)) {
+            builder.maxBatchSize(parseInt(env, MAX_BATCH_SIZE));
+        }
+        if (isSet(env, MAX_CONCURRENCY)) {
+            builder.maxConcurrency(parseInt(env, MAX_CONCURRENCY));
+        }
+        if (isSet(env, MAX_CONNECTIONS)) {
+            builder.maxConnections(parseInt(env, MAX_CONNECTIONS));
+        }
+        if (isSet(env, COMPREHEND_MAX_REQUESTS_PER_SECOND)) {
+            builder.comprehendMaxRequestsPerSecond(parseDouble(env, COMPREHEND_MAX_REQUESTS_PER_SECOND));
+        }
+        if (isSet(env, TRANSLATE_MAX_REQUESTS_PER_SECOND)) {
+            builder.translateMaxRequestsPerSecond(parseDouble(env, TRANSLATE_MAX_REQUESTS_PER_SECOND));
+        }
+        if (isSet(env, TRANSLATE_PACK_ROWS)) {
+            builder.translatePackRows(parseBoolean(env, TRANSLATE_PACK_ROWS));
+        }
+        if (isSet(env, MAX_RETRIES)) {
+            builder.maxRetries(parseInt(env, MAX_RETRIES));
+        }
+        if (isSet(env, RETRY_BASE_DELAY_MS)) {
+            builder.retryBaseDelayMillis(parseLong(env, RETRY_BASE_DELAY_MS));
+        }
+        if (isSet(env, RETRY_MAX_BACKOFF_MS)) {
+            builder.retryMaxBackoffMillis(parseLong(env, RETRY_MAX_BACKOFF_MS));
+        }
+        if (isSet(env, API_CALL_TIMEOUT_MS)) {
+            builder.apiCallTimeoutMillis(parseLong(env, API_CALL_TIMEOUT_MS));
+        }
+        if (isSet(env, API_CALL_ATTEMPT_TIMEOUT_MS)) {
+            builder.apiCallAttemptTimeoutMillis(parseLong(env, API_CALL_ATTEMPT_TIMEOUT_MS));
+        }
+        if (isSet(env, DEADLINE_RESERVE_MS)) {
+            builder.deadlineReserveMillis(parseLong(env, DEADLINE_RESERVE_MS));
+        }
+        if (isSet(env, RESULT_CACHE_SIZE)) {
+            builder.resultCacheSize(parseInt(env, RESULT_CACHE_SIZE));
+        }
+        if (isSet(env, BLOCK_WINDOW_ROWS)) {
+            builder.blockWindowRows(parseInt(env, BLOCK_WINDOW_ROWS));
+        }
+        if (isSet(env, ADAPTIVE_TARGET_LATENCY_MS)) {
+            builder.adaptiveTargetLatencyMillis(parseLong(env, ADAPTIVE_TARGET_LATENCY_MS));
+        }
+        if (isSet(env, API_MAX_CONCURRENCY)) {
+            builder.apiMaxConcurrency(parseInt(env, API_MAX_CONCURRENCY));
+        }
+        if (isSet(env, MAX_QUEUED_REQUESTS)) {
+            builder.maxQueuedRequests(parseInt(env, MAX_QUEUED_REQUESTS));
+        }
+        if (isSet(env, SPLIT_OVERLAP_BYTES)) {
+            builder.splitOverlapBytes(parseInt(env, SPLIT_OVERLAP_BYTES));
+        }
+        if (isSet(env, SENTIMENT_SPLIT_LONG_TEXT)) {
+            builder.sentimentSplitLongText(parseBoolean(env, SENTIMENT_SPLIT_LONG_TEXT));
+        }
+        if (isSet(env, RESULT_COMPRESSION_MIN_BYTES)) {
+            builder.resultCompressionMinBytes(parseInt(env, RESULT_COMPRESSION_MIN_BYTES));
+        }
+        if (isSet(env, RESULT_COMPRESSION_LEVEL)) {
+            builder.resultCompressionLevel(parseInt(env, RESULT_COMPRESSION_LEVEL));
+        }
+        if (isSet(env, SPILL_BUCKET)) {
+            builder.spillBucket(parseString(env, SPILL_BUCKET));
+        }
+        if (isSet(env, SPILL_PREFIX)) {
+            builder.spillPrefix(parseString(env, SPILL_PREFIX));
+        }
+        if (isSet(env, SPILL_ENDPOINT)) {
+            builder.spillEndpoint(parseString(env, SPILL_ENDPOINT));
+        }
+        if (isSet(env, SPILL_THRESHOLD_BYTES)) {
+            builder.spillThresholdBytes(parseLong(env, SPILL_THRESHOLD_BYTES));
+        }
+        if (isSet(env, ENDPOINT_CONCURRENCY_PER_INFERENCE_UNIT)) {
+            builder.endpointConcurrencyPerInferenceUnit(parseInt(env, ENDPOINT_CONCURRENCY_PER_INFERENCE_UNIT));
+        }
+        if (isSet(env, HEDGE_PERCENTILE)) {
+            builder.hedgePercentile(parseDouble(env, HEDGE_PERCENTILE));
+        }
+        if (isSet(env, HEDGE_BUDGET_PERCENT)) {
+            builder.hedgeBudgetPercent(parseDouble(env, HEDGE_BUDGET_PERCENT));
+        }
+        if (isSet(env, CIRCUIT_FAILURE_PERCENT)) {
+            builder.circuitFailurePercent(parseDouble(env, CIRCUIT_FAILURE_PERCENT));
+        }
+        if (isSet(env, CIRCUIT_MIN_REQUESTS)) {
+            builder.circuitMinRequests(parseInt(env, CIRCUIT_MIN_REQUESTS));
+        }
+        if (isSet(env, CIRCUIT_OPEN_MILLIS)) {
+            builder.circuitOpenMillis(parseLong(env, CIRCUIT_OPEN_MILLIS));
+        }
+        if (isSet(env, COMPREHEND_ENDPOINTS)) {
+            builder.comprehendEndpoints(parseString(env, COMPREHEND_ENDPOINTS));
+        }
+        if (isSet(env, TRANSLATE_ENDPOINTS)) {
+            builder.translateEndpoints(parseString(env, TRANSLATE_ENDPOINTS));
+        }
+        if (isSet(env, CLIENT_POOL_ROUTING)) {
+            builder.clientPoolRouting(parseString(env, CLIENT_POOL_ROUTING));
+        }
+        if (isSet(env, ALLOWED_REGIONS)) {
+            builder.allowedRegions(parseString(env, ALLOWED_REGIONS));
+        }
+        if (isSet(env, BULK_MIN_ROWS)) {
+            builder.bulkMinRows(parseInt(env, BULK_MIN_ROWS));
+        }
+        if (isSet(env, BULK_BUCKET)) {
+            builder.bulkBucket(parseString(env, BULK_BUCKET));
+        }
+        if (isSet(env, BULK_PREFIX)) {
+            builder.bulkPrefix(parseString(env, BULK_PREFIX));
+        }
+        if (isSet(env, BULK_ROLE_ARN)) {
+            builder.bulkRoleArn(parseString(env, BULK_ROLE_ARN));
+        }
+        if (isSet(env, BULK_POLL_INTERVAL_MS)) {
+            builder.bulkPollIntervalMillis(parseLong(env, BULK_POLL_INTERVAL_MS));
+        }
+        if (isSet(env, QUERY_COMPREHEND_UNIT_BUDGET)) {
+            builder.queryComprehendUnitBudget(parseLong(env, QUERY_COMPREHEND_UNIT_BUDGET));
+        }
+        if (isSet(env, QUERY_TRANSLATE_CHARACTER_BUDGET)) {
+            builder.queryTranslateCharacterBudget(parseLong(env, QUERY_TRANSLATE_CHARACTER_BUDGET));
+        }
+        return builder.build();
+    }
+
+    private static boolean isSet(Map<String, String> env, String name)
+    {
+        String value = env.get(name);
+        return value != null && ! value.trim().isEmpty();
+    }
+
+    private static int parseInt(Map<String, String> env, String name)
+    {
+        try {
+            return Integer.parseInt(env.get(name).trim());
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid configuration: " + name + " must be an integer, but was '" + env.get(name) + "'");
+        }
+    }
+
+    private static long parseLong(Map<String, String> env, String name)
+    {
+        try {
+            return Long.parseLong(env.get(name).trim());
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid configuration: " + name + " must be an integer, but was '" + env.get(name) + "'");
+        }
+    }
+
+    private static double parseDouble(Map<String, String> env, String name)
+    {
+        try {
+            return Double.parseDouble(env.get(name).trim());
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid configuration: " + name + " must be a number, but was '" + env.get(name) + "'");
+        }
+    }
+
+    private static boolean parseBoolean(Map<String, String> env, String name)
+    {
+        String value = env.get(name).trim();
+        if (! value.equalsIgnoreCase("true") && ! value.equalsIgnoreCase("false")) {
+            throw new IllegalArgumentException("Invalid configuration: " + name + " must be true or false, but was '" + value + "'");
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    private static String parseString(Map<String, String> env, String name)
+    {
+        return env.get(name).trim();
+    }
+
+    private static void checkRange(String name, double value, double min, double max)
+    {
+        if (value < min || value > max) {
+            throw new IllegalArgumentException("Invalid configuration: " + name + " must be between " + format(min) + " and " + format(max) + ", but was " + format(value));
+        }
+    }
+
+    private static void checkEndpoints(String name, String endpoints, String allowedRegions)
+    {
+        try {
+            ClientPool.checkAllowedRegions(ClientPool.parseEndpoints(endpoints), allowedRegions);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid configuration: " + name + " " + e.getMessage(), e);
+        }
+    }
+
+    private static String format(double value)
+    {
+        return (value == Math.rint(value)) ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TextAnalyticsConfig{" +
+            MAX_TEXT_BYTES + "=" + maxTextBytes +
+            ", " + MAX_BATCH_SIZE + "=" + maxBatchSize +
+            ", " + MAX_CONCURRENCY + "=" + maxConcurrency +
+            ", " + MAX_CONNECTIONS + "=" + maxConnections +
+            ", " + COMPREHEND_MAX_REQUESTS_PER_SECOND + "=" + comprehendMaxRequestsPerSecond +
+            ", " + TRANSLATE_MAX_REQUESTS_PER_SECOND + "=" + translateMaxRequestsPerSecond +
+            ", " + TRANSLATE_PACK_ROWS + "=" + translatePackRows +
+            ", " + MAX_RETRIES + "=" + maxRetries +
+            ", " + RETRY_BASE_DELAY_MS + "=" + retryBaseDelayMillis +
+            ", " + RETRY_MAX_BACKOFF_MS + "=" + retryMaxBackoffMillis +
+            ", " + API_CALL_TIMEOUT_MS + "=" + apiCallTimeoutMillis +
+            ", " + API_CALL_ATTEMPT_TIMEOUT_MS + "=" + apiCallAttemptTimeoutMillis +
+            ", " + DEADLINE_RESERVE_MS + "=" + deadlineReserveMillis +
+            ", " + RESULT_CACHE_SIZE + "=" + resultCacheSize +
+            ", " + BLOCK_WINDOW_ROWS + "=" + blockWindowRows +
+            ", " + ADAPTIVE_TARGET_LATENCY_MS + "=" + adaptiveTargetLatencyMillis +
+            ", " + API_MAX_CONCURRENCY + "=" + apiMaxConcurrency +
+            ", " + MAX_QUEUED_REQUESTS + "=" + maxQueuedRequests +
+            ", " + SPLIT_OVERLAP_BYTES + "=" + splitOverlapBytes +
+            ", " + SENTIMENT_SPLIT_LONG_TEXT + "=" + sentimentSplitLongText +
+            ", " + RESULT_COMPRESSION_MIN_BYTES + "=" + resultCompressionMinBytes +
+            ", " + RESULT_COMPRESSION_LEVEL + "=" + resultCompressionLevel +
+            ", " + SPILL_BUCKET + "=" + spillBucket +
+            ", " + SPILL_PREFIX + "=" + spillPrefix +
+            ", " + SPILL_ENDPOINT + "=" + spillEndpoint +
+            ", " + SPILL_THRESHOLD_BYTES + "=" + spillThresholdBytes +
+            ", " + ENDPOINT_CONCURRENCY_PER_INFERENCE_UNIT + "=" + endpointConcurrencyPerInferenceUnit +
+            ", " + HEDGE_PERCENTILE + "=" + hedgePercentile +
+            ", " + HEDGE_BUDGET_PERCENT + "=" + hedgeBudgetPercent +
+            ", " + CIRCUIT_FAILURE_PERCENT + "=" + circuitFailurePercent +
+            ", " + CIRCUIT_MIN_REQUESTS + "=" + circuitMinRequests +
+            ", " + CIRCUIT_OPEN_MILLIS + "=" + circuitOpenMillis +
+            ", " + COMPREHEND_ENDPOINTS + "=" + comprehendEndpoints +
+            ", " + TRANSLATE_ENDPOINTS + "=" + translateEndpoints +
+            ", " + CLIENT_POOL_ROUTING + "=" + clientPoolRouting +
+            ", " + ALLOWED_REGIONS + "=" + allowedRegions +
+            ", " + BULK_MIN_ROWS + "=" + bulkMinRows +
+            ", " + BULK_BUCKET + "=" + bulkBucket +
+            ", " + BULK_PREFIX + "=" + bulkPrefix +
+            ", " + BULK_ROLE_ARN + "=" + bulkRoleArn +
+            ", " + BULK_POLL_INTERVAL_MS + "=" + bulkPollIntervalMillis +
+            ", " + QUERY_COMPREHEND_UNIT_BUDGET + "=" + queryComprehendUnitBudget +
+            ", " + QUERY_TRANSLATE_CHARACTER_BUDGET + "=" + queryTranslateCharacterBudget +
+            "}";
+    }
+
+    public static class Builder
+    {
+        private int maxTextBytes = 5000;  //utf8 bytes
+        private int maxBatchSize = 25;
+        private int maxConcurrency = 10;
+        private int maxConnections = 50;
+        private double comprehendMaxRequestsPerSecond = 0;
+        private double translateMaxRequestsPerSecond = 0;
+        private boolean translatePackRows = false;
+        private int maxRetries = 100;
+        // delays in milliseconds
+        private long retryBaseDelayMillis = 500;
+        private long retryMaxBackoffMillis = 600000;
+        private long apiCallTimeoutMillis = 600000;
+        private long apiCallAttemptTimeoutMillis = 600000;
+        private long deadlineReserveMillis = 15000;
+        private int resultCacheSize = 10000;
+        private int blockWindowRows = 1000;
+        private long adaptiveTargetLatencyMillis = 5000;
+        private int apiMaxConcurrency = 10;
+        private int maxQueuedRequests = 1000;
+        private int splitOverlapBytes = 0;
+        private boolean sentimentSplitLongText = false;
+        private int resultCompressionMinBytes = 0;
+        private int resultCompressionLevel = 6;
+        private String spillBucket = "";
+        private String spillPrefix = "athena-textanalytics-spill";
+        private String spillEndpoint = "";
+        private long spillThresholdBytes = 4000000;
+        private int endpointConcurrencyPerInferenceUnit = 2;
+        private double hedgePercentile = 0;
+        private double hedgeBudgetPercent = 5;
+        private double circuitFailurePercent = 50;
+        private int circuitMinRequests = 20;
+        private long circuitOpenMillis = 30000;
+        private String comprehendEndpoints = "";
+        private String translateEndpoints = "";
+        private String clientPoolRouting = ClientPool.LEAST_OUTSTANDING;
+        private String allowedRegions = "";
+        private int bulkMinRows = 0;
+        private String bulkBucket = "";
+        private String bulkPrefix = "athena-textanalytics-bulk";
+        private String bulkRoleArn = "";
+        private long bulkPollIntervalMillis = 30000;
+        private long queryComprehendUnitBudget = 0;
+        private long queryTranslateCharacterBudget = 0;
+
+        private Builder()
+        {
+        }
+
+        private Builder(TextAnalyticsConfig config)
+        {
+            this.maxTextBytes = config.maxTextBytes;
+            this.maxBatchSize = config.maxBatchSize;
+            this.maxConcurrency = config.maxConcurrency;
+            this.maxConnections = config.maxConnections;
+            this.comprehendMaxRequestsPerSecond = config.comprehendMaxRequestsPerSecond;
+            this.translateMaxRequestsPerSecond = config.translateMaxRequestsPerSecond;
+            this.translatePackRows = config.translatePackRows;
+            this.maxRetries = config.maxRetries;
+            this.retryBaseDelayMillis = config.retryBaseDelayMillis;
+            this.retryMaxBackoffMillis = config.retryMaxBackoffMillis;
+            this.apiCallTimeoutMillis = config.apiCallTimeoutMillis;
+            this.apiCallAttemptTimeoutMillis = config.apiCallAttemptTimeoutMillis;
+            this.deadlineReserveMillis = config.deadlineReserveMillis;
+            this.resultCacheSize = config.resultCacheSize;
+            this.blockWindowRows = config.blockWindowRows;
+            this.adaptiveTargetLatencyMillis = config.adaptiveTargetLatencyMillis;
+            this.apiMaxConcurrency = config.apiMaxConcurrency;
+            this.maxQueuedRequests = config.maxQueuedRequests;
+            this.splitOverlapBytes = config.splitOverlapBytes;
+            this.sentimentSplitLongText = config.sentimentSplitLongText;
+            this.resultCompressionMinBytes = config.resultCompressionMinBytes;
+            this.resultCompressionLevel = config.resultCompressionLevel;
+            this.spillBucket = config.spillBucket;
+            this.spillPrefix = config.spillPrefix;
+            this.spillEndpoint = config.spillEndpoint;
+            this.spillThresholdBytes = config.spillThresholdBytes;
+            this.endpointConcurrencyPerInferenceUnit = config.endpointConcurrencyPerInferenceUnit;
+            this.hedgePercentile = config.hedgePercentile;
+            this.hedgeBudgetPercent = config.hedgeBudgetPercent;
+            this.circuitFailurePercent = config.circuitFailurePercent;
+            this.circuitMinRequests = config.circuitMinRequests;
+            this.circuitOpenMillis = config.circuitOpenMillis;
+            this.comprehendEndpoints = config.comprehendEndpoints;
+            this.translateEndpoints = config.translateEndpoints;
+            this.clientPoolRouting = config.clientPoolRouting;
+            this.allowedRegions = config.allowedRegions;
+            this.bulkMinRows = config.bulkMinRows;
+            this.bulkBucket = config.bulkBucket;
+            this.bulkPrefix = config.bulkPrefix;
+            this.bulkRoleArn = config.bulkRoleArn;
+            this.bulkPollIntervalMillis = config.bulkPollIntervalMillis;
+            this.queryComprehendUnitBudget = config.queryComprehendUnitBudget;
+            this.queryTranslateCharacterBudget = config.queryTranslateCharacterBudget;
+        }
+
+        public Builder maxTextBytes(int maxTextBytes)
+        {
+            this.maxTextBytes = maxTextBytes;
+            return this;
+        }
+
+        public Builder maxBatchSize(int maxBatchSize)
+        {
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        public Builder maxConcurrency(int maxConcurrency)
+        {
+            this.maxConcurrency = maxConcurrency;
+            return this;
+        }
+
+        public Builder maxConnections(int maxConnections)
+        {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        public Builder comprehendMaxRequestsPerSecond(double comprehendMaxRequestsPerSecond)
+        {
+            this.comprehendMaxRequestsPerSecond = comprehendMaxRequestsPerSecond;
+            return this;
+        }
+
+        public Builder translateMaxRequestsPerSecond(double translateMaxRequestsPerSecond)
+        {
+            this.translateMaxRequestsPerSecond = translateMaxRequestsPerSecond;
+            return this;
+        }
+
+        public Builder translatePackRows(boolean translatePackRows)
+        {
+            this.translatePackRows = translatePackRows;
+            return this;
+        }
+
+        public Builder maxRetries(int maxRetries)
+        {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        public Builder retryBaseDelayMillis(long retryBaseDelayMillis)
+        {
+            this.retryBaseDelayMillis = retryBaseDelayMillis;
+            return this;
+        }
+
+        public Builder retryMaxBackoffMillis(long retryMaxBackoffMillis)
+        {
+            this.retryMaxBackoffMillis = retryMaxBackoffMillis;
+            return this;
+        }
+
+        public Builder apiCallTimeoutMillis(long apiCallTimeoutMillis)
+        {
+            this.apiCallTimeoutMillis = apiCallTimeoutMillis;
+            return this;
+        }
+
+        public Builder apiCallAttemptTimeoutMillis(long apiCallAttemptTimeoutMillis)
+        {
+            this.apiCallAttemptTimeoutMillis = apiCallAttemptTimeoutMillis;
+            return this;
+        }
+
+        public Builder deadlineReserveMillis(long deadlineReserveMillis)
+        {
+            this.deadlineReserveMillis = deadlineReserveMillis;
+            return this;
+        }
+
+        public Builder resultCacheSize(int resultCacheSize)
+        {
+            this.resultCacheSize = resultCacheSize;
+            return this;
+        }
+
+        public Builder blockWindowRows(int blockWindowRows)
+        {
+            this.blockWindowRows = blockWindowRows;
+            return this;
+        }
+
+        public Builder adaptiveTargetLatencyMillis(long adaptiveTargetLatencyMillis)
+        {
+            this.adaptiveTargetLatencyMillis = adaptiveTargetLatencyMillis;
+            return this;
+        }
+
+        public Builder apiMaxConcurrency(int apiMaxConcurrency)
+        {
+            this.apiMaxConcurrency = apiMaxConcurrency;
+            return this;
+        }
+
+        public Builder maxQueuedRequests(int maxQueuedRequests)
+        {
+            this.maxQueuedRequests = maxQueuedRequests;
+            return this;
+        }
+
+        public Builder splitOverlapBytes(int splitOverlapBytes)
+        {
+            this.splitOverlapBytes = splitOverlapBytes;
+            return this;
+        }
+
+        public Builder sentimentSplitLongText(boolean sentimentSplitLongText)
+        {
+            this.sentimentSplitLongText = sentimentSplitLongText;
+            return this;
+        }
+
+        public Builder resultCompressionMinBytes(int resultCompressionMinBytes)
+        {
+            this.resultCompressionMinBytes = resultCompressionMinBytes;
+            return this;
+        }
+
+        public Builder resultCompressionLevel(int resultCompressionLevel)
+        {
+            this.resultCompressionLevel = resultCompressionLevel;
+            return this;
+        }
+
+        public Builder spillBucket(String spillBucket)
+        {
+            this.spillBucket = spillBucket;
+            return this;
+        }
+
+        public Builder spillPrefix(String spillPrefix)
+        {
+            this.spillPrefix = spillPrefix;
+            return this;
+        }
+
+        public Builder spillEndpoint(String spillEndpoint)
+        {
+            this.spillEndpoint = spillEndpoint;
+            return this;
+        }
+
+        public Builder spillThresholdBytes(long spillThresholdBytes)
+        {
+            this.spillThresholdBytes = spillThresholdBytes;
+            return this;
+        }
+
+        public Builder endpointConcurrencyPerInferenceUnit(int endpointConcurrencyPerInferenceUnit)
+        {
+            this.endpointConcurrencyPerInferenceUnit = endpointConcurrencyPerInferenceUnit;
+            return this;
+        }
+
+        public Builder hedgePercentile(double hedgePercentile)
+        {
+            this.hedgePercentile = hedgePercentile;
+            return this;
+        }
+
+        public Builder hedgeBudgetPercent(double hedgeBudgetPercent)
+        {
+            this.hedgeBudgetPercent = hedgeBudgetPercent;
+            return this;
+        }
+
+        public Builder circuitFailurePercent(double circuitFailurePercent)
+        {
+            this.circuitFailurePercent = circuitFailurePercent;
+            return this;
+        }
+
+        public Builder circuitMinRequests(int circuitMinRequests)
+        {
+            this.circuitMinRequests = circuitMinRequests;
+            return this;
+        }
+
+        public Builder circuitOpenMillis(long circuitOpenMillis)
+        {
+            this.circuitOpenMillis = circuitOpenMillis;
+            return this;
+        }
+
+        public Builder comprehendEndpoints(String comprehendEndpoints)
+        {
+            this.comprehendEndpoints = comprehendEndpoints;
+            return this;
+        }
+
+        public Builder translateEndpoints(String translateEndpoints)
+        {
+            this.translateEndpoints = translateEndpoints;
+            return this;
+        }
+
+        public Builder clientPoolRouting(String clientPoolRouting)
+        {
+            this.clientPoolRouting = clientPoolRouting;
+            return this;
+        }
+
+        public Builder allowedRegions(String allowedRegions)
+        {
+            this.allowedRegions = allowedRegions;
+            return this;
+        }
+
+        public Builder bulkMinRows(int bulkMinRows)
+        {
+            this.bulkMinRows = bulkMinRows;
+            return this;
+        }
+
+        public Builder bulkBucket(String bulkBucket)
+        {
+            this.bulkBucket = bulkBucket;
+            return this;
+        }
+
+        public Builder bulkPrefix(String bulkPrefix)
+        {
+            this.bulkPrefix = bulkPrefix;
+            return this;
+        }
+
+        public Builder bulkRoleArn(String bulkRoleArn)
+        {
+            this.bulkRoleArn = bulkRoleArn;
+            return this;
+        }
+
+        public Builder bulkPollIntervalMillis(long bulkPollIntervalMillis)
+        {
+            this.bulkPollIntervalMillis = bulkPollIntervalMillis;
+            return this;
+        }
+
+        public Builder queryComprehendUnitBudget(long queryComprehendUnitBudget)
+        {
+            this.queryComprehendUnitBudget = queryComprehendUnitBudget;
+            return this;
+        }
+
+        public Builder queryTranslateCharacterBudget(long queryTranslateCharacterBudget)
+        {
+            this.queryTranslateCharacterBudget = queryTranslateCharacterBudget;
+            return this;
+        }
+
+        /**
+         * Validates the settings and creates the config.
+         * @throws IllegalArgumentException if any setting is out of range
+         */
+        public TextAnalyticsConfig build()
+        {
+            // Comprehend and Translate limits: max 5000 bytes per Comprehend document (Translate allows 10000), max 25 documents per batch request.
+            // Long text is split at sentence boundaries, and sentences longer than MAX_TEXT_BYTES are dropped, so the minimum must hold a long sentence
+            checkRange(MAX_TEXT_BYTES, maxTextBytes, 1000, 5000);
+            checkRange(MAX_BATCH_SIZE, maxBatchSize, 1, 25);
+            checkRange(MAX_CONCURRENCY, maxConcurrency, 1, 1000);
+            checkRange(MAX_CONNECTIONS, maxConnections, 1, 1000);
+            checkRange(COMPREHEND_MAX_REQUESTS_PER_SECOND, comprehendMaxRequestsPerSecond, 0, 100000);
+            checkRange(TRANSLATE_MAX_REQUESTS_PER_SECOND, translateMaxRequestsPerSecond, 0, 100000);
+            checkRange(MAX_RETRIES, maxRetries, 0, 1000);
+            checkRange(RETRY_BASE_DELAY_MS, retryBaseDelayMillis, 1, 900000);
+            checkRange(RETRY_MAX_BACKOFF_MS, retryMaxBackoffMillis, retryBaseDelayMillis, 900000);
+            checkRange(API_CALL_TIMEOUT_MS, apiCallTimeoutMillis, 1, 900000);
+            checkRange(API_CALL_ATTEMPT_TIMEOUT_MS, apiCallAttemptTimeoutMillis, 1, apiCallTimeoutMillis);
+            checkRange(DEADLINE_RESERVE_MS, deadlineReserveMillis, 0, 900000);
+            checkRange(RESULT_CACHE_SIZE, resultCacheSize, 0, 10000000);
+            checkRange(BLOCK_WINDOW_ROWS, blockWindowRows, 0, 10000000);
+            checkRange(ADAPTIVE_TARGET_LATENCY_MS, adaptiveTargetLatencyMillis, 0, 900000);
+            checkRange(API_MAX_CONCURRENCY, apiMaxConcurrency, 1, 1000);
+            checkRange(MAX_QUEUED_REQUESTS, maxQueuedRequests, 1, 1000000);
+            checkRange(SPLIT_OVERLAP_BYTES, splitOverlapBytes, 0, maxTextBytes / 2);
+            checkRange(RESULT_COMPRESSION_MIN_BYTES, resultCompressionMinBytes, 0, 6000000);
+            checkRange(RESULT_COMPRESSION_LEVEL, resultCompressionLevel, 1, 9);
+            checkRange(SPILL_THRESHOLD_BYTES, spillThresholdBytes, 1000, 6000000);
+            checkRange(ENDPOINT_CONCURRENCY_PER_INFERENCE_UNIT, endpointConcurrencyPerInferenceUnit, 1, 100);
+            checkRange(HEDGE_PERCENTILE, hedgePercentile, 0, 99.9);
+            checkRange(HEDGE_BUDGET_PERCENT, hedgeBudgetPercent, 0, 100);
+            checkRange(CIRCUIT_FAILURE_PERCENT, circuitFailurePercent, 0, 100);
+            checkRange(CIRCUIT_MIN_REQUESTS, circuitMinRequests, 1, 1000);
+            checkRange(CIRCUIT_OPEN_MILLIS, circuitOpenMillis, 100, 3600000);
+            checkRange(BULK_MIN_ROWS, bulkMinRows, 0, 1000000);
+            checkRange(BULK_POLL_INTERVAL_MS, bulkPollIntervalMillis, 100, 3600000);
+            checkRange(QUERY_COMPREHEND_UNIT_BUDGET, queryComprehendUnitBudget, 0, 1000000000000L);
+            checkRange(QUERY_TRANSLATE_CHARACTER_BUDGET, queryTranslateCharacterBudget, 0, 1000000000000L);
+            checkEndpoints(COMPREHEND_ENDPOINTS, comprehendEndpoints, allowedRegions);
+            checkEndpoints(TRANSLATE_ENDPOINTS, translateEndpoints, allowedRegions);
+            if (! clientPoolRouting.equals(ClientPool.LEAST_OUTSTANDING) && ! clientPoolRouting.equals(ClientPool.TOKEN_BUDGET)) {
+                throw new IllegalArgumentException("Invalid configuration: " + CLIENT_POOL_ROUTING + " must be " + ClientPool.LEAST_OUTSTANDING + " or " + ClientPool.TOKEN_BUDGET + ", but was " + clientPoolRouting);
+            }
+            if (bulkMinRows > 0 && (bulkBucket.isEmpty() || bulkRoleArn.isEmpty())) {
+                throw new IllegalArgumentException("Invalid configuration: " + BULK_BUCKET + " and " + BULK_ROLE_ARN + " must be set when " + BULK_MIN_ROWS + " is greater than 0");
+            }
+            return new TextAnalyticsConfig(this);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Lambda entry point for the text analytics UDFs.
+ * <p>
+ * UserDefinedFunctionHandler.handleRequest is final and does not pass the Lambda Context on to processRows,
+ * so this handler reads the invocation's remaining time from the Context, gives it to the
+ * TextAnalyticsUDFHandler as the invocation deadline, and then delegates the request to it.
+ */
+public class TextAnalyticsLambdaHandler implements RequestStreamHandler
+{
+    private final TextAnalyticsUDFHandler udfHandler;
+
+    public TextAnalyticsLambdaHandler()
+    {
+        this(new TextAnalyticsUDFHandler());
+    }
+
+    public TextAnalyticsLambdaHandler(TextAnalyticsUDFHandler udfHandler)
+    {
+        this.udfHandler = udfHandler;
+    }
+
+    @Override
+    public void handleRequest(InputStream inputStream, OutputStream outputStream, Context context) throws IOException
+    {
+        this.udfHandler.startInvocation(context.getRemainingTimeInMillis());
+        try {
+            this.udfHandler.handleRequest(inputStream, outputStream, context);
+        }
+        finally {
+            this.udfHandler.endInvocation();
+        }
+    }
+}
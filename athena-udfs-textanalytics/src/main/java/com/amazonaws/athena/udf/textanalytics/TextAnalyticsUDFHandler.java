@@ -22,14 +22,31 @@ package com.amazonaws.athena.udf.textanalytics;
 
 import com.amazonaws.athena.connector.lambda.data.Block;
 import com.amazonaws.athena.connector.lambda.data.BlockAllocator;
+import com.amazonaws.athena.connector.lambda.data.BlockAllocatorImpl;
 import com.amazonaws.athena.connector.lambda.data.BlockUtils;
+import com.amazonaws.athena.connector.lambda.data.FieldBuilder;
+import com.amazonaws.athena.connector.lambda.data.SchemaBuilder;
 import com.amazonaws.athena.connector.lambda.handlers.UserDefinedFunctionHandler;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
 import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.exception.ApiCallTimeoutException;
 import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.core.retry.RetryUtils;
+import software.amazon.awssdk.core.retry.conditions.RetryCondition;
 import software.amazon.awssdk.core.retry.backoff.EqualJitterBackoffStrategy;
+import software.amazon.awssdk.http.SdkHttpResponse;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.regions.providers.DefaultAwsRegionProviderChain;
 import software.amazon.awssdk.services.translate.model.TranslateTextRequest;
 import software.amazon.awssdk.services.translate.model.TranslateTextResponse;
 import software.amazon.awssdk.services.translate.TranslateClient;
+import software.amazon.awssdk.services.translate.TranslateClientBuilder;
 import software.amazon.awssdk.services.comprehend.model.BatchDetectDominantLanguageItemResult;
 import software.amazon.awssdk.services.comprehend.model.BatchDetectDominantLanguageRequest;
 import software.amazon.awssdk.services.comprehend.model.BatchDetectDominantLanguageResponse;
@@ -42,92 +59,332 @@ import software.amazon.awssdk.services.comprehend.model.BatchDetectKeyPhrasesRes
 import software.amazon.awssdk.services.comprehend.model.BatchDetectSentimentItemResult;
 import software.amazon.awssdk.services.comprehend.model.BatchDetectSentimentRequest;
 import software.amazon.awssdk.services.comprehend.model.BatchDetectSentimentResponse;
+import software.amazon.awssdk.services.comprehend.model.BatchDetectSyntaxItemResult;
+import software.amazon.awssdk.services.comprehend.model.BatchDetectSyntaxRequest;
+import software.amazon.awssdk.services.comprehend.model.BatchDetectSyntaxResponse;
+import software.amazon.awssdk.services.comprehend.model.BatchDetectTargetedSentimentItemResult;
+import software.amazon.awssdk.services.comprehend.model.BatchDetectTargetedSentimentRequest;
+import software.amazon.awssdk.services.comprehend.model.BatchDetectTargetedSentimentResponse;
 import software.amazon.awssdk.services.comprehend.model.BatchItemError;
+import software.amazon.awssdk.services.comprehend.model.ClassifyDocumentRequest;
+import software.amazon.awssdk.services.comprehend.model.ClassifyDocumentResponse;
+import software.amazon.awssdk.services.comprehend.model.DescribeEndpointRequest;
+import software.amazon.awssdk.services.comprehend.model.DetectEntitiesRequest;
 import software.amazon.awssdk.services.comprehend.model.DetectPiiEntitiesRequest;
 import software.amazon.awssdk.services.comprehend.model.DetectPiiEntitiesResponse;
+import software.amazon.awssdk.services.comprehend.model.DocumentClass;
+import software.amazon.awssdk.services.comprehend.model.DocumentLabel;
+import software.amazon.awssdk.services.comprehend.model.DominantLanguage;
+import software.amazon.awssdk.services.comprehend.model.EndpointProperties;
 import software.amazon.awssdk.services.comprehend.model.Entity;
 import software.amazon.awssdk.services.comprehend.model.KeyPhrase;
 import software.amazon.awssdk.services.comprehend.model.PiiEntity;
 import software.amazon.awssdk.services.comprehend.model.SentimentScore;
+import software.amazon.awssdk.services.comprehend.model.SentimentType;
+import software.amazon.awssdk.services.comprehend.model.SyntaxToken;
+import software.amazon.awssdk.services.comprehend.model.TargetedSentimentEntity;
+import software.amazon.awssdk.services.comprehend.model.TargetedSentimentMention;
 import software.amazon.awssdk.services.comprehend.ComprehendClient;
+import software.amazon.awssdk.services.comprehend.ComprehendClientBuilder;
 
 import com.google.gson.Gson;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.VarCharVector;
 import org.apache.arrow.vector.complex.reader.FieldReader;
+import org.apache.arrow.vector.types.Types;
+import org.apache.arrow.vector.types.pojo.ArrowType;
 import org.apache.arrow.vector.types.pojo.Field;
 import org.apache.arrow.vector.types.pojo.Schema;
-import org.json.JSONArray;
-import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CoderResult;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.BreakIterator;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 public class TextAnalyticsUDFHandler extends UserDefinedFunctionHandler
 {
     private static final String SOURCE_TYPE = "athena_textanalytics_udf";
-    public static int maxTextBytes = 5000;  //utf8 bytes
-    public static int maxBatchSize = 25;
+    // distinct short output values kept encoded per block
+    private static final int OUTPUT_VALUE_CACHE_SIZE = 1024;
+    // custom model endpoints are described again after this long, to pick up a new model version or inference units
+    private static final long ENDPOINT_DESCRIBE_INTERVAL_MILLIS = 300000;
+    // the numbered token plus the single newline packedTextDelimiter puts on each side of it, so a text's own whitespace is kept
+    private static final Pattern PACKED_TEXT_DELIMITER = Pattern.compile("\\n?\\[\\[(\\d+)\\]\\]\\n?");
     
-    private TranslateClient translateClient;
-    private ComprehendClient comprehendClient;
-
-    private ClientOverrideConfiguration createClientOverrideConfiguration()
-    {
-        // delays in milliseconds
-        int retryBaseDelay = 500;
-        int retryMaxBackoffTime = 600000;
-        int maxRetries = 100;
-        int timeout = 600000;
-        RetryPolicy retryPolicy = RetryPolicy.defaultRetryPolicy().toBuilder()
-            .numRetries(maxRetries)
+    private final TextAnalyticsConfig config;
+    private ClientPool<TranslateClient> translatePool;
+    private ClientPool<ComprehendClient> comprehendPool;
+    private final List<CircuitBreakerInterceptor> circuitBreakers = new ArrayList<CircuitBreakerInterceptor>();
+    private RequestScheduler scheduler;
+    private ResultStore resultStore;
+    private UdfDispatcher dispatcher;
+    private RequestHedger hedger;
+    private BulkJobRunner bulkJobRunner;
+    private volatile InvocationDeadline deadline = InvocationDeadline.NONE;
+    private final ResultCache<List<PiiEntity>> piiEntitiesCache;
+    private final ResultCache<String> translateTextCache;
+    private final ResultCache<ClassifyDocumentResponse> classifyDocumentCache;
+    private final ResultCache<List<Entity>> customEntitiesCache;
+    private final Map<String, ComprehendEndpoint> endpoints = new HashMap<String, ComprehendEndpoint>();
+    private final SingleFlight singleFlight = new SingleFlight();
+    private final UsageMeter usageMeter;
+    // results of the asynchronous detection jobs run for the block being processed, keyed by API, language and text
+    private final Map<List<String>, Object> bulkResults = new ConcurrentHashMap<List<String>, Object>();
+    private final Map<String, AdaptiveBatchSizer> batchSizers = new LinkedHashMap<String, AdaptiveBatchSizer>();
+    private final AtomicLong packedTranslateRequests = new AtomicLong();
+    private final AtomicLong packedTranslateTexts = new AtomicLong();
+    private final AtomicLong packedTranslateBytes = new AtomicLong();
+    private final AtomicLong packedTranslateFallbacks = new AtomicLong();
+    // the most input characters held in memory for one window of rows, across the blocks processed by this handler
+    private final AtomicLong largestWindowInputChars = new AtomicLong();
+
+    private CircuitBreakerInterceptor createCircuitBreaker(String service)
+    {
+        return new CircuitBreakerInterceptor(service, this.config.getCircuitFailurePercent(), this.config.getCircuitMinRequests(), this.config.getCircuitOpenMillis());
+    }
+    private ClientOverrideConfiguration createClientOverrideConfiguration(double maxRequestsPerSecond, CircuitBreakerInterceptor circuitBreaker, boolean retryThrottling)
+    {
+        RetryPolicy.Builder retryPolicyBuilder = RetryPolicy.defaultRetryPolicy().toBuilder()
+            .numRetries(this.config.getMaxRetries())
             .backoffStrategy(EqualJitterBackoffStrategy.builder()
-                .baseDelay(Duration.ofMillis(retryBaseDelay))
-                .maxBackoffTime(Duration.ofMillis(retryMaxBackoffTime))
-                .build())
-            .build();
-        ClientOverrideConfiguration clientOverrideConfiguration = ClientOverrideConfiguration.builder()
-            .apiCallTimeout(Duration.ofMillis(timeout))
-            .apiCallAttemptTimeout(Duration.ofMillis(timeout))
+                .baseDelay(Duration.ofMillis(this.config.getRetryBaseDelayMillis()))
+                .maxBackoffTime(Duration.ofMillis(this.config.getRetryMaxBackoffMillis()))
+                .build());
+        if (! retryThrottling) {
+            RetryCondition retryCondition = RetryCondition.defaultRetryCondition();
+            retryPolicyBuilder.retryCondition(context -> ! RetryUtils.isThrottlingException(context.exception()) && retryCondition.shouldRetry(context));
+        }
+        RetryPolicy retryPolicy = retryPolicyBuilder.build();
+        ClientOverrideConfiguration.Builder clientOverrideConfigurationBuilder = ClientOverrideConfiguration.builder()
+            .apiCallTimeout(Duration.ofMillis(this.config.getApiCallTimeoutMillis()))
+            .apiCallAttemptTimeout(Duration.ofMillis(this.config.getApiCallAttemptTimeoutMillis()))
             .retryPolicy(retryPolicy)
+            .addExecutionInterceptor(new ThrottleFeedbackInterceptor())
+            .addExecutionInterceptor(circuitBreaker);
+        if (maxRequestsPerSecond > 0) {
+            clientOverrideConfigurationBuilder.addExecutionInterceptor(new RateLimitingInterceptor(maxRequestsPerSecond));
+        }
+        return clientOverrideConfigurationBuilder.build();
+    }
+    // per request timeouts, shortened as the invocation deadline nears so that retries stop before the Lambda times out
+    private AwsRequestOverrideConfiguration createRequestOverrideConfiguration(String operation)
+    {
+        this.deadline.check(operation);
+        Duration apiCallTimeout = this.deadline.apiCallTimeout(this.config.getApiCallTimeoutMillis());
+        Duration apiCallAttemptTimeout = this.deadline.apiCallTimeout(this.config.getApiCallAttemptTimeoutMillis());
+        return AwsRequestOverrideConfiguration.builder()
+            .apiCallTimeout(apiCallTimeout)
+            .apiCallAttemptTimeout(apiCallAttemptTimeout)
+            .putExecutionAttribute(CircuitBreakerInterceptor.INVOCATION_DEADLINE, this.deadline)
             .build();
-        return clientOverrideConfiguration;
     }
-    private ComprehendClient getComprehendClient() 
+    private ApacheHttpClient.Builder createHttpClientBuilder()
+    {
+        return ApacheHttpClient.builder()
+            .maxConnections(this.config.getMaxConnections());
+    }
+    // one client per endpoint in the list, or one client in the Lambda function's region if the list is empty
+    private <C> ClientPool<C> createClientPool(String service, String endpoints, double maxRequestsPerSecond, BiFunction<ClientPool.Endpoint, ClientOverrideConfiguration, C> clientFactory)
+    {
+        List<ClientPool.Endpoint> endpointList = ClientPool.parseEndpoints(endpoints);
+        if (endpointList.isEmpty()) {
+            endpointList.add(new ClientPool.Endpoint(new DefaultAwsRegionProviderChain().getRegion().id(), null, 1));
+        }
+        ClientPool.checkAllowedRegions(endpointList, this.config.getAllowedRegions());
+        // with several endpoints, a throttled request is sent to another endpoint by the pool, rather than retried by the client
+        boolean retryThrottling = endpointList.size() == 1;
+        ClientPool<C> pool = new ClientPool<C>(service, this.config.getClientPoolRouting(), this.config.getRetryBaseDelayMillis(), this.config.getRetryMaxBackoffMillis(), this.config.getMaxRetries());
+        for (ClientPool.Endpoint endpoint : endpointList) {
+            CircuitBreakerInterceptor circuitBreaker = createCircuitBreaker(retryThrottling ? service : service + " " + endpoint);
+            this.circuitBreakers.add(circuitBreaker);
+            pool.add(endpoint, clientFactory.apply(endpoint, createClientOverrideConfiguration(maxRequestsPerSecond, circuitBreaker, retryThrottling)), circuitBreaker);
+        }
+        return pool;
+    }
+    private synchronized ClientPool<ComprehendClient> getComprehendPool() 
     {
-        // create client first time on demand
-        if (this.comprehendClient == null) {
+        // create clients first time on demand
+        if (this.comprehendPool == null) {
             System.out.println("Creating Comprehend client connection");
-            this.comprehendClient = ComprehendClient.builder()
-                .overrideConfiguration(createClientOverrideConfiguration())
-                .build();
-            System.out.println("Created Comprehend client connection");
+            this.comprehendPool = createClientPool("Comprehend", this.config.getComprehendEndpoints(), this.config.getComprehendMaxRequestsPerSecond(), (endpoint, overrideConfiguration) -> {
+                ComprehendClientBuilder builder = ComprehendClient.builder()
+                    .httpClientBuilder(createHttpClientBuilder())
+                    .overrideConfiguration(overrideConfiguration)
+                    .region(Region.of(endpoint.getRegion()));
+                if (endpoint.getEndpointUrl() != null) {
+                    builder.endpointOverride(URI.create(endpoint.getEndpointUrl()));
+                }
+                return builder.build();
+            });
+            System.out.println("Created " + this.comprehendPool);
         }
-        return this.comprehendClient;
+        return this.comprehendPool;
     }
-    private TranslateClient getTranslateClient() 
+    private synchronized ClientPool<TranslateClient> getTranslatePool() 
     {
-        // create client first time on demand
-        if (this.translateClient == null) {
+        // create clients first time on demand
+        if (this.translatePool == null) {
             System.out.println("Creating Translate client connection");
-            this.translateClient = TranslateClient.builder()
-                .overrideConfiguration(createClientOverrideConfiguration())
-                .build();
-            System.out.println("Created Translate client connection");
+            this.translatePool = createClientPool("Translate", this.config.getTranslateEndpoints(), this.config.getTranslateMaxRequestsPerSecond(), (endpoint, overrideConfiguration) -> {
+                TranslateClientBuilder builder = TranslateClient.builder()
+                    .httpClientBuilder(createHttpClientBuilder())
+                    .overrideConfiguration(overrideConfiguration)
+                    .region(Region.of(endpoint.getRegion()));
+                if (endpoint.getEndpointUrl() != null) {
+                    builder.endpointOverride(URI.create(endpoint.getEndpointUrl()));
+                }
+                return builder.build();
+            });
+            System.out.println("Created " + this.translatePool);
+        }
+        return this.translatePool;
+    }
+    // batch sizes are adapted per API, as each has its own latency and quota
+    private synchronized AdaptiveBatchSizer getBatchSizer(String operation)
+    {
+        AdaptiveBatchSizer batchSizer = this.batchSizers.get(operation);
+        if (batchSizer == null) {
+            // multi-document batch APIs only - other APIs take one document per request
+            int maxDocuments = operation.startsWith("Batch") ? this.config.getMaxBatchSize() : 1;
+            batchSizer = new AdaptiveBatchSizer(operation, maxDocuments, this.config.getMaxTextBytes(), this.config.getAdaptiveTargetLatencyMillis());
+            this.batchSizers.put(operation, batchSizer);
+        }
+        return batchSizer;
+    }
+    private synchronized RequestScheduler getScheduler() 
+    {
+        // create scheduler first time on demand, shared by all requests made by this handler
+        if (this.scheduler == null) {
+            this.scheduler = new RequestScheduler(this.config.getMaxConcurrency(), this.config.getApiMaxConcurrency(), this.config.getMaxQueuedRequests());
+            System.out.println("Created " + this.scheduler);
+        }
+        return this.scheduler;
+    }
+
+    private synchronized ResultStore getResultStore()
+    {
+        // create store first time on demand - a file: endpoint is a local directory standing in for S3
+        if (this.resultStore == null) {
+            String endpoint = this.config.getSpillEndpoint();
+            this.resultStore = endpoint.startsWith("file:") ? LocalResultStore.fromUrl(endpoint) : new S3ResultStore(endpoint);
+        }
+        return this.resultStore;
+    }
+
+    private synchronized RequestHedger getHedger()
+    {
+        // create hedger first time on demand - with HEDGE_PERCENTILE 0 it makes each call once, on the caller's thread
+        if (this.hedger == null) {
+            this.hedger = new RequestHedger(this.config.getHedgePercentile(), this.config.getHedgeBudgetPercent());
+        }
+        return this.hedger;
+    }
+
+    private synchronized BulkJobRunner getBulkJobRunner()
+    {
+        // create job runner first time on demand - jobs run in the first region of the Comprehend client pool, which should be the bulk bucket's region
+        if (this.bulkJobRunner == null) {
+            this.bulkJobRunner = new BulkJobRunner(getComprehendPool().getClient(""), getResultStore(), this.config.getBulkBucket(), this.config.getBulkPrefix(),
+                this.config.getBulkRoleArn(), this.config.getBulkPollIntervalMillis());
+        }
+        return this.bulkJobRunner;
+    }
+
+    synchronized UdfDispatcher getDispatcher()
+    {
+        // create dispatch table first time on demand - each UDF is bound to its implementation when first called
+        if (this.dispatcher == null) {
+            this.dispatcher = new UdfDispatcher(this);
         }
-        return this.translateClient;
+        return this.dispatcher;
     }
 
     public TextAnalyticsUDFHandler()
+    {
+        this(TextAnalyticsConfig.fromEnvironment());
+    }
+
+    public TextAnalyticsUDFHandler(TextAnalyticsConfig config)
     {
         super(SOURCE_TYPE);
+        this.config = config;
+        this.piiEntitiesCache = new ResultCache<List<PiiEntity>>("DetectPiiEntities", config.getResultCacheSize());
+        this.translateTextCache = new ResultCache<String>("TranslateText", config.getResultCacheSize());
+        this.classifyDocumentCache = new ResultCache<ClassifyDocumentResponse>("ClassifyDocument", config.getResultCacheSize());
+        this.customEntitiesCache = new ResultCache<List<Entity>>("DetectCustomEntities", config.getResultCacheSize());
+        this.usageMeter = new UsageMeter(config.getQueryComprehendUnitBudget(), config.getQueryTranslateCharacterBudget());
+        System.out.println("Configuration: " + config);
+    }
+
+    /**
+     * Sets the deadline for the Lambda invocation about to be handled, from the Lambda Context's remaining time.
+     * Called by TextAnalyticsLambdaHandler.
+     */
+    void startInvocation(long remainingTimeMillis)
+    {
+        this.deadline = InvocationDeadline.fromRemainingTime(remainingTimeMillis, this.config.getDeadlineReserveMillis());
+    }
+
+    void endInvocation()
+    {
+        this.deadline = InvocationDeadline.NONE;
+        System.out.println("DEBUG: " + this.piiEntitiesCache + " | " + this.translateTextCache + " | " + this.classifyDocumentCache + " | " + this.customEntitiesCache);
+        System.out.println("DEBUG: " + this.singleFlight);
+        synchronized (this) {
+            if (this.scheduler != null) {
+                System.out.println("DEBUG: " + this.scheduler);
+            }
+            if (this.hedger != null && this.hedger.isEnabled()) {
+                System.out.println("DEBUG: " + this.hedger);
+            }
+            for (CircuitBreakerInterceptor circuitBreaker : this.circuitBreakers) {
+                System.out.println("DEBUG: " + circuitBreaker);
+            }
+            for (ClientPool<?> pool : new ClientPool<?>[] {this.comprehendPool, this.translatePool}) {
+                if (pool != null && pool.size() > 1) {
+                    System.out.println("DEBUG: " + pool);
+                }
+            }
+            for (AdaptiveBatchSizer batchSizer : this.batchSizers.values()) {
+                System.out.println("DEBUG: " + batchSizer);
+            }
+        }
     }
 
     /**
@@ -176,7 +433,8 @@ public class TextAnalyticsUDFHandler extends UserDefinedFunctionHandler
         String[] result = new String[rowCount];
         int rowNum = 0;
         boolean splitLongText = false; // truncate, don't split long text fields.
-        for (Object[] batch : getBatches(input, this.maxBatchSize, this.maxTextBytes, splitLongText)) {
+        AdaptiveBatchSizer batchSizer = getBatchSizer("BatchDetectDominantLanguage");
+        for (Object[] batch : getBatches(input, batchSizer.getDocumentsPerBatch(), this.config.getMaxTextBytes(), splitLongText)) {
             String[] textArray = (String[]) batch[0];
             String singleRowOrMultiRow = (String) batch[1];
             if (! singleRowOrMultiRow.equals("MULTI_ROW_BATCH")) {
@@ -184,16 +442,7 @@ public class TextAnalyticsUDFHandler extends UserDefinedFunctionHandler
             }
             System.out.println("DEBUG: Call comprehend BatchDetectDominantLanguage API - Split Batch => Records: " + textArray.length);
             // Call batchDetectDominantLanguage API
-            BatchDetectDominantLanguageRequest batchDetectDominantLanguageRequest = BatchDetectDominantLanguageRequest.builder()
-                    .textList(textArray)
-                    .build();
-            BatchDetectDominantLanguageResponse batchDetectDominantLanguageResponse = getComprehendClient().batchDetectDominantLanguage(batchDetectDominantLanguageRequest);
-            // Throw exception if errorList is populated
-            List<BatchItemError> batchItemError = batchDetectDominantLanguageResponse.errorList();
-            if (! batchItemError.isEmpty()) {
-                throw new RuntimeException("Error:  - ErrorList in batchDetectDominantLanguage result: " + batchItemError);
-            }
-            List<BatchDetectDominantLanguageItemResult> batchDetectDominantLanguageItemResult = batchDetectDominantLanguageResponse.resultList(); 
+            List<BatchDetectDominantLanguageItemResult> batchDetectDominantLanguageItemResult = callBatchDetectDominantLanguage(textArray);
             for (int i = 0; i < batchDetectDominantLanguageItemResult.size(); i++) {
                 if (fullResponse) {
                     // return JSON structure containing array of all detected languageCodes and scores
@@ -257,44 +506,58 @@ public class TextAnalyticsUDFHandler extends UserDefinedFunctionHandler
         int rowCount = input.length;
         String[] result = new String[rowCount];
         int rowNum = 0;
-        boolean splitLongText = false;  // truncate, don't split long text fields.
-        for (Object[] batch : getBatches(input, languageCodes, this.maxBatchSize, this.maxTextBytes, splitLongText)) {
+        // truncate long text fields, unless configured to split them and aggregate the sentiment of the segments
+        boolean splitLongText = this.config.isSentimentSplitLongText();
+        AdaptiveBatchSizer batchSizer = getBatchSizer("BatchDetectSentiment");
+        prefetchBulkResults("BatchDetectSentiment", input, languageCodes);
+        int maxTextBytes = splitLongText ? batchSizer.getSegmentBytes() : this.config.getMaxTextBytes();
+        for (Object[] batch : getBatches(input, languageCodes, batchSizer.getDocumentsPerBatch(), maxTextBytes, 0, splitLongText)) {
             String[] textArray = (String[]) batch[0];
             String singleRowOrMultiRow = (String) batch[1];
             String languageCode = (String) batch[2];
-            if (! singleRowOrMultiRow.equals("MULTI_ROW_BATCH")) {
-                throw new RuntimeException("Error:  - Expected multirow batches only (truncate, not split): " + singleRowOrMultiRow);
-            }
-            System.out.println("DEBUG: Call comprehend BatchDetectSentiment API - Batch => Language:" + languageCode + " Records: " + textArray.length);
-
-            // Call batchDetectSentiment API
-            BatchDetectSentimentRequest batchDetectSentimentRequest = BatchDetectSentimentRequest.builder()
-                .textList(textArray)
-                .languageCode(languageCode)
-                .build();
-            BatchDetectSentimentResponse batchDetectSentimentResponse = getComprehendClient().batchDetectSentiment(batchDetectSentimentRequest);
-            // Throw exception if errorList is populated
-            List<BatchItemError> batchItemError = batchDetectSentimentResponse.errorList();
-            if (! batchItemError.isEmpty()) {
-                throw new RuntimeException("Error:  - ErrorList in batchDetectSentiment result: " + batchItemError);
-            }
-            List<BatchDetectSentimentItemResult> batchDetectSentimentItemResult = batchDetectSentimentResponse.resultList(); 
-            for (int i = 0; i < batchDetectSentimentItemResult.size(); i++) {
-                if (fullResponse) {
-                    // return JSON structure containing array of all sentiments and scores
-                    String sentiment = batchDetectSentimentItemResult.get(i).sentiment().toString();
-                    SentimentScore sentimentScore = batchDetectSentimentItemResult.get(i).sentimentScore();
-                    result[rowNum] = "{\"sentiment\":" + toJSON(sentiment) + ",\"sentimentScore\":" + toJSON(sentimentScore) + "}";
-                }
-                else {
-                    // return simple string containing the main sentiment
-                    result[rowNum] = batchDetectSentimentItemResult.get(i).sentiment().toString();
+            System.out.println("DEBUG: Call comprehend BatchDetectSentiment API - Batch => " + singleRowOrMultiRow + " Language:" + languageCode + " Records: " + textArray.length);
+            if (singleRowOrMultiRow.equals("MULTI_ROW_BATCH")) {
+                // Call batchDetectSentiment API
+                List<BatchDetectSentimentItemResult> batchDetectSentimentItemResult = callBatchDetectSentiment(languageCode, textArray);
+                for (int i = 0; i < batchDetectSentimentItemResult.size(); i++) {
+                    result[rowNum++] = formatSentiment(batchDetectSentimentItemResult.get(i).sentiment(), batchDetectSentimentItemResult.get(i).sentimentScore(), fullResponse);
                 }
-                rowNum++;
-            }                
+            }
+            else {
+                // batchArray represents single output row (text split)
+                SentimentAggregator aggregator = TextSplitBatchDetectSentiment(languageCode, (TextSegment[]) batch[3]);
+                result[rowNum++] = formatSentiment(aggregator.getSentiment(), aggregator.getSentimentScore(), fullResponse);
+            }
         }
         return result;
     }
+    private static String formatSentiment(SentimentType sentiment, SentimentScore sentimentScore, boolean fullResponse)
+    {
+        if (fullResponse) {
+            // return JSON structure containing array of all sentiments and scores
+            return "{\"sentiment\":" + toJSON(sentiment.toString()) + ",\"sentimentScore\":" + toJSON(sentimentScore) + "}";
+        }
+        // return simple string containing the main sentiment
+        return sentiment.toString();
+    }
+    // detects the sentiment of the segments of a long text, sending the batches of segments concurrently, and combines them
+    private SentimentAggregator TextSplitBatchDetectSentiment(String languageCode, TextSegment[] segments) throws Exception
+    {
+        AdaptiveBatchSizer batchSizer = getBatchSizer("BatchDetectSentiment");
+        List<Future<List<BatchDetectSentimentItemResult>>> futures = new ArrayList<Future<List<BatchDetectSentimentItemResult>>>();
+        for (Object[] batch : getBatches(TextSegment.texts(segments), batchSizer.getDocumentsPerBatch())) {
+            String[] textArray = (String[]) batch[0];
+            futures.add(getScheduler().submit("BatchDetectSentiment", () -> callBatchDetectSentiment(languageCode, textArray)));
+        }
+        SentimentAggregator aggregator = new SentimentAggregator();
+        int segmentNum = 0;
+        for (Future<List<BatchDetectSentimentItemResult>> future : futures) {
+            for (BatchDetectSentimentItemResult itemResult : getFutureResult(future)) {
+                aggregator.add(itemResult.sentimentScore(), getUtf8StringLength(segments[segmentNum++].getText()));
+            }
+        }
+        return aggregator;
+    }
 
     /**
      * DETECT ENTITIES
@@ -364,50 +627,39 @@ public class TextAnalyticsUDFHandler extends UserDefinedFunctionHandler
         int rowCount = input.length;
         String[] result = new String[rowCount];
         int rowNum = 0;
+        // the redact types are parsed once per run of rows with the same value - usually a single run, for a literal like 'ALL'
+        ColumnRuns<RedactTypes> redactRuns = (redactTypesArray.length > 0) ? ColumnRuns.of(redactTypesArray).map(RedactTypes::parse) : null;
         boolean splitLongText = true; // split long text fields, don't truncate.
-        for (Object[] batch : getBatches(input, languageCodes, this.maxBatchSize, this.maxTextBytes, splitLongText)) {
+        AdaptiveBatchSizer batchSizer = getBatchSizer("BatchDetectEntities");
+        prefetchBulkResults("BatchDetectEntities", input, languageCodes);
+        for (Object[] batch : getBatches(input, languageCodes, batchSizer.getDocumentsPerBatch(), batchSizer.getSegmentBytes(), this.config.getSplitOverlapBytes(), splitLongText)) {
             String[] textArray = (String[]) batch[0];
             String singleRowOrMultiRow = (String) batch[1];
             String languageCode = (String) batch[2];
             System.out.println("DEBUG: Call comprehend BatchDetectEntities API - Batch => " + singleRowOrMultiRow + " Language:" + languageCode + " Records: " + textArray.length);
             if (singleRowOrMultiRow.equals("MULTI_ROW_BATCH")) {
                 // batchArray represents multiple output rows, one element per output row
-                int r1 = (redactTypesArray.length > 0) ? rowNum : 0;
-                int r2 = (redactTypesArray.length > 0) ? rowNum + textArray.length : 0;
-                String[] redactTypesArraySubset = Arrays.copyOfRange(redactTypesArray, r1, r2);
-                String[] multiRowResults = MultiRowBatchDetectEntities(languageCode, textArray, redactTypesArraySubset, fullResponse);
+                String[] multiRowResults = MultiRowBatchDetectEntities(languageCode, textArray, redactRuns, rowNum, fullResponse);
                 for (int i = 0; i < multiRowResults.length; i++) {
                     result[rowNum++] = multiRowResults[i];
                 }
             }
             else {
                 // batchArray represents single output row (text split)
-                String redactTypes = (redactTypesArray.length > 0) ? redactTypesArray[rowNum] : "";
-                String singleRowResults = TextSplitBatchDetectEntities(languageCode, textArray, redactTypes, fullResponse);
+                RedactTypes redactTypes = (redactRuns != null) ? redactRuns.get(rowNum) : null;
+                String singleRowResults = TextSplitBatchDetectEntities(languageCode, input[rowNum], (TextSegment[]) batch[3], redactTypes, fullResponse);
                 result[rowNum++] = singleRowResults;
             }
         }
         return result;
     }
 
-    private String[] MultiRowBatchDetectEntities(String languageCode, String[] batch, String[] redactTypes, boolean fullResponse) throws Exception
+    // redactRuns holds the parsed types to redact for each row of the input, starting at firstRow for this batch - or null for no redaction
+    private String[] MultiRowBatchDetectEntities(String languageCode, String[] batch, ColumnRuns<RedactTypes> redactRuns, int firstRow, boolean fullResponse) throws Exception
     {
         String[] result = new String[batch.length];
         // Call batchDetectEntities API
-        BatchDetectEntitiesRequest batchDetectEntitiesRequest = BatchDetectEntitiesRequest.builder()
-            .textList(batch)
-            .languageCode(languageCode)
-            .build();
-        BatchDetectEntitiesResponse batchDetectEntitiesResponse = getComprehendClient().batchDetectEntities(batchDetectEntitiesRequest);
-        // Throw exception if errorList is populated
-        List<BatchItemError> batchItemError = batchDetectEntitiesResponse.errorList();
-        if (! batchItemError.isEmpty()) {
-            throw new RuntimeException("Error:  - ErrorList in batchDetectEntities result: " + batchItemError);
-        }
-        List<BatchDetectEntitiesItemResult> batchDetectEntitiesItemResult = batchDetectEntitiesResponse.resultList(); 
-        if (batchDetectEntitiesItemResult.size() != batch.length) {
-            throw new RuntimeException("Error:  - batch size and result item count do not match");
-        }
+        List<BatchDetectEntitiesItemResult> batchDetectEntitiesItemResult = callBatchDetectEntities(languageCode, batch);
         for (int i = 0; i < batchDetectEntitiesItemResult.size(); i++) {
             List<Entity> entities = batchDetectEntitiesItemResult.get(i).entities();
             if (fullResponse) {
@@ -415,77 +667,36 @@ public class TextAnalyticsUDFHandler extends UserDefinedFunctionHandler
                 result[i] = this.toJSON(entities);
             }
             else {
-                if (redactTypes.length == 0) {
+                if (redactRuns == null) {
                     // no redaction - return JSON string containing the entity types and extracted values
                     result[i] = getEntityTypesAndValues(entities);                      
                 }
                 else {
                     // redaction - return input string with specified entity types redacted
-                    result[i] = redactEntityTypes(entities, batch[i], redactTypes[i]); 
+                    result[i] = redactEntityTypes(entities, batch[i], redactRuns.get(firstRow + i));
                 }
             }
         }
         return result;
     }
-    private String TextSplitBatchDetectEntities(String languageCode, String[] input, String redactTypes, boolean fullResponse) throws Exception
+    private String TextSplitBatchDetectEntities(String languageCode, String text, TextSegment[] segments, RedactTypes redactTypes, boolean fullResponse) throws Exception
     {
-        String[] result = new String[input.length];
-        int[] offset = new int[input.length];
-        int rowNum = 0;
-        // TODO: If batch length is more than max batch size, split into smaller batches and iterate
-        for (Object[] batch : getBatches(input, this.maxBatchSize)) {
+        SpanMerger spanMerger = new SpanMerger();
+        AdaptiveBatchSizer batchSizer = getBatchSizer("BatchDetectEntities");
+        int segmentNum = 0;
+        for (Object[] batch : getBatches(TextSegment.texts(segments), batchSizer.getDocumentsPerBatch())) {
             String[] textArray = (String[]) batch[0];
             // Call batchDetectEntities API
-            BatchDetectEntitiesRequest batchDetectEntitiesRequest = BatchDetectEntitiesRequest.builder()
-                .textList(textArray)
-                .languageCode(languageCode)
-                .build();
-            BatchDetectEntitiesResponse batchDetectEntitiesResponse = getComprehendClient().batchDetectEntities(batchDetectEntitiesRequest);
-            // Throw exception if errorList is populated
-            List<BatchItemError> batchItemError = batchDetectEntitiesResponse.errorList();
-            if (! batchItemError.isEmpty()) {
-                throw new RuntimeException("Error:  - ErrorList in batchDetectEntities result: " + batchItemError);
-            }
-            List<BatchDetectEntitiesItemResult> batchDetectEntitiesItemResult = batchDetectEntitiesResponse.resultList(); 
-            if (batchDetectEntitiesItemResult.size() != textArray.length) {
-                throw new RuntimeException("Error:  - array size " + textArray.length + " and result item count " + batchDetectEntitiesItemResult.size() + " do not match");
-            }
-            int cumOffset = 0;
+            List<BatchDetectEntitiesItemResult> batchDetectEntitiesItemResult = callBatchDetectEntities(languageCode, textArray);
             for (int i = 0; i < batchDetectEntitiesItemResult.size(); i++) {
-                List<Entity> entities = batchDetectEntitiesItemResult.get(i).entities();
-                if (fullResponse) {
-                    // return JSON structure containing all entity types, scores and offsets
-                    result[rowNum] = this.toJSON(entities);
+                int segmentOffset = segments[segmentNum++].getCodePointOffset();
+                for (Entity entity : batchDetectEntitiesItemResult.get(i).entities()) {
+                    spanMerger.add(entity.type().toString(), entity.text(), entity.score(), entity.beginOffset(), entity.endOffset(), segmentOffset);
                 }
-                else {
-                    if (redactTypes.equals("")) {
-                        // no redaction - return JSON string containing the entity types and extracted values
-                        result[rowNum] = getEntityTypesAndValues(entities);                      
-                    }
-                    else {
-                        // redaction - return input string with specified entity types redacted
-                        result[rowNum] = redactEntityTypes(entities, textArray[i], redactTypes); 
-                    }
-                }
-                offset[rowNum] = cumOffset;
-                cumOffset += textArray[i].length();
-                rowNum++;
             }
         }
         // merge results to single output row
-        String mergedResult;
-        if (fullResponse) {
-            mergedResult = mergeEntitiesAll(result, offset);
-        }
-        else {
-            if (redactTypes.equals("")) {
-                mergedResult = mergeEntities(result);
-            }
-            else {
-                mergedResult = mergeText(result);
-            }
-        }
-        return mergedResult;
+        return mergeSpans(spanMerger.merge(), text, redactTypes, fullResponse);
     }   
     private String getEntityTypesAndValues(List<Entity> entities) throws Exception
     {
@@ -498,19 +709,18 @@ public class TextAnalyticsUDFHandler extends UserDefinedFunctionHandler
         String resultjson = toJSON(typesAndValues);
         return resultjson;
     }
-    private String redactEntityTypes(List<Entity> entities, String text, String redactTypes) throws Exception
+    private String redactEntityTypes(List<Entity> entities, String text, RedactTypes redactTypes) throws Exception
     {
-        // redactTypes contains comma or space separated list of types, e.g. "NAME, ADDRESS"
-        List<String> redactTypeList = Arrays.asList(redactTypes.split("[\\s,]+")); 
         String result = text;
+        OffsetIndex offsetIndex = new OffsetIndex(text);
         int deltaLength = 0;
         for (Entity entity : entities) {
             String type = entity.type().toString();
-            if (redactTypes.contains(type) || redactTypes.contains("ALL")) {
+            if (redactTypes.matches(type)) {
                 // this is a PII type we need to redact
                 // Offset logic assumes piiEntity list is ordered by occurance in string
-                int start = entity.beginOffset() + deltaLength;
-                int end = entity.endOffset() + deltaLength;
+                int start = offsetIndex.toCharIndex(entity.beginOffset()) + deltaLength;
+                int end = offsetIndex.toCharIndex(entity.endOffset()) + deltaLength;
                 int length1 = result.length(); 
                 result = new String(result.substring(0, start) + "[" + type + "]" + result.substring(end));
                 deltaLength = deltaLength + (result.length() - length1);
@@ -586,128 +796,132 @@ public class TextAnalyticsUDFHandler extends UserDefinedFunctionHandler
         int rowCount = input.length;
         String[] result = new String[rowCount];
         int rowNum = 0;
+        // the redact types are parsed once per run of rows with the same value - usually a single run, for a literal like 'ALL'
+        ColumnRuns<RedactTypes> redactRuns = (redactTypesArray.length > 0) ? ColumnRuns.of(redactTypesArray).map(RedactTypes::parse) : null;
         boolean splitLongText = true; // split long text fields, don't truncate.
-        for (Object[] batch : getBatches(input, languageCodes, this.maxBatchSize, this.maxTextBytes, splitLongText)) {
+        AdaptiveBatchSizer batchSizer = getBatchSizer("DetectPiiEntities");
+        prefetchBulkResults("DetectPiiEntities", input, languageCodes);
+        for (Object[] batch : getBatches(input, languageCodes, this.config.getMaxBatchSize(), batchSizer.getSegmentBytes(), this.config.getSplitOverlapBytes(), splitLongText)) {
             String[] textArray = (String[]) batch[0];
             String singleRowOrMultiRow = (String) batch[1];
             String languageCode = (String) batch[2];
             System.out.println("DEBUG: Call comprehend DetectPiiEntities API - Batch => Language:" + languageCode + " Records: " + textArray.length);
             if (singleRowOrMultiRow.equals("MULTI_ROW_BATCH")) {
                 // batchArray represents multiple output rows, one element per output row
-                int r1 = (redactTypesArray.length > 0) ? rowNum : 0;
-                int r2 = (redactTypesArray.length > 0) ? rowNum + textArray.length : 0;
-                String[] redactTypesArraySubset = Arrays.copyOfRange(redactTypesArray, r1, r2);
-                String[] multiRowResults = MultiRowBatchDetectPiiEntities(languageCode, textArray, redactTypesArraySubset, fullResponse);
+                String[] multiRowResults = MultiRowBatchDetectPiiEntities(languageCode, textArray, redactRuns, rowNum, fullResponse);
                 for (int i = 0; i < multiRowResults.length; i++) {
                     result[rowNum++] = multiRowResults[i];
                 }
             }
             else {
                 // batchArray represents single output row (long text split)
-                String redactTypes = (redactTypesArray.length > 0) ? redactTypesArray[rowNum] : "";
-                String singleRowResults = TextSplitBatchDetectPiiEntities(languageCode, textArray, redactTypes, fullResponse);
+                RedactTypes redactTypes = (redactRuns != null) ? redactRuns.get(rowNum) : null;
+                String singleRowResults = TextSplitBatchDetectPiiEntities(languageCode, input[rowNum], (TextSegment[]) batch[3], redactTypes, fullResponse);
                 result[rowNum++] = singleRowResults;
             }
         }
         return result;
     }
-    private String[] MultiRowBatchDetectPiiEntities(String languageCode, String[] batch, String[] redactTypes, boolean fullResponse) throws Exception
+    // redactRuns holds the parsed types to redact for each row of the input, starting at firstRow for this batch - or null for no redaction
+    private String[] MultiRowBatchDetectPiiEntities(String languageCode, String[] batch, ColumnRuns<RedactTypes> redactRuns, int firstRow, boolean fullResponse) throws Exception
     {
         String[] result = new String[batch.length];
-        // Call detectPiiEntities API in loop  (no multidocument batch API available)
+        List<List<PiiEntity>> batchPiiEntities = detectPiiEntities(languageCode, batch);
         for (int i = 0; i < batch.length; i++) {
-            DetectPiiEntitiesRequest detectPiiEntitiesRequest = DetectPiiEntitiesRequest.builder()
-                .text(batch[i])
-                .languageCode(languageCode)
-                .build();
-            DetectPiiEntitiesResponse detectPiiEntitiesResponse = getComprehendClient().detectPiiEntities(detectPiiEntitiesRequest);
-            List<PiiEntity> piiEntities = detectPiiEntitiesResponse.entities(); 
+            List<PiiEntity> piiEntities = batchPiiEntities.get(i);
             if (fullResponse) {
                 // return JSON structure containing all entity types, scores and offsets
                 result[i] = this.toJSON(piiEntities);
             }
             else {
-                if (redactTypes.length == 0) {
+                if (redactRuns == null) {
                     // no redaction - return JSON string containing the entity types and extracted values
                     result[i] = getPiiEntityTypesAndValues(piiEntities, batch[i]);                      
                 }
                 else {
                     // redaction - return input string with specified PII types redacted
-                    result[i] = redactPiiEntityTypes(piiEntities, batch[i], redactTypes[i]); 
+                    result[i] = redactPiiEntityTypes(piiEntities, batch[i], redactRuns.get(firstRow + i));
                 }
             }            
         }
         return result;
     }
-    private String TextSplitBatchDetectPiiEntities(String languageCode, String[] batch, String redactTypes, boolean fullResponse) throws Exception
+    private String TextSplitBatchDetectPiiEntities(String languageCode, String text, TextSegment[] segments, RedactTypes redactTypes, boolean fullResponse) throws Exception
     {
-        String[] result = new String[batch.length];
-        int[] offset = new int[batch.length];
-        // Call detectPiiEntities API in loop  (no multidocument batch API available)
-        int cumOffset = 0;
-        for (int i = 0; i < batch.length; i++) {
-            DetectPiiEntitiesRequest detectPiiEntitiesRequest = DetectPiiEntitiesRequest.builder()
-                .text(batch[i])
-                .languageCode(languageCode)
-                .build();
-            DetectPiiEntitiesResponse detectPiiEntitiesResponse = getComprehendClient().detectPiiEntities(detectPiiEntitiesRequest);
-            List<PiiEntity> piiEntities = detectPiiEntitiesResponse.entities();
-            if (fullResponse) {
-                // return JSON structure containing all entity types, scores and offsets
-                result[i] = this.toJSON(piiEntities);
+        SpanMerger spanMerger = new SpanMerger();
+        List<List<PiiEntity>> batchPiiEntities = detectPiiEntities(languageCode, TextSegment.texts(segments));
+        for (int i = 0; i < segments.length; i++) {
+            for (PiiEntity piiEntity : batchPiiEntities.get(i)) {
+                spanMerger.add(piiEntity.type().toString(), null, piiEntity.score(), piiEntity.beginOffset(), piiEntity.endOffset(), segments[i].getCodePointOffset());
             }
-            else {
-                if (redactTypes.equals("")) {
-                    // no redaction - return JSON string containing the entity types and extracted values
-                    result[i] = getPiiEntityTypesAndValues(piiEntities, batch[i]);                      
-                }
-                else {
-                    // redaction - return input string with specified PII types redacted
-                    result[i] = redactPiiEntityTypes(piiEntities, batch[i], redactTypes); 
-                }
-            } 
-            offset[i] = cumOffset;
-            cumOffset += batch[i].length();
         }
         // merge results to single output row
-        String mergedResult;
-        if (fullResponse) {
-            mergedResult = mergeEntitiesAll(result, offset);
+        return mergeSpans(spanMerger.merge(), text, redactTypes, fullResponse);
+    }   
+    // Call detectPiiEntities API for each text concurrently (no multidocument batch API available)
+    private List<List<PiiEntity>> detectPiiEntities(String languageCode, String[] batch) throws Exception
+    {
+        List<Future<List<PiiEntity>>> futures = new ArrayList<Future<List<PiiEntity>>>();
+        for (String text : batch) {
+            futures.add(getScheduler().submit("DetectPiiEntities", () -> detectPiiEntities(languageCode, text)));
         }
-        else {
-            if (redactTypes.equals("")) {
-                mergedResult = mergeEntities(result);
-            }
-            else {
-                mergedResult = mergeText(result);
-            }
+        List<List<PiiEntity>> result = new ArrayList<List<PiiEntity>>();
+        for (Future<List<PiiEntity>> future : futures) {
+            result.add(getFutureResult(future));
         }
-        return mergedResult;
-    }   
+        return result;
+    }
+    private List<PiiEntity> detectPiiEntities(String languageCode, String text) throws Exception
+    {
+        // reuse results completed by an earlier (e.g. timed out) invocation for the same text
+        List<String> cacheKey = Arrays.asList(languageCode, text);
+        List<List<PiiEntity>> bulkPiiEntities = getBulkResults("DetectPiiEntities", languageCode, new String[] {text});
+        List<PiiEntity> piiEntities = (bulkPiiEntities != null) ? bulkPiiEntities.get(0) : this.piiEntitiesCache.get(cacheKey);
+        if (piiEntities == null) {
+            DetectPiiEntitiesRequest detectPiiEntitiesRequest = DetectPiiEntitiesRequest.builder()
+                .text(text)
+                .languageCode(languageCode)
+                .overrideConfiguration(createRequestOverrideConfiguration("DetectPiiEntities"))
+                .build();
+            // each hedged request is billed, so is charged - and is measured on the thread that makes it, which is the thread that sees its throttles
+            DetectPiiEntitiesResponse detectPiiEntitiesResponse = this.singleFlight.call("DetectPiiEntities", languageCode, "", new String[] {text},
+                () -> getHedger().call("DetectPiiEntities", () -> {
+                    this.usageMeter.chargeComprehend("DetectPiiEntities", text);
+                    long throttledAttempts = AdaptiveBatchSizer.getThrottledAttempts();
+                    long startNanos = System.nanoTime();
+                    DetectPiiEntitiesResponse response = getComprehendPool().call("DetectPiiEntities", client -> client.detectPiiEntities(detectPiiEntitiesRequest));
+                    getBatchSizer("DetectPiiEntities").recordRequest(1, getUtf8StringLength(text), System.nanoTime() - startNanos, AdaptiveBatchSizer.getThrottledAttempts() - throttledAttempts);
+                    return response;
+                }));
+            piiEntities = detectPiiEntitiesResponse.entities();
+            this.piiEntitiesCache.put(cacheKey, piiEntities);
+        }
+        return piiEntities;
+    }
     private String getPiiEntityTypesAndValues(List<PiiEntity> piiEntities, String text) throws Exception
     {
         List<String[]> typesAndValues = new ArrayList<String[]>();
+        OffsetIndex offsetIndex = new OffsetIndex(text);
         for (PiiEntity piiEntity : piiEntities) {
             String type = piiEntity.type().toString();
-            String value = text.substring(piiEntity.beginOffset(), piiEntity.endOffset());
+            String value = offsetIndex.substring(piiEntity.beginOffset(), piiEntity.endOffset());
             typesAndValues.add(new String[]{type, value});
         }
         String resultjson = toJSON(typesAndValues);
         return resultjson;
     }
-    private String redactPiiEntityTypes(List<PiiEntity> piiEntities, String text, String redactTypes) throws Exception
+    private String redactPiiEntityTypes(List<PiiEntity> piiEntities, String text, RedactTypes redactTypes) throws Exception
     {
-        // redactTypes contains comma or space separated list of types, e.g. "NAME, ADDRESS"
-        List<String> redactTypeList = Arrays.asList(redactTypes.split("[\\s,]+")); 
         String result = text;
+        OffsetIndex offsetIndex = new OffsetIndex(text);
         int deltaLength = 0;
         for (PiiEntity piiEntity : piiEntities) {
             String type = piiEntity.type().toString();
-            if (redactTypes.contains(type) || redactTypes.contains("ALL")) {
+            if (redactTypes.matches(type)) {
                 // this is a PII type we need to redact
                 // Offset logic assumes piiEntity list is ordered by occurance in string
-                int start = piiEntity.beginOffset() + deltaLength;
-                int end = piiEntity.endOffset() + deltaLength;
+                int start = offsetIndex.toCharIndex(piiEntity.beginOffset()) + deltaLength;
+                int end = offsetIndex.toCharIndex(piiEntity.endOffset()) + deltaLength;
                 int length1 = result.length(); 
                 result = new String(result.substring(0, start) + "[" + type + "]" + result.substring(end));
                 deltaLength = deltaLength + (result.length() - length1);
@@ -766,7 +980,9 @@ public class TextAnalyticsUDFHandler extends UserDefinedFunctionHandler
         String[] result = new String[rowCount];
         int rowNum = 0;
         boolean splitLongText = true; // split long text fields, don't truncate.
-        for (Object[] batch : getBatches(input, languageCodes, this.maxBatchSize, this.maxTextBytes, splitLongText)) {
+        AdaptiveBatchSizer batchSizer = getBatchSizer("BatchDetectKeyPhrases");
+        prefetchBulkResults("BatchDetectKeyPhrases", input, languageCodes);
+        for (Object[] batch : getBatches(input, languageCodes, batchSizer.getDocumentsPerBatch(), batchSizer.getSegmentBytes(), this.config.getSplitOverlapBytes(), splitLongText)) {
             String[] textArray = (String[]) batch[0];
             String singleRowOrMultiRow = (String) batch[1];
             String languageCode = (String) batch[2];
@@ -780,7 +996,7 @@ public class TextAnalyticsUDFHandler extends UserDefinedFunctionHandler
             }
             else {
                 // batchArray represents single output row (text split)
-                String singleRowResults = TextSplitBatchDetectKeyPhrases(languageCode, textArray, fullResponse);
+                String singleRowResults = TextSplitBatchDetectKeyPhrases(languageCode, input[rowNum], (TextSegment[]) batch[3], fullResponse);
                 result[rowNum++] = singleRowResults;
             }
         }
@@ -791,20 +1007,7 @@ public class TextAnalyticsUDFHandler extends UserDefinedFunctionHandler
     {
         String[] result = new String[batch.length];
         // Call batchDetectKeyPhrases API
-        BatchDetectKeyPhrasesRequest batchDetectKeyPhrasesRequest = BatchDetectKeyPhrasesRequest.builder()
-            .textList(batch)
-            .languageCode(languageCode)
-            .build();
-        BatchDetectKeyPhrasesResponse batchDetectKeyPhrasesResponse = getComprehendClient().batchDetectKeyPhrases(batchDetectKeyPhrasesRequest);
-        // Throw exception if errorList is populated
-        List<BatchItemError> batchItemError = batchDetectKeyPhrasesResponse.errorList();
-        if (! batchItemError.isEmpty()) {
-            throw new RuntimeException("Error:  - ErrorList in batchDetectKeyPhrases result: " + batchItemError);
-        }
-        List<BatchDetectKeyPhrasesItemResult> batchDetectKeyPhrasesItemResult = batchDetectKeyPhrasesResponse.resultList(); 
-        if (batchDetectKeyPhrasesItemResult.size() != batch.length) {
-            throw new RuntimeException("Error:  - batch size and result item count do not match");
-        }
+        List<BatchDetectKeyPhrasesItemResult> batchDetectKeyPhrasesItemResult = callBatchDetectKeyPhrases(languageCode, batch);
         for (int i = 0; i < batchDetectKeyPhrasesItemResult.size(); i++) {
             List<KeyPhrase> keyPhrases = batchDetectKeyPhrasesItemResult.get(i).keyPhrases();
             if (fullResponse) {
@@ -817,53 +1020,24 @@ public class TextAnalyticsUDFHandler extends UserDefinedFunctionHandler
         }
         return result;
     }
-    private String TextSplitBatchDetectKeyPhrases(String languageCode, String[] input, boolean fullResponse) throws Exception
+    private String TextSplitBatchDetectKeyPhrases(String languageCode, String text, TextSegment[] segments, boolean fullResponse) throws Exception
     {
-        String[] result = new String[input.length];
-        int[] offset = new int[input.length];
-        int rowNum = 0;
-        // TODO: If batch length is more than max batch size, split into smaller batches and iterate
-        for (Object[] batch : getBatches(input, this.maxBatchSize)) {
+        SpanMerger spanMerger = new SpanMerger();
+        AdaptiveBatchSizer batchSizer = getBatchSizer("BatchDetectKeyPhrases");
+        int segmentNum = 0;
+        for (Object[] batch : getBatches(TextSegment.texts(segments), batchSizer.getDocumentsPerBatch())) {
             String[] textArray = (String[]) batch[0];
-            // Call batchDetectEntities API
-            BatchDetectKeyPhrasesRequest batchDetectKeyPhrasesRequest = BatchDetectKeyPhrasesRequest.builder()
-                .textList(textArray)
-                .languageCode(languageCode)
-                .build();
-            BatchDetectKeyPhrasesResponse batchDetectKeyPhrasesResponse = getComprehendClient().batchDetectKeyPhrases(batchDetectKeyPhrasesRequest);
-            // Throw exception if errorList is populated
-            List<BatchItemError> batchItemError = batchDetectKeyPhrasesResponse.errorList();
-            if (! batchItemError.isEmpty()) {
-                throw new RuntimeException("Error:  - ErrorList in batchDetectKeyPhrases result: " + batchItemError);
-            }
-            List<BatchDetectKeyPhrasesItemResult> batchDetectKeyPhrasesItemResult = batchDetectKeyPhrasesResponse.resultList(); 
-            if (batchDetectKeyPhrasesItemResult.size() != textArray.length) {
-                throw new RuntimeException("Error:  - array size " + textArray.length + " and result item count " + batchDetectKeyPhrasesItemResult.size() + " do not match");
-            }
-            int cumOffset = 0;
+            // Call batchDetectKeyPhrases API
+            List<BatchDetectKeyPhrasesItemResult> batchDetectKeyPhrasesItemResult = callBatchDetectKeyPhrases(languageCode, textArray);
             for (int i = 0; i < batchDetectKeyPhrasesItemResult.size(); i++) {
-                List<KeyPhrase> keyPhrases = batchDetectKeyPhrasesItemResult.get(i).keyPhrases();
-                if (fullResponse) {
-                    // return JSON structure containing all entity types, scores and offsets
-                    result[rowNum] = this.toJSON(keyPhrases);
-                }
-                else {
-                    result[rowNum] = getKeyPhraseValues(keyPhrases);                      
+                int segmentOffset = segments[segmentNum++].getCodePointOffset();
+                for (KeyPhrase keyPhrase : batchDetectKeyPhrasesItemResult.get(i).keyPhrases()) {
+                    spanMerger.add(null, keyPhrase.text(), keyPhrase.score(), keyPhrase.beginOffset(), keyPhrase.endOffset(), segmentOffset);
                 }
-                offset[rowNum] = cumOffset;
-                cumOffset += textArray[i].length();
-                rowNum++;
             }
         }
         // merge results to single output row
-        String mergedResult;
-        if (fullResponse) {
-            mergedResult = mergeEntitiesAll(result, offset);
-        }
-        else {
-            mergedResult = mergeEntities(result);
-        }
-        return mergedResult;
+        return mergeSpans(spanMerger.merge(), text, null, fullResponse);
     }   
     private String getKeyPhraseValues(List<KeyPhrase> keyPhrases) throws Exception
     {
@@ -876,515 +1050,3235 @@ public class TextAnalyticsUDFHandler extends UserDefinedFunctionHandler
     }
 
     /**
-     * TRANSLATE TEXT
-     */
+     * DETECT TARGETED SENTIMENT / SYNTAX
+     * ==================================
+     * Long text is split into segments that do not overlap, and the items found in each segment are appended to the
+     * result for the row, with offsets relative to the whole text.
+     **/
 
     /**
-     * method accepting and return JSON String paramater types, used by Athena UDF wrapper
+     * methods accepting and return JSON String paramater types, used by Athena UDF wrapper
      **/
-    public String translate_text(String inputjson, String sourcelanguagejson, String targetlanguagejson, String terminologynamesjson) throws Exception
+    public String detect_targeted_sentiment(String inputjson, String languagejson) throws Exception
     {
         String[] input = fromJSON(inputjson);
-        String[] sourceLanguageCodes = fromJSON(sourcelanguagejson);
-        String[] targetLanguageCodes = fromJSON(targetlanguagejson);
-        String[] terminologyNames = fromJSON(terminologynamesjson);
-        return toJSON(translate_text(input, sourceLanguageCodes, targetLanguageCodes, terminologyNames));
+        String[] languageCodes = fromJSON(languagejson);
+        return toJSON(detect_targeted_sentiment(input, languageCodes));
+    }
+    public String detect_targeted_sentiment_all(String inputjson, String languagejson) throws Exception
+    {
+        String[] input = fromJSON(inputjson);
+        String[] languageCodes = fromJSON(languagejson);
+        return toJSON(detect_targeted_sentiment_all(input, languageCodes));
+    }
+    public String detect_syntax(String inputjson, String languagejson) throws Exception
+    {
+        String[] input = fromJSON(inputjson);
+        String[] languageCodes = fromJSON(languagejson);
+        return toJSON(detect_syntax(input, languageCodes));
+    }
+    public String detect_syntax_all(String inputjson, String languagejson) throws Exception
+    {
+        String[] input = fromJSON(inputjson);
+        String[] languageCodes = fromJSON(languagejson);
+        return toJSON(detect_syntax_all(input, languageCodes));
     }
 
     /**
-    * Given an array of input strings, source language, target language, and optional terminology names, returns an array of translated strings
+    * Given an array of input strings returns an array of nested arrays representing the sentiment of each mention of an entity in each input string
     * @param    input    an array of input strings
-    * @param    sourceLanguageCodes an array of source language codes corresponding to each input string (source lang can be 'auto' if source language is unknown)
-    * @param    targetLanguageCodes an array of target language codes
-    * @param    terminologyNames an array of custom terminology (CT) names in Amazon Translate (or 'NULL' if CT is not to be applied)
-    * @return   an array of translated string values
+    * @param    languageCodes an array of language codes corresponding to each input string
+    * @return   an array of nested JSON arrays, each a list of [type, text, sentiment] for each mention, grouped by entity
     */
-    public String[] translate_text(String[] input, String[] sourceLanguageCodes, String[] targetLanguageCodes, String[] terminologyNames) throws Exception
+    public String[] detect_targeted_sentiment(String[] input, String[] languageCodes) throws Exception
     {
-        // batch input records
-        int rowCount = input.length;
-        String[] result = new String[rowCount];
-        int rowNum = 0;
-        boolean splitLongText = true; // split long text fields, don't truncate.
-        for (Object[] batch : getBatches(input, this.maxBatchSize, this.maxTextBytes, splitLongText)) {
-            String[] textArray = (String[]) batch[0];
-            String singleRowOrMultiRow = (String) batch[1];
-            if (singleRowOrMultiRow.equals("MULTI_ROW_BATCH")) {
-                // batchArray represents multiple output rows, one element per output row
-                System.out.println("DEBUG: Call MultiRowBatchTranslateText Translatetext API - Batch => Records: " + textArray.length);
-                String[] sourceLanguageCodesSubset = Arrays.copyOfRange(sourceLanguageCodes, rowNum, rowNum + textArray.length);
-                String[] targetLanguageCodesSubset = Arrays.copyOfRange(targetLanguageCodes, rowNum, rowNum + textArray.length);
-                String[] terminologyNamesSubset = Arrays.copyOfRange(terminologyNames, rowNum, rowNum + textArray.length);
-                String[] multiRowResults = MultiRowBatchTranslateText(textArray, sourceLanguageCodesSubset, targetLanguageCodesSubset, terminologyNamesSubset);
-                for (int i = 0; i < multiRowResults.length; i++) {
-                    result[rowNum++] = multiRowResults[i];
+        Object[] entityLists = detectSegmentedList(input, languageCodes, "BatchDetectTargetedSentiment", this::detectTargetedSentimentItems);
+        String[] result = new String[entityLists.length];
+        for (int i = 0; i < entityLists.length; i++) {
+            List<String[]> mentions = new ArrayList<String[]>();
+            for (Map<String, Object> entity : asItems(entityLists[i])) {
+                for (Map<String, Object> mention : asItems(entity.get("mentions"))) {
+                    mentions.add(new String[]{(String) mention.get("type"), (String) mention.get("text"), (String) mention.get("sentiment")});
                 }
             }
-            else {
-                // batchArray represents single output row (long text split)
-                System.out.println("DEBUG: Call TextSplitBatchTranslateText Translatetext API - Batch => Records: " + textArray.length);
-                String sourceLanguageCode = sourceLanguageCodes[rowNum];
-                String targetLanguageCode = targetLanguageCodes[rowNum];
-                String terminologyName = terminologyNames[rowNum];
-                String singleRowResults = TextSplitBatchTranslateText(textArray, sourceLanguageCode, targetLanguageCode, terminologyName);
-                result[rowNum++] = singleRowResults;
-            }
+            result[i] = toJSON(mentions);
         }
         return result;
     }
-    private String[] MultiRowBatchTranslateText(String[] batch, String[] sourceLanguageCodesSubset, String[] targetLanguageCodesSubset, String[] terminologyNamesSubset) throws Exception
+
+    /**
+    * Given an array of input strings returns an array of nested objects representing the entities, their mentions, and the sentiment of each mention, for each input string
+    * @param    input    an array of input strings
+    * @param    languageCodes an array of language codes corresponding to each input string
+    * @return   an array of nested JSON objects with detect_targeted_sentiment results for each input string
+    */
+    public String[] detect_targeted_sentiment_all(String[] input, String[] languageCodes) throws Exception
     {
-        String[] result = new String[batch.length];
-        // Call translateText API in loop  (no multidocument batch API available)
-        for (int i = 0; i < batch.length; i++) {
-            TranslateTextRequest translateTextRequest = TranslateTextRequest.builder()
-                .sourceLanguageCode(sourceLanguageCodesSubset[i])
-                .targetLanguageCode(targetLanguageCodesSubset[i])
-                .text(batch[i])
-                .build();
-            if (! terminologyNamesSubset[i].equals("null")) {
-                translateTextRequest = translateTextRequest.toBuilder().terminologyNames(terminologyNamesSubset[i]).build();
-            }
-            try {
-                TranslateTextResponse translateTextResponse = getTranslateClient().translateText(translateTextRequest);
-                String translatedText = translateTextResponse.translatedText();  
-                result[i] = translatedText;
-            } 
-            catch (Exception e) {
-                System.out.println("ERROR: Translate API Exception.\nInput String size: " + getUtf8StringLength(batch[i]) + " bytes. String:\n" + batch[i]);
-                System.out.println("EXCEPTION:\n" + e);
-                // return input text untranslated
-                result[i] = batch[i];
-            }
-        }
-        return result;
+        return toJSONArray(detectSegmentedList(input, languageCodes, "BatchDetectTargetedSentiment", this::detectTargetedSentimentItems));
     }
-    private String TextSplitBatchTranslateText(String[] batch, String sourceLanguageCode, String targetLanguageCode, String terminologyName) throws Exception
+
+    /**
+    * Given an array of input strings returns an array of nested arrays representing the part of speech of each word in each input string
+    * @param    input    an array of input strings
+    * @param    languageCodes an array of language codes corresponding to each input string
+    * @return   an array of nested JSON arrays, each a list of [tag, text] for each word
+    */
+    public String[] detect_syntax(String[] input, String[] languageCodes) throws Exception
     {
-        String[] result = new String[batch.length];
-        // Call translateText API in loop  (no multidocument Translate API available)
-        for (int i = 0; i < batch.length; i++) {
-            TranslateTextRequest translateTextRequest = TranslateTextRequest.builder()
-                .sourceLanguageCode(sourceLanguageCode)
-                .targetLanguageCode(targetLanguageCode)
-                .text(batch[i])
-                .build();
-            if (! terminologyName.equals("null")) {
-                translateTextRequest = translateTextRequest.toBuilder().terminologyNames(terminologyName).build();
-            }
-            try {
-                TranslateTextResponse translateTextResponse = getTranslateClient().translateText(translateTextRequest);
-                String translatedText = translateTextResponse.translatedText();  
-                result[i] = translatedText;
-            } 
-            catch (Exception e) {
-                System.out.println("ERROR: Translate API Exception.\nInput String size: " + getUtf8StringLength(batch[i]) + " bytes. String:\n" + batch[i]);
-                System.out.println("EXCEPTION:\n" + e);
-                // return input text untranslated
-                result[i] = batch[i];
+        Object[] tokenLists = detectSegmentedList(input, languageCodes, "BatchDetectSyntax", this::detectSyntaxItems);
+        String[] result = new String[tokenLists.length];
+        for (int i = 0; i < tokenLists.length; i++) {
+            List<String[]> tokens = new ArrayList<String[]>();
+            for (Map<String, Object> token : asItems(tokenLists[i])) {
+                tokens.add(new String[]{(String) token.get("tag"), (String) token.get("text")});
             }
+            result[i] = toJSON(tokens);
         }
-        // merge results to single output row
-        String mergedResult = mergeText(result);
-        return mergedResult;
-    }       
-    
+        return result;
+    }
+
+    /**
+    * Given an array of input strings returns an array of nested objects representing each word, its offsets, part of speech and confidence score, for each input string
+    * @param    input    an array of input strings
+    * @param    languageCodes an array of language codes corresponding to each input string
+    * @return   an array of nested JSON objects with detect_syntax results for each input string
+    */
+    public String[] detect_syntax_all(String[] input, String[] languageCodes) throws Exception
+    {
+        return toJSONArray(detectSegmentedList(input, languageCodes, "BatchDetectSyntax", this::detectSyntaxItems));
+    }
+
+    // detects a list of items per text, for texts sharing the same language code, with offsets moved by the code point offset of each text
+    private interface SegmentedListDetector
+    {
+        List<List<Map<String, Object>>> detect(String languageCode, String[] textArray, int[] codePointOffsets) throws Exception;
+    }
+
+    private List<List<Map<String, Object>>> detectTargetedSentimentItems(String languageCode, String[] textArray, int[] codePointOffsets) throws Exception
+    {
+        List<List<Map<String, Object>>> result = new ArrayList<List<Map<String, Object>>>();
+        List<BatchDetectTargetedSentimentItemResult> itemResults = callBatchDetectTargetedSentiment(languageCode, textArray);
+        for (int i = 0; i < itemResults.size(); i++) {
+            List<Map<String, Object>> entities = new ArrayList<Map<String, Object>>();
+            for (TargetedSentimentEntity entity : itemResults.get(i).entities()) {
+                List<Map<String, Object>> mentions = new ArrayList<Map<String, Object>>();
+                for (TargetedSentimentMention mention : entity.mentions()) {
+                    Map<String, Object> row = new LinkedHashMap<String, Object>();
+                    row.put("type", mention.typeAsString());
+                    row.put("text", mention.text());
+                    row.put("score", mention.score());
+                    row.put("groupScore", mention.groupScore());
+                    row.put("beginOffset", mention.beginOffset() + codePointOffsets[i]);
+                    row.put("endOffset", mention.endOffset() + codePointOffsets[i]);
+                    row.put("sentiment", mention.mentionSentiment().sentimentAsString());
+                    row.put("sentimentScore", toSentimentScoreMap(mention.mentionSentiment().sentimentScore()));
+                    mentions.add(row);
+                }
+                Map<String, Object> row = new LinkedHashMap<String, Object>();
+                row.put("descriptiveMentionIndex", entity.descriptiveMentionIndex());
+                row.put("mentions", mentions);
+                entities.add(row);
+            }
+            result.add(entities);
+        }
+        return result;
+    }
+
+    private List<List<Map<String, Object>>> detectSyntaxItems(String languageCode, String[] textArray, int[] codePointOffsets) throws Exception
+    {
+        List<List<Map<String, Object>>> result = new ArrayList<List<Map<String, Object>>>();
+        List<BatchDetectSyntaxItemResult> itemResults = callBatchDetectSyntax(languageCode, textArray);
+        for (int i = 0; i < itemResults.size(); i++) {
+            List<Map<String, Object>> tokens = new ArrayList<Map<String, Object>>();
+            for (SyntaxToken token : itemResults.get(i).syntaxTokens()) {
+                Map<String, Object> row = new LinkedHashMap<String, Object>();
+                row.put("text", token.text());
+                row.put("tag", token.partOfSpeech().tagAsString());
+                row.put("score", token.partOfSpeech().score());
+                row.put("beginOffset", token.beginOffset() + codePointOffsets[i]);
+                row.put("endOffset", token.endOffset() + codePointOffsets[i]);
+                tokens.add(row);
+            }
+            result.add(tokens);
+        }
+        return result;
+    }
+
+    private static Map<String, Object> toSentimentScoreMap(SentimentScore sentimentScore)
+    {
+        Map<String, Object> row = new LinkedHashMap<String, Object>();
+        row.put("positive", sentimentScore.positive());
+        row.put("negative", sentimentScore.negative());
+        row.put("neutral", sentimentScore.neutral());
+        row.put("mixed", sentimentScore.mixed());
+        return row;
+    }
+
+    // batches input rows by language, splitting long text, and returns one list of detected items per input row.
+    // segments do not overlap, so the items detected in the segments of a split long text are appended in order to a single list
+    private Object[] detectSegmentedList(String[] input, String[] languageCodes, String operation, SegmentedListDetector detector) throws Exception
+    {
+        int rowCount = input.length;
+        Object[] result = new Object[rowCount];
+        int rowNum = 0;
+        boolean splitLongText = true; // split long text fields, don't truncate.
+        AdaptiveBatchSizer batchSizer = getBatchSizer(operation);
+        for (Object[] batch : getBatches(input, languageCodes, batchSizer.getDocumentsPerBatch(), batchSizer.getSegmentBytes(), 0, splitLongText)) {
+            String[] textArray = (String[]) batch[0];
+            String singleRowOrMultiRow = (String) batch[1];
+            String languageCode = (String) batch[2];
+            System.out.println("DEBUG: Call comprehend " + operation + " API - Batch => " + singleRowOrMultiRow + " Language:" + languageCode + " Records: " + textArray.length);
+            if (singleRowOrMultiRow.equals("MULTI_ROW_BATCH")) {
+                for (List<Map<String, Object>> items : detector.detect(languageCode, textArray, new int[textArray.length])) {
+                    result[rowNum++] = items;
+                }
+            }
+            else {
+                TextSegment[] segments = (TextSegment[]) batch[3];
+                List<Map<String, Object>> mergedItems = new ArrayList<Map<String, Object>>();
+                int segmentNum = 0;
+                for (Object[] segmentBatch : getBatches(textArray, batchSizer.getDocumentsPerBatch())) {
+                    String[] segmentTexts = (String[]) segmentBatch[0];
+                    int[] codePointOffsets = new int[segmentTexts.length];
+                    for (int i = 0; i < segmentTexts.length; i++) {
+                        codePointOffsets[i] = segments[segmentNum++].getCodePointOffset();
+                    }
+                    for (List<Map<String, Object>> segmentItems : detector.detect(languageCode, segmentTexts, codePointOffsets)) {
+                        mergedItems.addAll(segmentItems);
+                    }
+                }
+                result[rowNum++] = mergedItems;
+            }
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> asItems(Object items)
+    {
+        return (List<Map<String, Object>>) items;
+    }
+
+    private static String[] toJSONArray(Object[] results)
+    {
+        String[] result = new String[results.length];
+        for (int i = 0; i < results.length; i++) {
+            result[i] = toJSON(results[i]);
+        }
+        return result;
+    }
+
+    /**
+     * CUSTOM MODEL ENDPOINTS
+     * ======================
+     * Comprehend custom classifier and custom entity recognizer real-time endpoints, named by the endpoint ARN
+     * argument. Requests are scheduled under the endpoint ARN, so at most ENDPOINT_CONCURRENCY_PER_INFERENCE_UNIT
+     * requests per provisioned inference unit run against an endpoint at a time, across all the Athena partitions
+     * (invocations) handled by this Lambda container. Results are cached by endpoint, model version and text.
+     **/
+
+    /**
+     * methods accepting and return JSON String paramater types, used by Athena UDF wrapper
+     **/
+    public String classify_document(String inputjson, String endpointjson) throws Exception
+    {
+        String[] input = fromJSON(inputjson);
+        String[] endpointArns = fromJSON(endpointjson);
+        return toJSON(classify_document(input, endpointArns));
+    }
+    public String detect_custom_entities(String inputjson, String endpointjson) throws Exception
+    {
+        String[] input = fromJSON(inputjson);
+        String[] endpointArns = fromJSON(endpointjson);
+        return toJSON(detect_custom_entities(input, endpointArns));
+    }
+
+    /**
+    * Given an array of input strings returns an array of nested arrays representing the classes (or labels) assigned to each input string by a custom classifier
+    * @param    input    an array of input strings
+    * @param    endpointArns an array of custom classifier endpoint ARNs corresponding to each input string
+    * @return   an array of nested JSON arrays, each a list of {name, score} for each class or label, highest score first
+    */
+    public String[] classify_document(String[] input, String[] endpointArns) throws Exception
+    {
+        // long text is split into segments, each classified separately, and the scores averaged by segment length
+        List<TextSegment[]> rowSegments = getEndpointSegments(input, 0);
+        List<List<Future<ClassifyDocumentResponse>>> futures = new ArrayList<List<Future<ClassifyDocumentResponse>>>();
+        ColumnRuns<String> endpointRuns = ColumnRuns.of(endpointArns);
+        for (int run = 0; run < endpointRuns.getRunCount(); run++) {
+            ComprehendEndpoint endpoint = getEndpoint(endpointRuns.getValue(run));
+            System.out.println("DEBUG: Call comprehend ClassifyDocument API - " + endpoint + " Records: " + (endpointRuns.getEnd(run) - endpointRuns.getStart(run)));
+            for (int rowNum = endpointRuns.getStart(run); rowNum < endpointRuns.getEnd(run); rowNum++) {
+                List<Future<ClassifyDocumentResponse>> segmentFutures = new ArrayList<Future<ClassifyDocumentResponse>>();
+                for (TextSegment segment : rowSegments.get(rowNum)) {
+                    segmentFutures.add(getScheduler().submit(endpoint.getEndpointArn(), () -> classifyDocument(endpoint, segment.getText())));
+                }
+                futures.add(segmentFutures);
+            }
+        }
+        String[] result = new String[input.length];
+        for (int rowNum = 0; rowNum < input.length; rowNum++) {
+            ClassScoreAggregator aggregator = new ClassScoreAggregator();
+            TextSegment[] segments = rowSegments.get(rowNum);
+            for (int i = 0; i < segments.length; i++) {
+                ClassifyDocumentResponse response = getFutureResult(futures.get(rowNum).get(i));
+                Map<String, Float> scores = new LinkedHashMap<String, Float>();
+                for (DocumentClass documentClass : response.classes()) {
+                    scores.put(documentClass.name(), documentClass.score());
+                }
+                for (DocumentLabel documentLabel : response.labels()) {
+                    scores.put(documentLabel.name(), documentLabel.score());
+                }
+                aggregator.add(scores, getUtf8StringLength(segments[i].getText()));
+            }
+            result[rowNum] = toJSON(aggregator.getItems());
+        }
+        return result;
+    }
+
+    /**
+    * Given an array of input strings returns an array of nested arrays representing the entities detected in each input string by a custom entity recognizer
+    * @param    input    an array of input strings
+    * @param    endpointArns an array of custom entity recognizer endpoint ARNs corresponding to each input string
+    * @return   an array of nested JSON arrays, each a list of [type, text] for each entity
+    */
+    public String[] detect_custom_entities(String[] input, String[] endpointArns) throws Exception
+    {
+        // long text is split into overlapping segments, and entities found twice in the overlap merged, as for detect_entities
+        List<TextSegment[]> rowSegments = getEndpointSegments(input, this.config.getSplitOverlapBytes());
+        List<List<Future<List<Entity>>>> futures = new ArrayList<List<Future<List<Entity>>>>();
+        ColumnRuns<String> endpointRuns = ColumnRuns.of(endpointArns);
+        for (int run = 0; run < endpointRuns.getRunCount(); run++) {
+            ComprehendEndpoint endpoint = getEndpoint(endpointRuns.getValue(run));
+            System.out.println("DEBUG: Call comprehend DetectEntities API - " + endpoint + " Records: " + (endpointRuns.getEnd(run) - endpointRuns.getStart(run)));
+            for (int rowNum = endpointRuns.getStart(run); rowNum < endpointRuns.getEnd(run); rowNum++) {
+                List<Future<List<Entity>>> segmentFutures = new ArrayList<Future<List<Entity>>>();
+                for (TextSegment segment : rowSegments.get(rowNum)) {
+                    segmentFutures.add(getScheduler().submit(endpoint.getEndpointArn(), () -> detectCustomEntities(endpoint, segment.getText())));
+                }
+                futures.add(segmentFutures);
+            }
+        }
+        String[] result = new String[input.length];
+        for (int rowNum = 0; rowNum < input.length; rowNum++) {
+            TextSegment[] segments = rowSegments.get(rowNum);
+            if (segments.length == 1) {
+                result[rowNum] = getEntityTypesAndValues(getFutureResult(futures.get(rowNum).get(0)));
+                continue;
+            }
+            SpanMerger spanMerger = new SpanMerger();
+            for (int i = 0; i < segments.length; i++) {
+                for (Entity entity : getFutureResult(futures.get(rowNum).get(i))) {
+                    spanMerger.add(entity.typeAsString(), entity.text(), entity.score(), entity.beginOffset(), entity.endOffset(), segments[i].getCodePointOffset());
+                }
+            }
+            result[rowNum] = mergeSpans(spanMerger.merge(), input[rowNum], null, false);
+        }
+        return result;
+    }
+
+    // one segment per row, or the segments of a long text, each no longer than MAX_TEXT_BYTES
+    private List<TextSegment[]> getEndpointSegments(String[] input, int overlapBytes) throws Exception
+    {
+        int maxTextBytes = this.config.getMaxTextBytes();
+        List<TextSegment[]> rowSegments = new ArrayList<TextSegment[]>(input.length);
+        for (String text : input) {
+            int textLength = getUtf8StringLength(text);
+            if (textLength > maxTextBytes) {
+                TextSegment[] segments = splitLongText(text, maxTextBytes, Math.min(overlapBytes, maxTextBytes / 2));
+                System.out.println("Split long text field (" + textLength + " bytes) into " + segments.length + " segments of under " + maxTextBytes + " bytes");
+                rowSegments.add(segments);
+            }
+            else {
+                rowSegments.add(new TextSegment[] {new TextSegment(text, 0, 0)});
+            }
+        }
+        return rowSegments;
+    }
+
+    // a custom model endpoint is called through the client for its own region, e.g. arn:aws:comprehend:us-east-1:...
+    private static String getArnRegion(String arn)
+    {
+        String[] arnParts = arn.split(":");
+        return (arnParts.length > 3) ? arnParts[3] : "";
+    }
+
+    // an endpoint belongs to one region, so its requests bypass the pool's routing and failover, and go to the pool's client for that region
+    private ComprehendClient getEndpointClient(String endpointArn)
+    {
+        String region = getArnRegion(endpointArn);
+        if (! getComprehendPool().hasRegion(region)) {
+            throw new RuntimeException("Error: custom model endpoint " + endpointArn + " is in region " + region + ", but the function has no Comprehend client for that region."
+                + " Add " + region + " to " + TextAnalyticsConfig.COMPREHEND_ENDPOINTS + " (ComprehendEndpoints), or use an endpoint in one of the configured regions.");
+        }
+        return getComprehendPool().getClient(region);
+    }
+
+    // describes the endpoint the first time it is used, and again after ENDPOINT_DESCRIBE_INTERVAL_MILLIS to pick up a new model version or inference units
+    private ComprehendEndpoint getEndpoint(String endpointArn) throws Exception
+    {
+        synchronized (this.endpoints) {
+            ComprehendEndpoint endpoint = this.endpoints.get(endpointArn);
+            if (endpoint == null || endpoint.isOlderThan(ENDPOINT_DESCRIBE_INTERVAL_MILLIS)) {
+                DescribeEndpointRequest describeEndpointRequest = DescribeEndpointRequest.builder()
+                    .endpointArn(endpointArn)
+                    .overrideConfiguration(createRequestOverrideConfiguration("DescribeEndpoint"))
+                    .build();
+                EndpointProperties endpointProperties = getEndpointClient(endpointArn).describeEndpoint(describeEndpointRequest).endpointProperties();
+                // inference units are not reported while the endpoint is being created
+                int inferenceUnits = (endpointProperties.currentInferenceUnits() != null) ? endpointProperties.currentInferenceUnits() : 1;
+                endpoint = new ComprehendEndpoint(endpointArn, endpointProperties.modelArn(), inferenceUnits);
+                int maxConcurrency = Math.max(1, inferenceUnits * this.config.getEndpointConcurrencyPerInferenceUnit());
+                getScheduler().setApiMaxConcurrency(endpointArn, maxConcurrency);
+                System.out.println("DEBUG: " + endpoint + " => max concurrency " + maxConcurrency);
+                this.endpoints.put(endpointArn, endpoint);
+            }
+            return endpoint;
+        }
+    }
+
+    private ClassifyDocumentResponse classifyDocument(ComprehendEndpoint endpoint, String text) throws Exception
+    {
+        // results of one model version are reused - a new model deployed to the endpoint gets its own entries
+        List<String> cacheKey = Arrays.asList(endpoint.getEndpointArn(), endpoint.getModelArn(), text);
+        ClassifyDocumentResponse classifyDocumentResponse = this.classifyDocumentCache.get(cacheKey);
+        if (classifyDocumentResponse == null) {
+            ClassifyDocumentRequest classifyDocumentRequest = ClassifyDocumentRequest.builder()
+                .text(text)
+                .endpointArn(endpoint.getEndpointArn())
+                .overrideConfiguration(createRequestOverrideConfiguration("ClassifyDocument"))
+                .build();
+            classifyDocumentResponse = this.singleFlight.call("ClassifyDocument", "", endpoint.getEndpointArn() + " " + endpoint.getModelArn(), new String[] {text},
+                () -> {
+                    this.usageMeter.chargeComprehend("ClassifyDocument", text);
+                    return getEndpointClient(endpoint.getEndpointArn()).classifyDocument(classifyDocumentRequest);
+                });
+            this.classifyDocumentCache.put(cacheKey, classifyDocumentResponse);
+        }
+        return classifyDocumentResponse;
+    }
+
+    private List<Entity> detectCustomEntities(ComprehendEndpoint endpoint, String text) throws Exception
+    {
+        List<String> cacheKey = Arrays.asList(endpoint.getEndpointArn(), endpoint.getModelArn(), text);
+        List<Entity> entities = this.customEntitiesCache.get(cacheKey);
+        if (entities == null) {
+            DetectEntitiesRequest detectEntitiesRequest = DetectEntitiesRequest.builder()
+                .text(text)
+                .endpointArn(endpoint.getEndpointArn())
+                .overrideConfiguration(createRequestOverrideConfiguration("DetectEntities"))
+                .build();
+            entities = this.singleFlight.call("DetectEntities", "", endpoint.getEndpointArn() + " " + endpoint.getModelArn(), new String[] {text},
+                () -> {
+                    this.usageMeter.chargeComprehend("DetectEntities", text);
+                    return getEndpointClient(endpoint.getEndpointArn()).detectEntities(detectEntitiesRequest).entities();
+                });
+            this.customEntitiesCache.put(cacheKey, entities);
+        }
+        return entities;
+    }
+
+    /**
+     * TRANSLATE TEXT
+     */
+
+    /**
+     * method accepting and return JSON String paramater types, used by Athena UDF wrapper
+     **/
+    public String translate_text(String inputjson, String sourcelanguagejson, String targetlanguagejson, String terminologynamesjson) throws Exception
+    {
+        String[] input = fromJSON(inputjson);
+        String[] sourceLanguageCodes = fromJSON(sourcelanguagejson);
+        String[] targetLanguageCodes = fromJSON(targetlanguagejson);
+        String[] terminologyNames = fromJSON(terminologynamesjson);
+        return toJSON(translate_text(input, sourceLanguageCodes, targetLanguageCodes, terminologyNames));
+    }
+
+    /**
+    * Given an array of input strings, source language, target language, and optional terminology names, returns an array of translated strings
+    * @param    input    an array of input strings
+    * @param    sourceLanguageCodes an array of source language codes corresponding to each input string (source lang can be 'auto' if source language is unknown)
+    * @param    targetLanguageCodes an array of target language codes
+    * @param    terminologyNames an array of custom terminology (CT) names in Amazon Translate (or 'NULL' if CT is not to be applied)
+    * @return   an array of translated string values
+    */
+    public String[] translate_text(String[] input, String[] sourceLanguageCodes, String[] targetLanguageCodes, String[] terminologyNames) throws Exception
+    {
+        // plan: group rows by (source, target, terminology) and dedupe identical texts within each group
+        int rowCount = input.length;
+        String[] result = new String[rowCount];
+        Map<List<String>, Map<String, List<Integer>>> groups = new LinkedHashMap<List<String>, Map<String, List<Integer>>>();
+        int sameLanguageRows = 0;
+        int uniqueTexts = 0;
+        // the language and terminology arguments are read as runs of rows with the same value (usually one run each, for literals),
+        // so the group is looked up once per stretch of rows where none of them change, rather than once per row
+        ColumnRuns<String> sourceRuns = ColumnRuns.of(sourceLanguageCodes);
+        ColumnRuns<String> targetRuns = ColumnRuns.of(targetLanguageCodes);
+        ColumnRuns<String> terminologyRuns = ColumnRuns.of(terminologyNames);
+        int stretches = 0;
+        int sourceRun = 0;
+        int targetRun = 0;
+        int terminologyRun = 0;
+        for (int start = 0; start < rowCount; stretches++) {
+            while (sourceRuns.getEnd(sourceRun) <= start) {
+                sourceRun++;
+            }
+            while (targetRuns.getEnd(targetRun) <= start) {
+                targetRun++;
+            }
+            while (terminologyRuns.getEnd(terminologyRun) <= start) {
+                terminologyRun++;
+            }
+            int end = Math.min(rowCount, Math.min(sourceRuns.getEnd(sourceRun), Math.min(targetRuns.getEnd(targetRun), terminologyRuns.getEnd(terminologyRun))));
+            String sourceLanguageCode = sourceRuns.getValue(sourceRun);
+            String targetLanguageCode = targetRuns.getValue(targetRun);
+            if (sourceLanguageCode.equalsIgnoreCase(targetLanguageCode)) {
+                // text is already in the target language - return input text without calling Translate
+                System.arraycopy(input, start, result, start, end - start);
+                sameLanguageRows += end - start;
+                start = end;
+                continue;
+            }
+            List<String> groupKey = Arrays.asList(sourceLanguageCode, targetLanguageCode, terminologyRuns.getValue(terminologyRun));
+            Map<String, List<Integer>> group = groups.get(groupKey);
+            if (group == null) {
+                group = new LinkedHashMap<String, List<Integer>>();
+                groups.put(groupKey, group);
+            }
+            for (int rowNum = start; rowNum < end; rowNum++) {
+                List<Integer> rows = group.get(input[rowNum]);
+                if (rows == null) {
+                    rows = new ArrayList<Integer>();
+                    group.put(input[rowNum], rows);
+                    uniqueTexts++;
+                }
+                rows.add(rowNum);
+            }
+            start = end;
+        }
+        System.out.println("DEBUG: translate_text plan => Records: " + rowCount + " Argument runs: " + stretches + " Same language (skipped): " + sameLanguageRows + " Language pair groups: " + groups.size() + " Unique texts: " + uniqueTexts);
+        // dispatch each unique text (or packet of short texts) in each group to the scheduler, one TranslateText request template per group
+        List<Future<String[]>> futures = new ArrayList<Future<String[]>>();
+        List<List<List<Integer>>> futureRows = new ArrayList<List<List<Integer>>>();
+        for (Map.Entry<List<String>, Map<String, List<Integer>>> group : groups.entrySet()) {
+            TranslateTextRequest translateTextTemplate = buildTranslateTextTemplate(group.getKey().get(0), group.getKey().get(1), group.getKey().get(2));
+            List<String> texts = new ArrayList<String>(group.getValue().keySet());
+            List<List<String>> packets = (this.config.isTranslatePackRows()) ? packTexts(texts, this.config.getMaxTextBytes()) : packTexts(texts, 0);
+            for (List<String> packet : packets) {
+                if (packet.size() == 1) {
+                    final String textValue = packet.get(0);
+                    futures.add(getScheduler().submit("TranslateText", () -> new String[] {translateText(translateTextTemplate, textValue)}));
+                }
+                else {
+                    futures.add(getScheduler().submit("TranslateText", () -> PackedTranslateText(translateTextTemplate, packet)));
+                }
+                List<List<Integer>> packetRows = new ArrayList<List<Integer>>();
+                for (String text : packet) {
+                    packetRows.add(group.getValue().get(text));
+                }
+                futureRows.add(packetRows);
+            }
+        }
+        // collect results and fan them out to every row sharing the same text
+        for (int i = 0; i < futures.size(); i++) {
+            String[] translatedTexts = getFutureResult(futures.get(i));
+            for (int j = 0; j < translatedTexts.length; j++) {
+                for (int rowNum : futureRows.get(i).get(j)) {
+                    result[rowNum] = translatedTexts[j];
+                }
+            }
+        }
+        return result;
+    }
+    private TranslateTextRequest buildTranslateTextTemplate(String sourceLanguageCode, String targetLanguageCode, String terminologyName)
+    {
+        TranslateTextRequest.Builder translateTextRequestBuilder = TranslateTextRequest.builder()
+            .sourceLanguageCode(sourceLanguageCode)
+            .targetLanguageCode(targetLanguageCode);
+        if (! terminologyName.equals("null")) {
+            translateTextRequestBuilder.terminologyNames(terminologyName);
+        }
+        return translateTextRequestBuilder.build();
+    }
+    private String translateText(TranslateTextRequest translateTextTemplate, String text) throws Exception
+    {
+        int textLength = getUtf8StringLength(text);
+        if (textLength >= this.config.getMaxTextBytes()) {
+            // split long text and translate each segment (no multidocument Translate API available)
+            String[] textSplit = splitLongText(text, this.config.getMaxTextBytes());
+            System.out.println("Split long text field (" + textLength + " bytes) into " + textSplit.length + " segments of under " + this.config.getMaxTextBytes() + " bytes");
+            return TextSplitTranslateText(translateTextTemplate, textSplit);
+        }
+        return SingleTranslateText(translateTextTemplate, text);
+    }
+    private String SingleTranslateText(TranslateTextRequest translateTextTemplate, String text) throws Exception
+    {
+        String translatedText = tryTranslateText(translateTextTemplate, text);
+        // return input text untranslated if the request failed
+        return (translatedText != null) ? translatedText : text;
+    }
+    // translates one text, returning null if the request failed
+    private String tryTranslateText(TranslateTextRequest translateTextTemplate, String text) throws Exception
+    {
+        // reuse results completed by an earlier (e.g. timed out) invocation for the same text
+        List<String> cacheKey = Arrays.asList(translateTextTemplate.sourceLanguageCode(), translateTextTemplate.targetLanguageCode(), String.valueOf(translateTextTemplate.terminologyNames()), text);
+        String cachedText = this.translateTextCache.get(cacheKey);
+        if (cachedText != null) {
+            return cachedText;
+        }
+        TranslateTextRequest translateTextRequest = translateTextTemplate.toBuilder()
+            .text(text)
+            .overrideConfiguration(createRequestOverrideConfiguration("TranslateText"))
+            .build();
+        try {
+            TranslateTextResponse translateTextResponse = this.singleFlight.call("TranslateText", translateTextRequest.sourceLanguageCode(), translateTextRequest.targetLanguageCode() + " " + translateTextRequest.terminologyNames(), new String[] {text},
+                () -> getHedger().call("TranslateText", () -> {
+                    this.usageMeter.chargeTranslate(text);
+                    return getTranslatePool().call("TranslateText", client -> client.translateText(translateTextRequest));
+                }));
+            this.translateTextCache.put(cacheKey, translateTextResponse.translatedText());
+            return translateTextResponse.translatedText();
+        } 
+        catch (Exception e) {
+            // fail fast if the call failed because the invocation deadline is near, rather than return untranslated text
+            this.deadline.check("TranslateText fallback");
+            // and if the query is over its budget, or Translate's circuit is open - rather than return every row untranslated during an outage
+            this.usageMeter.check();
+            CircuitOpenException circuitOpen = CircuitOpenException.find(e);
+            if (circuitOpen != null) {
+                throw circuitOpen;
+            }
+            System.out.println("ERROR: Translate API Exception.\nInput String size: " + getUtf8StringLength(text) + " bytes. String:\n" + text);
+            System.out.println("EXCEPTION:\n" + e);
+            return null;
+        }
+    }
+    private String[] PackedTranslateText(TranslateTextRequest translateTextTemplate, List<String> packet) throws Exception
+    {
+        // translate many short texts in one request, then split the translation back into the original texts
+        String packedText = packText(packet);
+        String translatedText = tryTranslateText(translateTextTemplate, packedText);
+        String[] result = (translatedText != null) ? unpackText(translatedText, packet.size()) : null;
+        this.packedTranslateRequests.incrementAndGet();
+        this.packedTranslateTexts.addAndGet(packet.size());
+        this.packedTranslateBytes.addAndGet(getUtf8StringLength(packedText));
+        if (result == null) {
+            // request failed, or delimiters did not survive translation - fall back to one request per text
+            System.out.println("DEBUG: Packed TranslateText " + ((translatedText == null) ? "request failed" : "delimiters not preserved") + " - falling back to " + packet.size() + " single text requests");
+            this.packedTranslateFallbacks.incrementAndGet();
+            result = new String[packet.size()];
+            for (int i = 0; i < packet.size(); i++) {
+                result[i] = SingleTranslateText(translateTextTemplate, packet.get(i));
+            }
+        }
+        System.out.println("DEBUG: Packed TranslateText => Texts: " + packet.size() + " Bytes: " + getUtf8StringLength(packedText) 
+            + " | Cumulative packets: " + this.packedTranslateRequests.get() + " Texts per packet: " + (this.packedTranslateTexts.get() / this.packedTranslateRequests.get()) 
+            + " Bytes per packet: " + (this.packedTranslateBytes.get() / this.packedTranslateRequests.get()) + " Fallbacks: " + this.packedTranslateFallbacks.get());
+        return result;
+    }
+    private String TextSplitTranslateText(TranslateTextRequest translateTextTemplate, String[] batch) throws Exception
+    {
+        String[] result = new String[batch.length];
+        // Call translateText API in loop  (no multidocument Translate API available)
+        for (int i = 0; i < batch.length; i++) {
+            result[i] = SingleTranslateText(translateTextTemplate, batch[i]);
+        }
+        // merge results to single output row
+        String mergedResult = mergeText(result);
+        return mergedResult;
+    }       
+    
+    /**
+     * DECOMPRESS RESULT
+     * =================
+     * Results of RESULT_COMPRESSION_MIN_BYTES or more are returned compressed (see the Tuning section of the README).
+     **/
+
+    /**
+     * method accepting and return JSON String paramater types, used by Athena UDF wrapper
+     **/
+    public String decompress_result(String inputjson) throws Exception
+    {
+        String[] input = fromJSON(inputjson);
+        return toJSON(decompress_result(input));
+    }
+
+    /**
+    * Given an array of results returned by other functions, returns the original text of any that were compressed
+    * @param    input    an array of result strings, compressed or not
+    * @return   an array of uncompressed result strings
+    */
+    public String[] decompress_result(String[] input) throws Exception
+    {
+        String[] result = new String[input.length];
+        for (int i = 0; i < input.length; i++) {
+            result[i] = ResultCompressor.decompress(input[i]);
+        }
+        return result;
+    }
+
+    /**
+     * READ SPILLED RESULT
+     * ===================
+     * Once the results in an output block reach SPILL_THRESHOLD_BYTES, further large results are written to the
+     * SPILL_BUCKET, and a reference returned in their place (see the Tuning section of the README).
+     **/
+
+    /**
+     * method accepting and return JSON String paramater types, used by Athena UDF wrapper
+     **/
+    public String read_spilled_result(String inputjson) throws Exception
+    {
+        String[] input = fromJSON(inputjson);
+        return toJSON(read_spilled_result(input));
+    }
+
+    /**
+    * Given an array of results returned by other functions, returns the original text of any that were spilled (or compressed)
+    * @param    input    an array of result strings, spilled references or not
+    * @return   an array of result strings read from the spill store
+    */
+    public String[] read_spilled_result(String[] input) throws Exception
+    {
+        String[] result = new String[input.length];
+        for (int i = 0; i < input.length; i++) {
+            result[i] = ResultSpiller.read(getResultStore(), this.config.getSpillBucket(), this.config.getSpillPrefix(), input[i]);
+        }
+        return result;
+    }
+
+    /**
+     * STRUCTURED OUTPUT
+     * =================
+     * Variants of the detect functions whose results are written to the output block as native Arrow
+     * ROW / ARRAY values, when the function is declared in Athena with a ROW or ARRAY return type, e.g.
+     *   RETURNS ARRAY(ROW(type VARCHAR, text VARCHAR, score DOUBLE, beginoffset INTEGER, endoffset INTEGER))
+     * Each result is a Map (ROW) keyed by lower case field name, or a List (ARRAY) of Maps.
+     * Fields declared in the Athena return type that are not in the map are returned as NULL.
+     **/
+
+    /**
+     * methods accepting and return JSON String paramater types, used by Athena UDF wrapper when the
+     * declared return type is VARCHAR
+     **/
+    public String detect_dominant_language_struct(String inputjson) throws Exception
+    {
+        String[] input = fromJSON(inputjson);
+        return toJSON(detect_dominant_language_struct(input));
+    }
+    public String detect_sentiment_struct(String inputjson, String languagejson) throws Exception
+    {
+        String[] input = fromJSON(inputjson);
+        String[] languageCodes = fromJSON(languagejson);
+        return toJSON(detect_sentiment_struct(input, languageCodes));
+    }
+    public String detect_entities_struct(String inputjson, String languagejson) throws Exception
+    {
+        String[] input = fromJSON(inputjson);
+        String[] languageCodes = fromJSON(languagejson);
+        return toJSON(detect_entities_struct(input, languageCodes));
+    }
+    public String detect_pii_entities_struct(String inputjson, String languagejson) throws Exception
+    {
+        String[] input = fromJSON(inputjson);
+        String[] languageCodes = fromJSON(languagejson);
+        return toJSON(detect_pii_entities_struct(input, languageCodes));
+    }
+    public String detect_key_phrases_struct(String inputjson, String languagejson) throws Exception
+    {
+        String[] input = fromJSON(inputjson);
+        String[] languageCodes = fromJSON(languagejson);
+        return toJSON(detect_key_phrases_struct(input, languageCodes));
+    }
+
+    /**
+    * Given an array of input strings returns, for each input string, a list of the detected languages
+    * @param    input   an array of input strings
+    * @return   an array of lists of {languagecode, score} maps
+    */
+    public Object[] detect_dominant_language_struct(String[] input) throws Exception
+    {
+        int rowCount = input.length;
+        Object[] result = new Object[rowCount];
+        int rowNum = 0;
+        boolean splitLongText = false; // truncate, don't split long text fields.
+        AdaptiveBatchSizer batchSizer = getBatchSizer("BatchDetectDominantLanguage");
+        for (Object[] batch : getBatches(input, batchSizer.getDocumentsPerBatch(), this.config.getMaxTextBytes(), splitLongText)) {
+            String[] textArray = (String[]) batch[0];
+            System.out.println("DEBUG: Call comprehend BatchDetectDominantLanguage API - Struct Batch => Records: " + textArray.length);
+            for (BatchDetectDominantLanguageItemResult itemResult : callBatchDetectDominantLanguage(textArray)) {
+                List<Map<String, Object>> languages = new ArrayList<Map<String, Object>>();
+                for (DominantLanguage language : itemResult.languages()) {
+                    Map<String, Object> row = new LinkedHashMap<String, Object>();
+                    row.put("languagecode", language.languageCode());
+                    row.put("score", language.score());
+                    languages.add(row);
+                }
+                result[rowNum++] = languages;
+            }
+        }
+        return result;
+    }
+
+    /**
+    * Given an array of input strings returns the detected sentiment and sentiment scores of each input string
+    * @param    input    an array of input strings
+    * @param    languageCodes an array of language codes corresponding to each input string
+    * @return   an array of {sentiment, positive, negative, neutral, mixed} maps
+    */
+    public Object[] detect_sentiment_struct(String[] input, String[] languageCodes) throws Exception
+    {
+        int rowCount = input.length;
+        Object[] result = new Object[rowCount];
+        int rowNum = 0;
+        boolean splitLongText = this.config.isSentimentSplitLongText();
+        AdaptiveBatchSizer batchSizer = getBatchSizer("BatchDetectSentiment");
+        prefetchBulkResults("BatchDetectSentiment", input, languageCodes);
+        int maxTextBytes = splitLongText ? batchSizer.getSegmentBytes() : this.config.getMaxTextBytes();
+        for (Object[] batch : getBatches(input, languageCodes, batchSizer.getDocumentsPerBatch(), maxTextBytes, 0, splitLongText)) {
+            String[] textArray = (String[]) batch[0];
+            String singleRowOrMultiRow = (String) batch[1];
+            String languageCode = (String) batch[2];
+            System.out.println("DEBUG: Call comprehend BatchDetectSentiment API - Struct Batch => " + singleRowOrMultiRow + " Language:" + languageCode + " Records: " + textArray.length);
+            if (singleRowOrMultiRow.equals("MULTI_ROW_BATCH")) {
+                for (BatchDetectSentimentItemResult itemResult : callBatchDetectSentiment(languageCode, textArray)) {
+                    result[rowNum++] = toSentimentStructRow(itemResult.sentiment(), itemResult.sentimentScore());
+                }
+            }
+            else {
+                SentimentAggregator aggregator = TextSplitBatchDetectSentiment(languageCode, (TextSegment[]) batch[3]);
+                result[rowNum++] = toSentimentStructRow(aggregator.getSentiment(), aggregator.getSentimentScore());
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, Object> toSentimentStructRow(SentimentType sentiment, SentimentScore sentimentScore)
+    {
+        Map<String, Object> row = new LinkedHashMap<String, Object>();
+        row.put("sentiment", sentiment.toString());
+        row.put("positive", sentimentScore.positive());
+        row.put("negative", sentimentScore.negative());
+        row.put("neutral", sentimentScore.neutral());
+        row.put("mixed", sentimentScore.mixed());
+        return row;
+    }
+
+    /**
+    * Given an array of input strings returns, for each input string, a list of the detected entities
+    * @param    input    an array of input strings
+    * @param    languageCodes an array of language codes corresponding to each input string
+    * @return   an array of lists of {type, text, score, beginoffset, endoffset} maps
+    */
+    public Object[] detect_entities_struct(String[] input, String[] languageCodes) throws Exception
+    {
+        return detectStructList(input, languageCodes, "BatchDetectEntities", this::detectEntityItems);
+    }
+
+    /**
+    * Given an array of input strings returns, for each input string, a list of the detected PII entities
+    * @param    input    an array of input strings
+    * @param    languageCodes an array of language codes corresponding to each input string
+    * @return   an array of lists of {type, text, score, beginoffset, endoffset} maps
+    */
+    public Object[] detect_pii_entities_struct(String[] input, String[] languageCodes) throws Exception
+    {
+        return detectStructList(input, languageCodes, "DetectPiiEntities", (languageCode, textArray) -> {
+            List<List<Map<String, Object>>> result = new ArrayList<List<Map<String, Object>>>();
+            List<List<PiiEntity>> batchPiiEntities = detectPiiEntities(languageCode, textArray);
+            for (int i = 0; i < textArray.length; i++) {
+                OffsetIndex offsetIndex = new OffsetIndex(textArray[i]);
+                List<Map<String, Object>> piiEntities = new ArrayList<Map<String, Object>>();
+                for (PiiEntity piiEntity : batchPiiEntities.get(i)) {
+                    String value = offsetIndex.substring(piiEntity.beginOffset(), piiEntity.endOffset());
+                    piiEntities.add(toStructRow(piiEntity.type().toString(), value, piiEntity.score(), piiEntity.beginOffset(), piiEntity.endOffset()));
+                }
+                result.add(piiEntities);
+            }
+            return result;
+        });
+    }
+
+    /**
+    * Given an array of input strings returns, for each input string, a list of the detected key phrases
+    * @param    input    an array of input strings
+    * @param    languageCodes an array of language codes corresponding to each input string
+    * @return   an array of lists of {text, score, beginoffset, endoffset} maps
+    */
+    public Object[] detect_key_phrases_struct(String[] input, String[] languageCodes) throws Exception
+    {
+        return detectStructList(input, languageCodes, "BatchDetectKeyPhrases", this::detectKeyPhraseItems);
+    }
+
+    // detects a list of items (entities, key phrases) per text, for texts sharing the same language code
+    private interface StructListDetector
+    {
+        List<List<Map<String, Object>>> detect(String languageCode, String[] textArray) throws Exception;
+    }
+
+    private List<List<Map<String, Object>>> detectEntityItems(String languageCode, String[] textArray) throws Exception
+    {
+        List<List<Map<String, Object>>> result = new ArrayList<List<Map<String, Object>>>();
+        for (BatchDetectEntitiesItemResult itemResult : callBatchDetectEntities(languageCode, textArray)) {
+            List<Map<String, Object>> entities = new ArrayList<Map<String, Object>>();
+            for (Entity entity : itemResult.entities()) {
+                entities.add(toStructRow(entity.type().toString(), entity.text(), entity.score(), entity.beginOffset(), entity.endOffset()));
+            }
+            result.add(entities);
+        }
+        return result;
+    }
+
+    private List<List<Map<String, Object>>> detectKeyPhraseItems(String languageCode, String[] textArray) throws Exception
+    {
+        List<List<Map<String, Object>>> result = new ArrayList<List<Map<String, Object>>>();
+        for (BatchDetectKeyPhrasesItemResult itemResult : callBatchDetectKeyPhrases(languageCode, textArray)) {
+            List<Map<String, Object>> keyPhrases = new ArrayList<Map<String, Object>>();
+            for (KeyPhrase keyPhrase : itemResult.keyPhrases()) {
+                keyPhrases.add(toStructRow(null, keyPhrase.text(), keyPhrase.score(), keyPhrase.beginOffset(), keyPhrase.endOffset()));
+            }
+            result.add(keyPhrases);
+        }
+        return result;
+    }
+
+    // batches input rows by language, splitting long text, and returns one list of detected items per input row.
+    // items detected in the segments of a split long text are merged to a single list, with offsets relative to the whole text,
+    // and duplicates found in the overlap between segments removed
+    private Object[] detectStructList(String[] input, String[] languageCodes, String operation, StructListDetector detector) throws Exception
+    {
+        int rowCount = input.length;
+        Object[] result = new Object[rowCount];
+        int rowNum = 0;
+        boolean splitLongText = true; // split long text fields, don't truncate.
+        AdaptiveBatchSizer batchSizer = getBatchSizer(operation);
+        prefetchBulkResults(operation, input, languageCodes);
+        for (Object[] batch : getBatches(input, languageCodes, batchSizer.getDocumentsPerBatch(), batchSizer.getSegmentBytes(), this.config.getSplitOverlapBytes(), splitLongText)) {
+            String[] textArray = (String[]) batch[0];
+            String singleRowOrMultiRow = (String) batch[1];
+            String languageCode = (String) batch[2];
+            System.out.println("DEBUG: Call comprehend " + operation + " API - Struct Batch => " + singleRowOrMultiRow + " Language:" + languageCode + " Records: " + textArray.length);
+            if (singleRowOrMultiRow.equals("MULTI_ROW_BATCH")) {
+                for (List<Map<String, Object>> items : detector.detect(languageCode, textArray)) {
+                    result[rowNum++] = items;
+                }
+            }
+            else {
+                TextSegment[] segments = (TextSegment[]) batch[3];
+                SpanMerger spanMerger = new SpanMerger();
+                int segmentNum = 0;
+                for (Object[] segmentBatch : getBatches(textArray, batchSizer.getDocumentsPerBatch())) {
+                    for (List<Map<String, Object>> segmentItems : detector.detect(languageCode, (String[]) segmentBatch[0])) {
+                        int segmentOffset = segments[segmentNum++].getCodePointOffset();
+                        for (Map<String, Object> item : segmentItems) {
+                            spanMerger.add((String) item.get("type"), (String) item.get("text"), (Float) item.get("score"),
+                                (Integer) item.get("beginoffset"), (Integer) item.get("endoffset"), segmentOffset);
+                        }
+                    }
+                }
+                List<Map<String, Object>> mergedItems = new ArrayList<Map<String, Object>>();
+                for (SpanMerger.Span span : spanMerger.merge()) {
+                    mergedItems.add(toStructRow(span.type, span.text, span.score, span.beginOffset, span.endOffset));
+                }
+                result[rowNum++] = mergedItems;
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, Object> toStructRow(String type, String text, Float score, Integer beginOffset, Integer endOffset)
+    {
+        Map<String, Object> row = new LinkedHashMap<String, Object>();
+        if (type != null) {
+            row.put("type", type);
+        }
+        row.put("text", text);
+        row.put("score", score);
+        row.put("beginoffset", beginOffset);
+        row.put("endoffset", endOffset);
+        return row;
+    }
+
+    /**
+     * AGGREGATED ENTITIES / KEY PHRASES
+     * =================================
+     * Variants of detect_entities and detect_key_phrases that return each distinct (type, text) once, with the number
+     * of times it was found and its highest score, rather than every occurrence with its offsets. Matching ignores
+     * case, whitespace and Unicode compatibility differences. Useful for long text, where the same entities recur
+     * in segment after segment. Results can be declared in Athena as VARCHAR (JSON) or as
+     *   RETURNS ARRAY(ROW(type VARCHAR, text VARCHAR, count INTEGER, score DOUBLE))
+     **/
+
+    /**
+     * methods accepting and return JSON String paramater types, used by Athena UDF wrapper
+     **/
+    public String detect_entities_aggregate(String inputjson, String languagejson) throws Exception
+    {
+        String[] input = fromJSON(inputjson);
+        String[] languageCodes = fromJSON(languagejson);
+        return toJSON(detect_entities_aggregate(input, languageCodes));
+    }
+    public String detect_key_phrases_aggregate(String inputjson, String languagejson) throws Exception
+    {
+        String[] input = fromJSON(inputjson);
+        String[] languageCodes = fromJSON(languagejson);
+        return toJSON(detect_key_phrases_aggregate(input, languageCodes));
+    }
+
+    /**
+    * Given an array of input strings returns, for each input string, the distinct entities detected
+    * @param    input    an array of input strings
+    * @param    languageCodes an array of language codes corresponding to each input string
+    * @return   an array of lists of {type, text, count, score} maps
+    */
+    public Object[] detect_entities_aggregate(String[] input, String[] languageCodes) throws Exception
+    {
+        return detectAggregateList(input, languageCodes, "BatchDetectEntities", this::detectEntityItems);
+    }
+
+    /**
+    * Given an array of input strings returns, for each input string, the distinct key phrases detected
+    * @param    input    an array of input strings
+    * @param    languageCodes an array of language codes corresponding to each input string
+    * @return   an array of lists of {text, count, score} maps
+    */
+    public Object[] detect_key_phrases_aggregate(String[] input, String[] languageCodes) throws Exception
+    {
+        return detectAggregateList(input, languageCodes, "BatchDetectKeyPhrases", this::detectKeyPhraseItems);
+    }
+
+    // batches input rows by language, splitting long text, and returns one list of distinct items per input row.
+    // items are counted as each batch of segments returns, and segments do not overlap, so nothing is counted twice
+    private Object[] detectAggregateList(String[] input, String[] languageCodes, String operation, StructListDetector detector) throws Exception
+    {
+        int rowCount = input.length;
+        Object[] result = new Object[rowCount];
+        int rowNum = 0;
+        boolean splitLongText = true; // split long text fields, don't truncate.
+        AdaptiveBatchSizer batchSizer = getBatchSizer(operation);
+        for (Object[] batch : getBatches(input, languageCodes, batchSizer.getDocumentsPerBatch(), batchSizer.getSegmentBytes(), 0, splitLongText)) {
+            String[] textArray = (String[]) batch[0];
+            String singleRowOrMultiRow = (String) batch[1];
+            String languageCode = (String) batch[2];
+            System.out.println("DEBUG: Call comprehend " + operation + " API - Aggregate Batch => " + singleRowOrMultiRow + " Language:" + languageCode + " Records: " + textArray.length);
+            if (singleRowOrMultiRow.equals("MULTI_ROW_BATCH")) {
+                for (List<Map<String, Object>> items : detector.detect(languageCode, textArray)) {
+                    SpanAggregator spanAggregator = new SpanAggregator();
+                    addItems(spanAggregator, items);
+                    result[rowNum++] = spanAggregator.getItems();
+                }
+            }
+            else {
+                SpanAggregator spanAggregator = new SpanAggregator();
+                for (Object[] segmentBatch : getBatches(textArray, batchSizer.getDocumentsPerBatch())) {
+                    for (List<Map<String, Object>> segmentItems : detector.detect(languageCode, (String[]) segmentBatch[0])) {
+                        addItems(spanAggregator, segmentItems);
+                    }
+                }
+                result[rowNum++] = spanAggregator.getItems();
+            }
+        }
+        return result;
+    }
+
+    private static void addItems(SpanAggregator spanAggregator, List<Map<String, Object>> items)
+    {
+        for (Map<String, Object> item : items) {
+            spanAggregator.add((String) item.get("type"), (String) item.get("text"), (Float) item.get("score"));
+        }
+    }
+
+    /**
+     * ASYNCHRONOUS (BULK) DETECTION JOBS
+     * For a block with at least BULK_MIN_ROWS distinct texts of a language, the texts are sent to an asynchronous
+     * detection job, and the synchronous API calls for the block use its results. Texts the job has no result for
+     * (e.g. segments of a split long text) still use the synchronous API.
+     **/
+
+    private void prefetchBulkResults(String api, String[] input, String[] languageCodes) throws Exception
+    {
+        this.bulkResults.clear();
+        BulkJobRunner.JobType jobType = BulkJobRunner.JobType.forApi(api);
+        if (this.config.getBulkMinRows() == 0 || jobType == null) {
+            return;
+        }
+        // only texts the synchronous API takes whole are sent to the job
+        int maxTextBytes = getBatchSizer(api).getSegmentBytes();
+        Map<String, Set<String>> textsByLanguage = new LinkedHashMap<String, Set<String>>();
+        ColumnRuns<String> languageRuns = ColumnRuns.of(languageCodes);
+        for (int run = 0; run < languageRuns.getRunCount(); run++) {
+            Set<String> texts = textsByLanguage.computeIfAbsent(languageRuns.getValue(run), languageCode -> new LinkedHashSet<String>());
+            for (int i = languageRuns.getStart(run); i < Math.min(languageRuns.getEnd(run), input.length); i++) {
+                if (input[i] != null && ! input[i].trim().isEmpty() && getUtf8StringLength(input[i]) <= maxTextBytes) {
+                    texts.add(input[i]);
+                }
+            }
+        }
+        for (Map.Entry<String, Set<String>> entry : textsByLanguage.entrySet()) {
+            if (entry.getValue().size() < this.config.getBulkMinRows()) {
+                continue;
+            }
+            List<String> texts = new ArrayList<String>(entry.getValue());
+            // jobs are billed per document as the synchronous API is - charged when a block starts (or attaches to) its job
+            this.usageMeter.chargeComprehend(api, texts.toArray(new String[texts.size()]));
+            List<Object> results = getBulkJobRunner().run(jobType, entry.getKey(), texts, this.deadline);
+            for (int i = 0; i < texts.size(); i++) {
+                if (results.get(i) != null) {
+                    this.bulkResults.put(Arrays.asList(api, entry.getKey(), texts.get(i)), results.get(i));
+                }
+            }
+        }
+    }
+
+    // the asynchronous job results for every text in the array, or null if any is missing
+    @SuppressWarnings("unchecked")
+    private <T> List<T> getBulkResults(String api, String languageCode, String[] textArray)
+    {
+        if (this.bulkResults.isEmpty()) {
+            return null;
+        }
+        List<T> results = new ArrayList<T>();
+        for (String text : textArray) {
+            Object result = this.bulkResults.get(Arrays.asList(api, languageCode, text));
+            if (result == null) {
+                return null;
+            }
+            results.add((T) result);
+        }
+        return results;
+    }
+
+    /**
+     * COMPREHEND API CALLS
+     * Each returns one item result per input text, or throws an exception if any item failed
+     **/
+
+    // identical batches in progress at once share one request, made by the first - the request's latency is recorded once
+    private <T> T callComprehendBatch(String api, String languageCode, String[] textArray, ClientPool.ClientCall<ComprehendClient, T> call) throws Exception
+    {
+        return this.singleFlight.call(api, languageCode, "", textArray, () -> {
+            this.usageMeter.chargeComprehend(api, textArray);
+            long throttledAttempts = AdaptiveBatchSizer.getThrottledAttempts();
+            long startNanos = System.nanoTime();
+            T response = getComprehendPool().call(api, call);
+            getBatchSizer(api).recordRequest(textArray.length, getUtf8StringLength(textArray), System.nanoTime() - startNanos, AdaptiveBatchSizer.getThrottledAttempts() - throttledAttempts);
+            return response;
+        });
+    }
+    private List<BatchDetectDominantLanguageItemResult> callBatchDetectDominantLanguage(String[] textArray) throws Exception
+    {
+        BatchDetectDominantLanguageRequest batchDetectDominantLanguageRequest = BatchDetectDominantLanguageRequest.builder()
+            .textList(textArray)
+            .overrideConfiguration(createRequestOverrideConfiguration("BatchDetectDominantLanguage"))
+            .build();
+        BatchDetectDominantLanguageResponse batchDetectDominantLanguageResponse = callComprehendBatch("BatchDetectDominantLanguage", "", textArray, client -> client.batchDetectDominantLanguage(batchDetectDominantLanguageRequest));
+        // Throw exception if errorList is populated
+        List<BatchItemError> batchItemError = batchDetectDominantLanguageResponse.errorList();
+        if (! batchItemError.isEmpty()) {
+            throw new RuntimeException("Error:  - ErrorList in batchDetectDominantLanguage result: " + batchItemError);
+        }
+        List<BatchDetectDominantLanguageItemResult> batchDetectDominantLanguageItemResult = batchDetectDominantLanguageResponse.resultList(); 
+        if (batchDetectDominantLanguageItemResult.size() != textArray.length) {
+            throw new RuntimeException("Error:  - array size " + textArray.length + " and result item count " + batchDetectDominantLanguageItemResult.size() + " do not match");
+        }
+        return batchDetectDominantLanguageItemResult;
+    }
+    private List<BatchDetectSentimentItemResult> callBatchDetectSentiment(String languageCode, String[] textArray) throws Exception
+    {
+        List<BatchDetectSentimentItemResult> bulkItemResults = getBulkResults("BatchDetectSentiment", languageCode, textArray);
+        if (bulkItemResults != null) {
+            return bulkItemResults;
+        }
+        BatchDetectSentimentRequest batchDetectSentimentRequest = BatchDetectSentimentRequest.builder()
+            .textList(textArray)
+            .languageCode(languageCode)
+            .overrideConfiguration(createRequestOverrideConfiguration("BatchDetectSentiment"))
+            .build();
+        BatchDetectSentimentResponse batchDetectSentimentResponse = callComprehendBatch("BatchDetectSentiment", languageCode, textArray, client -> client.batchDetectSentiment(batchDetectSentimentRequest));
+        // Throw exception if errorList is populated
+        List<BatchItemError> batchItemError = batchDetectSentimentResponse.errorList();
+        if (! batchItemError.isEmpty()) {
+            throw new RuntimeException("Error:  - ErrorList in batchDetectSentiment result: " + batchItemError);
+        }
+        List<BatchDetectSentimentItemResult> batchDetectSentimentItemResult = batchDetectSentimentResponse.resultList(); 
+        if (batchDetectSentimentItemResult.size() != textArray.length) {
+            throw new RuntimeException("Error:  - array size " + textArray.length + " and result item count " + batchDetectSentimentItemResult.size() + " do not match");
+        }
+        return batchDetectSentimentItemResult;
+    }
+    private List<BatchDetectEntitiesItemResult> callBatchDetectEntities(String languageCode, String[] textArray) throws Exception
+    {
+        List<BatchDetectEntitiesItemResult> bulkItemResults = getBulkResults("BatchDetectEntities", languageCode, textArray);
+        if (bulkItemResults != null) {
+            return bulkItemResults;
+        }
+        BatchDetectEntitiesRequest batchDetectEntitiesRequest = BatchDetectEntitiesRequest.builder()
+            .textList(textArray)
+            .languageCode(languageCode)
+            .overrideConfiguration(createRequestOverrideConfiguration("BatchDetectEntities"))
+            .build();
+        BatchDetectEntitiesResponse batchDetectEntitiesResponse = callComprehendBatch("BatchDetectEntities", languageCode, textArray, client -> client.batchDetectEntities(batchDetectEntitiesRequest));
+        // Throw exception if errorList is populated
+        List<BatchItemError> batchItemError = batchDetectEntitiesResponse.errorList();
+        if (! batchItemError.isEmpty()) {
+            throw new RuntimeException("Error:  - ErrorList in batchDetectEntities result: " + batchItemError);
+        }
+        List<BatchDetectEntitiesItemResult> batchDetectEntitiesItemResult = batchDetectEntitiesResponse.resultList(); 
+        if (batchDetectEntitiesItemResult.size() != textArray.length) {
+            throw new RuntimeException("Error:  - array size " + textArray.length + " and result item count " + batchDetectEntitiesItemResult.size() + " do not match");
+        }
+        return batchDetectEntitiesItemResult;
+    }
+    private List<BatchDetectKeyPhrasesItemResult> callBatchDetectKeyPhrases(String languageCode, String[] textArray) throws Exception
+    {
+        List<BatchDetectKeyPhrasesItemResult> bulkItemResults = getBulkResults("BatchDetectKeyPhrases", languageCode, textArray);
+        if (bulkItemResults != null) {
+            return bulkItemResults;
+        }
+        BatchDetectKeyPhrasesRequest batchDetectKeyPhrasesRequest = BatchDetectKeyPhrasesRequest.builder()
+            .textList(textArray)
+            .languageCode(languageCode)
+            .overrideConfiguration(createRequestOverrideConfiguration("BatchDetectKeyPhrases"))
+            .build();
+        BatchDetectKeyPhrasesResponse batchDetectKeyPhrasesResponse = callComprehendBatch("BatchDetectKeyPhrases", languageCode, textArray, client -> client.batchDetectKeyPhrases(batchDetectKeyPhrasesRequest));
+        // Throw exception if errorList is populated
+        List<BatchItemError> batchItemError = batchDetectKeyPhrasesResponse.errorList();
+        if (! batchItemError.isEmpty()) {
+            throw new RuntimeException("Error:  - ErrorList in batchDetectKeyPhrases result: " + batchItemError);
+        }
+        List<BatchDetectKeyPhrasesItemResult> batchDetectKeyPhrasesItemResult = batchDetectKeyPhrasesResponse.resultList(); 
+        if (batchDetectKeyPhrasesItemResult.size() != textArray.length) {
+            throw new RuntimeException("Error:  - array size " + textArray.length + " and result item count " + batchDetectKeyPhrasesItemResult.size() + " do not match");
+        }
+        return batchDetectKeyPhrasesItemResult;
+    }
+    private List<BatchDetectTargetedSentimentItemResult> callBatchDetectTargetedSentiment(String languageCode, String[] textArray) throws Exception
+    {
+        BatchDetectTargetedSentimentRequest batchDetectTargetedSentimentRequest = BatchDetectTargetedSentimentRequest.builder()
+            .textList(textArray)
+            .languageCode(languageCode)
+            .overrideConfiguration(createRequestOverrideConfiguration("BatchDetectTargetedSentiment"))
+            .build();
+        BatchDetectTargetedSentimentResponse batchDetectTargetedSentimentResponse = callComprehendBatch("BatchDetectTargetedSentiment", languageCode, textArray, client -> client.batchDetectTargetedSentiment(batchDetectTargetedSentimentRequest));
+        // Throw exception if errorList is populated
+        List<BatchItemError> batchItemError = batchDetectTargetedSentimentResponse.errorList();
+        if (! batchItemError.isEmpty()) {
+            throw new RuntimeException("Error:  - ErrorList in batchDetectTargetedSentiment result: " + batchItemError);
+        }
+        List<BatchDetectTargetedSentimentItemResult> batchDetectTargetedSentimentItemResult = batchDetectTargetedSentimentResponse.resultList(); 
+        if (batchDetectTargetedSentimentItemResult.size() != textArray.length) {
+            throw new RuntimeException("Error:  - array size " + textArray.length + " and result item count " + batchDetectTargetedSentimentItemResult.size() + " do not match");
+        }
+        return batchDetectTargetedSentimentItemResult;
+    }
+    private List<BatchDetectSyntaxItemResult> callBatchDetectSyntax(String languageCode, String[] textArray) throws Exception
+    {
+        BatchDetectSyntaxRequest batchDetectSyntaxRequest = BatchDetectSyntaxRequest.builder()
+            .textList(textArray)
+            .languageCode(languageCode)
+            .overrideConfiguration(createRequestOverrideConfiguration("BatchDetectSyntax"))
+            .build();
+        BatchDetectSyntaxResponse batchDetectSyntaxResponse = callComprehendBatch("BatchDetectSyntax", languageCode, textArray, client -> client.batchDetectSyntax(batchDetectSyntaxRequest));
+        // Throw exception if errorList is populated
+        List<BatchItemError> batchItemError = batchDetectSyntaxResponse.errorList();
+        if (! batchItemError.isEmpty()) {
+            throw new RuntimeException("Error:  - ErrorList in batchDetectSyntax result: " + batchItemError);
+        }
+        List<BatchDetectSyntaxItemResult> batchDetectSyntaxItemResult = batchDetectSyntaxResponse.resultList(); 
+        if (batchDetectSyntaxItemResult.size() != textArray.length) {
+            throw new RuntimeException("Error:  - array size " + textArray.length + " and result item count " + batchDetectSyntaxItemResult.size() + " do not match");
+        }
+        return batchDetectSyntaxItemResult;
+    }
+
     /**
      * PRIVATE HELPER METHODS
      * 
      */
      
-    // merges multiple results from detectEntities or detectPiiEntities into a single string
-    private static String mergeEntities(String[] arrayOfJson) throws Exception
+    // formats the entities (or key phrases) merged from the segments of a long text in the same way as the result for a short text:
+    // the JSON full response, the JSON list of types and values (values only for key phrases), or the text with the specified types redacted.
+    // span offsets are in code points, as returned by the API, and are converted to char indexes to extract or redact text
+    private static String mergeSpans(List<SpanMerger.Span> spans, String text, RedactTypes redactTypes, boolean fullResponse) throws Exception
+    {
+        if (fullResponse) {
+            List<Map<String, Object>> entities = new ArrayList<Map<String, Object>>();
+            for (SpanMerger.Span span : spans) {
+                Map<String, Object> entity = new LinkedHashMap<String, Object>();
+                entity.put("score", span.score);
+                if (span.type != null) {
+                    entity.put("type", span.type);
+                }
+                if (span.text != null) {
+                    entity.put("text", span.text);
+                }
+                entity.put("beginOffset", span.beginOffset);
+                entity.put("endOffset", span.endOffset);
+                entities.add(entity);
+            }
+            return toJSON(entities);
+        }
+        OffsetIndex offsetIndex = new OffsetIndex(text);
+        if (redactTypes == null) {
+            List<Object> typesAndValues = new ArrayList<Object>();
+            for (SpanMerger.Span span : spans) {
+                String value = (span.text != null) ? span.text : offsetIndex.substring(span.beginOffset, span.endOffset);
+                typesAndValues.add((span.type != null) ? new String[]{span.type, value} : value);
+            }
+            return toJSON(typesAndValues);
+        }
+        // spans are in order of position - skip any nested inside a span already redacted
+        StringBuilder result = new StringBuilder();
+        int position = 0;
+        for (SpanMerger.Span span : spans) {
+            if (redactTypes.matches(span.type)) {
+                int begin = offsetIndex.toCharIndex(span.beginOffset);
+                if (begin >= position) {
+                    result.append(text, position, begin).append("[").append(span.type).append("]");
+                    position = offsetIndex.toCharIndex(span.endOffset);
+                }
+            }
+        }
+        return result.append(text.substring(position)).toString();
+    }
+    // merges multiple results from redactEntities or redactPiiEntities_all into a single string
+    private static String mergeText(String[] arrayOfStrings) throws Exception
+    {
+        return (String.join("", arrayOfStrings));
+    }
+    // groups short texts into packets whose packed form stays under maxTextBytes (maxTextBytes 0 returns one text per packet)
+    // texts that are too long, or that contain the delimiter pattern, are always sent in a packet of their own
+    private static List<List<String>> packTexts(List<String> texts, int maxTextBytes) throws Exception
+    {
+        List<List<String>> packets = new ArrayList<List<String>>();
+        List<String> packet = new ArrayList<String>();
+        int packetBytes = 0;
+        for (String text : texts) {
+            int textBytes = getUtf8StringLength(text) + getUtf8StringLength(packedTextDelimiter(packet.size()));
+            if (textBytes >= maxTextBytes || text.contains("[[")) {
+                packets.add(Arrays.asList(text));
+                continue;
+            }
+            if (packetBytes + textBytes >= maxTextBytes) {
+                // close off current packet, and start new one with this text
+                packets.add(packet);
+                packet = new ArrayList<String>();
+                packetBytes = 0;
+                textBytes = getUtf8StringLength(text) + getUtf8StringLength(packedTextDelimiter(0));
+            }
+            packet.add(text);
+            packetBytes += textBytes;
+        }
+        // last packet
+        if (! packet.isEmpty()) {
+            packets.add(packet);
+        }
+        return packets;
+    }
+    private static String packedTextDelimiter(int index)
+    {
+        return "\n[[" + index + "]]\n";
+    }
+    // joins texts into one string, each text preceded by a numbered delimiter line
+    private static String packText(List<String> texts)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < texts.size(); i++) {
+            sb.append(packedTextDelimiter(i)).append(texts.get(i));
+        }
+        return sb.toString();
+    }
+    // splits a packed (translated) string back into its texts. Returns null if the delimiters are missing, out of order or altered
+    private static String[] unpackText(String packedText, int count)
+    {
+        String[] result = new String[count];
+        Matcher matcher = PACKED_TEXT_DELIMITER.matcher(packedText);
+        int index = 0;
+        int textStart = 0;
+        while (matcher.find()) {
+            if (index >= count || Integer.parseInt(matcher.group(1)) != index) {
+                return null;
+            }
+            if (index == 0 && ! packedText.substring(0, matcher.start()).trim().isEmpty()) {
+                return null;
+            }
+            if (index > 0) {
+                result[index - 1] = packedText.substring(textStart, matcher.start());
+            }
+            textStart = matcher.end();
+            index++;
+        }
+        if (index != count) {
+            return null;
+        }
+        result[count - 1] = packedText.substring(textStart);
+        return result;
+    }
+
+    // splits input array into batches no larger than multiDocBatchSize
+    private List<Object[]> getBatches(String[] input, int multiRowBatchSize)
+        throws Exception
+    {
+        List<Object[]> batches = new ArrayList<Object[]>();
+        int start = 0;
+        int c = 0;
+        for (int i = 0; i < input.length; i++) {
+            if (c++ >= multiRowBatchSize) {
+                // add a batch, and reset c
+                batches.add(new Object[] {Arrays.copyOfRange(input, start, i), "MULTI_ROW_BATCH"});
+                start = i;
+                c = 1;
+            }
+        }
+        // last split
+        if (start < input.length) {
+            batches.add(new Object[] {Arrays.copyOfRange(input, start, input.length), "MULTI_ROW_BATCH"});
+        }
+        return batches;        
+    }
+    // as above, but also checks utf-8 byte size for input and can return batch for single input record containing splits
+    private List<Object[]> getBatches(String[] input, int multiRowBatchSize, int maxTextBytes, boolean splitLongText)
+        throws Exception
+    {
+        List<Object[]> batches = new ArrayList<Object[]>();
+        int start = 0;
+        int c = 0;
+        for (int i = 0; i < input.length; i++) {
+            if (c++ >= multiRowBatchSize) {
+                // add a batch (not including current row), and reset c
+                batches.add(new Object[] {Arrays.copyOfRange(input, start, i), "MULTI_ROW_BATCH"});
+                start = i;
+                c = 1;
+            }
+            int textLength = getUtf8StringLength(input[i]);
+            boolean tooLong = (textLength >= maxTextBytes) ? true : false;
+            if (tooLong && !splitLongText) {
+                // truncate this row
+                System.out.println("Truncating long text field (" + textLength + " bytes) to " + maxTextBytes + " bytes");
+                input[i] = truncateUtf8(input[i], maxTextBytes);
+            }
+            if (tooLong && splitLongText) {
+                // close off current multi-record batch before making new single record batch
+                if (start < i) {
+                    batches.add(new Object[] {Arrays.copyOfRange(input, start, i), "MULTI_ROW_BATCH"});
+                }
+                // split this row and add the text splits as a new *TEXT_SPLIT_BATCH* batch
+                String[] textSplit = splitLongText(input[i], maxTextBytes);
+                System.out.println("Split long text field (" + textLength + " bytes) into " + textSplit.length + " segments of under " + maxTextBytes + " bytes");
+                batches.add(new Object[] {textSplit, "TEXT_SPLIT_BATCH"});
+                // increment counters for next row / next batch
+                start = i + 1;
+                c = 1;                 
+            }            
+        }
+        // last multi-record split
+        if (start < input.length) {
+            batches.add(new Object[] {Arrays.copyOfRange(input, start, input.length), "MULTI_ROW_BATCH"});
+        }
+        return batches;         
+    }
+
+    // as above, but also splits input array into batches representing one language only
+    // the language codes are read as runs of rows with the same language (usually one run, for a literal like 'en'), rather than compared row by row
+    // TEXT_SPLIT_BATCH batches also carry the TextSegments of the split row, which start overlapBytes before the end of the previous segment
+    private List<Object[]> getBatches(String[] input, String[] languageCodes, int multiRowBatchSize, int maxTextBytes, int overlapBytes, boolean splitLongText)
+        throws Exception
+    {
+        List<Object[]> batches = new ArrayList<Object[]>();
+        ColumnRuns<String> languageRuns = ColumnRuns.of(languageCodes);
+        for (int run = 0; run < languageRuns.getRunCount(); run++) {
+            String languageCode = languageRuns.getValue(run);
+            int runEnd = Math.min(languageRuns.getEnd(run), input.length);
+            int start = languageRuns.getStart(run);
+            int c = 0;
+            for (int i = start; i < runEnd; i++) {
+                if (c++ >= multiRowBatchSize) {
+                    // add a batch (not including current row), and reset c
+                    batches.add(new Object[] {Arrays.copyOfRange(input, start, i), "MULTI_ROW_BATCH", languageCode});
+                    start = i;
+                    c = 1;
+                }
+                int textLength = getUtf8StringLength(input[i]);
+                boolean tooLong = (textLength > maxTextBytes) ? true : false;
+                if (tooLong && !splitLongText) {
+                    // truncate this row
+                    System.out.println("Truncating long text field (" + textLength + " bytes) to " + maxTextBytes + " bytes");
+                    input[i] = truncateUtf8(input[i], maxTextBytes);
+                }
+                if (tooLong && splitLongText) {
+                    // close off current multi-record batch before making new single record batch
+                    if (start < i) {
+                        batches.add(new Object[] {Arrays.copyOfRange(input, start, i), "MULTI_ROW_BATCH", languageCode});
+                    }
+                    // split this row and add the text splits as a new *TEXT_SPLIT_BATCH* batch
+                    TextSegment[] segments = splitLongText(input[i], maxTextBytes, Math.min(overlapBytes, maxTextBytes / 2));
+                    System.out.println("Split long text field (" + textLength + " bytes) into " + segments.length + " segments of under " + maxTextBytes + " bytes");
+                    batches.add(new Object[] {TextSegment.texts(segments), "TEXT_SPLIT_BATCH", languageCode, segments});
+                    // increment counters for next row / next batch
+                    start = i + 1;
+                    c = 0;
+                }
+            }
+            // last multi-record split of this language
+            if (start < runEnd) {
+                batches.add(new Object[] {Arrays.copyOfRange(input, start, runEnd), "MULTI_ROW_BATCH", languageCode});
+            }
+        }
+        return batches;
+    }
+
+    // waits for a task submitted to the scheduler, rethrowing the exception thrown by the task itself
+    private static <T> T getFutureResult(Future<T> future) throws Exception
+    {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static int getUtf8StringLength(String string) throws Exception
+    {
+        return OffsetIndex.utf8Length(string, 0, string.length());
+    }
+
+    private static long getUtf8StringLength(String[] strings) throws Exception
+    {
+        long length = 0;
+        for (String string : strings) {
+            length += getUtf8StringLength(string);
+        }
+        return length;
+    }
+
+    /**
+     * truncates a string to fit designated number of UTF-8 bytes
+     * Needed to comply with Comprehend's input string limit of 5000 UTF-8 bytes
+     * NOTE - not the same as String.length(), which counts (multi-byte) chars
+     */
+    private static String truncateUtf8(String string, int maxBytes) throws Exception
+    {
+        CharsetEncoder enc = StandardCharsets.UTF_8.newEncoder();
+        ByteBuffer bb = ByteBuffer.allocate(maxBytes); // note the limit
+        CharBuffer cb = CharBuffer.wrap(string);
+        CoderResult r = enc.encode(cb, bb, true);
+        if (r.isOverflow()) {
+            string = cb.flip().toString();
+        }
+        return string;
+    }
+
+    private static String[] splitLongText(String longText, int maxTextBytes) throws Exception
+    {
+        return TextSegment.texts(splitLongText(longText, maxTextBytes, 0));
+    }
+
+    /**
+     * splits long text at sentence boundaries into segments of under maxTextBytes UTF-8 bytes.
+     * Each segment after the first starts with as many whole sentences from the end of the previous segment as fit in
+     * overlapBytes, so that entities crossing a segment boundary are found whole in at least one segment.
+     */
+    private static TextSegment[] splitLongText(String longText, int maxTextBytes, int overlapBytes) throws Exception
+    {
+        BreakIterator boundary = BreakIterator.getSentenceInstance();
+        boundary.setText(longText);
+        List<Integer> sentenceStarts = new ArrayList<Integer>();
+        for (int start = boundary.first(); start != BreakIterator.DONE; start = boundary.next()) {
+            sentenceStarts.add(start);
+        }
+        int sentenceCount = sentenceStarts.size() - 1;
+        int[] sentenceBytes = new int[sentenceCount];
+        // segments are offset in code points as well as chars, to match the offsets returned by the API
+        int[] sentenceCodePointStarts = new int[sentenceCount];
+        for (int i = 0; i < sentenceCount; i++) {
+            sentenceBytes[i] = OffsetIndex.utf8Length(longText, sentenceStarts.get(i), sentenceStarts.get(i + 1));
+            if (i > 0) {
+                sentenceCodePointStarts[i] = sentenceCodePointStarts[i - 1] + longText.codePointCount(sentenceStarts.get(i - 1), sentenceStarts.get(i));
+            }
+        }
+        List<TextSegment> segments = new ArrayList<TextSegment>();
+        int first = 0;
+        while (first < sentenceCount) {
+            // recombine sentences up to maxTextBytes
+            int last = first;
+            int bytesCnt = 0;
+            while (last < sentenceCount && bytesCnt + sentenceBytes[last] < maxTextBytes) {
+                bytesCnt += sentenceBytes[last++];
+            }
+            if (last == first) {
+                System.out.println("DATA WARNING: sentence size (" + sentenceBytes[first] + " bytes) is larger than max (" + maxTextBytes + " bytes). Unsplittable - Skipping.");
+                System.out.println("Problematic sentence: " + longText.substring(sentenceStarts.get(first), sentenceStarts.get(first + 1)));
+                // TODO - Truncate, or drop?
+                first++;
+                continue;
+            }
+            System.out.println("DEBUG: Split size (" + bytesCnt + " bytes)");
+            segments.add(new TextSegment(longText.substring(sentenceStarts.get(first), sentenceStarts.get(last)), sentenceStarts.get(first), sentenceCodePointStarts[first]));
+            if (last == sentenceCount) {
+                break;
+            }
+            // start the next segment with the last sentences of this one, up to overlapBytes, always moving forward at least one sentence,
+            // and leaving room for the next new sentence - otherwise the next segment would repeat part of this one and add nothing
+            int next = last;
+            int overlap = 0;
+            while (next - 1 > first && overlap + sentenceBytes[next - 1] <= overlapBytes
+                && overlap + sentenceBytes[next - 1] + sentenceBytes[last] < maxTextBytes) {
+                overlap += sentenceBytes[--next];
+            }
+            first = next;
+        }
+        return segments.toArray(new TextSegment[0]);
+    }
+
+    private static String[] splitStringBySentence(String longText) 
+    {
+        BreakIterator boundary = BreakIterator.getSentenceInstance();
+        boundary.setText(longText);
+        List<String> sentencesList = new ArrayList<String>();
+        int start = boundary.first();
+        for (int end = boundary.next(); end != BreakIterator.DONE; start = end, end = boundary.next()) {
+            sentencesList.add(longText.substring(start, end));
+        }
+        String[] sentenceArray = (String[]) sentencesList.toArray(new String[0]);
+        return sentenceArray;
+    }
+ 
+    private static String toJSON(Object obj) 
+    {
+        Gson gson = new Gson();
+        return gson.toJson(obj);
+    }
+
+    private static String[] fromJSON(String json) 
+    {
+        Gson gson = new Gson();
+        return gson.fromJson(json, String[].class);
+    }
+
+    /**
+     * Processes a group by rows. This method takes in a block of data (containing multiple rows), process them and
+     * returns multiple rows of the output column in a block.
+     * <p>
+     * In the super class UDF methods are invoked row-by-row in a for loop. 
+     * This override method greatly improves throughput by batching records into 
+     * fewer calls using the Comprehend batch APIs.
+     * Rows are read, processed and written to the output block one window at a time (see BLOCK_WINDOW_ROWS, ignored when BULK_MIN_ROWS is set),
+     * so that large blocks of long text don't need several full copies of the block in memory.
+     *
+     * @param allocator arrow memory allocator
+     * @param udfMethod the extracted java method matching the User-Defined-Function defined in Athena.
+     * @param inputRecords input data in Arrow format
+     * @param outputSchema output data schema in Arrow format
+     * @return output data in Arrow format
+     */
+    @Override
+    protected Block processRows(BlockAllocator allocator, Method udfMethod, Block inputRecords, Schema outputSchema)
+            throws Exception
+    {
+        int rowCount = inputRecords.getRowCount();
+        System.out.println("DEBUG: inputRecords rowCount = " + rowCount);
+        this.usageMeter.startInvocation(udfMethod.getName());
+        int fieldCount = inputRecords.getFieldReaders().size();
+        System.out.println("DEBUG: inputRecords fieldCount = " + fieldCount);
+        // process the block in windows of rows, so that peak memory is bounded by window size rather than block size - unless blocks
+        // can be sent to asynchronous detection jobs, which take a whole block, so that a block runs one job and BULK_MIN_ROWS counts the block's texts
+        int windowSize = (this.config.getBlockWindowRows() > 0 && this.config.getBulkMinRows() == 0) ? this.config.getBlockWindowRows() : rowCount;
+        Field outputField = outputSchema.getFields().get(0);
+        // functions declared with a ROW or ARRAY return type write native Arrow values, rather than JSON strings
+        boolean structOutput = isComplexType(outputField);
+        // the UDF is bound to its implementation once per handler, and then called directly for each window of rows
+        UdfDispatcher.UdfFunction function = structOutput ? getDispatcher().getStructFunction(udfMethod) : getDispatcher().getFunction(udfMethod);
+        Block outputRecords = allocator.createBlock(outputSchema);
+        outputRecords.setRowCount(rowCount);
+        // low cardinality results (language codes, sentiment) are encoded once per distinct value and copied into the vector
+        FieldVector outputVector = outputRecords.getFieldVector(outputField.getName());
+        // large results (e.g. *_all JSON) can be compressed to keep the response under the Lambda limit - except by the function that decompresses them
+        ResultCompressor compressor = (this.config.getResultCompressionMinBytes() > 0 && ! udfMethod.getName().equals("decompress_result"))
+            ? new ResultCompressor(this.config.getResultCompressionMinBytes(), this.config.getResultCompressionLevel()) : null;
+        // results that would take the block over its size budget can be spilled to an object store, and a reference returned in their place
+        ResultSpiller spiller = (! this.config.getSpillBucket().isEmpty() && ! udfMethod.getName().equals("read_spilled_result") && ! udfMethod.getName().equals("decompress_result"))
+            ? new ResultSpiller(getResultStore(), this.config.getSpillBucket(), this.config.getSpillPrefix(), this.config.getSpillThresholdBytes()) : null;
+        Utf8ValueWriter valueWriter = new Utf8ValueWriter(OUTPUT_VALUE_CACHE_SIZE, compressor, spiller);
+        try {
+            for (int windowStart = 0; windowStart < rowCount; windowStart += windowSize) {
+                int windowEnd = Math.min(windowStart + windowSize, rowCount);
+                System.out.println("DEBUG: processing rows " + windowStart + " to " + (windowEnd - 1));
+                Object[] result = processWindow(function, inputRecords, fieldCount, windowStart, windowEnd);
+                if (structOutput) {
+                    for (int rowNum = windowStart; rowNum < windowEnd; ++rowNum) {
+                        outputRecords.setComplexValue(outputField.getName(), rowNum, StructFieldResolver.INSTANCE, result[rowNum - windowStart]);
+                    }
+                }
+                else if (outputVector instanceof VarCharVector) {
+                    for (int rowNum = windowStart; rowNum < windowEnd; ++rowNum) {
+                        valueWriter.write((VarCharVector) outputVector, rowNum, (String) result[rowNum - windowStart]);
+                    }
+                }
+                else {
+                    for (int rowNum = windowStart; rowNum < windowEnd; ++rowNum) {
+                        outputRecords.setValue(outputField.getName(), rowNum, result[rowNum - windowStart]);
+                    }
+                }
+            }
+        }
+        finally {
+            if (compressor != null) {
+                compressor.close();
+            }
+            System.out.println("DEBUG: " + this.usageMeter.endInvocation());
+        }
+        System.out.println("DEBUG: output " + valueWriter + " | Largest window input: " + this.largestWindowInputChars.get() + " chars");
+        return outputRecords;
+    }
+
+    // reads rows windowStart to windowEnd (exclusive) from the input block, and returns the UDF results for those rows
+    private Object[] processWindow(UdfDispatcher.UdfFunction function, Block inputRecords, int fieldCount, int windowStart, int windowEnd)
+            throws Exception
+    {
+        return function.apply(readWindow(inputRecords, fieldCount, windowStart, windowEnd));
+    }
+
+    private String[][] readWindow(Block inputRecords, int fieldCount, int windowStart, int windowEnd)
+    {
+        int windowRowCount = windowEnd - windowStart;
+        String[][] input = new String[fieldCount][windowRowCount];
+        long windowChars = 0;
+        for (int fieldNum = 0; fieldNum < fieldCount; ++fieldNum) {
+            String previous = null;
+            for (int rowNum = windowStart; rowNum < windowEnd; ++rowNum) {
+                String value = this.getStringValue(inputRecords, fieldNum, rowNum);
+                // repeated values (e.g. a literal language code) share one String, so ColumnRuns finds the runs by reference
+                if (! value.equals(previous)) {
+                    previous = value;
+                    windowChars += value.length();
+                }
+                input[fieldNum][rowNum - windowStart] = previous;
+            }
+        }
+        this.largestWindowInputChars.accumulateAndGet(windowChars, Math::max);
+        return input;
+    }
+
+    private static boolean isComplexType(Field field)
+    {
+        return (field.getType() instanceof ArrowType.Struct || field.getType() instanceof ArrowType.List);
+    }
+
+    /**
+     * Used to convert a specific field from row in the provided Block to a String value. 
+     * Code adapted from BlockUtils.rowToString.
+     *
+     * @param block The Block to read the row from.
+     * @param field The field number to read.
+     * @param row The row number to read.
+     * @return The String representation of the requested row.
+     */
+    private static String getStringValue(Block block, int field, int row)
+    {
+        if (row > block.getRowCount()) {
+            throw new IllegalArgumentException(row + " exceeds available rows " + block.getRowCount());
+        }
+        StringBuilder sb = new StringBuilder();
+        FieldReader fieldReader = block.getFieldReaders().get(field);
+        fieldReader.setPosition(row);
+        sb.append(BlockUtils.fieldToString(fieldReader));            
+        return sb.toString();
+    }
+
+    /**
+     * Testing
+     **/
+     
+    static void runSplitBySentenceTests(TextAnalyticsUDFHandler textAnalyticsUDFHandler) throws Exception
+    {
+        String[] resultArr;
+        String result;
+        System.out.println("Test splitting text by sentence");
+        String longText = new String("My name is Mr. P. A. Jeremiah Smith Jr., and I live at 1234 Summer Dr., Anytown, USA. This sentence has 10.5 words, and some abbreviations, e.g. this one. Also: punctuation in quotes, like this, \"Way to go Joe!\", she said.");
+        System.out.println("Original text: " + longText);
+        resultArr = textAnalyticsUDFHandler.redact_pii_entities(makeArray(longText, 1), makeArray("en", 1), makeArray("ALL", 1));
+        System.out.println("Original - PII Redacted: " + String.join("", resultArr)); 
+        resultArr = textAnalyticsUDFHandler.redact_entities(makeArray(longText, 1), makeArray("en", 1), makeArray("ALL", 1));
+        System.out.println("Original - Entities Redacted: " + String.join("", resultArr)); 
+        String[] sentenceArray = splitStringBySentence(longText);
+        System.out.println("Split sentences: \n" + String.join("\n", sentenceArray)); 
+        int cnt = sentenceArray.length;
+        resultArr = textAnalyticsUDFHandler.redact_pii_entities(sentenceArray, makeArray("en", cnt), makeArray("ALL", cnt));
+        result = String.join("", resultArr);
+        System.out.println("Text Split, PII Redacted and combined: " + result); 
+        resultArr = textAnalyticsUDFHandler.redact_entities(sentenceArray, makeArray("en", cnt), makeArray("ALL", cnt));
+        result = String.join("", resultArr);
+        System.out.println("Text Split, Entities Redacted and combined: " + result); 
+    }
+    
+    static void runStringLengthTests() throws Exception
+    {
+        String longText = "je déteste ça et je m'appelle Bob";
+        System.out.println("Original text: " + longText + "\nOriginal length bytes: " + getUtf8StringLength(longText) + " Original length chars: " + longText.length());
+        String truncated = truncateUtf8(longText, 20);
+        System.out.println("Truncated text: " + truncated + "\nNew length bytes: " + getUtf8StringLength(truncated) + " New length chars: " + truncated.length());
+    }
+    
+    static void runSplitLongTextTest() throws Exception
+    {
+        int maxTextBytes = 70;
+        String longText = "My name is Jeremiah. I live in Anytown, USA. I am 35 years old. I am 5'7\" tall. I love cars, and dogs. My SSN is 123-45-6789. My cell is (707)555-1234.";
+        System.out.println("Test slitting long text blocks to under " + maxTextBytes + " UTF-8 bytes");
+        String[] splits = splitLongText(longText, maxTextBytes);
+        System.out.println("Split of long text: \n" + String.join("\n", splits));
+    }
+    
+    
+    
+    static void runOverlapSplitTests() throws Exception
+    {
+        int maxTextBytes = 70;
+        int overlapBytes = 30;
+        String longText = "My name is Jeremiah. I live in Anytown, USA. I am 35 years old. I am 5'7\" tall. I love cars, and dogs. My SSN is 123-45-6789. My cell is (707)555-1234.";
+        System.out.println("Test splitting long text into segments of under " + maxTextBytes + " bytes, overlapping by up to " + overlapBytes + " bytes");
+        TextSegment[] segments = splitLongText(longText, maxTextBytes, overlapBytes);
+        int covered = 0;
+        for (TextSegment segment : segments) {
+            System.out.println(segment.getOffset() + ": " + segment.getText());
+            if (! longText.startsWith(segment.getText(), segment.getOffset()) || segment.getOffset() > covered || getUtf8StringLength(segment.getText()) >= maxTextBytes) {
+                System.out.println("FAILED: segment does not continue the text at offset " + segment.getOffset());
+            }
+            covered = segment.getOffset() + segment.getText().length();
+        }
+        if (covered != longText.length()) {
+            System.out.println("FAILED: segments cover " + covered + " of " + longText.length() + " chars");
+        }
+        // "Mr. P." ends segment 0 - BreakIterator splits the name after the abbreviation. Segment 1 overlaps from "Mr. P." onwards
+        String text = "Hello there. Mr. P. A. Smith lives in Anytown, USA.";
+        SpanMerger spanMerger = new SpanMerger();
+        spanMerger.add("PERSON", "P.", 0.6f, 17, 19, 0);
+        spanMerger.add("PERSON", "P. A. Smith", 0.98f, 4, 15, 13);
+        spanMerger.add("LOCATION", "Anytown, USA", 0.99f, 25, 37, 13);
+        // the same entity detected in both segments of an overlap
+        spanMerger.add("LOCATION", "Anytown, USA", 0.97f, 38, 50, 0);
+        List<SpanMerger.Span> spans = spanMerger.merge();
+        System.out.println("Merged spans: " + spans);
+        if (spans.size() != 2 || ! text.substring(spans.get(0).beginOffset, spans.get(0).endOffset).equals("P. A. Smith")) {
+            System.out.println("FAILED: expected the complete PERSON entity and one LOCATION");
+        }
+        System.out.println("Merged _all: " + mergeSpans(spans, text, null, true));
+        System.out.println("Merged values: " + mergeSpans(spans, text, null, false));
+        System.out.println("Merged redacted: " + mergeSpans(spans, text, RedactTypes.parse("ALL"), false));
+    }
+
+    static void runMergeEntitiesTests() throws Exception
+    {
+        // entities detected in three segments, at code point offsets 0, 10 and 20 of the whole text
+        SpanMerger spanMerger = new SpanMerger();
+        int[] segmentOffsets = new int[] {0, 10, 20};
+        for (int segmentOffset : segmentOffsets) {
+            spanMerger.add("NAME", null, 0.9f, 1, 5, segmentOffset);
+            if (segmentOffset < 20) {
+                spanMerger.add("ADDRESS", null, 0.8f, 5, 10, segmentOffset);
+            }
+        }
+        String text = "0123456789abcdefghijABCDEFGHIJ";
+        System.out.println(mergeSpans(spanMerger.merge(), text, null, true));
+        System.out.println(mergeSpans(spanMerger.merge(), text, null, false));
+        // key phrases have no type, and are returned as a list of values
+        SpanMerger keyPhraseMerger = new SpanMerger();
+        keyPhraseMerger.add(null, "Pixel 5", 0.99f, 4, 11, 0);
+        keyPhraseMerger.add(null, "Pixel 2XL", 0.98f, 4, 13, 20);
+        System.out.println(mergeSpans(keyPhraseMerger.merge(), "Bob Pixel 5 and Jim Pixel 2XL", null, false));
+        int maxTextBytes = 70;
+        String longText = "My name is Jeremiah. I live in Anytown, USA. I am 35 years old. I am 5'7\" tall. I love cars, and dogs. My SSN is 123-45-6789. My cell is (707)555-1234.";
+        String[] arrayOfJsonStrings = splitLongText(longText, maxTextBytes);
+        System.out.println(mergeText(arrayOfJsonStrings));  
+    }
+    
+    // randomized checks of the offset accounting of the split paths, for text mixing 1, 2, 3 and 4 byte UTF-8 characters.
+    // a fixed seed keeps failures reproducible
+    static void runOffsetPropertyTests() throws Exception
+    {
+        Random random = new Random(35);
+        String[] alphabet = new String[] {"a", "b", " ", ". ", "! ", "\u00e9", "\u00fc", "\u4e2d", "\u6587", "\ud83d\ude00", "\ud83c\udf89"};
+        int failures = 0;
+        for (int trial = 0; trial < 300 && failures < 5; trial++) {
+            StringBuilder builder = new StringBuilder();
+            int length = 1 + random.nextInt(400);
+            for (int i = 0; i < length; i++) {
+                builder.append(alphabet[random.nextInt(alphabet.length)]);
+            }
+            String text = builder.toString();
+            int maxTextBytes = 20 + random.nextInt(200);
+            int overlapBytes = random.nextInt(maxTextBytes / 2 + 1);
+            String failure = checkOffsetProperties(text, maxTextBytes, overlapBytes, random);
+            if (failure != null) {
+                failures++;
+                System.out.println("FAILED: " + failure + " - maxTextBytes " + maxTextBytes + ", overlapBytes " + overlapBytes + ", text " + toJSON(text));
+            }
+        }
+        System.out.println("Offset property tests complete, failures: " + failures);
+    }
+
+    // returns a description of the first property that does not hold, or null
+    private static String checkOffsetProperties(String text, int maxTextBytes, int overlapBytes, Random random) throws Exception
+    {
+        if (getUtf8StringLength(text) != text.getBytes("UTF-8").length) {
+            return "UTF-8 length differs from encoded length";
+        }
+        OffsetIndex offsetIndex = new OffsetIndex(text);
+        int codePointCount = text.codePointCount(0, text.length());
+        for (int i = 0; i < 20; i++) {
+            // random (not ascending) order, to exercise the cursor reset
+            int codePointOffset = random.nextInt(codePointCount + 1);
+            if (offsetIndex.toCharIndex(codePointOffset) != text.offsetByCodePoints(0, codePointOffset)) {
+                return "code point offset " + codePointOffset + " converts to the wrong char index";
+            }
+        }
+        TextSegment[] segments = splitLongText(text, maxTextBytes, overlapBytes);
+        SpanMerger spanMerger = new SpanMerger();
+        List<String> expectedTexts = new ArrayList<String>();
+        int covered = 0;
+        for (TextSegment segment : segments) {
+            String segmentText = segment.getText();
+            if (! text.startsWith(segmentText, segment.getOffset())) {
+                return "segment text does not match the original at char offset " + segment.getOffset();
+            }
+            if (segment.getCodePointOffset() != text.codePointCount(0, segment.getOffset())) {
+                return "segment code point offset " + segment.getCodePointOffset() + " does not match char offset " + segment.getOffset();
+            }
+            if (getUtf8StringLength(segmentText) >= maxTextBytes) {
+                return "segment is not under maxTextBytes";
+            }
+            if (segment.getOffset() < covered && segment.getOffset() + segmentText.length() <= covered) {
+                return "segment does not move forward";
+            }
+            covered = Math.max(covered, segment.getOffset() + segmentText.length());
+            // simulate an API response: a span over a random whole number of code points of the segment, offset in code points
+            int segmentCodePoints = segmentText.codePointCount(0, segmentText.length());
+            int begin = random.nextInt(segmentCodePoints);
+            int end = begin + 1 + random.nextInt(segmentCodePoints - begin);
+            String spanText = new OffsetIndex(segmentText).substring(begin, end);
+            spanMerger.add("T" + segment.getOffset(), spanText, 0.5f, begin, end, segment.getCodePointOffset());
+            expectedTexts.add(spanText);
+        }
+        // every sentence short enough to send must be in a segment - only unsplittable sentences are skipped
+        int sentenceStart = 0;
+        for (String sentence : splitStringBySentence(text)) {
+            if (getUtf8StringLength(sentence) < maxTextBytes && ! inSegment(segments, sentenceStart, sentenceStart + sentence.length())) {
+                return "sentence at char offset " + sentenceStart + " is not in any segment";
+            }
+            sentenceStart += sentence.length();
+        }
+        List<SpanMerger.Span> spans = spanMerger.merge();
+        if (spans.size() != expectedTexts.size()) {
+            return "merged " + spans.size() + " spans of distinct types, expected " + expectedTexts.size();
+        }
+        int previousBegin = -1;
+        for (SpanMerger.Span span : spans) {
+            if (span.beginOffset < previousBegin) {
+                return "merged spans are not in order";
+            }
+            previousBegin = span.beginOffset;
+            // offsets merged into the whole text must still locate the text detected in the segment
+            if (! offsetIndex.substring(span.beginOffset, span.endOffset).equals(span.text)) {
+                return "span " + span + " does not locate its text in the whole text";
+            }
+        }
+        // with one type, overlapping spans must be reconciled to non-overlapping ones
+        SpanMerger sameTypeMerger = new SpanMerger();
+        for (SpanMerger.Span span : spans) {
+            sameTypeMerger.add("T", span.text, span.score, span.beginOffset, span.endOffset, 0);
+        }
+        int previousEnd = 0;
+        for (SpanMerger.Span span : sameTypeMerger.merge()) {
+            if (span.beginOffset < previousEnd) {
+                return "spans of the same type overlap after merge";
+            }
+            previousEnd = span.endOffset;
+        }
+        return null;
+    }
+
+    private static boolean inSegment(TextSegment[] segments, int begin, int end)
     {
-        JSONArray resultArray = new JSONArray();
-        for (int i = 0; i < arrayOfJson.length; i++) {
-            JSONArray entities = new JSONArray(arrayOfJson[i]);
-            resultArray.putAll(entities);
+        for (TextSegment segment : segments) {
+            if (segment.getOffset() <= begin && end <= segment.getOffset() + segment.getText().length()) {
+                return true;
+            }
         }
-        return resultArray.toString();
+        return false;
     }
-    // merges multiple results from detectEntities_all or detectPiiEntities_all into a single string
-    // apply offsets to the beginOffset and endOffset members of each detected entity
-    private static String mergeEntitiesAll(String[] arrayOfJson, int[] offset) throws Exception
+
+    static void runPackTextTests() throws Exception
     {
-        JSONArray resultArray = new JSONArray();
-        for (int i = 0; i < arrayOfJson.length; i++) {
-            JSONArray entities = new JSONArray(arrayOfJson[i]);
-            JSONArray entityResultWithOffset = applyOffset(entities, offset[i]);
-            resultArray.putAll(entities);
+        List<String> texts = Arrays.asList("Red shoes", "Blue hat", "Green scarf [[sale]]", "Yellow socks");
+        List<List<String>> packets = packTexts(texts, 40);
+        System.out.println("Packets (max 40 bytes): " + toJSON(packets));
+        List<String> packet = packets.get(1);
+        String packed = packText(packet);
+        System.out.println("Packed text: " + toJSON(packed));
+        System.out.println("Unpacked text: " + toJSON(unpackText(packed, packet.size())));
+        String mangled = packed.replace("[[1]]", "[1]");
+        System.out.println("Unpacked text with altered delimiter (expect null): " + toJSON(unpackText(mangled, packet.size())));
+        List<String> spaced = Arrays.asList("  Red shoes", "Blue hat\n", " Green scarf ");
+        if (! Arrays.asList(unpackText(packText(spaced), spaced.size())).equals(spaced)) {
+            System.out.println("FAILED: unpacked texts lost their own whitespace: " + toJSON(unpackText(packText(spaced), spaced.size())));
+        }
+        // against a local stand-in for Translate that rejects packed requests: the rows are translated one by one, not returned untranslated
+        HttpServer server = startServiceStub(exchange -> {
+            String text = (String) new Gson().fromJson(readStubRequest(exchange), Map.class).get("Text");
+            if (text.contains("[[")) {
+                sendStubResponse(exchange, 400, "TextSizeLimitExceededException", "{\"Message\":\"stub rejects packed text\"}");
+            }
+            else {
+                sendStubResponse(exchange, 200, null, "{\"TranslatedText\":" + toJSON(text.toUpperCase()) + ",\"SourceLanguageCode\":\"en\",\"TargetLanguageCode\":\"es\"}");
+            }
+        });
+        try {
+            TextAnalyticsUDFHandler textAnalyticsUDFHandler = new TextAnalyticsUDFHandler(TextAnalyticsConfig.builder().translatePackRows(true).build());
+            textAnalyticsUDFHandler.translatePool = textAnalyticsUDFHandler.createClientPool("Translate", "us-east-1=" + getStubUrl(server), 0, TextAnalyticsUDFHandler::createStubTranslateClient);
+            String[] text = {"Red shoes", "Blue hat", "Yellow socks"};
+            String[] translated = textAnalyticsUDFHandler.translate_text(text, makeArray("en", text.length), makeArray("es", text.length), makeArray("null", text.length));
+            System.out.println("Translated after a failed packed request: " + toJSON(translated) + " | Fallbacks: " + textAnalyticsUDFHandler.packedTranslateFallbacks.get());
+            if (! Arrays.asList(translated).equals(Arrays.asList("RED SHOES", "BLUE HAT", "YELLOW SOCKS")) || textAnalyticsUDFHandler.packedTranslateFallbacks.get() != 1) {
+                System.out.println("FAILED: expected a failed packed request to fall back to single text requests");
+            }
+        }
+        finally {
+            server.stop(0);
         }
-        return resultArray.toString();   
     }
-    // merges multiple results from redactEntities or redactPiiEntities_all into a single string
-    private static String mergeText(String[] arrayOfStrings) throws Exception
+
+    static void runConfigTests() throws Exception
     {
-        return (String.join("", arrayOfStrings));
+        Map<String, String> env = new HashMap<String, String>();
+        env.put(TextAnalyticsConfig.MAX_BATCH_SIZE, "10");
+        env.put(TextAnalyticsConfig.TRANSLATE_PACK_ROWS, "true");
+        System.out.println("Config from environment: " + TextAnalyticsConfig.fromEnvironment(env));
+        env.put(TextAnalyticsConfig.MAX_BATCH_SIZE, "50");
+        try {
+            TextAnalyticsConfig.fromEnvironment(env);
+            System.out.println("ERROR: expected invalid MAX_BATCH_SIZE to be rejected");
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("Invalid config rejected: " + e.getMessage());
+        }
+        env.put(TextAnalyticsConfig.MAX_BATCH_SIZE, "10");
+        for (String maxTextBytes : new String[] {"100", "10000"}) {
+            env.put(TextAnalyticsConfig.MAX_TEXT_BYTES, maxTextBytes);
+            try {
+                TextAnalyticsConfig.fromEnvironment(env);
+                System.out.println("FAILED: expected MAX_TEXT_BYTES " + maxTextBytes + " to be rejected");
+            }
+            catch (IllegalArgumentException e) {
+                System.out.println("Invalid config rejected: " + e.getMessage());
+            }
+        }
     }
-    // apply offset to the values of beginOffset and endOffset in each result, so that they match the original long input text
-    private static JSONArray applyOffset(JSONArray entities, int offset) throws Exception
+
+    static void runDeadlineTests() throws Exception
     {
-        System.out.println("Entities DEBUG: " + entities);
-        int size = entities.length();
-        for (int i = 0; i < size; i++) {
-            JSONObject entity = entities.getJSONObject(i);
-            int beginOffset = entity.getInt("beginOffset");
-            int endOffset = entity.getInt("endOffset");
-            entity.put("beginOffset", beginOffset + offset);
-            entity.put("endOffset", endOffset + offset);
+        TextAnalyticsUDFHandler textAnalyticsUDFHandler = new TextAnalyticsUDFHandler(TextAnalyticsConfig.builder().deadlineReserveMillis(1000).build());
+        // simulate an invocation with only 500 ms left before the Lambda timeout
+        textAnalyticsUDFHandler.startInvocation(500);
+        try {
+            textAnalyticsUDFHandler.translate_text(makeArray("I am Bob", 1), makeArray("en", 1), makeArray("fr", 1), makeArray("null", 1));
+            System.out.println("ERROR: expected translate_text to fail fast near the invocation deadline");
+        }
+        catch (RuntimeException e) {
+            System.out.println("Failed fast near deadline: " + e.getMessage());
+        }
+        finally {
+            textAnalyticsUDFHandler.endInvocation();
         }
-        return entities;
     }
-    
-    // splits input array into batches no larger than multiDocBatchSize
-    private List<Object[]> getBatches(String[] input, int multiRowBatchSize)
-        throws Exception
+
+    static void runAdaptiveBatchSizerTests() throws Exception
     {
-        List<Object[]> batches = new ArrayList<Object[]>();
-        int start = 0;
-        int c = 0;
-        for (int i = 0; i < input.length; i++) {
-            if (c++ >= multiRowBatchSize) {
-                // add a batch, and reset c
-                batches.add(new Object[] {Arrays.copyOfRange(input, start, i), "MULTI_ROW_BATCH"});
-                start = i;
-                c = 1;
+        // simulated request feedback for a batch API with a 1 second target latency
+        AdaptiveBatchSizer batchSizer = new AdaptiveBatchSizer("BatchDetectEntities", 25, 5000, 1000);
+        long millis = 1000000L;
+        System.out.println("Start: " + batchSizer);
+        // 25 -> 12 -> 6 -> 3 -> 1 documents, then 5000 -> 2500 segment bytes
+        for (int i = 0; i < 5; i++) {
+            batchSizer.recordRequest(batchSizer.getDocumentsPerBatch(), 100000, 3000 * millis, 0);
+        }
+        System.out.println("After 5 slow requests: " + batchSizer);
+        if (batchSizer.getDocumentsPerBatch() != 1 || batchSizer.getSegmentBytes() != 2500) {
+            System.out.println("FAILED: expected slow requests to shrink to 1 document of 2500 bytes");
+        }
+        // a throttle of an unmeasured call (e.g. TranslateText, or a batch call that failed) on this thread is not counted against the next request
+        AdaptiveBatchSizer.recordThrottledAttempt();
+        long throttledAttempts = AdaptiveBatchSizer.getThrottledAttempts();
+        batchSizer.recordRequest(1, 2500, 5000 * millis, AdaptiveBatchSizer.getThrottledAttempts() - throttledAttempts);
+        System.out.println("After a slow request, following another call's throttle: " + batchSizer);
+        if (batchSizer.getSegmentBytes() != 1250) {
+            System.out.println("FAILED: expected a slow request to shrink the segment size, despite an earlier unrelated throttle");
+        }
+        AdaptiveBatchSizer.recordThrottledAttempt();
+        batchSizer.recordRequest(1, 2500, 5000 * millis, AdaptiveBatchSizer.getThrottledAttempts() - throttledAttempts);
+        System.out.println("After a throttled request: " + batchSizer);
+        if (batchSizer.getSegmentBytes() != 2500) {
+            System.out.println("FAILED: expected a throttled request to grow the segment size");
+        }
+        for (int i = 0; i < 30; i++) {
+            batchSizer.recordRequest(batchSizer.getDocumentsPerBatch(), 50000, 200 * millis, 0);
+        }
+        System.out.println("After 30 fast requests: " + batchSizer);
+        if (batchSizer.getDocumentsPerBatch() != 25) {
+            System.out.println("FAILED: expected fast requests to grow back to 25 documents per batch");
+        }
+        AdaptiveBatchSizer fixedSizer = new AdaptiveBatchSizer("BatchDetectSentiment", 25, 5000, 0);
+        fixedSizer.recordRequest(25, 100000, 30000 * millis, 0);
+        System.out.println("Adaptation disabled: " + fixedSizer);
+        SdkHttpResponse throttledResponse = SdkHttpResponse.builder().statusCode(400).putHeader("x-amzn-ErrorType", "ThrottlingException:http://internal.amazon.com/coral/com.amazon.coral.availability/").build();
+        SdkHttpResponse badRequestResponse = SdkHttpResponse.builder().statusCode(400).putHeader("x-amzn-ErrorType", "TextSizeLimitExceededException:").build();
+        System.out.println("Throttling response detected: " + ThrottleFeedbackInterceptor.isThrottled(throttledResponse)
+            + ", other error detected as throttling: " + ThrottleFeedbackInterceptor.isThrottled(badRequestResponse));
+    }
+
+    static void runRequestSchedulerTests() throws Exception
+    {
+        // 4 workers, at most 3 per API, at most 5 requests queued
+        RequestScheduler scheduler = new RequestScheduler(4, 3, 5);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        Map<String, AtomicInteger> apiRunning = new HashMap<String, AtomicInteger>();
+        Map<String, AtomicInteger> apiMaxRunning = new HashMap<String, AtomicInteger>();
+        List<String> startOrder = Collections.synchronizedList(new ArrayList<String>());
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        // all TranslateText requests are queued before any DetectPiiEntities request, as in a fused query
+        String[] apis = new String[] {"TranslateText", "DetectPiiEntities"};
+        for (String api : apis) {
+            apiRunning.put(api, new AtomicInteger());
+            apiMaxRunning.put(api, new AtomicInteger());
+        }
+        for (String api : apis) {
+            for (int i = 0; i < 10; i++) {
+                futures.add(scheduler.submit(api, () -> {
+                    startOrder.add(api);
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    apiMaxRunning.get(api).accumulateAndGet(apiRunning.get(api).incrementAndGet(), Math::max);
+                    Thread.sleep(50);
+                    apiRunning.get(api).decrementAndGet();
+                    running.decrementAndGet();
+                    return api;
+                }));
             }
         }
-        // last split
-        if (start < input.length) {
-            batches.add(new Object[] {Arrays.copyOfRange(input, start, input.length), "MULTI_ROW_BATCH"});
+        for (Future<String> future : futures) {
+            getFutureResult(future);
+        }
+        System.out.println(scheduler);
+        System.out.println("Start order: " + startOrder);
+        if (maxRunning.get() > 4 || apiMaxRunning.get("TranslateText").get() > 3 || apiMaxRunning.get("DetectPiiEntities").get() > 3) {
+            System.out.println("FAILED: concurrency budget exceeded - max running " + maxRunning + " per API " + apiMaxRunning);
+        }
+        if (startOrder.subList(0, 10).indexOf("DetectPiiEntities") < 0) {
+            System.out.println("FAILED: DetectPiiEntities requests did not start until TranslateText requests were done");
         }
-        return batches;        
     }
-    // as above, but also checks utf-8 byte size for input and can return batch for single input record containing splits
-    private List<Object[]> getBatches(String[] input, int multiRowBatchSize, int maxTextBytes, boolean splitLongText)
-        throws Exception
+
+    static void runSentimentAggregatorTests() throws Exception
     {
-        List<Object[]> batches = new ArrayList<Object[]>();
-        int start = 0;
-        int c = 0;
-        for (int i = 0; i < input.length; i++) {
-            if (c++ >= multiRowBatchSize) {
-                // add a batch (not including current row), and reset c
-                batches.add(new Object[] {Arrays.copyOfRange(input, start, i), "MULTI_ROW_BATCH"});
-                start = i;
-                c = 1;
+        // a long positive segment and a short negative one - the positive segment carries four times the weight
+        SentimentAggregator aggregator = new SentimentAggregator();
+        aggregator.add(SentimentScore.builder().positive(0.9f).negative(0.05f).neutral(0.05f).mixed(0f).build(), 4000);
+        aggregator.add(SentimentScore.builder().positive(0.1f).negative(0.8f).neutral(0.1f).mixed(0f).build(), 1000);
+        SentimentScore sentimentScore = aggregator.getSentimentScore();
+        System.out.println("Aggregated sentiment: " + formatSentiment(aggregator.getSentiment(), sentimentScore, true));
+        if (aggregator.getSentiment() != SentimentType.POSITIVE || Math.abs(sentimentScore.positive() - 0.74f) > 0.0001f || Math.abs(sentimentScore.negative() - 0.2f) > 0.0001f) {
+            System.out.println("FAILED: expected POSITIVE, with positive 0.74 and negative 0.2");
+        }
+    }
+
+    static void runSpanAggregatorTests() throws Exception
+    {
+        SpanAggregator spanAggregator = new SpanAggregator();
+        // the same person found in three segments, written three ways, and a location of the same text
+        spanAggregator.add("PERSON", "Joe Smith", 0.95f);
+        spanAggregator.add("LOCATION", "Richmond", 0.9f);
+        spanAggregator.add("PERSON", "joe  smith", 0.99f);
+        spanAggregator.add("PERSON", "\uff2aoe Smith", 0.97f);
+        spanAggregator.add("ORGANIZATION", "Richmond", 0.5f);
+        List<Map<String, Object>> items = spanAggregator.getItems();
+        System.out.println("Aggregated items: " + toJSON(items));
+        if (items.size() != 3 || ! items.get(0).get("text").equals("Joe Smith") || (Integer) items.get(0).get("count") != 3 || (Float) items.get(0).get("score") != 0.99f) {
+            System.out.println("FAILED: expected 3 distinct items, the first Joe Smith found 3 times with max score 0.99");
+        }
+    }
+
+    static void runStructOutputTests(TextAnalyticsUDFHandler textAnalyticsUDFHandler) throws Exception
+    {
+        System.out.println("Test writing structured results as Arrow ROW / ARRAY values");
+        // output types as Athena declares them, e.g. ARRAY(ROW(type VARCHAR, text VARCHAR, score DOUBLE, beginOffset INTEGER, endOffset INTEGER))
+        Field entityField = FieldBuilder.newBuilder("entity", Types.MinorType.STRUCT.getType())
+            .addStringField("type").addStringField("text").addFloat8Field("score").addIntField("beginoffset").addIntField("endoffset")
+            .build();
+        Schema entitiesSchema = SchemaBuilder.newBuilder()
+            .addField(FieldBuilder.newBuilder("entities", Types.MinorType.LIST.getType()).addField(entityField).build())
+            .build();
+        Schema sentimentSchema = SchemaBuilder.newBuilder()
+            .addField(FieldBuilder.newBuilder("sentiment", Types.MinorType.STRUCT.getType())
+                .addStringField("sentiment").addFloat4Field("positive").addFloat4Field("negative").addFloat4Field("neutral").addFloat4Field("mixed")
+                .build())
+            .build();
+        List<Map<String, Object>> entities = new ArrayList<Map<String, Object>>();
+        entities.add(toStructRow("PERSON", "Bob", 0.99f, 11, 14));
+        entities.add(toStructRow("LOCATION", "Herndon", 0.98f, 26, 33));
+        Map<String, Object> sentiment = new LinkedHashMap<String, Object>();
+        sentiment.put("sentiment", "POSITIVE");
+        sentiment.put("positive", 0.9f);
+        sentiment.put("negative", 0.01f);
+        sentiment.put("neutral", 0.08f);
+        sentiment.put("mixed", 0.01f);
+        try (BlockAllocator allocator = new BlockAllocatorImpl()) {
+            Block entitiesBlock = allocator.createBlock(entitiesSchema);
+            entitiesBlock.setComplexValue("entities", 0, StructFieldResolver.INSTANCE, entities);
+            entitiesBlock.setComplexValue("entities", 1, StructFieldResolver.INSTANCE, new ArrayList<Map<String, Object>>());
+            entitiesBlock.setRowCount(2);
+            System.out.println("Entities row 0: " + getStringValue(entitiesBlock, 0, 0));
+            System.out.println("Entities row 1: " + getStringValue(entitiesBlock, 0, 1));
+            Block sentimentBlock = allocator.createBlock(sentimentSchema);
+            sentimentBlock.setComplexValue("sentiment", 0, StructFieldResolver.INSTANCE, sentiment);
+            sentimentBlock.setRowCount(1);
+            System.out.println("Sentiment row 0: " + getStringValue(sentimentBlock, 0, 0));
+            entitiesBlock.close();
+            sentimentBlock.close();
+        }
+        System.out.println("ROW/ARRAY output dispatches to: " + textAnalyticsUDFHandler.getDispatcher().getStructFunction(
+            TextAnalyticsUDFHandler.class.getMethod("detect_entities_struct", String.class, String.class)));
+        try {
+            textAnalyticsUDFHandler.getDispatcher().getStructFunction(TextAnalyticsUDFHandler.class.getMethod("detect_entities", String.class, String.class));
+            System.out.println("FAILED: detect_entities accepted a ROW/ARRAY return type");
+        }
+        catch (RuntimeException e) {
+            System.out.println("ROW/ARRAY output rejected as expected: " + e.getMessage());
+        }
+    }
+
+    static void runColumnRunsTests() throws Exception
+    {
+        String[] column = new String[] {"en", "en", "en", "fr", "fr", "en", "de", "de", "de", "de"};
+        ColumnRuns<String> runs = ColumnRuns.of(column);
+        System.out.println("Runs of " + Arrays.toString(column) + ": " + runs);
+        if (runs.getRunCount() != 4 || runs.isConstant()) {
+            System.out.println("FAILED: expected 4 runs");
+        }
+        for (int row = 0; row < column.length; row++) {
+            if (! column[row].equals(runs.get(row)) || runs.getStart(runs.getRun(row)) > row || runs.getEnd(runs.getRun(row)) <= row) {
+                System.out.println("FAILED: row " + row + " read as " + runs.get(row) + " from run " + runs.getRun(row));
             }
-            int textLength = getUtf8StringLength(input[i]);
-            boolean tooLong = (textLength >= maxTextBytes) ? true : false;
-            if (tooLong && !splitLongText) {
-                // truncate this row
-                System.out.println("Truncating long text field (" + textLength + " bytes) to " + maxTextBytes + " bytes");
-                input[i] = truncateUtf8(input[i], maxTextBytes);
+        }
+        int[] parsed = new int[1];
+        ColumnRuns<RedactTypes> redactRuns = ColumnRuns.of(makeArray("NAME, USERNAME", 1000)).map(value -> {
+            parsed[0]++;
+            return RedactTypes.parse(value);
+        });
+        System.out.println("Redact types for 1000 rows parsed " + parsed[0] + " time(s): " + redactRuns.get(999));
+        if (parsed[0] != 1 || ! redactRuns.isConstant()) {
+            System.out.println("FAILED: expected a constant column parsed once");
+        }
+        RedactTypes redactTypes = RedactTypes.parse("USERNAME,ADDRESS");
+        if (redactTypes.matches("NAME") || ! redactTypes.matches("USERNAME") || ! RedactTypes.parse(" ALL ").matches("NAME") || ! RedactTypes.parse("").isEmpty()) {
+            System.out.println("FAILED: redact types matched " + redactTypes);
+        }
+        // one batch per language run, and multi-row batches no larger than the batch size
+        TextAnalyticsUDFHandler textAnalyticsUDFHandler = new TextAnalyticsUDFHandler();
+        List<Object[]> batches = textAnalyticsUDFHandler.getBatches(makeArray("I am Bob", column.length), column, 2, 5000, 0, true);
+        List<String> batchLanguages = new ArrayList<String>();
+        for (Object[] batch : batches) {
+            batchLanguages.add(batch[2] + "x" + ((String[]) batch[0]).length);
+        }
+        System.out.println("Batches of 2 by language: " + batchLanguages);
+        if (! batchLanguages.equals(Arrays.asList("enx2", "enx1", "frx2", "enx1", "dex2", "dex2"))) {
+            System.out.println("FAILED: unexpected batches");
+        }
+        // same language translate_text rows are returned without calling Translate, so this runs without AWS credentials
+        String[] text = new String[column.length];
+        for (int row = 0; row < column.length; row++) {
+            text[row] = "row " + row;
+        }
+        String[] result = textAnalyticsUDFHandler.translate_text(text, column, column, makeArray("null", column.length));
+        if (! Arrays.equals(result, text)) {
+            System.out.println("FAILED: translate_text runs returned " + Arrays.toString(result));
+        }
+    }
+
+    static void runEndpointConcurrencyTests() throws Exception
+    {
+        // an endpoint with 1 inference unit, at 2 requests per unit, shares 8 workers with an API allowed 6
+        String endpointArn = "arn:aws:comprehend:us-east-1:123456789012:document-classifier-endpoint/test";
+        RequestScheduler scheduler = new RequestScheduler(8, 6, 100);
+        scheduler.setApiMaxConcurrency(endpointArn, 1 * 2);
+        Map<String, AtomicInteger> apiRunning = new HashMap<String, AtomicInteger>();
+        Map<String, AtomicInteger> apiMaxRunning = new HashMap<String, AtomicInteger>();
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        for (String api : new String[] {endpointArn, "BatchDetectEntities"}) {
+            apiRunning.put(api, new AtomicInteger());
+            apiMaxRunning.put(api, new AtomicInteger());
+            for (int i = 0; i < 10; i++) {
+                futures.add(scheduler.submit(api, () -> {
+                    apiMaxRunning.get(api).accumulateAndGet(apiRunning.get(api).incrementAndGet(), Math::max);
+                    Thread.sleep(20);
+                    apiRunning.get(api).decrementAndGet();
+                    return api;
+                }));
             }
-            if (tooLong && splitLongText) {
-                // close off current multi-record batch before making new single record batch
-                if (start < i) {
-                    batches.add(new Object[] {Arrays.copyOfRange(input, start, i), "MULTI_ROW_BATCH"});
+        }
+        for (Future<String> future : futures) {
+            getFutureResult(future);
+        }
+        System.out.println(scheduler);
+        if (apiMaxRunning.get(endpointArn).get() != 2 || apiMaxRunning.get("BatchDetectEntities").get() > 6) {
+            System.out.println("FAILED: expected at most 2 endpoint requests and 6 BatchDetectEntities requests at a time, got " + apiMaxRunning);
+        }
+        // a long text classified in two segments - the longer segment carries three times the weight
+        ClassScoreAggregator aggregator = new ClassScoreAggregator();
+        Map<String, Float> scores = new LinkedHashMap<String, Float>();
+        scores.put("REFUND", 0.8f);
+        scores.put("DELIVERY", 0.2f);
+        aggregator.add(scores, 3000);
+        scores.clear();
+        scores.put("DELIVERY", 0.6f);
+        scores.put("OTHER", 0.4f);
+        aggregator.add(scores, 1000);
+        List<Map<String, Object>> classes = aggregator.getItems();
+        System.out.println("Aggregated classes: " + toJSON(classes));
+        if (! classes.get(0).get("name").equals("REFUND") || Math.abs((Float) classes.get(0).get("score") - 0.6f) > 0.0001f || Math.abs((Float) classes.get(1).get("score") - 0.3f) > 0.0001f) {
+            System.out.println("FAILED: expected REFUND 0.6, then DELIVERY 0.3");
+        }
+    }
+
+    // local stand-in for a Comprehend or Translate endpoint, so that client behavior can be tested without AWS
+    static HttpServer startServiceStub(HttpHandler handler) throws IOException
+    {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "textanalytics-udf-stub");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.createContext("/", handler);
+        server.start();
+        return server;
+    }
+    // sends a JSON protocol response - errors give their type, e.g. InternalServerException, as the services do
+    static void sendStubResponse(HttpExchange exchange, int statusCode, String errorType, String json) throws IOException
+    {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/x-amz-json-1.1");
+        if (errorType != null) {
+            exchange.getResponseHeaders().set("x-amzn-ErrorType", errorType);
+        }
+        exchange.sendResponseHeaders(statusCode, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+    static String readStubRequest(HttpExchange exchange) throws IOException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int length = exchange.getRequestBody().read(buffer); length >= 0; length = exchange.getRequestBody().read(buffer)) {
+            body.write(buffer, 0, length);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+    static String getStubUrl(HttpServer server)
+    {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+    static ComprehendClient createStubComprehendClient(HttpServer server, ClientOverrideConfiguration overrideConfiguration)
+    {
+        return createStubComprehendClient(new ClientPool.Endpoint("us-east-1", getStubUrl(server), 1), overrideConfiguration);
+    }
+    static ComprehendClient createStubComprehendClient(ClientPool.Endpoint endpoint, ClientOverrideConfiguration overrideConfiguration)
+    {
+        return ComprehendClient.builder()
+            .endpointOverride(URI.create(endpoint.getEndpointUrl()))
+            .region(Region.of(endpoint.getRegion()))
+            .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("test", "test")))
+            .httpClientBuilder(ApacheHttpClient.builder().maxConnections(50))
+            .overrideConfiguration(overrideConfiguration)
+            .build();
+    }
+    static TranslateClient createStubTranslateClient(ClientPool.Endpoint endpoint, ClientOverrideConfiguration overrideConfiguration)
+    {
+        return TranslateClient.builder()
+            .endpointOverride(URI.create(endpoint.getEndpointUrl()))
+            .region(Region.of(endpoint.getRegion()))
+            .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("test", "test")))
+            .httpClientBuilder(ApacheHttpClient.builder().maxConnections(50))
+            .overrideConfiguration(overrideConfiguration)
+            .build();
+    }
+    static void sleepQuietly(long millis)
+    {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static void runHedgingBenchmark() throws Exception
+    {
+        // local stand-in for Comprehend: most DetectPiiEntities calls return in ~20 ms, 1 in 16 stalls for 400 ms
+        Random random = new Random(42);
+        HttpServer server = startServiceStub(exchange -> {
+            int delayMillis;
+            synchronized (random) {
+                delayMillis = (random.nextInt(16) == 0) ? 400 : 15 + random.nextInt(10);
+            }
+            sleepQuietly(delayMillis);
+            sendStubResponse(exchange, 200, null, "{\"Entities\":[]}");
+        });
+        ComprehendClient client = createStubComprehendClient(server, ClientOverrideConfiguration.builder().build());
+        DetectPiiEntitiesRequest request = DetectPiiEntitiesRequest.builder().text("I am Bob, I live in Herndon.").languageCode("en").build();
+        int calls = 400;
+        double budgetPercent = 12;
+        try {
+            double[] p99Millis = new double[2];
+            int i = 0;
+            for (RequestHedger hedger : new RequestHedger[] {new RequestHedger(0, budgetPercent), new RequestHedger(90, budgetPercent)}) {
+                ExecutorService callers = Executors.newFixedThreadPool(10);
+                List<Future<DetectPiiEntitiesResponse>> futures = new ArrayList<Future<DetectPiiEntitiesResponse>>();
+                for (int call = 0; call < calls; call++) {
+                    futures.add(callers.submit(() -> hedger.call("DetectPiiEntities", () -> client.detectPiiEntities(request))));
                 }
-                // split this row and add the text splits as a new *TEXT_SPLIT_BATCH* batch
-                String[] textSplit = splitLongText(input[i], maxTextBytes);
-                System.out.println("Split long text field (" + textLength + " bytes) into " + textSplit.length + " segments of under " + maxTextBytes + " bytes");
-                batches.add(new Object[] {textSplit, "TEXT_SPLIT_BATCH"});
-                // increment counters for next row / next batch
-                start = i + 1;
-                c = 1;                 
-            }            
+                for (Future<DetectPiiEntitiesResponse> future : futures) {
+                    getFutureResult(future);
+                }
+                callers.shutdown();
+                System.out.println(hedger);
+                p99Millis[i++] = hedger.getLatencyPercentileMillis("DetectPiiEntities", 99);
+                if (hedger.getHedgeRatePercent("DetectPiiEntities") > budgetPercent) {
+                    System.out.println("FAILED: hedge rate " + hedger.getHedgeRatePercent("DetectPiiEntities") + "% is over the " + budgetPercent + "% budget");
+                }
+            }
+            System.out.println(String.format("DetectPiiEntities p99 latency: %.0f ms unhedged, %.0f ms hedged", p99Millis[0], p99Millis[1]));
+            if (p99Millis[1] >= p99Millis[0] / 2) {
+                System.out.println("FAILED: hedging did not cut the p99 latency");
+            }
+        }
+        finally {
+            client.close();
+            server.stop(0);
+        }
+        // with hedging on, requests are made on the hedger's threads - their throttles must still reach the batch sizer,
+        // so that slow throttled requests grow the segment size rather than shrink it. The first attempt of each request is throttled
+        HttpServer throttlingServer = startServiceStub(exchange -> {
+            readStubRequest(exchange);
+            if (exchange.getRequestHeaders().getFirst("amz-sdk-request").contains("attempt=1;")) {
+                sendStubResponse(exchange, 400, "ThrottlingException", "{\"message\":\"Rate exceeded\"}");
+            }
+            else {
+                sendStubResponse(exchange, 200, null, "{\"Entities\":[]}");
+            }
+        });
+        try {
+            TextAnalyticsConfig config = TextAnalyticsConfig.builder().hedgePercentile(90).adaptiveTargetLatencyMillis(20).build();
+            TextAnalyticsUDFHandler textAnalyticsUDFHandler = new TextAnalyticsUDFHandler(config);
+            textAnalyticsUDFHandler.comprehendPool = textAnalyticsUDFHandler.createClientPool("Comprehend", "us-east-1=" + getStubUrl(throttlingServer), 0, TextAnalyticsUDFHandler::createStubComprehendClient);
+            String[] text = new String[3 * RequestHedger.MIN_SAMPLES];
+            for (int i = 0; i < text.length; i++) {
+                text[i] = "I am customer " + i;
+            }
+            textAnalyticsUDFHandler.detect_pii_entities(text, makeArray("en", text.length));
+            AdaptiveBatchSizer batchSizer = textAnalyticsUDFHandler.getBatchSizer("DetectPiiEntities");
+            System.out.println("Throttled while hedging: " + textAnalyticsUDFHandler.getHedger() + " | " + batchSizer);
+            if (batchSizer.getSegmentBytes() != config.getMaxTextBytes()) {
+                System.out.println("FAILED: expected throttled requests made by the hedger not to shrink the segment size");
+            }
+        }
+        finally {
+            throttlingServer.stop(0);
+        }
+    }
+
+    static void runCircuitBreakerTests() throws Exception
+    {
+        // local stand-in for Comprehend that fails every request with a server error until it is made healthy
+        AtomicBoolean healthy = new AtomicBoolean(false);
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = startServiceStub(exchange -> {
+            requests.incrementAndGet();
+            if (healthy.get()) {
+                sendStubResponse(exchange, 200, null, "{\"Entities\":[]}");
+            }
+            else {
+                sendStubResponse(exchange, 500, "InternalServerException", "{\"Message\":\"stub outage\"}");
+            }
+        });
+        // opens once half of the last 10 attempts fail - the client retries 100 times, as the UDF's clients do
+        CircuitBreakerInterceptor circuitBreaker = new CircuitBreakerInterceptor("Comprehend", 50, 10, 500);
+        ClientOverrideConfiguration overrideConfiguration = ClientOverrideConfiguration.builder()
+            .retryPolicy(RetryPolicy.defaultRetryPolicy().toBuilder()
+                .numRetries(100)
+                .backoffStrategy(EqualJitterBackoffStrategy.builder().baseDelay(Duration.ofMillis(10)).maxBackoffTime(Duration.ofMillis(50)).build())
+                .build())
+            .addExecutionInterceptor(circuitBreaker)
+            .build();
+        ComprehendClient client = createStubComprehendClient(server, overrideConfiguration);
+        DetectPiiEntitiesRequest request = DetectPiiEntitiesRequest.builder().text("I am Bob, I live in Herndon.").languageCode("en").build();
+        try {
+            String[] expectedStates = {"OPEN", "OPEN", "OPEN", "CLOSED"};
+            for (int call = 0; call < expectedStates.length; call++) {
+                if (call == 2) {
+                    // still failing when the circuit is half-open - the probe fails, and the circuit opens again
+                    Thread.sleep(600);
+                }
+                if (call == 3) {
+                    healthy.set(true);
+                    Thread.sleep(600);
+                }
+                int requestsBefore = requests.get();
+                long startNanos = System.nanoTime();
+                String outcome;
+                try {
+                    client.detectPiiEntities(request);
+                    outcome = "succeeded";
+                }
+                catch (RuntimeException e) {
+                    outcome = "failed: " + e.getMessage();
+                }
+                long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+                String state = circuitBreaker.getState("DetectPiiEntities").toString();
+                System.out.println("Call " + call + " " + outcome.split("\\. ")[0] + " - " + (requests.get() - requestsBefore) + " requests sent, " + elapsedMillis + " ms, circuit " + state);
+                if (! state.equals(expectedStates[call])) {
+                    System.out.println("FAILED: expected circuit " + expectedStates[call]);
+                }
+                if (call < 3 && ! outcome.contains("circuit open")) {
+                    System.out.println("FAILED: expected the call to fail with the circuit open");
+                }
+                if (call == 1 && (requests.get() != requestsBefore || elapsedMillis > 100)) {
+                    System.out.println("FAILED: expected the call to fail immediately, without sending a request");
+                }
+                if (call == 2 && requests.get() - requestsBefore != 1) {
+                    System.out.println("FAILED: expected a single probe request while half-open");
+                }
+            }
+            System.out.println(circuitBreaker);
+            // translate_text returns a row untranslated if its request fails - but with the circuit open, the block fails instead
+            healthy.set(false);
+            int requestsBefore = requests.get();
+            TextAnalyticsConfig config = TextAnalyticsConfig.builder().translatePackRows(false).maxRetries(2).retryBaseDelayMillis(10).retryMaxBackoffMillis(20)
+                .circuitFailurePercent(50).circuitMinRequests(4).circuitOpenMillis(60000).build();
+            TextAnalyticsUDFHandler textAnalyticsUDFHandler = new TextAnalyticsUDFHandler(config);
+            textAnalyticsUDFHandler.translatePool = textAnalyticsUDFHandler.createClientPool("Translate", "us-east-1=" + getStubUrl(server), 0, TextAnalyticsUDFHandler::createStubTranslateClient);
+            String[] text = new String[20];
+            for (int i = 0; i < text.length; i++) {
+                text[i] = "Hello " + i;
+            }
+            try {
+                String[] translated = textAnalyticsUDFHandler.translate_text(text, makeArray("en", text.length), makeArray("es", text.length), makeArray("null", text.length));
+                System.out.println("FAILED: expected translate_text to fail with the circuit open, but returned " + translated[0]);
+            }
+            catch (CircuitOpenException e) {
+                System.out.println("translate_text failed with the circuit open, after " + (requests.get() - requestsBefore) + " requests: " + e.getMessage().split("\\. ")[0]);
+            }
+        }
+        finally {
+            client.close();
+            server.stop(0);
+        }
+        // attempts cancelled by their caller (e.g. losing hedged requests), or cut short by the invocation deadline, are not failures:
+        // a stand-in that answers every request after 500 ms, and a client with one connection, so that a second request waits for the first
+        HttpServer slowServer = startServiceStub(exchange -> {
+            sleepQuietly(500);
+            sendStubResponse(exchange, 200, null, "{\"Entities\":[]}");
+        });
+        CircuitBreakerInterceptor cancelCircuitBreaker = new CircuitBreakerInterceptor("Comprehend", 50, 4, 60000);
+        ComprehendClient singleConnectionClient = ComprehendClient.builder()
+            .endpointOverride(URI.create(getStubUrl(slowServer)))
+            .region(Region.US_EAST_1)
+            .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("test", "test")))
+            .httpClientBuilder(ApacheHttpClient.builder().maxConnections(1))
+            .overrideConfiguration(ClientOverrideConfiguration.builder().retryPolicy(RetryPolicy.none()).addExecutionInterceptor(cancelCircuitBreaker).build())
+            .build();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int round = 0; round < 4; round++) {
+                Future<?> first = executor.submit(() -> singleConnectionClient.detectPiiEntities(request));
+                Thread.sleep(100);
+                Future<?> second = executor.submit(() -> singleConnectionClient.detectPiiEntities(request));
+                Thread.sleep(100);
+                // cancelled while waiting for the connection, as the hedger cancels the slower of two requests
+                second.cancel(true);
+                try {
+                    first.get();
+                }
+                catch (ExecutionException e) {
+                    System.out.println("FAILED: expected the request not cancelled to succeed, but " + e.getCause().getMessage().split("\\. ")[0]);
+                }
+            }
+            // a request whose timeout was shortened to the time left before the invocation deadline
+            InvocationDeadline deadline = InvocationDeadline.fromRemainingTime(200, 0);
+            for (int call = 0; call < 4; call++) {
+                try {
+                    singleConnectionClient.detectPiiEntities(request.toBuilder().overrideConfiguration(AwsRequestOverrideConfiguration.builder()
+                        .apiCallTimeout(deadline.apiCallTimeout(60000))
+                        .putExecutionAttribute(CircuitBreakerInterceptor.INVOCATION_DEADLINE, deadline)
+                        .build()).build());
+                    System.out.println("FAILED: expected the request to time out at the invocation deadline");
+                }
+                catch (ApiCallTimeoutException e) {
+                    // expected
+                }
+                catch (CircuitOpenException e) {
+                    System.out.println("FAILED: expected the request to time out at the invocation deadline, but " + e.getMessage().split("\\. ")[0]);
+                }
+            }
+            System.out.println(cancelCircuitBreaker);
+            if (! cancelCircuitBreaker.getState("DetectPiiEntities").equals(CircuitBreakerInterceptor.State.CLOSED)
+                || ! cancelCircuitBreaker.toString().contains("failed 0")) {
+                System.out.println("FAILED: expected cancelled requests, and requests cut short by the invocation deadline, not to count as failures");
+            }
+        }
+        finally {
+            executor.shutdownNow();
+            singleConnectionClient.close();
+            slowServer.stop(0);
+        }
+    }
+
+    static void runClientPoolTests() throws Exception
+    {
+        // three local stand-ins for Comprehend regions: fast, slow, and one that throttles every request
+        HttpServer[] servers = new HttpServer[3];
+        int[] delayMillis = {5, 40, 0};
+        for (int i = 0; i < servers.length; i++) {
+            int server = i;
+            servers[i] = startServiceStub(exchange -> {
+                sleepQuietly(delayMillis[server]);
+                if (server == 2) {
+                    sendStubResponse(exchange, 400, "TooManyRequestsException", "{\"Message\":\"Rate exceeded\"}");
+                }
+                else {
+                    sendStubResponse(exchange, 200, null, "{\"Entities\":[]}");
+                }
+            });
+        }
+        String[] regions = {"us-east-1", "us-west-2", "eu-west-1"};
+        DetectPiiEntitiesRequest request = DetectPiiEntitiesRequest.builder().text("I am Bob, I live in Herndon.").languageCode("en").build();
+        try {
+            for (String routing : new String[] {ClientPool.LEAST_OUTSTANDING, ClientPool.TOKEN_BUDGET}) {
+                TextAnalyticsConfig config = TextAnalyticsConfig.builder().clientPoolRouting(routing).retryBaseDelayMillis(20).retryMaxBackoffMillis(500).build();
+                TextAnalyticsUDFHandler textAnalyticsUDFHandler = new TextAnalyticsUDFHandler(config);
+                // token_budget: the fast region has a quota of 30 requests per second, the others 10
+                String[] endpoints = new String[regions.length];
+                for (int i = 0; i < regions.length; i++) {
+                    endpoints[i] = regions[i] + "=" + getStubUrl(servers[i]) + (routing.equals(ClientPool.TOKEN_BUDGET) ? ((i == 0) ? "*30" : "*10") : "");
+                }
+                ClientPool<ComprehendClient> pool = textAnalyticsUDFHandler.createClientPool("Comprehend", String.join(", ", endpoints), 0, TextAnalyticsUDFHandler::createStubComprehendClient);
+                ExecutorService callers = Executors.newFixedThreadPool(12);
+                List<Future<DetectPiiEntitiesResponse>> futures = new ArrayList<Future<DetectPiiEntitiesResponse>>();
+                long startNanos = System.nanoTime();
+                for (int call = 0; call < 300; call++) {
+                    futures.add(callers.submit(() -> pool.call("DetectPiiEntities", client -> client.detectPiiEntities(request))));
+                }
+                for (Future<DetectPiiEntitiesResponse> future : futures) {
+                    getFutureResult(future);
+                }
+                callers.shutdown();
+                System.out.println(pool + " - " + ((System.nanoTime() - startNanos) / 1000000) + " ms");
+                if (pool.getCalls(2) > 30) {
+                    System.out.println("FAILED: expected the throttling region to be avoided, but it was sent " + pool.getCalls(2) + " requests");
+                }
+                if (pool.getCalls(0) <= pool.getCalls(1)) {
+                    System.out.println("FAILED: expected the fast (or larger quota) region to be sent the most requests");
+                }
+            }
+            // a custom model endpoint is only called in its own region - one outside the pool's regions fails with an error naming the region
+            TextAnalyticsUDFHandler textAnalyticsUDFHandler = new TextAnalyticsUDFHandler();
+            textAnalyticsUDFHandler.comprehendPool = textAnalyticsUDFHandler.createClientPool("Comprehend", "us-east-1=" + getStubUrl(servers[0]), 0, TextAnalyticsUDFHandler::createStubComprehendClient);
+            try {
+                textAnalyticsUDFHandler.classify_document(new String[] {"I am Bob"}, new String[] {"arn:aws:comprehend:eu-west-1:123456789012:document-classifier-endpoint/stub"});
+                System.out.println("FAILED: expected an endpoint in a region without a client to be rejected");
+            }
+            catch (RuntimeException e) {
+                System.out.println(e.getMessage());
+                if (! e.getMessage().contains("is in region eu-west-1")) {
+                    System.out.println("FAILED: expected the error to name the endpoint's region");
+                }
+            }
+        }
+        finally {
+            for (HttpServer server : servers) {
+                server.stop(0);
+            }
+        }
+        // text is only ever sent to allowed regions - endpoints elsewhere are rejected when the configuration is read
+        for (String comprehendEndpoints : new String[] {"eu-west-1, eu-central-1*2", "eu-west-1, us-east-1", "eu-west-1*0", "localhost:8080"}) {
+            try {
+                TextAnalyticsConfig.builder().comprehendEndpoints(comprehendEndpoints).allowedRegions("eu-west-1,eu-central-1").build();
+                System.out.println("Accepted COMPREHEND_ENDPOINTS " + comprehendEndpoints);
+                if (! comprehendEndpoints.startsWith("eu-west-1, eu-central-1")) {
+                    System.out.println("FAILED: expected " + comprehendEndpoints + " to be rejected");
+                }
+            }
+            catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
+    static void runSingleFlightTests() throws Exception
+    {
+        // identical requests in progress at once share one call - a different language is a different request
+        SingleFlight singleFlight = new SingleFlight();
+        AtomicInteger calls = new AtomicInteger();
+        ExecutorService callers = Executors.newFixedThreadPool(20);
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        for (int i = 0; i < 20; i++) {
+            String languageCode = (i < 15) ? "en" : "es";
+            futures.add(callers.submit(() -> singleFlight.call("DetectPiiEntities", languageCode, "", new String[] {"I am Bob"}, () -> {
+                calls.incrementAndGet();
+                Thread.sleep(100);
+                return languageCode;
+            })));
+        }
+        for (Future<String> future : futures) {
+            getFutureResult(future);
+        }
+        callers.shutdown();
+        System.out.println(singleFlight);
+        if (calls.get() != 2) {
+            System.out.println("FAILED: expected 2 calls, one per language, but made " + calls.get());
+        }
+        // end to end, against a local stand-in for Comprehend: blocks of repeated text, with no cached results yet
+        Map<String, AtomicInteger> requests = new HashMap<String, AtomicInteger>();
+        requests.put("BatchDetectEntities", new AtomicInteger());
+        requests.put("DetectPiiEntities", new AtomicInteger());
+        HttpServer server = startServiceStub(exchange -> {
+            String api = exchange.getRequestHeaders().getFirst("X-Amz-Target").replaceFirst(".*\\.", "");
+            String request = readStubRequest(exchange);
+            requests.get(api).incrementAndGet();
+            sleepQuietly(50);
+            if (api.equals("BatchDetectEntities")) {
+                List<String> results = new ArrayList<String>();
+                for (int index = 0; index < ((List<?>) new Gson().fromJson(request, Map.class).get("TextList")).size(); index++) {
+                    results.add("{\"Index\":" + index + ",\"Entities\":[]}");
+                }
+                sendStubResponse(exchange, 200, null, "{\"ResultList\":[" + String.join(",", results) + "],\"ErrorList\":[]}");
+            }
+            else {
+                sendStubResponse(exchange, 200, null, "{\"Entities\":[]}");
+            }
+        });
+        try {
+            TextAnalyticsUDFHandler textAnalyticsUDFHandler = new TextAnalyticsUDFHandler();
+            textAnalyticsUDFHandler.comprehendPool = textAnalyticsUDFHandler.createClientPool("Comprehend", "us-east-1=" + getStubUrl(server), 0, TextAnalyticsUDFHandler::createStubComprehendClient);
+            // two queries run detect_entities on the same 100 rows at once - 4 batches of 25 each, made once
+            String[] rows = new String[100];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = "I am Bob, I live in Herndon. Row " + i;
+            }
+            ExecutorService queries = Executors.newFixedThreadPool(2);
+            List<Future<String[]>> results = new ArrayList<Future<String[]>>();
+            for (int query = 0; query < 2; query++) {
+                results.add(queries.submit(() -> textAnalyticsUDFHandler.detect_entities(rows, makeArray("en", rows.length))));
+            }
+            for (Future<String[]> result : results) {
+                getFutureResult(result);
+            }
+            queries.shutdown();
+            // 100 rows of 5 texts, detected one text per request
+            String[] text = new String[100];
+            for (int i = 0; i < text.length; i++) {
+                text[i] = "I am customer " + (i % 5);
+            }
+            textAnalyticsUDFHandler.detect_pii_entities(text, makeArray("en", text.length));
+            System.out.println(textAnalyticsUDFHandler.singleFlight + " | stub requests " + requests);
+            if (requests.get("BatchDetectEntities").get() != 4 || requests.get("DetectPiiEntities").get() != 5) {
+                System.out.println("FAILED: expected 4 BatchDetectEntities requests and 5 DetectPiiEntities requests");
+            }
+        }
+        finally {
+            server.stop(0);
+        }
+    }
+
+    static void runBulkJobTests() throws Exception
+    {
+        // a local stand-in for Comprehend's asynchronous job API, and a local directory standing in for S3:
+        // each job finds "Bob" in its documents, and completes the second time it is described
+        Path bulkDirectory = Files.createTempDirectory("bulk");
+        ResultStore store = LocalResultStore.fromUrl(bulkDirectory.toUri().toString());
+        Map<String, String> jobIds = new ConcurrentHashMap<String, String>();
+        Map<String, String> jobUris = new ConcurrentHashMap<String, String>();
+        Map<String, AtomicInteger> describes = new ConcurrentHashMap<String, AtomicInteger>();
+        Map<String, AtomicInteger> requests = new ConcurrentHashMap<String, AtomicInteger>();
+        HttpServer server = startServiceStub(exchange -> {
+            String api = exchange.getRequestHeaders().getFirst("X-Amz-Target").replaceFirst(".*\\.", "");
+            Map<?, ?> request = new Gson().fromJson(readStubRequest(exchange), Map.class);
+            requests.computeIfAbsent(api, key -> new AtomicInteger()).incrementAndGet();
+            boolean pii = api.contains("Pii");
+            if (api.startsWith("Start")) {
+                // the same client request token attaches to the job already started
+                String jobId = jobIds.computeIfAbsent((String) request.get("ClientRequestToken"), token -> "job" + jobIds.size());
+                String inputUri = (String) ((Map<?, ?>) request.get("InputDataConfig")).get("S3Uri");
+                String outputUri = (String) ((Map<?, ?>) request.get("OutputDataConfig")).get("S3Uri");
+                jobUris.put(jobId, inputUri + " " + outputUri);
+                sendStubResponse(exchange, 200, null, "{\"JobId\":\"" + jobId + "\",\"JobStatus\":\"SUBMITTED\"}");
+            }
+            else if (api.startsWith("Describe")) {
+                String jobId = (String) request.get("JobId");
+                String[] uris = jobUris.get(jobId).replace("s3://", "").split(" ");
+                String bucket = uris[0].substring(0, uris[0].indexOf('/'));
+                String outputKey = uris[1].substring(uris[1].indexOf('/') + 1) + "123456789012-" + (pii ? "PII" : "NER") + "-" + jobId + "/output/";
+                String status = "IN_PROGRESS";
+                if (describes.computeIfAbsent(jobId, key -> new AtomicInteger()).incrementAndGet() > 1) {
+                    status = "COMPLETED";
+                    String documents = new String(store.get(bucket, uris[0].substring(uris[0].indexOf('/') + 1) + BulkJobRunner.INPUT_FILE), StandardCharsets.UTF_8);
+                    StringBuilder output = new StringBuilder();
+                    String[] lines = documents.split("\n");
+                    for (int line = 0; line < lines.length; line++) {
+                        int offset = lines[line].indexOf("Bob");
+                        String entities = (offset < 0) ? "" : "{\"Type\":\"" + (pii ? "NAME" : "PERSON\",\"Text\":\"Bob") + "\",\"Score\":0.99,\"BeginOffset\":" + offset + ",\"EndOffset\":" + (offset + 3) + "}";
+                        output.append("{\"File\":\"" + BulkJobRunner.INPUT_FILE + "\",\"Line\":" + line + ",\"Entities\":[" + entities + "]}\n");
+                    }
+                    if (pii) {
+                        store.put(bucket, outputKey + BulkJobRunner.INPUT_FILE + ".out", output.toString().getBytes(StandardCharsets.UTF_8));
+                    }
+                    else {
+                        outputKey += "output.tar.gz";
+                        store.put(bucket, outputKey, writeStubTarGz("output", output.toString().getBytes(StandardCharsets.UTF_8)));
+                    }
+                }
+                sendStubResponse(exchange, 200, null, "{\"" + (pii ? "PiiEntities" : "Entities") + "DetectionJobProperties\":{\"JobId\":\"" + jobId + "\",\"JobStatus\":\"" + status
+                    + "\",\"OutputDataConfig\":{\"S3Uri\":\"s3://" + bucket + "/" + outputKey + "\"}}}");
+            }
+            else if (api.equals("BatchDetectEntities")) {
+                List<String> results = new ArrayList<String>();
+                for (int index = 0; index < ((List<?>) request.get("TextList")).size(); index++) {
+                    results.add("{\"Index\":" + index + ",\"Entities\":[]}");
+                }
+                sendStubResponse(exchange, 200, null, "{\"ResultList\":[" + String.join(",", results) + "],\"ErrorList\":[]}");
+            }
+            else {
+                sendStubResponse(exchange, 200, null, "{\"Entities\":[]}");
+            }
+        });
+        try {
+            TextAnalyticsConfig config = TextAnalyticsConfig.builder()
+                .bulkMinRows(10).bulkBucket("bulk").bulkRoleArn("arn:aws:iam::123456789012:role/comprehend-bulk").bulkPollIntervalMillis(100)
+                .spillEndpoint(bulkDirectory.toUri().toString()).build();
+            TextAnalyticsUDFHandler textAnalyticsUDFHandler = new TextAnalyticsUDFHandler(config);
+            textAnalyticsUDFHandler.comprehendPool = textAnalyticsUDFHandler.createClientPool("Comprehend", "us-east-1=" + getStubUrl(server), 0, TextAnalyticsUDFHandler::createStubComprehendClient);
+            String[] rows = new String[40];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = "Row " + (i % 20) + ":\nI am Bob, I live in Herndon.";
+            }
+            String[] entities = textAnalyticsUDFHandler.detect_entities(rows, makeArray("en", rows.length));
+            System.out.println("detect_entities: " + entities[0] + " | stub requests " + requests);
+            if (! entities[0].contains("PERSON") || ! entities[39].contains("Bob") || requests.containsKey("BatchDetectEntities")) {
+                System.out.println("FAILED: expected every row's entities from the job, with no BatchDetectEntities requests");
+            }
+            // the same block again, e.g. a rerun of the query, attaches to the job already started
+            textAnalyticsUDFHandler.detect_entities(rows, makeArray("en", rows.length));
+            if (requests.get("StartEntitiesDetectionJob").get() != 2 || describes.size() != 1) {
+                System.out.println("FAILED: expected the second run to attach to the first job, but jobs started " + describes.keySet());
+            }
+            // a job not complete before the deadline fails the query - run again, it attaches to the job and completes
+            textAnalyticsUDFHandler.deadline = InvocationDeadline.fromRemainingTime(50, 0);
+            try {
+                textAnalyticsUDFHandler.redact_pii_entities(rows, makeArray("en", rows.length), makeArray("ALL", rows.length));
+                System.out.println("FAILED: expected an error for a job still running at the deadline");
+            }
+            catch (RuntimeException e) {
+                System.out.println("Job running at the deadline: " + e.getMessage());
+            }
+            textAnalyticsUDFHandler.deadline = InvocationDeadline.NONE;
+            String[] redacted = textAnalyticsUDFHandler.redact_pii_entities(rows, makeArray("en", rows.length), makeArray("ALL", rows.length));
+            System.out.println("redact_pii_entities: " + redacted[0].replace("\n", "\\n") + " | stub requests " + requests);
+            if (! redacted[0].equals("Row 0:\nI am [NAME], I live in Herndon.") || requests.containsKey("DetectPiiEntities") || describes.size() != 2) {
+                System.out.println("FAILED: expected every row redacted from one PII job, with no DetectPiiEntities requests");
+            }
+            // fewer distinct texts than BULK_MIN_ROWS use the synchronous API
+            textAnalyticsUDFHandler.detect_entities(Arrays.copyOf(rows, 5), makeArray("en", 5));
+            if (! requests.containsKey("BatchDetectEntities") || describes.size() != 2) {
+                System.out.println("FAILED: expected a small block to use BatchDetectEntities, rather than a job");
+            }
+            // a block is sent to one job as a whole, even when it is larger than BLOCK_WINDOW_ROWS and each window has fewer than BULK_MIN_ROWS texts
+            TextAnalyticsUDFHandler windowedHandler = new TextAnalyticsUDFHandler(config.toBuilder().blockWindowRows(10).bulkMinRows(15).build());
+            windowedHandler.comprehendPool = windowedHandler.createClientPool("Comprehend", "us-east-1=" + getStubUrl(server), 0, TextAnalyticsUDFHandler::createStubComprehendClient);
+            int batchRequests = requests.get("BatchDetectEntities").get();
+            Schema schema = SchemaBuilder.newBuilder().addStringField("text").addStringField("languagecode").build();
+            Schema outputSchema = SchemaBuilder.newBuilder().addStringField("entities").build();
+            Method udfMethod = TextAnalyticsUDFHandler.class.getMethod("detect_entities", String.class, String.class);
+            try (BlockAllocator allocator = new BlockAllocatorImpl()) {
+                Block inputRecords = allocator.createBlock(schema);
+                for (int rowNum = 0; rowNum < 40; rowNum++) {
+                    inputRecords.setValue("text", rowNum, "Window row " + rowNum + ": I am Bob.");
+                    inputRecords.setValue("languagecode", rowNum, "en");
+                }
+                inputRecords.setRowCount(40);
+                Block outputRecords = windowedHandler.processRows(allocator, udfMethod, inputRecords, outputSchema);
+                System.out.println("Block of 40 rows, window of 10 rows, BULK_MIN_ROWS 15 => jobs " + describes.keySet() + " | stub requests " + requests);
+                if (describes.size() != 3 || requests.get("BatchDetectEntities").get() != batchRequests) {
+                    System.out.println("FAILED: expected the whole block to be sent to one job, with no BatchDetectEntities requests");
+                }
+                outputRecords.close();
+                inputRecords.close();
+            }
         }
-        // last multi-record split
-        if (start < input.length) {
-            batches.add(new Object[] {Arrays.copyOfRange(input, start, input.length), "MULTI_ROW_BATCH"});
+        finally {
+            server.stop(0);
         }
-        return batches;         
+    }
+    // a tar.gz archive of one file, as asynchronous jobs write their output
+    static byte[] writeStubTarGz(String name, byte[] content) throws IOException
+    {
+        byte[] header = new byte[512];
+        System.arraycopy(name.getBytes(StandardCharsets.US_ASCII), 0, header, 0, name.length());
+        System.arraycopy("0000644\0".getBytes(StandardCharsets.US_ASCII), 0, header, 100, 8);
+        System.arraycopy(String.format("%011o\0", content.length).getBytes(StandardCharsets.US_ASCII), 0, header, 124, 12);
+        System.arraycopy(String.format("%011o\0", 0).getBytes(StandardCharsets.US_ASCII), 0, header, 136, 12);
+        header[156] = '0';
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        int checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        System.arraycopy(String.format("%06o\0 ", checksum).getBytes(StandardCharsets.US_ASCII), 0, header, 148, 8);
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(archive)) {
+            out.write(header);
+            out.write(content);
+            out.write(new byte[(512 - content.length % 512) % 512 + 1024]);
+        }
+        return archive.toByteArray();
     }
 
-    // as above, but also splits input array into batches representing one language only
-    private List<Object[]> getBatches(String[] input, String[] languageCodes, int multiRowBatchSize, int maxTextBytes, boolean splitLongText)
-        throws Exception
+    static void runUsageMeterTests() throws Exception
     {
-        List<Object[]> batches = new ArrayList<Object[]>();
-        String languageCode = languageCodes[0];
-        int start = 0;
-        int c = 0;
-        for (int i = 0; i < input.length; i++) {
-            if (c++ >= multiRowBatchSize || ! languageCode.equals(languageCodes[i])) {
-                // add a batch (not including current row), and reset c
-                batches.add(new Object[] {Arrays.copyOfRange(input, start, i), "MULTI_ROW_BATCH", languageCode});
-                languageCode = languageCodes[i];
-                start = i;
-                c = 1;
+        // Comprehend bills 100 characters per unit, minimum 3 units per document - characters are code points, not UTF-16 chars
+        String emoji = new String(Character.toChars(0x1F600));
+        long[] units = new long[] {UsageMeter.comprehendUnits("I am Bob"), UsageMeter.comprehendUnits(String.join("", makeArray("x", 301))),
+            UsageMeter.comprehendUnits(String.join("", makeArray(emoji, 350))), UsageMeter.countCharacters(emoji + emoji)};
+        System.out.println("Units: " + Arrays.toString(units));
+        if (! Arrays.equals(units, new long[] {3, 4, 4, 2})) {
+            System.out.println("FAILED: expected units [3, 4, 4, 2]");
+        }
+        // a Translate request that would take the query over its budget is not made, and nor is any later one
+        UsageMeter usageMeter = new UsageMeter(0, 10);
+        usageMeter.startInvocation("translate_text");
+        usageMeter.chargeTranslate("hello");
+        for (String text : new String[] {"world!", "!"}) {
+            try {
+                usageMeter.chargeTranslate(text);
+                System.out.println("FAILED: expected the query's Translate budget to be exceeded by '" + text + "'");
             }
-            int textLength = getUtf8StringLength(input[i]);
-            boolean tooLong = (textLength > maxTextBytes) ? true : false;
-            if (tooLong && !splitLongText) {
-                // truncate this row
-                System.out.println("Truncating long text field (" + textLength + " bytes) to " + maxTextBytes + " bytes");
-                input[i] = truncateUtf8(input[i], maxTextBytes);
+            catch (RuntimeException e) {
+                System.out.println("Over budget: " + e.getMessage());
             }
-            if (tooLong && splitLongText) {
-                // close off current multi-record batch before making new single record batch
-                if (start < i) {
-                    batches.add(new Object[] {Arrays.copyOfRange(input, start, i), "MULTI_ROW_BATCH", languageCode});
+        }
+        // a new query starts with its own budget
+        usageMeter.endInvocation();
+        usageMeter.startInvocation("translate_text_all");
+        usageMeter.chargeTranslate("world!");
+        System.out.println(usageMeter.endInvocation());
+        // end to end, against a local stand-in for Comprehend: 60 units per block of 20 short texts, with a budget of 100
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = startServiceStub(exchange -> {
+            Map<?, ?> request = new Gson().fromJson(readStubRequest(exchange), Map.class);
+            requests.incrementAndGet();
+            List<String> results = new ArrayList<String>();
+            for (int index = 0; index < ((List<?>) request.get("TextList")).size(); index++) {
+                results.add("{\"Index\":" + index + ",\"Entities\":[]}");
+            }
+            sendStubResponse(exchange, 200, null, "{\"ResultList\":[" + String.join(",", results) + "],\"ErrorList\":[]}");
+        });
+        try {
+            TextAnalyticsUDFHandler textAnalyticsUDFHandler = new TextAnalyticsUDFHandler(TextAnalyticsConfig.builder().queryComprehendUnitBudget(100).build());
+            textAnalyticsUDFHandler.comprehendPool = textAnalyticsUDFHandler.createClientPool("Comprehend", "us-east-1=" + getStubUrl(server), 0, TextAnalyticsUDFHandler::createStubComprehendClient);
+            textAnalyticsUDFHandler.usageMeter.startInvocation("detect_entities");
+            for (int block = 0; block < 3; block++) {
+                String[] rows = new String[(block < 2) ? 20 : 1];
+                for (int i = 0; i < rows.length; i++) {
+                    rows[i] = "Block " + block + " row " + i;
                 }
-                // split this row and add the text splits as a new *TEXT_SPLIT_BATCH* batch
-                String[] textSplit = splitLongText(input[i], maxTextBytes);
-                System.out.println("Split long text field (" + textLength + " bytes) into " + textSplit.length + " segments of under " + maxTextBytes + " bytes");
-                batches.add(new Object[] {textSplit, "TEXT_SPLIT_BATCH", languageCode});
-                // increment counters for next row / next batch
-                start = i + 1;
-                c = 1;
-                if (i < input.length) {
-                    languageCode = languageCodes[i];
+                try {
+                    textAnalyticsUDFHandler.detect_entities(rows, makeArray("en", rows.length));
+                    if (block > 0) {
+                        System.out.println("FAILED: expected block " + block + " to be stopped by the query's budget");
+                    }
+                }
+                catch (RuntimeException e) {
+                    System.out.println("Block " + block + " over budget: " + e.getMessage());
                 }
-            } 
+            }
+            System.out.println(textAnalyticsUDFHandler.usageMeter.endInvocation() + " | stub requests " + requests);
+            if (requests.get() != 1 || textAnalyticsUDFHandler.usageMeter.getQueryUnits("BatchDetectEntities") != 60) {
+                System.out.println("FAILED: expected 1 request, of 60 units, before the budget stopped the query");
+            }
         }
-        // last multi-record split
-        if (start < input.length) {
-            batches.add(new Object[] {Arrays.copyOfRange(input, start, input.length), "MULTI_ROW_BATCH", languageCode});
+        finally {
+            server.stop(0);
         }
-        return batches;          
     }
 
-    private static int getUtf8StringLength(String string) throws Exception
-    {
-        final byte[] utf8Bytes = string.getBytes("UTF-8");
-        return (utf8Bytes.length);        
-    }
-
-    /**
-     * truncates a string to fit designated number of UTF-8 bytes
-     * Needed to comply with Comprehend's input string limit of 5000 UTF-8 bytes
-     * NOTE - not the same as String.length(), which counts (multi-byte) chars
-     */
-    private static String truncateUtf8(String string, int maxBytes) throws Exception
+    static void runUdfDispatchTests() throws Exception
     {
-        CharsetEncoder enc = StandardCharsets.UTF_8.newEncoder();
-        ByteBuffer bb = ByteBuffer.allocate(maxBytes); // note the limit
-        CharBuffer cb = CharBuffer.wrap(string);
-        CoderResult r = enc.encode(cb, bb, true);
-        if (r.isOverflow()) {
-            string = cb.flip().toString();
+        // same language translate_text rows are returned without calling Translate, so this runs without AWS credentials
+        int rowCount = 100;
+        int iterations = 2000;
+        TextAnalyticsUDFHandler textAnalyticsUDFHandler = new TextAnalyticsUDFHandler();
+        Method udfMethod = TextAnalyticsUDFHandler.class.getMethod("translate_text", String.class, String.class, String.class, String.class);
+        UdfDispatcher.UdfFunction function = textAnalyticsUDFHandler.getDispatcher().getFunction(udfMethod);
+        if (textAnalyticsUDFHandler.getDispatcher().getFunction(udfMethod) != function) {
+            System.out.println("FAILED: UDF bound again, rather than the cached binding reused");
+        }
+        String[] text = makeArray("I am Bob, I live in Herndon.", rowCount);
+        String[][] input = new String[][] {text, makeArray("en", rowCount), makeArray("en", rowCount), makeArray("null", rowCount)};
+        Object[] result = function.apply(input);
+        if (! Arrays.equals(result, text)) {
+            System.out.println("FAILED: dispatched translate_text returned " + Arrays.toString(result));
+        }
+        // compare with the per call reflective invoke, and JSON round trip, that dispatch replaces
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            String resultjson = (String) udfMethod.invoke(textAnalyticsUDFHandler, toJSON(input[0]), toJSON(input[1]), toJSON(input[2]), toJSON(input[3]));
+            result = fromJSON(resultjson);
+        }
+        long reflectiveNanos = System.nanoTime() - startNanos;
+        startNanos = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            result = textAnalyticsUDFHandler.getDispatcher().getFunction(udfMethod).apply(input);
+        }
+        long dispatchNanos = System.nanoTime() - startNanos;
+        System.out.println(iterations + " windows of " + rowCount + " rows: reflective invoke with JSON " + (reflectiveNanos / 1000000) + " ms, dispatched " + (dispatchNanos / 1000000) + " ms");
+        // functions without a structured (Object[]) variant cannot be declared with a ROW or ARRAY return type
+        try {
+            textAnalyticsUDFHandler.getDispatcher().getStructFunction(udfMethod);
+            System.out.println("FAILED: translate_text accepted a ROW/ARRAY return type");
+        }
+        catch (RuntimeException e) {
+            System.out.println("ROW/ARRAY output rejected as expected: " + e.getMessage());
         }
-        return string;
     }
 
-    private static String[] splitLongText(String longText, int maxTextBytes) throws Exception
+    static void runBlockWindowHeapTest() throws Exception
     {
-        String[] sentences = splitStringBySentence(longText);
-        // recombine sentences up to maxTextBytes
-        List<String> splitBatches = new ArrayList<String>();
-        int bytesCnt = 0;
-        int start = 0;
-        for (int i = 0; i < sentences.length; i++) {
-            int sentenceLength = getUtf8StringLength(sentences[i]);
-            if (sentenceLength >= maxTextBytes) {
-                System.out.println("DATA WARNING: sentence size (" + sentenceLength + " bytes) is larger than max (" + maxTextBytes + " bytes). Unsplittable.");
-                System.out.println("Problematic sentence: " + sentences[i]);
-                // TODO - Truncate, or drop?
+        // same language translate_text rows are returned without calling Translate, so this runs without AWS credentials
+        int rowCount = 2000;
+        int windowRows = 100;
+        String longText = String.join(" ", makeArray("I am Bob, I live in Herndon.", 150));
+        Schema schema = SchemaBuilder.newBuilder()
+            .addStringField("text").addStringField("sourcelang").addStringField("targetlang").addStringField("terminologyname")
+            .build();
+        Schema outputSchema = SchemaBuilder.newBuilder().addStringField("translated_text").build();
+        Method udfMethod = TextAnalyticsUDFHandler.class.getMethod("translate_text", String.class, String.class, String.class, String.class);
+        try (BlockAllocator allocator = new BlockAllocatorImpl()) {
+            Block inputRecords = allocator.createBlock(schema);
+            for (int rowNum = 0; rowNum < rowCount; rowNum++) {
+                // distinct texts, so that each row is read into its own String
+                inputRecords.setValue("text", rowNum, longText + " " + rowNum);
+                inputRecords.setValue("sourcelang", rowNum, "en");
+                inputRecords.setValue("targetlang", rowNum, "en");
+                inputRecords.setValue("terminologyname", rowNum, "null");
             }
-            bytesCnt += sentenceLength;
-            if (bytesCnt >= maxTextBytes) {
-                // join sentences prior to this one, and add to splitBatches. Reset counters.
-                String splitBatch = String.join("", Arrays.copyOfRange(sentences, start, i));
-                int splitBatchLength = getUtf8StringLength(splitBatch);
-                if (splitBatchLength == 0 || splitBatchLength > maxTextBytes) {
-                    System.out.println("DEBUG: Split size is " + splitBatchLength + " bytes - Skipping.");
-                } 
-                else {
-                    System.out.println("DEBUG: Split size (" + splitBatchLength + " bytes)");
-                    splitBatches.add(splitBatch);
+            inputRecords.setRowCount(rowCount);
+            // the input characters held in memory at once are counted as each window is read, so the comparison does not depend on the garbage collector
+            long[] windowInputChars = new long[2];
+            int[] windowSizes = new int[] {0, windowRows};
+            for (int run = 0; run < windowSizes.length; run++) {
+                TextAnalyticsUDFHandler textAnalyticsUDFHandler = new TextAnalyticsUDFHandler(TextAnalyticsConfig.builder().blockWindowRows(windowSizes[run]).build());
+                System.gc();
+                for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                    pool.resetPeakUsage();
                 }
-                start = i;
-                bytesCnt = getUtf8StringLength(sentences[i]);
+                long startHeap = getHeapUsage(false);
+                Block outputRecords = textAnalyticsUDFHandler.processRows(allocator, udfMethod, inputRecords, outputSchema);
+                long peakHeap = getHeapUsage(true);
+                windowInputChars[run] = textAnalyticsUDFHandler.largestWindowInputChars.get();
+                System.out.println("Block of " + rowCount + " rows x " + getUtf8StringLength(longText) + " bytes, window " + ((windowSizes[run] == 0) ? "whole block" : windowSizes[run] + " rows") 
+                    + " => largest window input: " + windowInputChars[run] + " chars, peak heap increase: " + ((peakHeap - startHeap) / (1024 * 1024)) + " MB, output rows: " + outputRecords.getRowCount());
+                outputRecords.close();
             }
-        }
-        // last split
-        if (start < sentences.length) {
-            String splitBatch = String.join("", Arrays.copyOfRange(sentences, start, sentences.length));
-            int splitBatchLength = getUtf8StringLength(splitBatch);
-            if (splitBatchLength == 0 || splitBatchLength > maxTextBytes) {
-                System.out.println("DEBUG: Split size is " + splitBatchLength + " bytes - Skipping.");
-            } 
-            else {
-                System.out.println("DEBUG: Split size (" + splitBatchLength + " bytes)");
-                splitBatches.add(splitBatch);
+            // a window of 100 rows holds about a twentieth of the block's 2000 rows
+            if (windowInputChars[1] * (rowCount / windowRows) > windowInputChars[0] * 11 / 10 || windowInputChars[1] >= windowInputChars[0]) {
+                System.out.println("FAILED: expected a window of " + windowRows + " rows to hold about 1/" + (rowCount / windowRows) + " of the whole block's input, but held " 
+                    + windowInputChars[1] + " of " + windowInputChars[0] + " chars");
             }
+            inputRecords.close();
         }
-        String[] splitArray = (String[]) splitBatches.toArray(new String[0]);
-        return splitArray;
     }
 
-    private static String[] splitStringBySentence(String longText) 
+    static void runLowCardinalityOutputTest() throws Exception
     {
-        BreakIterator boundary = BreakIterator.getSentenceInstance();
-        boundary.setText(longText);
-        List<String> sentencesList = new ArrayList<String>();
-        int start = boundary.first();
-        for (int end = boundary.next(); end != BreakIterator.DONE; start = end, end = boundary.next()) {
-            sentencesList.add(longText.substring(start, end));
+        // same language translate_text rows are returned without calling Translate, so this runs without AWS credentials
+        int rowCount = 3000;
+        String[] values = new String[] {"POSITIVE", "NEGATIVE", "NEUTRAL", "MIXED"};
+        Schema schema = SchemaBuilder.newBuilder()
+            .addStringField("text").addStringField("sourcelang").addStringField("targetlang").addStringField("terminologyname")
+            .build();
+        Schema outputSchema = SchemaBuilder.newBuilder().addStringField("translated_text").build();
+        Method udfMethod = TextAnalyticsUDFHandler.class.getMethod("translate_text", String.class, String.class, String.class, String.class);
+        try (BlockAllocator allocator = new BlockAllocatorImpl()) {
+            Block inputRecords = allocator.createBlock(schema);
+            for (int rowNum = 0; rowNum < rowCount; rowNum++) {
+                inputRecords.setValue("text", rowNum, values[rowNum % values.length]);
+                inputRecords.setValue("sourcelang", rowNum, "en");
+                inputRecords.setValue("targetlang", rowNum, "en");
+                inputRecords.setValue("terminologyname", rowNum, "null");
+            }
+            inputRecords.setRowCount(rowCount);
+            TextAnalyticsUDFHandler textAnalyticsUDFHandler = new TextAnalyticsUDFHandler();
+            Block outputRecords = textAnalyticsUDFHandler.processRows(allocator, udfMethod, inputRecords, outputSchema);
+            FieldReader reader = outputRecords.getFieldReader("translated_text");
+            for (int rowNum = 0; rowNum < rowCount; rowNum++) {
+                reader.setPosition(rowNum);
+                String expected = values[rowNum % values.length];
+                String actual = reader.isSet() ? reader.readText().toString() : null;
+                if (! Objects.equals(expected, actual)) {
+                    System.out.println("FAILED: row " + rowNum + " expected " + expected + ", got " + actual);
+                    break;
+                }
+            }
+            System.out.println("Output block of " + outputRecords.getRowCount() + " rows with 4 distinct values checked");
+            outputRecords.close();
+            inputRecords.close();
+        }
+        Utf8ValueWriter valueWriter = new Utf8ValueWriter(2);
+        for (String value : new String[] {"en", "fr", "de", "en", "de", "fr"}) {
+            valueWriter.encode(value);
+        }
+        System.out.println("Writer capped at 2 distinct values: " + valueWriter);
+        if (valueWriter.getCacheHits() != 2) {
+            System.out.println("FAILED: expected 2 cache hits, for the values kept");
         }
-        String[] sentenceArray = (String[]) sentencesList.toArray(new String[0]);
-        return sentenceArray;
-    }
- 
-    private static String toJSON(Object obj) 
-    {
-        Gson gson = new Gson();
-        return gson.toJson(obj);
     }
 
-    private static String[] fromJSON(String json) 
+    static void runResultSpillTest() throws Exception
     {
-        Gson gson = new Gson();
-        return gson.fromJson(json, String[].class);
+        // same language translate_text rows are returned without calling Translate, and a local directory stands in for S3,
+        // so this runs without AWS credentials
+        int rowCount = 50;
+        String text = String.join(" ", makeArray("I am Bob, I live in Herndon.", 20));
+        Path spillDirectory = Files.createTempDirectory("spill");
+        TextAnalyticsConfig config = TextAnalyticsConfig.builder()
+            .spillBucket("results").spillEndpoint(spillDirectory.toUri().toString()).spillThresholdBytes(5000).build();
+        TextAnalyticsUDFHandler textAnalyticsUDFHandler = new TextAnalyticsUDFHandler(config);
+        Schema schema = SchemaBuilder.newBuilder()
+            .addStringField("text").addStringField("sourcelang").addStringField("targetlang").addStringField("terminologyname")
+            .build();
+        Schema outputSchema = SchemaBuilder.newBuilder().addStringField("translated_text").build();
+        Method udfMethod = TextAnalyticsUDFHandler.class.getMethod("translate_text", String.class, String.class, String.class, String.class);
+        try (BlockAllocator allocator = new BlockAllocatorImpl()) {
+            Block inputRecords = allocator.createBlock(schema);
+            for (int rowNum = 0; rowNum < rowCount; rowNum++) {
+                inputRecords.setValue("text", rowNum, rowNum + ": " + text);
+                inputRecords.setValue("sourcelang", rowNum, "en");
+                inputRecords.setValue("targetlang", rowNum, "en");
+                inputRecords.setValue("terminologyname", rowNum, "null");
+            }
+            inputRecords.setRowCount(rowCount);
+            Block outputRecords = textAnalyticsUDFHandler.processRows(allocator, udfMethod, inputRecords, outputSchema);
+            FieldReader reader = outputRecords.getFieldReader("translated_text");
+            String[] results = new String[rowCount];
+            long blockBytes = 0;
+            int spilled = 0;
+            for (int rowNum = 0; rowNum < rowCount; rowNum++) {
+                reader.setPosition(rowNum);
+                results[rowNum] = reader.readText().toString();
+                blockBytes += getUtf8StringLength(results[rowNum]);
+                spilled += results[rowNum].startsWith(ResultSpiller.MARKER) ? 1 : 0;
+            }
+            System.out.println("Block of " + rowCount + " results, " + spilled + " spilled, " + blockBytes + " bytes in block, e.g. " + results[rowCount - 1]);
+            String[] restored = textAnalyticsUDFHandler.read_spilled_result(results);
+            for (int rowNum = 0; rowNum < rowCount; rowNum++) {
+                if (! restored[rowNum].equals(rowNum + ": " + text)) {
+                    System.out.println("FAILED: row " + rowNum + " read back as " + restored[rowNum]);
+                    break;
+                }
+            }
+            if (spilled == 0 || spilled == rowCount) {
+                System.out.println("FAILED: expected the results after the first 5000 bytes to be spilled");
+            }
+            // a reference to any other bucket, prefix or key is refused, rather than read with the function's role
+            String spilledKey = results[rowCount - 1].substring((ResultSpiller.MARKER + "s3://results/").length());
+            String[] foreignReferences = new String[] {
+                ResultSpiller.MARKER + "s3://other-bucket/" + spilledKey,
+                ResultSpiller.MARKER + "s3://results/athena-textanalytics-bulk/" + spilledKey.substring(spilledKey.indexOf('/') + 1),
+                ResultSpiller.MARKER + "s3://results/" + spilledKey.substring(0, spilledKey.lastIndexOf('/')) + "/../../secret"};
+            for (String reference : foreignReferences) {
+                try {
+                    textAnalyticsUDFHandler.read_spilled_result(new String[] {reference});
+                    System.out.println("FAILED: expected " + reference + " to be refused");
+                }
+                catch (RuntimeException e) {
+                    System.out.println("Refused: " + e.getMessage());
+                }
+            }
+            outputRecords.close();
+            inputRecords.close();
+        }
     }
 
-    /**
-     * Processes a group by rows. This method takes in a block of data (containing multiple rows), process them and
-     * returns multiple rows of the output column in a block.
-     * <p>
-     * In the super class UDF methods are invoked row-by-row in a for loop. 
-     * This override method greatly improves throughput by batching records into 
-     * fewer calls using the Comprehend batch APIs.
-     *
-     * @param allocator arrow memory allocator
-     * @param udfMethod the extracted java method matching the User-Defined-Function defined in Athena.
-     * @param inputRecords input data in Arrow format
-     * @param outputSchema output data schema in Arrow format
-     * @return output data in Arrow format
-     */
-    @Override
-    protected Block processRows(BlockAllocator allocator, Method udfMethod, Block inputRecords, Schema outputSchema)
-            throws Exception
+    // compares deflate levels on typical detect_entities_all JSON: bytes saved against encode time
+    static void runResultCompressionBenchmark() throws Exception
     {
-        int rowCount = inputRecords.getRowCount();
-        System.out.println("DEBUG: inputRecords rowCount = " + rowCount);
-        int fieldCount = inputRecords.getFieldReaders().size();
-        System.out.println("DEBUG: inputRecords fieldCount = " + fieldCount);
-
-        String[][] input = new String[fieldCount][rowCount];
-        for (int fieldNum = 0; fieldNum < fieldCount; ++fieldNum) {
-            for (int rowNum = 0; rowNum < rowCount; ++rowNum) {
-                input[fieldNum][rowNum] = this.getStringValue(inputRecords, fieldNum, rowNum);
-                //System.out.println("FIELD " + fieldNum + " /ROW " + rowNum + " VALUE: " + input[fieldNum][rowNum]);
+        String[] types = new String[] {"PERSON", "LOCATION", "ORGANIZATION", "COMMERCIAL_ITEM", "DATE", "QUANTITY"};
+        String[] names = new String[] {"Joe", "Richmond VA", "Amazon", "Echo Show", "January 5th", "two", "Jane Doe", "Seattle"};
+        Random random = new Random(39);
+        System.out.println("entities  json bytes  level  compressed bytes  ratio  encode MB/s");
+        for (int entityCount : new int[] {10, 100, 1000}) {
+            SpanMerger spanMerger = new SpanMerger();
+            int offset = 0;
+            for (int i = 0; i < entityCount; i++) {
+                offset += 5 + random.nextInt(50);
+                String name = names[random.nextInt(names.length)];
+                spanMerger.add(types[random.nextInt(types.length)], name, 0.9f + random.nextFloat() / 10, offset, offset + name.length(), 0);
+            }
+            byte[] json = mergeSpans(spanMerger.merge(), "", null, true).getBytes(StandardCharsets.UTF_8);
+            for (int level : new int[] {1, 6, 9}) {
+                ResultCompressor compressor = new ResultCompressor(1, level);
+                byte[] compressed = compressor.compress(json);
+                int iterations = Math.max(10, 2000000 / json.length);
+                long startNanos = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    compressor.compress(json);
+                }
+                double seconds = (System.nanoTime() - startNanos) / 1e9;
+                compressor.close();
+                System.out.println(String.format("%8d  %10d  %5d  %16d  %5.1f  %11.0f", entityCount, json.length, level, compressed.length,
+                    (double) json.length / compressed.length, json.length * (double) iterations / seconds / (1024 * 1024)));
+                String roundTrip = ResultCompressor.decompress(new String(compressed, StandardCharsets.UTF_8));
+                if (! roundTrip.equals(new String(json, StandardCharsets.UTF_8))) {
+                    System.out.println("FAILED: decompressed result differs from the original");
+                }
             }
         }
-        // input and output arrays serialised to JSON strings, to match the method signature declared in the UDF.
-        String[] inputjson = new String[fieldCount];
-        for (int fieldNum = 0; fieldNum < fieldCount; ++fieldNum) {
-            inputjson[fieldNum] = toJSON(input[fieldNum]);  
+        // values below the threshold, and values compression would not shrink, are written unchanged
+        ResultCompressor compressor = new ResultCompressor(100, 1);
+        byte[] shortValue = "[[\"PERSON\",\"Joe\"]]".getBytes(StandardCharsets.UTF_8);
+        byte[] randomValue = new byte[200];
+        for (int i = 0; i < randomValue.length; i++) {
+            randomValue[i] = (byte) ('!' + random.nextInt(90));
         }
-        // now call the udf with the right number of arguments, per fieldCount
-        String resultjson;
-        switch (fieldCount) {
-            case 1: resultjson = (String) udfMethod.invoke(this, inputjson[0]);
-                    break;
-            case 2: resultjson = (String) udfMethod.invoke(this, inputjson[0], inputjson[1]);
-                    break;
-            case 3: resultjson = (String) udfMethod.invoke(this, inputjson[0], inputjson[1], inputjson[2]);
-                    break;
-            case 4: resultjson = (String) udfMethod.invoke(this, inputjson[0], inputjson[1], inputjson[2], inputjson[3]);
-                    break;
-            default: throw new RuntimeException("Error: invalid argument count - " + fieldCount);
+        if (compressor.compress(shortValue) != shortValue || compressor.compress(randomValue) != randomValue) {
+            System.out.println("FAILED: expected short and incompressible values to be written unchanged");
         }
-        String[] result = fromJSON(resultjson);
-        Field outputField = outputSchema.getFields().get(0);
-        Block outputRecords = allocator.createBlock(outputSchema);
-        outputRecords.setRowCount(rowCount);
-        for (int rowNum = 0; rowNum < rowCount; ++rowNum) {
-            outputRecords.setValue(outputField.getName(), rowNum, result[rowNum]);
-        }        
-        return outputRecords;
+        compressor.close();
+        System.out.println("Uncompressed values pass through decompress_result unchanged: " + ResultCompressor.decompress("POSITIVE"));
     }
-    
-    /**
-     * Used to convert a specific field from row in the provided Block to a String value. 
-     * Code adapted from BlockUtils.rowToString.
-     *
-     * @param block The Block to read the row from.
-     * @param field The field number to read.
-     * @param row The row number to read.
-     * @return The String representation of the requested row.
-     */
-    private static String getStringValue(Block block, int field, int row)
+
+    private static long getHeapUsage(boolean peak)
     {
-        if (row > block.getRowCount()) {
-            throw new IllegalArgumentException(row + " exceeds available rows " + block.getRowCount());
+        long usage = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                usage += (peak) ? pool.getPeakUsage().getUsed() : pool.getUsage().getUsed();
+            }
         }
-        StringBuilder sb = new StringBuilder();
-        FieldReader fieldReader = block.getFieldReaders().get(field);
-        fieldReader.setPosition(row);
-        sb.append(BlockUtils.fieldToString(fieldReader));            
-        return sb.toString();
+        return usage;
     }
 
-    /**
-     * Testing
-     **/
-     
-    static void runSplitBySentenceTests(TextAnalyticsUDFHandler textAnalyticsUDFHandler) throws Exception
-    {
-        String[] resultArr;
-        String result;
-        System.out.println("Test splitting text by sentence");
-        String longText = new String("My name is Mr. P. A. Jeremiah Smith Jr., and I live at 1234 Summer Dr., Anytown, USA. This sentence has 10.5 words, and some abbreviations, e.g. this one. Also: punctuation in quotes, like this, \"Way to go Joe!\", she said.");
-        System.out.println("Original text: " + longText);
-        resultArr = textAnalyticsUDFHandler.redact_pii_entities(makeArray(longText, 1), makeArray("en", 1), makeArray("ALL", 1));
-        System.out.println("Original - PII Redacted: " + String.join("", resultArr)); 
-        resultArr = textAnalyticsUDFHandler.redact_entities(makeArray(longText, 1), makeArray("en", 1), makeArray("ALL", 1));
-        System.out.println("Original - Entities Redacted: " + String.join("", resultArr)); 
-        String[] sentenceArray = splitStringBySentence(longText);
-        System.out.println("Split sentences: \n" + String.join("\n", sentenceArray)); 
-        int cnt = sentenceArray.length;
-        resultArr = textAnalyticsUDFHandler.redact_pii_entities(sentenceArray, makeArray("en", cnt), makeArray("ALL", cnt));
-        result = String.join("", resultArr);
-        System.out.println("Text Split, PII Redacted and combined: " + result); 
-        resultArr = textAnalyticsUDFHandler.redact_entities(sentenceArray, makeArray("en", cnt), makeArray("ALL", cnt));
-        result = String.join("", resultArr);
-        System.out.println("Text Split, Entities Redacted and combined: " + result); 
-    }
-    
-    static void runStringLengthTests() throws Exception
-    {
-        String longText = "je déteste ça et je m'appelle Bob";
-        System.out.println("Original text: " + longText + "\nOriginal length bytes: " + getUtf8StringLength(longText) + " Original length chars: " + longText.length());
-        String truncated = truncateUtf8(longText, 20);
-        System.out.println("Truncated text: " + truncated + "\nNew length bytes: " + getUtf8StringLength(truncated) + " New length chars: " + truncated.length());
-    }
-    
-    static void runSplitLongTextTest() throws Exception
-    {
-        int maxTextBytes = 70;
-        String longText = "My name is Jeremiah. I live in Anytown, USA. I am 35 years old. I am 5'7\" tall. I love cars, and dogs. My SSN is 123-45-6789. My cell is (707)555-1234.";
-        System.out.println("Test slitting long text blocks to under " + maxTextBytes + " UTF-8 bytes");
-        String[] splits = splitLongText(longText, maxTextBytes);
-        System.out.println("Split of long text: \n" + String.join("\n", splits));
-    }
-    
-    
-    
-    static void runMergeEntitiesTests() throws Exception
-    {
-        String[] arrayOfJsonObjects = new String[] {
-            "[{\"type\":\"NAME\",\"beginOffset\":1,\"endOffset\":5},{\"type\":\"ADDRESS\",\"beginOffset\":5,\"endOffset\":10}]",
-            "[{\"type\":\"NAME\",\"beginOffset\":1,\"endOffset\":5},{\"type\":\"ADDRESS\",\"beginOffset\":5,\"endOffset\":10}]",
-            "[{\"type\":\"NAME\",\"beginOffset\":1,\"endOffset\":5}]"
-        };
-        int[] offset = new int[] {0, 10, 20};
-        System.out.println(mergeEntitiesAll(arrayOfJsonObjects, offset));
-        String[] arrayOfJsonArrays = new String[] {
-            "[[\"PERSON\",\"Bob\"],[\"COMMERCIAL_ITEM\",\"Pixel 5\"]]",
-            "[[\"PERSON\",\"Jim\"],[\"COMMERCIAL_ITEM\",\"Pixel 2XL\"]]",
-            "[[\"PERSON\",\"Rob\"]]"
-        };
-        System.out.println(mergeEntities(arrayOfJsonArrays)); 
-        int maxTextBytes = 70;
-        String longText = "My name is Jeremiah. I live in Anytown, USA. I am 35 years old. I am 5'7\" tall. I love cars, and dogs. My SSN is 123-45-6789. My cell is (707)555-1234.";
-        String[] arrayOfJsonStrings = splitLongText(longText, maxTextBytes);
-        System.out.println(mergeText(arrayOfJsonStrings));  
-    }
-    
     static String[] makeArray(String text, int len)
     {
         String[] textArray = new String[len];
@@ -1409,6 +4303,75 @@ public class TextAnalyticsUDFHandler extends UserDefinedFunctionHandler
         
         System.out.println("\nMERGE RESULTS TESTS");
         runMergeEntitiesTests();
+
+        System.out.println("\nOFFSET PROPERTY TESTS");
+        runOffsetPropertyTests();
+
+        System.out.println("\nOVERLAPPING SPLIT TESTS");
+        runOverlapSplitTests();
+
+        System.out.println("\nPACK TRANSLATE TEXT TESTS");
+        runPackTextTests();
+
+        System.out.println("\nCONFIGURATION TESTS");
+        runConfigTests();
+
+        System.out.println("\nINVOCATION DEADLINE TESTS");
+        runDeadlineTests();
+
+        System.out.println("\nBLOCK WINDOW PEAK HEAP TEST");
+        runBlockWindowHeapTest();
+
+        System.out.println("\nSTRUCTURED OUTPUT TESTS");
+        runStructOutputTests(textAnalyticsUDFHandler);
+
+        System.out.println("\nADAPTIVE BATCH SIZE TESTS");
+        runAdaptiveBatchSizerTests();
+
+        System.out.println("\nREQUEST SCHEDULER TESTS");
+        runRequestSchedulerTests();
+
+        System.out.println("\nSENTIMENT AGGREGATION TESTS");
+        runSentimentAggregatorTests();
+
+        System.out.println("\nENTITY AGGREGATION TESTS");
+        runSpanAggregatorTests();
+
+        System.out.println("\nLOW CARDINALITY OUTPUT TEST");
+        runLowCardinalityOutputTest();
+
+        System.out.println("\nRESULT COMPRESSION BENCHMARK");
+        runResultCompressionBenchmark();
+
+        System.out.println("\nRESULT SPILL TEST");
+        runResultSpillTest();
+
+        System.out.println("\nCOLUMN RUNS TESTS");
+        runColumnRunsTests();
+
+        System.out.println("\nENDPOINT CONCURRENCY TESTS");
+        runEndpointConcurrencyTests();
+
+        System.out.println("\nHEDGING BENCHMARK");
+        runHedgingBenchmark();
+
+        System.out.println("\nCIRCUIT BREAKER TESTS");
+        runCircuitBreakerTests();
+
+        System.out.println("\nCLIENT POOL TESTS");
+        runClientPoolTests();
+
+        System.out.println("\nSINGLE FLIGHT TESTS");
+        runSingleFlightTests();
+
+        System.out.println("\nBULK JOB TESTS");
+        runBulkJobTests();
+
+        System.out.println("\nUSAGE METER TESTS");
+        runUsageMeterTests();
+
+        System.out.println("\nUDF DISPATCH TESTS");
+        runUdfDispatchTests();
         
         String[] text;
         String[] lang;
@@ -1430,6 +4393,12 @@ public class TextAnalyticsUDFHandler extends UserDefinedFunctionHandler
         System.out.println(toJSON(textAnalyticsUDFHandler.detect_sentiment(text, lang)));  
         System.out.println("detect_sentiment_all - 4 rows: " + toJSON(text));
         System.out.println(toJSON(textAnalyticsUDFHandler.detect_sentiment_all(text, lang)));
+        text = new String[]{"I love this product. It arrived on time and works perfectly. " + String.join("", Collections.nCopies(100, "The battery lasts all day. ")) + "The box was slightly dented."};
+        lang = new String[]{"en"};
+        TextAnalyticsUDFHandler splitSentimentHandler = new TextAnalyticsUDFHandler(TextAnalyticsConfig.builder().sentimentSplitLongText(true).build());
+        // check logs for evidence of a text split batch, with segments sent concurrently
+        System.out.println("detect_sentiment_all - long text split and aggregated (" + getUtf8StringLength(text[0]) + " bytes)");
+        System.out.println(toJSON(splitSentimentHandler.detect_sentiment_all(text, lang)));
         
         System.out.println("\nDETECT / REDACT ENTITIES");
         text = new String[]{"I am Bob, I live in Herndon", "Je suis Bob et j'habite à Herndon", "Soy Bob y vivo en Herndon"};
@@ -1458,6 +4427,48 @@ public class TextAnalyticsUDFHandler extends UserDefinedFunctionHandler
         System.out.println(toJSON(textAnalyticsUDFHandler.detect_key_phrases(text, lang)));
         System.out.println("detect_key_phrases_all - 1 row: " + toJSON(text));
         System.out.println(toJSON(textAnalyticsUDFHandler.detect_key_phrases_all(text, lang))); 
+        text = new String[]{String.join("", Collections.nCopies(200, "John Steinbeck wrote Of Mice and Men in Monterey. "))};
+        // check logs for evidence of a text split batch - each distinct item is returned once, with its count
+        System.out.println("detect_entities_aggregate - 1 long row (" + getUtf8StringLength(text[0]) + " bytes)");
+        System.out.println(toJSON(textAnalyticsUDFHandler.detect_entities_aggregate(text, lang)));
+        System.out.println("detect_key_phrases_aggregate - 1 long row (" + getUtf8StringLength(text[0]) + " bytes)");
+        System.out.println(toJSON(textAnalyticsUDFHandler.detect_key_phrases_aggregate(text, lang)));
+
+        System.out.println("\nDETECT TARGETED SENTIMENT");
+        text = new String[]{"The burger was delicious, but the fries were cold.", "Bob loves his new phone."};
+        lang = new String[]{"en", "en"};
+        System.out.println("detect_targeted_sentiment - 2 rows: " + toJSON(text));
+        System.out.println(toJSON(textAnalyticsUDFHandler.detect_targeted_sentiment(text, lang)));
+        System.out.println("detect_targeted_sentiment_all - 2 rows: " + toJSON(text));
+        System.out.println(toJSON(textAnalyticsUDFHandler.detect_targeted_sentiment_all(text, lang)));
+
+        System.out.println("\nDETECT SYNTAX");
+        text = new String[]{"I am Bob, I live in Herndon"};
+        lang = new String[]{"en"};
+        System.out.println("detect_syntax - 1 row: " + toJSON(text));
+        System.out.println(toJSON(textAnalyticsUDFHandler.detect_syntax(text, lang)));
+        System.out.println("detect_syntax_all - 1 row: " + toJSON(text));
+        System.out.println(toJSON(textAnalyticsUDFHandler.detect_syntax_all(text, lang)));
+        text = new String[]{String.join("", Collections.nCopies(200, "John Steinbeck wrote Of Mice and Men in Monterey. "))};
+        // check logs for evidence of a text split batch - offsets of the last tokens are relative to the whole text
+        String[] syntax = textAnalyticsUDFHandler.detect_syntax_all(text, lang);
+        System.out.println("detect_syntax_all - 1 long row (" + getUtf8StringLength(text[0]) + " bytes): " + syntax[0].substring(syntax[0].length() - 200));
+
+        // custom model endpoints are billed while provisioned, so these run only when an endpoint is named
+        String classifierEndpointArn = System.getenv("CLASSIFIER_ENDPOINT_ARN");
+        if (classifierEndpointArn != null) {
+            System.out.println("\nCLASSIFY DOCUMENT");
+            text = new String[]{"My order arrived broken, I want a refund", String.join("", Collections.nCopies(200, "My order arrived broken. "))};
+            System.out.println("classify_document - 1 row, and 1 long row: " + classifierEndpointArn);
+            System.out.println(toJSON(textAnalyticsUDFHandler.classify_document(text, makeArray(classifierEndpointArn, 2))));
+        }
+        String entityRecognizerEndpointArn = System.getenv("ENTITY_RECOGNIZER_ENDPOINT_ARN");
+        if (entityRecognizerEndpointArn != null) {
+            System.out.println("\nDETECT CUSTOM ENTITIES");
+            text = new String[]{"I am Bob, I live in Herndon", String.join("", Collections.nCopies(200, "I am Bob, I live in Herndon. "))};
+            System.out.println("detect_custom_entities - 1 row, and 1 long row: " + entityRecognizerEndpointArn);
+            System.out.println(toJSON(textAnalyticsUDFHandler.detect_custom_entities(text, makeArray(entityRecognizerEndpointArn, 2))));
+        }
 
         System.out.println("\nTRANSLATE TEXT");
         text = new String[]{"I am Bob, I live in Herndon", "I love to visit France"};
@@ -1466,26 +4477,33 @@ public class TextAnalyticsUDFHandler extends UserDefinedFunctionHandler
         String[] terminologyNames = new String[]{"null", "null"};
         System.out.println("translate_text - 2 rows: " + toJSON(text));
         System.out.println(toJSON(textAnalyticsUDFHandler.translate_text(text, sourcelang, targetlang, terminologyNames)));
+        text = new String[]{"I am Bob, I live in Herndon", "I love to visit France", "I am Bob, I live in Herndon", "Je m'appelle Bob"};
+        sourcelang = new String[]{"en", "en", "en", "fr"};
+        targetlang = new String[]{"fr", "fr", "fr", "fr"};
+        terminologyNames = makeArray("null", 4);
+        System.out.println("translate_text - 4 rows, 1 duplicate, 1 already in target language: " + toJSON(text));
+        System.out.println("check logs for evidence of 1 language pair group with 2 unique texts.");
+        System.out.println(toJSON(textAnalyticsUDFHandler.translate_text(text, sourcelang, targetlang, terminologyNames)));
 
         System.out.println("\nLONG TEXT TESTS");
-        int textBytes = 60;
+        int textBytes = 1000;
         int batchSize = 3; 
-        textAnalyticsUDFHandler.maxTextBytes = textBytes;
-        textAnalyticsUDFHandler.maxBatchSize = batchSize;
+        textAnalyticsUDFHandler = new TextAnalyticsUDFHandler(TextAnalyticsConfig.builder().maxTextBytes(textBytes).maxBatchSize(batchSize).build());
         System.out.println("Set max text length to " + textBytes + " bytes, and max batch size to " + batchSize + ", for testing");
-        text = new String[]{"I am Bob, I live in Herndon. I am Bob, I live in Herndon. I am Bob, I live in Herndon. I am Bob, I live in Herndon. I am Bob, I live in Herndon. I am Bob, I live in Herndon."};
+        String longText = String.join(" ", makeArray("I am Bob, I live in Herndon.", 80));
+        text = new String[]{longText};
         lang = new String[]{"en"};
         System.out.println("detect_sentiment - 1 row: " + toJSON(text));
         System.out.println("check logs for evidence of long text truncated by detect_sentiment.");
         System.out.println(toJSON(textAnalyticsUDFHandler.detect_sentiment(text, lang)));
-        text = new String[]{"I am Bob, I live in Herndon. I am Bob, I live in Herndon. I am Bob, I live in Herndon. I am Bob, I live in Herndon. I am Bob, I live in Herndon. I am Bob, I live in Herndon."};
+        text = new String[]{longText};
         System.out.println("detect_entities / redact_entities - 1 row: " + toJSON(text));
         System.out.println("check logs for evidence of long text split into 2 batches w/ max 3 rows per batch.");
         System.out.println(toJSON(textAnalyticsUDFHandler.detect_entities(text, lang)));        
         System.out.println(toJSON(textAnalyticsUDFHandler.redact_entities(text, lang, makeArray("ALL", 1))));        
         System.out.println("detect_pii_entities / redact_pii_entities - 1 row: " + toJSON(text));
         System.out.println("check logs for evidence of long text split into 3 rows.");
-        text = new String[]{"I am Bob, I live in Herndon. I am Bob, I live in Herndon. I am Bob, I live in Herndon. I am Bob, I live in Herndon. I am Bob, I live in Herndon. I am Bob, I live in Herndon."};
+        text = new String[]{longText};
         System.out.println(toJSON(textAnalyticsUDFHandler.detect_pii_entities(text, lang)));        
         System.out.println(toJSON(textAnalyticsUDFHandler.redact_pii_entities(text, lang, makeArray("ALL", 1))));        
     }
@@ -1506,7 +4524,6 @@ public class TextAnalyticsUDFHandler extends UserDefinedFunctionHandler
         String[] lang;
         text = makeArray(testString, size);
         lang = makeArray("en", size);
-        textAnalyticsUDFHandler.maxBatchSize = size;
         //textAnalyticsUDFHandler.detect_entities(text, lang);
         String[] result = textAnalyticsUDFHandler.detect_pii_entities(text, lang);
         System.out.println("\nRESULT: " + toJSON(result));
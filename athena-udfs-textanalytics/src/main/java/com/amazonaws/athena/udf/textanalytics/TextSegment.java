@@ -0,0 +1,71 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+/**
+ * A segment of a long input text, sent to Comprehend as a document of its own.
+ * <p>
+ * Segments are sized in UTF-8 bytes (the API limit), located in the original text by char index (for substring),
+ * and offset in code points (the unit of the offsets returned by Comprehend); the start of the segment is kept in both
+ * units, so that the offsets of entities detected in the segment can be moved to the whole text by simple addition.
+ */
+class TextSegment
+{
+    private final String text;
+    private final int offset;
+    private final int codePointOffset;
+
+    /**
+     * @param text             the segment text
+     * @param offset           char offset of the start of the segment in the original text
+     * @param codePointOffset  code point offset of the start of the segment in the original text
+     */
+    TextSegment(String text, int offset, int codePointOffset)
+    {
+        this.text = text;
+        this.offset = offset;
+        this.codePointOffset = codePointOffset;
+    }
+
+    String getText()
+    {
+        return text;
+    }
+
+    int getOffset()
+    {
+        return offset;
+    }
+
+    int getCodePointOffset()
+    {
+        return codePointOffset;
+    }
+
+    static String[] texts(TextSegment[] segments)
+    {
+        String[] texts = new String[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            texts[i] = segments[i].text;
+        }
+        return texts;
+    }
+}
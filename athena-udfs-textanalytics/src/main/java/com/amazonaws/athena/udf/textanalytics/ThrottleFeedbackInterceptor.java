@@ -0,0 +1,51 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.http.SdkHttpResponse;
+
+/**
+ * Reports request attempts rejected by service throttling to the AdaptiveBatchSizer, including attempts
+ * that the client then retries successfully, which the caller would not otherwise see.
+ */
+class ThrottleFeedbackInterceptor implements ExecutionInterceptor
+{
+    @Override
+    public void afterTransmission(Context.AfterTransmission context, ExecutionAttributes executionAttributes)
+    {
+        if (isThrottled(context.httpResponse())) {
+            AdaptiveBatchSizer.recordThrottledAttempt();
+        }
+    }
+
+    // Comprehend and Translate return throttling errors as HTTP 400 with the error code in the x-amzn-ErrorType header
+    static boolean isThrottled(SdkHttpResponse response)
+    {
+        if (response.statusCode() == 429) {
+            return true;
+        }
+        String errorType = response.firstMatchingHeader("x-amzn-ErrorType").orElse("");
+        return errorType.startsWith("ThrottlingException") || errorType.startsWith("TooManyRequestsException");
+    }
+}
@@ -0,0 +1,179 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import com.google.gson.Gson;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Binds each UDF, as named in the Athena query, to the implementation that processes a window of rows, once per
+ * handler instance.
+ * <p>
+ * Athena resolves a UDF to the method with one String parameter per argument, which takes and returns JSON arrays.
+ * Where the handler also has the typed variant of the same name - String[] parameters, returning String[] or, for
+ * structured results, Object[] - the UDF is bound straight to it, with no JSON round trip. The binding is a
+ * MethodHandle spread over an array of argument columns, so any number of arguments is supported, and reflective
+ * lookup and access checks happen only when a UDF is first bound.
+ */
+class UdfDispatcher
+{
+    /**
+     * A UDF bound to its implementation: takes one array of values per argument, returns one result per row.
+     */
+    interface UdfFunction
+    {
+        Object[] apply(String[][] arguments) throws Exception;
+    }
+
+    private static final MethodType TYPED_SIGNATURE = MethodType.methodType(Object[].class, String[][].class);
+    private static final MethodType JSON_SIGNATURE = MethodType.methodType(String.class, String[].class);
+
+    private final Object handler;
+    private final ConcurrentMap<Method, UdfFunction> functions = new ConcurrentHashMap<Method, UdfFunction>();
+    private final ConcurrentMap<Method, UdfFunction> structFunctions = new ConcurrentHashMap<Method, UdfFunction>();
+
+    UdfDispatcher(Object handler)
+    {
+        this.handler = handler;
+    }
+
+    /**
+     * @param udfMethod  the method Athena resolved the UDF to
+     * @return the UDF bound to its typed String[] variant if there is one, or else to udfMethod, with results as strings (JSON for structured results)
+     */
+    UdfFunction getFunction(Method udfMethod)
+    {
+        return functions.computeIfAbsent(udfMethod, this::bind);
+    }
+
+    /**
+     * @param udfMethod  the method Athena resolved the UDF to
+     * @return the UDF bound to its typed variant returning structured (Map / List) results
+     */
+    UdfFunction getStructFunction(Method udfMethod)
+    {
+        return structFunctions.computeIfAbsent(udfMethod, method -> {
+            Method typedMethod = findTypedMethod(method);
+            if (typedMethod == null || ! typedMethod.getReturnType().equals(Object[].class)) {
+                throw new RuntimeException("Error: function " + method.getName() + " does not support ROW or ARRAY return types - use a *_struct function, or declare the return type as VARCHAR");
+            }
+            return bindTyped(typedMethod);
+        });
+    }
+
+    private UdfFunction bind(Method udfMethod)
+    {
+        Method typedMethod = findTypedMethod(udfMethod);
+        if (typedMethod == null) {
+            return bindJson(udfMethod);
+        }
+        UdfFunction typed = bindTyped(typedMethod);
+        if (typedMethod.getReturnType().equals(String[].class)) {
+            return typed;
+        }
+        // structured results, declared as VARCHAR in Athena - return each row as JSON
+        Gson gson = new Gson();
+        return arguments -> {
+            Object[] results = typed.apply(arguments);
+            String[] resultjson = new String[results.length];
+            for (int i = 0; i < results.length; i++) {
+                resultjson[i] = (results[i] == null) ? null : gson.toJson(results[i]);
+            }
+            return resultjson;
+        };
+    }
+
+    // the public method of the same name taking String[] for each argument, and returning String[] or Object[]
+    private Method findTypedMethod(Method udfMethod)
+    {
+        Class<?>[] parameterTypes = new Class<?>[udfMethod.getParameterCount()];
+        Arrays.fill(parameterTypes, String[].class);
+        try {
+            Method typedMethod = handler.getClass().getMethod(udfMethod.getName(), parameterTypes);
+            Class<?> returnType = typedMethod.getReturnType();
+            return (returnType.equals(String[].class) || returnType.equals(Object[].class)) ? typedMethod : null;
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private UdfFunction bindTyped(Method typedMethod)
+    {
+        MethodHandle handle = unreflect(typedMethod)
+            .asSpreader(String[][].class, typedMethod.getParameterCount())
+            .asType(TYPED_SIGNATURE);
+        return arguments -> {
+            try {
+                return (Object[]) handle.invokeExact(arguments);
+            }
+            catch (Exception | Error e) {
+                throw e;
+            }
+            catch (Throwable t) {
+                throw new RuntimeException("Error: " + typedMethod.getName() + " failed", t);
+            }
+        };
+    }
+
+    // UDFs with only the JSON signature: each argument column is passed as a JSON array, and the JSON array result parsed
+    private UdfFunction bindJson(Method udfMethod)
+    {
+        MethodHandle handle = unreflect(udfMethod)
+            .asSpreader(String[].class, udfMethod.getParameterCount())
+            .asType(JSON_SIGNATURE);
+        Gson gson = new Gson();
+        return arguments -> {
+            String[] argumentjson = new String[arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                argumentjson[i] = gson.toJson(arguments[i]);
+            }
+            String resultjson;
+            try {
+                resultjson = (String) handle.invokeExact(argumentjson);
+            }
+            catch (Exception | Error e) {
+                throw e;
+            }
+            catch (Throwable t) {
+                throw new RuntimeException("Error: " + udfMethod.getName() + " failed", t);
+            }
+            return gson.fromJson(resultjson, String[].class);
+        };
+    }
+
+    private MethodHandle unreflect(Method method)
+    {
+        try {
+            return MethodHandles.publicLookup().unreflect(method).bindTo(handler);
+        }
+        catch (IllegalAccessException e) {
+            throw new RuntimeException("Error: function " + method.getName() + " is not accessible", e);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the billable units of the Amazon Comprehend and Amazon Translate requests made by the handler, and stops
+ * requests once a query's budget is used up.
+ * <p>
+ * Amazon Comprehend bills each document in units of 100 characters, with a minimum of 3 units, and Amazon Translate
+ * bills each character. Units are counted per API for each invocation (block of rows), for the current query, and for
+ * the life of the Lambda container. Athena does not pass the query execution ID to UDF Lambda functions, so a query is
+ * taken to be the run of invocations of one UDF in this container with no gap longer than QUERY_IDLE_MILLIS between
+ * them. Budgets therefore apply per container: a query running in N containers can use up to N times its budget.
+ * <p>
+ * Each request is charged before it is made. A request that would take the query over its budget is not made, and it
+ * and every later request of the query fails with an error saying so.
+ */
+class UsageMeter
+{
+    static final int COMPREHEND_CHARACTERS_PER_UNIT = 100;
+    static final int COMPREHEND_MIN_UNITS = 3;
+    // an invocation starting this long after the last one ended starts a new query
+    static final long QUERY_IDLE_MILLIS = 60000;
+
+    private final long comprehendUnitBudget;
+    private final long translateCharacterBudget;
+    private final Map<String, AtomicLong> invocationUnits = new ConcurrentHashMap<String, AtomicLong>();
+    private final Map<String, AtomicLong> queryUnits = new ConcurrentHashMap<String, AtomicLong>();
+    private final Map<String, AtomicLong> totalUnits = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong queryComprehendUnits = new AtomicLong();
+    private final AtomicLong queryTranslateCharacters = new AtomicLong();
+    private final AtomicLong rejectedRequests = new AtomicLong();
+    private volatile String budgetExceeded;
+    private String queryFunction;
+    private long queryCount;
+    private long lastInvocationEndMillis;
+
+    /**
+     * @param comprehendUnitBudget      Comprehend units a query may use in this container (0 = no limit)
+     * @param translateCharacterBudget  Translate characters a query may use in this container (0 = no limit)
+     */
+    UsageMeter(long comprehendUnitBudget, long translateCharacterBudget)
+    {
+        this.comprehendUnitBudget = comprehendUnitBudget;
+        this.translateCharacterBudget = translateCharacterBudget;
+    }
+
+    /**
+     * Starts counting the units of an invocation, and of a new query unless it continues the current one.
+     * @param function  name of the UDF invoked
+     */
+    synchronized void startInvocation(String function)
+    {
+        this.invocationUnits.clear();
+        if (! function.equals(this.queryFunction) || System.currentTimeMillis() - this.lastInvocationEndMillis > QUERY_IDLE_MILLIS) {
+            this.queryFunction = function;
+            this.queryCount++;
+            this.queryUnits.clear();
+            this.queryComprehendUnits.set(0);
+            this.queryTranslateCharacters.set(0);
+            this.budgetExceeded = null;
+        }
+    }
+
+    /**
+     * @return the units used by the invocation, for the log
+     */
+    synchronized String endInvocation()
+    {
+        this.lastInvocationEndMillis = System.currentTimeMillis();
+        return "Billable units: invocation " + new TreeMap<String, AtomicLong>(this.invocationUnits) + ", query " + this.queryCount + " (" + this.queryFunction + ") "
+            + new TreeMap<String, AtomicLong>(this.queryUnits) + ", container " + new TreeMap<String, AtomicLong>(this.totalUnits) + ", rejected requests " + this.rejectedRequests;
+    }
+
+    /**
+     * Charges a Comprehend request for one document per text, or throws an exception, without making the request,
+     * if that would take the query over its budget.
+     * @param api    name of the API called, e.g. BatchDetectEntities
+     * @param texts  the documents of the request
+     */
+    void chargeComprehend(String api, String... texts)
+    {
+        long units = 0;
+        for (String text : texts) {
+            units += comprehendUnits(text);
+        }
+        charge(api, units, this.queryComprehendUnits, this.comprehendUnitBudget, "Comprehend units", TextAnalyticsConfig.QUERY_COMPREHEND_UNIT_BUDGET);
+    }
+
+    /**
+     * Charges a Translate request, or throws an exception, without making the request, if that would take the query over its budget.
+     * @param text  the text of the request
+     */
+    void chargeTranslate(String text)
+    {
+        charge("TranslateText", countCharacters(text), this.queryTranslateCharacters, this.translateCharacterBudget, "Translate characters", TextAnalyticsConfig.QUERY_TRANSLATE_CHARACTER_BUDGET);
+    }
+
+    /**
+     * Throws an exception if the current query has exceeded a budget - for callers that would otherwise handle the error
+     * of a rejected request by carrying on.
+     */
+    void check()
+    {
+        String exceeded = this.budgetExceeded;
+        if (exceeded != null) {
+            throw new RuntimeException(exceeded);
+        }
+    }
+
+    private void charge(String api, long units, AtomicLong queryTotal, long budget, String unitName, String budgetName)
+    {
+        check();
+        long total = queryTotal.addAndGet(units);
+        if (budget > 0 && total > budget) {
+            queryTotal.addAndGet(-units);
+            this.rejectedRequests.incrementAndGet();
+            this.budgetExceeded = "Error: query budget of " + budget + " " + unitName + " (" + budgetName + ") exceeded in this Lambda container - " + api + " request for " + units
+                + " " + unitName + " not made, after " + (total - units) + " used. No further requests are made for this query.";
+            System.out.println("DEBUG: " + this.budgetExceeded);
+            check();
+        }
+        add(this.invocationUnits, api, units);
+        add(this.queryUnits, api, units);
+        add(this.totalUnits, api, units);
+    }
+
+    private static void add(Map<String, AtomicLong> units, String api, long value)
+    {
+        units.computeIfAbsent(api, key -> new AtomicLong()).addAndGet(value);
+    }
+
+    /**
+     * @return the units of the query's current invocation for the API
+     */
+    long getInvocationUnits(String api)
+    {
+        AtomicLong units = this.invocationUnits.get(api);
+        return (units == null) ? 0 : units.get();
+    }
+
+    /**
+     * @return the units of the current query for the API
+     */
+    long getQueryUnits(String api)
+    {
+        AtomicLong units = this.queryUnits.get(api);
+        return (units == null) ? 0 : units.get();
+    }
+
+    /**
+     * @return Comprehend units billed for a document - 100 characters per unit, minimum 3 units
+     */
+    static long comprehendUnits(String text)
+    {
+        long characters = countCharacters(text);
+        return Math.max(COMPREHEND_MIN_UNITS, (characters + COMPREHEND_CHARACTERS_PER_UNIT - 1) / COMPREHEND_CHARACTERS_PER_UNIT);
+    }
+
+    // characters (Unicode code points) counted in place, without copying or encoding the text
+    static int countCharacters(String text)
+    {
+        return (text == null) ? 0 : text.codePointCount(0, text.length());
+    }
+}
@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * TextAnalyticsUDFHandler
+ * %%
+ * Copyright (C) 2019 - 2020 Amazon Web Services
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.amazonaws.athena.udf.textanalytics;
+
+import org.apache.arrow.vector.VarCharVector;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes string results to a VARCHAR output vector as UTF-8 bytes, encoding each distinct short value once.
+ * <p>
+ * Functions such as detect_dominant_language and detect_sentiment return a handful of distinct values ("en", "POSITIVE")
+ * for every row of a block. Rather than encode a new byte array for each row, as Block.setValue does, the encoded bytes
+ * of short values are kept and copied straight into the vector. Long values (JSON results, translated text) are rarely
+ * repeated, so they are encoded without being kept, and the number of values kept is capped so that a high cardinality
+ * column costs no more than a bounded map.
+ * <p>
+ * Values can also be passed through a {@link ResultCompressor}, which compresses those above its size threshold, and
+ * a {@link ResultSpiller}, which moves them to an object store once the block reaches its size budget.
+ */
+class Utf8ValueWriter
+{
+    // values longer than this are not worth hashing and keeping
+    static final int MAX_CACHED_CHARS = 64;
+
+    private final int maxCachedValues;
+    private final ResultCompressor compressor;
+    private final ResultSpiller spiller;
+    private final Map<String, byte[]> encodedValues = new HashMap<String, byte[]>();
+    private long valuesWritten;
+    private long bytesWritten;
+    private long cacheHits;
+
+    Utf8ValueWriter(int maxCachedValues)
+    {
+        this(maxCachedValues, null, null);
+    }
+
+    /**
+     * @param maxCachedValues  number of distinct short values to keep encoded
+     * @param compressor       compressor for large values, or null to write all values as is
+     * @param spiller          spiller for values beyond the block's size budget, or null to write all values to the block
+     */
+    Utf8ValueWriter(int maxCachedValues, ResultCompressor compressor, ResultSpiller spiller)
+    {
+        this.maxCachedValues = maxCachedValues;
+        this.compressor = compressor;
+        this.spiller = spiller;
+    }
+
+    /**
+     * Sets a row of the vector to the value, or to null if the value is null.
+     */
+    void write(VarCharVector vector, int row, String value)
+    {
+        if (value == null) {
+            vector.setNull(row);
+            return;
+        }
+        byte[] bytes = encode(value);
+        if (compressor != null) {
+            bytes = compressor.compress(bytes);
+        }
+        if (spiller != null) {
+            bytes = spiller.spillIfOverBudget(bytes, row, bytesWritten);
+        }
+        vector.setSafe(row, bytes);
+        valuesWritten++;
+        bytesWritten += bytes.length;
+    }
+
+    byte[] encode(String value)
+    {
+        if (value.length() > MAX_CACHED_CHARS) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] bytes = encodedValues.get(value);
+        if (bytes != null) {
+            cacheHits++;
+            return bytes;
+        }
+        bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (encodedValues.size() < maxCachedValues) {
+            encodedValues.put(value, bytes);
+        }
+        return bytes;
+    }
+
+    long getCacheHits()
+    {
+        return cacheHits;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Utf8ValueWriter{valuesWritten=" + valuesWritten + ", bytesWritten=" + bytesWritten + ", cacheHits=" + cacheHits
+            + ", distinctValuesKept=" + encodedValues.size() + ((compressor != null) ? ", " + compressor : "")
+            + ((spiller != null) ? ", " + spiller : "") + "}";
+    }
+}